@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.benchmark;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.junglecomputing.pidgin.Pidgin;
+import nl.junglecomputing.pidgin.PidginFactory;
+
+/**
+ * Settings and helpers shared by the channel benchmarks. Every benchmark runs in a pool of ranks within the benchmark JVM: rank 0 is a sink
+ * that receives all messages and answers pings and acknowledgement requests, the other ranks are senders. One-way and ping-pong benchmarks use
+ * a single sender, message rate benchmarks use {@link #SENDERS}.
+ */
+final class Benchmarks {
+
+    static final int SENDERS = 4;
+
+    // The first byte or opcode of every message.
+    static final byte DATA = 0;
+    static final byte DATA_ACK = 1;
+    static final byte PING = 2;
+    static final byte ACK = 3;
+    static final byte PONG = 4;
+
+    // One-way senders request an acknowledgement after a window of messages, and allow at most two windows in flight.
+    private static final int MAX_WINDOW = 64;
+    private static final long MAX_WINDOW_BYTES = 64L * 1024 * 1024;
+
+    // How often a sender waiting for a reply checks whether the sink has failed.
+    static final long SINK_CHECK_MILLIS = 100;
+
+    private static final AtomicInteger pools = new AtomicInteger();
+
+    /**
+     * Records the first failure of the sink, so the senders waiting for its replies fail instead of hanging.
+     */
+    static final class SinkFailure {
+
+        private volatile Throwable failure;
+
+        void set(Throwable e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Rethrows the failure of the sink, if any, in the calling thread.
+         */
+        void check() throws IOException {
+
+            Throwable e = failure;
+
+            if (e != null) {
+                throw new IOException("The sink failed", e);
+            }
+        }
+
+        /**
+         * Waits for the given number of replies, failing if the sink fails meanwhile.
+         */
+        void acquire(Semaphore replies, int permits) throws IOException {
+            try {
+                while (!replies.tryAcquire(permits, SINK_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                    check();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a reply from the sink");
+            }
+        }
+    }
+
+    private Benchmarks() {
+        // Utility class
+    }
+
+    static int getWindow(int size) {
+        return (int) Math.max(1, Math.min(MAX_WINDOW, MAX_WINDOW_BYTES / size));
+    }
+
+    static String getPoolName(String benchmark) {
+        return benchmark + "-" + pools.incrementAndGet();
+    }
+
+    static Pidgin[] createPool(String name) {
+        return PidginFactory.createLocal(name, SENDERS + 1);
+    }
+
+    static void terminatePool(String name) throws IOException {
+        for (int i = 0; i <= SENDERS; i++) {
+            PidginFactory.terminate(name);
+        }
+    }
+}
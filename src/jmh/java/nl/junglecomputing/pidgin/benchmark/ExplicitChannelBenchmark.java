@@ -0,0 +1,253 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceiveTimedOutException;
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.ChannelNotActiveException;
+import nl.junglecomputing.pidgin.ChannelOptions;
+import nl.junglecomputing.pidgin.ExplicitChannel;
+import nl.junglecomputing.pidgin.Pidgin;
+import nl.junglecomputing.pidgin.ReceiveMode;
+
+/**
+ * Benchmarks an {@link ExplicitChannel}. All ranks receive many-to-one, so the sink can take messages from any sender in arrival order.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExplicitChannelBenchmark {
+
+    @Param({ "8", "64", "1024", "16384", "262144", "4194304", "67108864" })
+    public int size;
+
+    private String poolName;
+
+    private ExplicitChannel[] channels;
+
+    private Thread sink;
+
+    private final Benchmarks.SinkFailure sinkFailure = new Benchmarks.SinkFailure();
+
+    private final AtomicInteger nextSender = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Sender {
+
+        private ExplicitChannel channel;
+
+        private Benchmarks.SinkFailure sinkFailure;
+
+        private ByteBuffer payload;
+
+        private int window;
+
+        private long sent;
+
+        private int pending;
+
+        @Setup(Level.Trial)
+        public void setup(ExplicitChannelBenchmark benchmark) {
+            channel = benchmark.channels[benchmark.nextSender.incrementAndGet()];
+            sinkFailure = benchmark.sinkFailure;
+            payload = ByteBuffer.allocate(benchmark.size);
+            window = Benchmarks.getWindow(benchmark.size);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            while (pending > 0) {
+                receiveReply(this);
+                pending--;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        poolName = Benchmarks.getPoolName("explicit");
+
+        Pidgin[] ranks = Benchmarks.createPool(poolName);
+
+        channels = new ExplicitChannel[ranks.length];
+
+        for (int i = 0; i < ranks.length; i++) {
+            channels[i] = ranks[i].createExplicitChannel("bench", ranks[i].getAllIdentifiers(),
+                    new ChannelOptions().setReceiveMode(ReceiveMode.MANY_TO_ONE));
+            channels[i].activate();
+        }
+
+        nextSender.set(0);
+
+        sink = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runSink(channels[0], size, sinkFailure);
+            }
+        }, "Sink " + poolName);
+
+        sink.setDaemon(true);
+        sink.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+
+        for (ExplicitChannel c : channels) {
+            c.deactivate();
+        }
+
+        sink.join();
+
+        Benchmarks.terminatePool(poolName);
+
+        sinkFailure.check();
+    }
+
+    private static void runSink(ExplicitChannel channel, int size, Benchmarks.SinkFailure failure) {
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        try {
+            while (true) {
+                ReadMessage rm = channel.receiveAny();
+
+                byte kind = rm.readByte();
+
+                buffer.clear();
+                rm.readByteBuffer(buffer);
+
+                IbisIdentifier sender = rm.origin().ibisIdentifier();
+
+                rm.finish();
+
+                if (kind == Benchmarks.DATA_ACK) {
+                    WriteMessage wm = channel.sendMessage(sender);
+                    wm.writeByte(Benchmarks.ACK);
+                    wm.finish();
+                } else if (kind == Benchmarks.PING) {
+                    buffer.flip();
+
+                    WriteMessage wm = channel.sendMessage(sender);
+                    wm.writeByte(Benchmarks.PONG);
+                    wm.writeByteBuffer(buffer);
+                    wm.finish();
+                }
+            }
+        } catch (ChannelNotActiveException e) {
+            // The benchmark is done.
+        } catch (IOException | RuntimeException e) {
+            failure.set(e);
+        }
+    }
+
+    private static void send(Sender s, byte kind) throws IOException {
+
+        s.payload.clear();
+
+        WriteMessage wm = s.channel.sendMessage(0);
+        wm.writeByte(kind);
+        wm.writeByteBuffer(s.payload);
+        wm.finish();
+    }
+
+    private static void receiveReply(Sender s) throws IOException {
+
+        ReadMessage rm = null;
+
+        while (rm == null) {
+            try {
+                rm = s.channel.receiveAny(Benchmarks.SINK_CHECK_MILLIS);
+            } catch (ReceiveTimedOutException e) {
+                s.sinkFailure.check();
+            }
+        }
+
+        if (rm.readByte() == Benchmarks.PONG) {
+            s.payload.clear();
+            rm.readByteBuffer(s.payload);
+        }
+
+        rm.finish();
+    }
+
+    private static void sendWindowed(Sender s) throws IOException {
+
+        boolean ack = ++s.sent % s.window == 0;
+
+        send(s, ack ? Benchmarks.DATA_ACK : Benchmarks.DATA);
+
+        if (ack && ++s.pending > 1) {
+            receiveReply(s);
+            s.pending--;
+        }
+    }
+
+    /**
+     * Sends messages from one sender to the sink. The score is in messages per second.
+     */
+    @Benchmark
+    public void oneWay(Sender s) throws IOException {
+        sendWindowed(s);
+    }
+
+    /**
+     * Sends a message to the sink and waits for it to come back.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void pingPong(Sender s) throws IOException {
+        send(s, Benchmarks.PING);
+        receiveReply(s);
+    }
+
+    /**
+     * Sends messages from {@link Benchmarks#SENDERS} threads, each using its own rank, to the sink. The score is in messages per second.
+     */
+    @Benchmark
+    @Threads(Benchmarks.SENDERS)
+    public void messageRate(Sender s) throws IOException {
+        sendWindowed(s);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.MessageUpcallChannel;
+import nl.junglecomputing.pidgin.Pidgin;
+
+/**
+ * Benchmarks a {@link MessageUpcallChannel}. The sink answers from its upcall, and the replies to a sender release a semaphore that the
+ * sender waits on.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageUpcallChannelBenchmark {
+
+    @Param({ "8", "64", "1024", "16384", "262144", "4194304", "67108864" })
+    public int size;
+
+    private String poolName;
+
+    private MessageUpcallChannel[] channels;
+
+    // The sink echoes the payload of each sender from its own buffer, and each sender receives replies in its own buffer.
+    private ByteBuffer[] echo;
+
+    private ByteBuffer[] received;
+
+    private Semaphore[] replies;
+
+    private final AtomicInteger nextSender = new AtomicInteger();
+
+    private final Benchmarks.SinkFailure sinkFailure = new Benchmarks.SinkFailure();
+
+    @State(Scope.Thread)
+    public static class Sender {
+
+        private MessageUpcallChannel channel;
+
+        private Semaphore replies;
+
+        private Benchmarks.SinkFailure sinkFailure;
+
+        private ByteBuffer payload;
+
+        private int window;
+
+        private long sent;
+
+        private int pending;
+
+        @Setup(Level.Trial)
+        public void setup(MessageUpcallChannelBenchmark benchmark) {
+            int rank = benchmark.nextSender.incrementAndGet();
+            channel = benchmark.channels[rank];
+            replies = benchmark.replies[rank];
+            sinkFailure = benchmark.sinkFailure;
+            payload = ByteBuffer.allocate(benchmark.size);
+            window = Benchmarks.getWindow(benchmark.size);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            sinkFailure.acquire(replies, pending);
+            pending = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        poolName = Benchmarks.getPoolName("messageupcall");
+
+        Pidgin[] ranks = Benchmarks.createPool(poolName);
+
+        channels = new MessageUpcallChannel[ranks.length];
+        echo = new ByteBuffer[ranks.length];
+        received = new ByteBuffer[ranks.length];
+        replies = new Semaphore[ranks.length];
+
+        for (int i = 1; i < ranks.length; i++) {
+            echo[i] = ByteBuffer.allocate(size);
+            received[i] = ByteBuffer.allocate(size);
+            replies[i] = new Semaphore(0);
+        }
+
+        for (int i = 0; i < ranks.length; i++) {
+            final int rank = i;
+
+            channels[i] = ranks[i].createMessageUpcallChannel("bench", ranks[i].getAllIdentifiers(), new MessageUpcall() {
+                @Override
+                public void upcall(ReadMessage rm) throws IOException, ClassNotFoundException {
+                    if (rank == 0) {
+                        try {
+                            sink(rm);
+                        } catch (IOException | RuntimeException e) {
+                            sinkFailure.set(e);
+                            throw e;
+                        }
+                    } else {
+                        reply(rm, rank);
+                    }
+                }
+            });
+        }
+
+        for (MessageUpcallChannel c : channels) {
+            c.activate();
+        }
+
+        nextSender.set(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+
+        for (MessageUpcallChannel c : channels) {
+            c.deactivate();
+        }
+
+        Benchmarks.terminatePool(poolName);
+
+        sinkFailure.check();
+    }
+
+    // Messages from a sender are delivered one at a time, so the buffer of the sender can be reused for each of them.
+    private void sink(ReadMessage rm) throws IOException {
+
+        byte kind = rm.readByte();
+
+        int sender = channels[0].getRank(rm.origin().ibisIdentifier());
+
+        ByteBuffer buffer = echo[sender];
+        buffer.clear();
+        rm.readByteBuffer(buffer);
+        rm.finish();
+
+        if (kind == Benchmarks.DATA_ACK) {
+            WriteMessage wm = channels[0].sendMessage(sender);
+            wm.writeByte(Benchmarks.ACK);
+            wm.finish();
+        } else if (kind == Benchmarks.PING) {
+            buffer.flip();
+
+            WriteMessage wm = channels[0].sendMessage(sender);
+            wm.writeByte(Benchmarks.PONG);
+            wm.writeByteBuffer(buffer);
+            wm.finish();
+        }
+    }
+
+    private void reply(ReadMessage rm, int rank) throws IOException {
+
+        if (rm.readByte() == Benchmarks.PONG) {
+            ByteBuffer buffer = received[rank];
+            buffer.clear();
+            rm.readByteBuffer(buffer);
+        }
+
+        rm.finish();
+        replies[rank].release();
+    }
+
+    private static void send(Sender s, byte kind) throws IOException {
+
+        s.payload.clear();
+
+        WriteMessage wm = s.channel.sendMessage(0);
+        wm.writeByte(kind);
+        wm.writeByteBuffer(s.payload);
+        wm.finish();
+    }
+
+    private static void sendWindowed(Sender s) throws IOException {
+
+        boolean ack = ++s.sent % s.window == 0;
+
+        send(s, ack ? Benchmarks.DATA_ACK : Benchmarks.DATA);
+
+        if (ack && ++s.pending > 1) {
+            s.sinkFailure.acquire(s.replies, 1);
+            s.pending--;
+        }
+    }
+
+    /**
+     * Sends messages from one sender to the sink. The score is in messages per second.
+     */
+    @Benchmark
+    public void oneWay(Sender s) throws IOException {
+        sendWindowed(s);
+    }
+
+    /**
+     * Sends a message to the sink and waits for it to come back.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void pingPong(Sender s) throws IOException {
+        send(s, Benchmarks.PING);
+        s.sinkFailure.acquire(s.replies, 1);
+    }
+
+    /**
+     * Sends messages from {@link Benchmarks#SENDERS} threads, each using its own rank, to the sink. The score is in messages per second.
+     */
+    @Benchmark
+    @Threads(Benchmarks.SENDERS)
+    public void messageRate(Sender s) throws IOException {
+        sendWindowed(s);
+    }
+}
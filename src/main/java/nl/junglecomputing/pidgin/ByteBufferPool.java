@@ -0,0 +1,230 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct {@link ByteBuffer}s, organized in size classes that are powers of two. Requests larger than the largest size class are
+ * allocated directly and are not pooled.
+ *
+ * This class is thread safe.
+ */
+public class ByteBufferPool {
+
+    public static final int DEFAULT_MIN_SIZE = 64;
+
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+    public static final int DEFAULT_BUFFERS_PER_CLASS = 64;
+
+    private final int minShift;
+
+    private final int maxShift;
+
+    private final int buffersPerClass;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+
+    private final AtomicInteger[] freeCount;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final AtomicLong bytesOutstanding = new AtomicLong();
+
+    private final AtomicLong bytesPooled = new AtomicLong();
+
+    public ByteBufferPool() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    /**
+     * Creates a pool with size classes from minSize up to and including maxSize.
+     *
+     * @param minSize
+     *            the smallest size class, rounded up to a power of two.
+     * @param maxSize
+     *            the largest size class, rounded up to a power of two.
+     * @param buffersPerClass
+     *            the maximum number of free buffers kept per size class.
+     */
+    @SuppressWarnings("unchecked")
+    public ByteBufferPool(int minSize, int maxSize, int buffersPerClass) {
+
+        if (minSize <= 0 || maxSize < minSize || maxSize > (1 << 30)) {
+            throw new IllegalArgumentException("Illegal size range " + minSize + " - " + maxSize);
+        }
+
+        if (buffersPerClass < 0) {
+            throw new IllegalArgumentException("Buffers per class may not be negative");
+        }
+
+        this.minShift = shiftFor(minSize);
+        this.maxShift = shiftFor(maxSize);
+        this.buffersPerClass = buffersPerClass;
+
+        int classes = maxShift - minShift + 1;
+
+        free = new ConcurrentLinkedQueue[classes];
+        freeCount = new AtomicInteger[classes];
+
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            freeCount[i] = new AtomicInteger();
+        }
+    }
+
+    private static int shiftFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    /**
+     * Returns a direct buffer with at least the given capacity. The position of the buffer is 0 and its limit is size.
+     *
+     * @param size
+     *            the number of bytes needed.
+     * @return a buffer with size bytes remaining.
+     */
+    public ByteBuffer allocate(int size) {
+
+        int shift = Math.max(minShift, shiftFor(size));
+
+        ByteBuffer result = null;
+
+        if (shift <= maxShift) {
+            int index = shift - minShift;
+
+            result = free[index].poll();
+
+            if (result != null) {
+                freeCount[index].decrementAndGet();
+                bytesPooled.addAndGet(-result.capacity());
+                hits.increment();
+            } else {
+                result = ByteBuffer.allocateDirect(1 << shift);
+                misses.increment();
+            }
+        } else {
+            result = ByteBuffer.allocateDirect(size);
+            misses.increment();
+        }
+
+        bytesOutstanding.addAndGet(result.capacity());
+
+        result.clear();
+        result.limit(size);
+        return result;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #allocate(int)} to the pool. The buffer may not be used after it has been released.
+     *
+     * @param buffer
+     *            the buffer to release, may be <code>null</code>.
+     */
+    public void release(ByteBuffer buffer) {
+
+        if (buffer == null) {
+            return;
+        }
+
+        int capacity = buffer.capacity();
+
+        bytesOutstanding.addAndGet(-capacity);
+
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+
+        int shift = shiftFor(capacity);
+
+        if (shift < minShift || shift > maxShift) {
+            return;
+        }
+
+        int index = shift - minShift;
+
+        if (freeCount[index].incrementAndGet() > buffersPerClass) {
+            // The size class is full, so let this buffer be garbage collected.
+            freeCount[index].decrementAndGet();
+            return;
+        }
+
+        buffer.clear();
+        bytesPooled.addAndGet(capacity);
+        free[index].offer(buffer);
+    }
+
+    public void release(ByteBuffer[] buffers) {
+
+        if (buffers == null) {
+            return;
+        }
+
+        for (ByteBuffer b : buffers) {
+            release(b);
+        }
+    }
+
+    /**
+     * Returns the number of allocations that were served from the pool.
+     *
+     * @return the number of hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of allocations that required a new buffer.
+     *
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the total capacity of the buffers that have been allocated and not yet released.
+     *
+     * @return the number of bytes outstanding.
+     */
+    public long getBytesOutstanding() {
+        return bytesOutstanding.get();
+    }
+
+    /**
+     * Returns the total capacity of the free buffers kept in the pool.
+     *
+     * @return the number of bytes pooled.
+     */
+    public long getBytesPooled() {
+        return bytesPooled.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ByteBufferPool(hits=" + getHits() + ", misses=" + getMisses() + ", outstanding=" + getBytesOutstanding() + ", pooled="
+                + getBytesPooled() + ")";
+    }
+}
@@ -18,9 +18,68 @@ package nl.junglecomputing.pidgin;
 
 import java.io.IOException;
 
+import ibis.ipl.IbisIdentifier;
+
 public interface Channel {
 
     public void activate() throws IOException;
 
     public void deactivate() throws IOException;
+
+    /**
+     * Connects this channel to the given peers, instead of waiting for the first message to each peer to set up the connection. The connections
+     * are set up concurrently, using at most parallelism threads. Peers that are already connected, and the local node, are skipped. The channel
+     * must be active.
+     *
+     * @param peers
+     *            the peers to connect to.
+     * @param parallelism
+     *            the maximum number of connections to set up concurrently.
+     * @return the connect time or failure for each peer.
+     * @throws IOException
+     *             if the channel is not active.
+     */
+    public ConnectResult connect(IbisIdentifier[] peers, int parallelism) throws IOException;
+
+    public default ConnectResult connectAll() throws IOException {
+        return connect(getParticipants(), ChannelOptions.DEFAULT_CONNECT_PARALLELISM);
+    }
+
+    /**
+     * Returns the participants of this channel. The index of a participant in this array is its rank in the channel.
+     *
+     * @return the participants of this channel.
+     */
+    public IbisIdentifier[] getParticipants();
+
+    /**
+     * Returns the number of participants in this channel.
+     *
+     * @return the number of participants.
+     */
+    public int getSize();
+
+    /**
+     * Returns the rank of the local node in this channel. Ranks are numbered densely from 0 to {@link #getSize()} - 1.
+     *
+     * @return the rank of the local node in this channel.
+     */
+    public int getRank();
+
+    /**
+     * Returns the rank of the given participant in this channel, or -1 if it does not participate.
+     *
+     * @param id
+     *            the participant to look up.
+     * @return the rank of the participant, or -1.
+     */
+    public int getRank(IbisIdentifier id);
+
+    /**
+     * Returns a snapshot of the messages and bytes this channel exchanged with each peer, and the time spent connecting to it and handling its
+     * messages. The same statistics are published as a {@link ChannelMXBean} while the channel is active.
+     *
+     * @return the statistics, or <code>null</code> if they are disabled in the {@link ChannelOptions}.
+     */
+    public ChannelStatistics getStatistics();
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+/**
+ * The management interface of a channel that collects statistics. Each such channel is registered with the platform MBean server under the
+ * name <code>nl.junglecomputing.pidgin:type=Channel,pool=&lt;pool&gt;,name=&lt;channel&gt;,rank=&lt;rank&gt;</code> while it is active. The
+ * totals are summed over all peers. Times are in nanoseconds.
+ */
+public interface ChannelMXBean {
+
+    String getName();
+
+    int getRank();
+
+    int getSize();
+
+    long getSentMessages();
+
+    long getSentBytes();
+
+    long getAbortedMessages();
+
+    long getReceivedMessages();
+
+    long getReceivedBytes();
+
+    long getConnectTime();
+
+    long getHandlerTime();
+
+    /**
+     * Returns the statistics of all peers, indexed by rank.
+     *
+     * @return the statistics per peer.
+     */
+    PeerStatistics[] getPeers();
+}
@@ -0,0 +1,435 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Options that can be passed when creating a channel. A new instance contains the default settings.
+ */
+public class ChannelOptions {
+
+    public static final int DEFAULT_CONNECT_PARALLELISM = 8;
+
+    public static final int DEFAULT_ASYNC_SEND_THREADS = 2;
+
+    public static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 64;
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    public static final int DEFAULT_SHARED_MEMORY_CAPACITY = 4 * 1024 * 1024;
+
+    private ReceiveMode receiveMode = ReceiveMode.ONE_TO_ONE;
+
+    private Serialization serialization = Serialization.OBJECT;
+
+    private ByteBufferPool bufferPool = null;
+
+    private int aggregationSize = 0;
+
+    private long aggregationDelay = 0;
+
+    private int asyncSendThreads = DEFAULT_ASYNC_SEND_THREADS;
+
+    private int asyncQueueCapacity = DEFAULT_ASYNC_QUEUE_CAPACITY;
+
+    private CodecRegistry codecRegistry = null;
+
+    private Executor dispatcher = null;
+
+    private boolean orderedDispatch = true;
+
+    private int creditMessages = 0;
+
+    private long creditBytes = 0;
+
+    private FlowControlPolicy flowControlPolicy = FlowControlPolicy.BLOCK;
+
+    private long chunkThreshold = 0;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    private boolean sharedMemory = false;
+
+    private int sharedMemoryCapacity = DEFAULT_SHARED_MEMORY_CAPACITY;
+
+    private File sharedMemoryDirectory = getDefaultSharedMemoryDirectory();
+
+    private boolean connectOnActivate = false;
+
+    private int connectParallelism = DEFAULT_CONNECT_PARALLELISM;
+
+    private boolean statistics = false;
+
+    public ReceiveMode getReceiveMode() {
+        return receiveMode;
+    }
+
+    public ChannelOptions setReceiveMode(ReceiveMode receiveMode) {
+
+        if (receiveMode == null) {
+            throw new IllegalArgumentException("Receive mode may not be null");
+        }
+
+        this.receiveMode = receiveMode;
+        return this;
+    }
+
+    public Serialization getSerialization() {
+        return serialization;
+    }
+
+    public ChannelOptions setSerialization(Serialization serialization) {
+
+        if (serialization == null) {
+            throw new IllegalArgumentException("Serialization may not be null");
+        }
+
+        this.serialization = serialization;
+        return this;
+    }
+
+    public ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Sets the pool from which an {@link UpcallChannel} allocates receive buffers. Several channels may share a pool. When no pool is set, each
+     * channel creates its own.
+     *
+     * @param bufferPool
+     *            the pool to use, or <code>null</code> to use a pool per channel.
+     * @return these options.
+     */
+    public ChannelOptions setBufferPool(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    public int getAggregationSize() {
+        return aggregationSize;
+    }
+
+    /**
+     * Returns the maximum time in nanoseconds that an aggregated message may be delayed before it is sent.
+     *
+     * @return the maximum aggregation delay in nanoseconds.
+     */
+    public long getAggregationDelay() {
+        return aggregationDelay;
+    }
+
+    /**
+     * Enables aggregation of small messages on an {@link UpcallChannel}. Messages without a data object that fit in maxBytes are packed together
+     * with other messages to the same destination and sent as one wire message. The packed messages are sent when no more messages fit, when the
+     * oldest message has waited for maxDelay, or when {@link UpcallChannel#flush(int)} is called. To deliver the messages from each sender in the
+     * order in which they were sent, aggregation requires ordered dispatch on an executor, see {@link #setDispatcher(Executor, boolean)}; an
+     * {@link UpcallChannel} with aggregation but without such a dispatcher cannot be created.
+     *
+     * @param maxBytes
+     *            the size of the aggregation buffer per destination, or 0 to disable aggregation.
+     * @param maxDelay
+     *            the maximum time a message may wait before being sent, or 0 to only send when the buffer is full or flushed explicitly.
+     * @param unit
+     *            the unit of maxDelay.
+     * @return these options.
+     */
+    public ChannelOptions setAggregation(int maxBytes, long maxDelay, TimeUnit unit) {
+
+        if (maxBytes < 0 || maxDelay < 0) {
+            throw new IllegalArgumentException("Aggregation size and delay may not be negative");
+        }
+
+        this.aggregationSize = maxBytes;
+        this.aggregationDelay = unit.toNanos(maxDelay);
+        return this;
+    }
+
+    public int getAsyncSendThreads() {
+        return asyncSendThreads;
+    }
+
+    public int getAsyncQueueCapacity() {
+        return asyncQueueCapacity;
+    }
+
+    /**
+     * Configures the background senders used by {@link UpcallChannel#sendAsync(int, byte, Object, java.nio.ByteBuffer...)}. A destination that
+     * is slow to accept messages, for example because it has no credits left, blocks the thread sending to it. To keep the other destinations
+     * going, use more threads than the number of destinations that may be slow at the same time.
+     *
+     * @param threads
+     *            the number of sender threads shared by all destinations of the channel.
+     * @param queueCapacity
+     *            the maximum number of queued messages per destination. Callers block while the queue of their destination is full.
+     * @return these options.
+     */
+    public ChannelOptions setAsyncSend(int threads, int queueCapacity) {
+
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Sender threads and queue capacity must be positive");
+        }
+
+        this.asyncSendThreads = threads;
+        this.asyncQueueCapacity = queueCapacity;
+        return this;
+    }
+
+    public CodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    /**
+     * Sets the codecs an {@link UpcallChannel} uses to send data objects. Objects of a class with a codec are sent as a type id followed by
+     * their encoding, which also works with {@link Serialization#DATA}. All participants must use registries with the same codecs.
+     *
+     * @param codecRegistry
+     *            the registry to use, or <code>null</code> to use a registry containing only the built-in codecs.
+     * @return these options.
+     */
+    public ChannelOptions setCodecRegistry(CodecRegistry codecRegistry) {
+        this.codecRegistry = codecRegistry;
+        return this;
+    }
+
+    public Executor getDispatcher() {
+        return dispatcher;
+    }
+
+    public boolean getOrderedDispatch() {
+        return orderedDispatch;
+    }
+
+    /**
+     * Lets an {@link UpcallChannel} hand received messages to an executor, instead of calling the upcall on the receive thread. The message is
+     * read completely, handed over and then finished, so a slow upcall no longer holds up further receives, and with ordered dispatch the
+     * messages from each sender reach the upcall in the order in which they were sent. Any executor can be used, such as a fixed thread pool, a
+     * fork-join pool, or an executor that starts a virtual thread per task.
+     *
+     * @param dispatcher
+     *            the executor that runs the upcalls, or <code>null</code> to run them on the receive thread.
+     * @param ordered
+     *            if the messages from each sender must be delivered one at a time, in the order in which they were sent.
+     * @return these options.
+     */
+    public ChannelOptions setDispatcher(Executor dispatcher, boolean ordered) {
+        this.dispatcher = dispatcher;
+        this.orderedDispatch = ordered;
+        return this;
+    }
+
+    public int getCreditMessages() {
+        return creditMessages;
+    }
+
+    public long getCreditBytes() {
+        return creditBytes;
+    }
+
+    public FlowControlPolicy getFlowControlPolicy() {
+        return flowControlPolicy;
+    }
+
+    public boolean hasFlowControl() {
+        return creditMessages > 0 || creditBytes > 0;
+    }
+
+    /**
+     * Enables credit-based flow control on an {@link UpcallChannel} or {@link MessageUpcallChannel}. Each receiver grants every sender a window
+     * of messages and payload bytes that may be in flight. Credits are returned once the upcall of a message has returned, piggybacked on
+     * messages going back to the sender, or in a separate credit message when half the window has been used. A message larger than the byte
+     * window is allowed when nothing else is in flight. The byte window only applies to the buffers of an {@link UpcallChannel}, as the size of a
+     * message written to a {@link MessageUpcallChannel} is not known in advance. All participants must use the same setting. As every message
+     * carries a flow control header, flow control cannot be combined with {@link Serialization#BYTE}.
+     *
+     * @param messages
+     *            the number of messages that may be in flight per sender, or 0 for no limit.
+     * @param bytes
+     *            the number of payload bytes that may be in flight per sender, or 0 for no limit.
+     * @param policy
+     *            what a sender does when it has no credits left.
+     * @return these options.
+     */
+    public ChannelOptions setFlowControl(int messages, long bytes, FlowControlPolicy policy) {
+
+        if (messages < 0 || bytes < 0) {
+            throw new IllegalArgumentException("Credit windows may not be negative");
+        }
+
+        if (policy == null) {
+            throw new IllegalArgumentException("Flow control policy may not be null");
+        }
+
+        this.creditMessages = messages;
+        this.creditBytes = bytes;
+        this.flowControlPolicy = policy;
+        return this;
+    }
+
+    public long getChunkThreshold() {
+        return chunkThreshold;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Configures chunked transfers on an {@link UpcallChannel}. A chunked transfer sends its payload as a series of wire messages of at most
+     * chunkSize bytes, so the receiver can process one chunk while the next is being sent. Messages sent with
+     * {@link UpcallChannel#sendMessage(int, byte, Object, java.nio.ByteBuffer...)} whose payload exceeds threshold are chunked automatically.
+     *
+     * @param threshold
+     *            the payload size above which messages are chunked automatically, or 0 to only chunk when
+     *            {@link UpcallChannel#sendChunked(int, byte, Object, java.nio.ByteBuffer...)} is used.
+     * @param chunkSize
+     *            the maximum number of payload bytes per chunk.
+     * @return these options.
+     */
+    public ChannelOptions setChunkedTransfer(long threshold, int chunkSize) {
+
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Chunk threshold may not be negative");
+        }
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+
+        this.chunkThreshold = threshold;
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    private static File getDefaultSharedMemoryDirectory() {
+
+        File shm = new File("/dev/shm");
+
+        if (shm.isDirectory()) {
+            return shm;
+        }
+
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    public boolean getSharedMemory() {
+        return sharedMemory;
+    }
+
+    public int getSharedMemoryCapacity() {
+        return sharedMemoryCapacity;
+    }
+
+    /**
+     * Lets participants on the same host exchange messages through ring buffers in memory-mapped files, instead of through the network.
+     * Participants are on the same host when they run on the same operating system instance with the same host name, so processes in separate
+     * containers or virtual machines use the network. Each receiver creates a ring per co-located sender, which is removed when the channel is
+     * deactivated. All participants must use the same setting.
+     *
+     * Messages sent through shared memory write strings and objects in their own format, so object identity is not preserved between separate
+     * writeObject calls, and the localPort of a received message is <code>null</code>.
+     *
+     * @param enabled
+     *            if co-located participants should use shared memory.
+     * @param capacity
+     *            the size in bytes of each ring, a power of two of at least 4096.
+     * @return these options.
+     */
+    public ChannelOptions setSharedMemory(boolean enabled, int capacity) {
+
+        if (capacity < 4096 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Shared memory capacity must be a power of two of at least 4096");
+        }
+
+        this.sharedMemory = enabled;
+        this.sharedMemoryCapacity = capacity;
+        return this;
+    }
+
+    public File getSharedMemoryDirectory() {
+        return sharedMemoryDirectory;
+    }
+
+    /**
+     * Sets the directory in which the shared memory rings are created. The default is <code>/dev/shm</code> if it exists, and the temporary
+     * directory otherwise. The pool name of the Ibis is part of each file name, so it should be unique for every run.
+     *
+     * @param directory
+     *            the directory for the ring files.
+     * @return these options.
+     */
+    public ChannelOptions setSharedMemoryDirectory(File directory) {
+
+        if (directory == null) {
+            throw new IllegalArgumentException("Shared memory directory may not be null");
+        }
+
+        this.sharedMemoryDirectory = directory;
+        return this;
+    }
+
+    public boolean getConnectOnActivate() {
+        return connectOnActivate;
+    }
+
+    /**
+     * When set, activating the channel connects it to all other participants, using {@link #getConnectParallelism()} threads. Failures are logged,
+     * and connections that failed will be retried when the first message is sent.
+     *
+     * @param connectOnActivate
+     *            if the channel should connect to all participants when it is activated.
+     * @return these options.
+     */
+    public ChannelOptions setConnectOnActivate(boolean connectOnActivate) {
+        this.connectOnActivate = connectOnActivate;
+        return this;
+    }
+
+    public int getConnectParallelism() {
+        return connectParallelism;
+    }
+
+    public ChannelOptions setConnectParallelism(int connectParallelism) {
+
+        if (connectParallelism <= 0) {
+            throw new IllegalArgumentException("Connect parallelism must be positive");
+        }
+
+        this.connectParallelism = connectParallelism;
+        return this;
+    }
+
+    public boolean getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Sets if the channel collects per-peer statistics, which are returned by {@link Channel#getStatistics()} and published as a
+     * {@link ChannelMXBean}. Collecting them takes a few counter updates per message, and for messages the application finishes itself, such as
+     * those of an {@link ExplicitChannel}, a small wrapper object. Disabled by default.
+     *
+     * @param statistics
+     *            if statistics are collected.
+     * @return these options.
+     */
+    public ChannelOptions setStatistics(boolean statistics) {
+        this.statistics = statistics;
+        return this;
+    }
+}
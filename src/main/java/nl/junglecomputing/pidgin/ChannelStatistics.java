@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+/**
+ * A snapshot of the traffic of a channel, per peer. Statistics are only collected if {@link ChannelOptions#getStatistics()} is set.
+ */
+public class ChannelStatistics {
+
+    private final String name;
+
+    private final PeerStatistics[] peers;
+
+    public ChannelStatistics(String name, PeerStatistics[] peers) {
+        this.name = name;
+        this.peers = peers;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the statistics of the peer with the given rank.
+     *
+     * @param rank
+     *            the rank of the peer.
+     * @return the statistics of the peer.
+     */
+    public PeerStatistics getPeer(int rank) {
+        return peers[rank];
+    }
+
+    /**
+     * Returns the statistics of all peers, indexed by rank.
+     *
+     * @return the statistics of all peers.
+     */
+    public PeerStatistics[] getPeers() {
+        return peers.clone();
+    }
+
+    public long getSentMessages() {
+
+        long result = 0;
+
+        for (PeerStatistics p : peers) {
+            result += p.getSentMessages();
+        }
+
+        return result;
+    }
+
+    public long getSentBytes() {
+
+        long result = 0;
+
+        for (PeerStatistics p : peers) {
+            result += p.getSentBytes();
+        }
+
+        return result;
+    }
+
+    public long getAbortedMessages() {
+
+        long result = 0;
+
+        for (PeerStatistics p : peers) {
+            result += p.getAbortedMessages();
+        }
+
+        return result;
+    }
+
+    public long getReceivedMessages() {
+
+        long result = 0;
+
+        for (PeerStatistics p : peers) {
+            result += p.getReceivedMessages();
+        }
+
+        return result;
+    }
+
+    public long getReceivedBytes() {
+
+        long result = 0;
+
+        for (PeerStatistics p : peers) {
+            result += p.getReceivedBytes();
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelStatistics(name=" + name + ", sentMessages=" + getSentMessages() + ", sentBytes=" + getSentBytes() + ", abortedMessages="
+                + getAbortedMessages() + ", receivedMessages=" + getReceivedMessages() + ", receivedBytes=" + getReceivedBytes() + ")";
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.io.IOException;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Encodes and decodes values of a single class directly into messages, as a compact alternative to object serialization. Codecs are
+ * registered in a {@link CodecRegistry}.
+ *
+ * @param <T>
+ *            the class of the values.
+ */
+public interface Codec<T> {
+
+    public void encode(T value, WriteMessage wm) throws IOException;
+
+    public T decode(ReadMessage rm) throws IOException;
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Maps classes to codecs, identified by a numeric type id that is sent instead of the class. An {@link UpcallChannel} uses the codec registered
+ * for the exact class of a data object, and falls back to object serialization for classes without a codec.
+ *
+ * All participants of a channel must register the same codecs under the same ids. Ids below {@link #FIRST_USER_ID} are reserved for the
+ * built-in codecs, which cover the boxed primitives, strings and primitive arrays.
+ *
+ * This class is thread safe.
+ */
+public class CodecRegistry {
+
+    public static final int FIRST_USER_ID = 64;
+
+    public static final int MAX_ID = Short.MAX_VALUE;
+
+    private static final class Entry {
+
+        final short id;
+        final Class<?> type;
+        final Codec<Object> codec;
+
+        Entry(short id, Class<?> type, Codec<Object> codec) {
+            this.id = id;
+            this.type = type;
+            this.codec = codec;
+        }
+    }
+
+    private final ConcurrentHashMap<Class<?>, Entry> byClass = new ConcurrentHashMap<>();
+
+    // Copied on each registration, so lookups need no locking.
+    private volatile Entry[] byId = new Entry[FIRST_USER_ID];
+
+    public CodecRegistry() {
+        registerBuiltin(0, Boolean.class, (v, wm) -> wm.writeBoolean(v), rm -> rm.readBoolean());
+        registerBuiltin(1, Byte.class, (v, wm) -> wm.writeByte(v), rm -> rm.readByte());
+        registerBuiltin(2, Short.class, (v, wm) -> wm.writeShort(v), rm -> rm.readShort());
+        registerBuiltin(3, Character.class, (v, wm) -> wm.writeChar(v), rm -> rm.readChar());
+        registerBuiltin(4, Integer.class, (v, wm) -> wm.writeInt(v), rm -> rm.readInt());
+        registerBuiltin(5, Long.class, (v, wm) -> wm.writeLong(v), rm -> rm.readLong());
+        registerBuiltin(6, Float.class, (v, wm) -> wm.writeFloat(v), rm -> rm.readFloat());
+        registerBuiltin(7, Double.class, (v, wm) -> wm.writeDouble(v), rm -> rm.readDouble());
+        registerBuiltin(8, String.class, (v, wm) -> wm.writeString(v), rm -> rm.readString());
+
+        registerBuiltin(16, boolean[].class, (v, wm) -> {
+            wm.writeInt(v.length);
+            wm.writeArray(v);
+        }, rm -> {
+            boolean[] v = new boolean[rm.readInt()];
+            rm.readArray(v);
+            return v;
+        });
+
+        registerBuiltin(17, byte[].class, (v, wm) -> {
+            wm.writeInt(v.length);
+            wm.writeArray(v);
+        }, rm -> {
+            byte[] v = new byte[rm.readInt()];
+            rm.readArray(v);
+            return v;
+        });
+
+        registerBuiltin(18, short[].class, (v, wm) -> {
+            wm.writeInt(v.length);
+            wm.writeArray(v);
+        }, rm -> {
+            short[] v = new short[rm.readInt()];
+            rm.readArray(v);
+            return v;
+        });
+
+        registerBuiltin(19, char[].class, (v, wm) -> {
+            wm.writeInt(v.length);
+            wm.writeArray(v);
+        }, rm -> {
+            char[] v = new char[rm.readInt()];
+            rm.readArray(v);
+            return v;
+        });
+
+        registerBuiltin(20, int[].class, (v, wm) -> {
+            wm.writeInt(v.length);
+            wm.writeArray(v);
+        }, rm -> {
+            int[] v = new int[rm.readInt()];
+            rm.readArray(v);
+            return v;
+        });
+
+        registerBuiltin(21, long[].class, (v, wm) -> {
+            wm.writeInt(v.length);
+            wm.writeArray(v);
+        }, rm -> {
+            long[] v = new long[rm.readInt()];
+            rm.readArray(v);
+            return v;
+        });
+
+        registerBuiltin(22, float[].class, (v, wm) -> {
+            wm.writeInt(v.length);
+            wm.writeArray(v);
+        }, rm -> {
+            float[] v = new float[rm.readInt()];
+            rm.readArray(v);
+            return v;
+        });
+
+        registerBuiltin(23, double[].class, (v, wm) -> {
+            wm.writeInt(v.length);
+            wm.writeArray(v);
+        }, rm -> {
+            double[] v = new double[rm.readInt()];
+            rm.readArray(v);
+            return v;
+        });
+    }
+
+    private interface Encoder<T> {
+        void encode(T value, WriteMessage wm) throws IOException;
+    }
+
+    private interface Decoder<T> {
+        T decode(ReadMessage rm) throws IOException;
+    }
+
+    private <T> void registerBuiltin(int id, Class<T> type, final Encoder<T> encoder, final Decoder<T> decoder) {
+        add(id, type, new Codec<T>() {
+            @Override
+            public void encode(T value, WriteMessage wm) throws IOException {
+                encoder.encode(value, wm);
+            }
+
+            @Override
+            public T decode(ReadMessage rm) throws IOException {
+                return decoder.decode(rm);
+            }
+        });
+    }
+
+    /**
+     * Registers a codec for the given class.
+     *
+     * @param id
+     *            the type id, between {@link #FIRST_USER_ID} and {@link #MAX_ID}.
+     * @param type
+     *            the class handled by the codec. Only values of exactly this class use the codec.
+     * @param codec
+     *            the codec.
+     * @throws IllegalArgumentException
+     *             if the id is out of range, or the id or class is already registered.
+     */
+    public <T> void register(int id, Class<T> type, Codec<T> codec) {
+
+        if (id < FIRST_USER_ID || id > MAX_ID) {
+            throw new IllegalArgumentException("Codec id " + id + " is not between " + FIRST_USER_ID + " and " + MAX_ID);
+        }
+
+        add(id, type, codec);
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> void add(int id, Class<T> type, Codec<T> codec) {
+
+        if (type == null || codec == null) {
+            throw new IllegalArgumentException("Codec and class may not be null");
+        }
+
+        if (byClass.containsKey(type)) {
+            throw new IllegalArgumentException("A codec for " + type.getName() + " is already registered");
+        }
+
+        Entry[] current = byId;
+
+        if (id < current.length && current[id] != null) {
+            throw new IllegalArgumentException("Codec id " + id + " is already used for " + current[id].type.getName());
+        }
+
+        Entry e = new Entry((short) id, type, (Codec<Object>) codec);
+
+        Entry[] updated = Arrays.copyOf(current, Math.max(current.length, id + 1));
+        updated[id] = e;
+
+        byClass.put(type, e);
+        byId = updated;
+    }
+
+    /**
+     * Returns if a codec is registered for the class of the value.
+     *
+     * @param value
+     *            the value to check.
+     * @return if the value can be written using {@link #encode(Object, WriteMessage)}.
+     */
+    public boolean hasCodec(Object value) {
+        return value != null && byClass.containsKey(value.getClass());
+    }
+
+    /**
+     * Writes the type id of the value followed by its encoding.
+     *
+     * @param value
+     *            the value to write, for which a codec must be registered.
+     * @param wm
+     *            the message to write to.
+     * @throws IOException
+     *             if writing failed.
+     */
+    public void encode(Object value, WriteMessage wm) throws IOException {
+
+        Entry e = byClass.get(value.getClass());
+
+        if (e == null) {
+            throw new IllegalArgumentException("No codec registered for " + value.getClass().getName());
+        }
+
+        wm.writeShort(e.id);
+        e.codec.encode(value, wm);
+    }
+
+    /**
+     * Reads a type id and decodes the value that follows it.
+     *
+     * @param rm
+     *            the message to read from.
+     * @return the decoded value.
+     * @throws IOException
+     *             if reading failed or the type id is unknown.
+     */
+    public Object decode(ReadMessage rm) throws IOException {
+
+        int id = rm.readShort();
+
+        Entry[] current = byId;
+
+        if (id < 0 || id >= current.length || current[id] == null) {
+            throw new IOException("No codec registered with id " + id);
+        }
+
+        return current[id].codec.decode(rm);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A channel that offers collective operations among its participants. All participants must call the same collective operations in the same
+ * order. Ranks refer to the ranks of the participants in this channel. The position and limit of buffers passed to these operations are not
+ * changed.
+ */
+public interface CollectiveChannel extends Channel {
+
+    /**
+     * Broadcasts the contents of the buffer of the root to all other participants. All participants must pass a buffer with the same number of
+     * bytes remaining. Small buffers are sent along a binomial tree, large buffers are split into segments that are pipelined along a chain.
+     *
+     * @param root
+     *            the rank of the participant whose buffer is broadcast.
+     * @param buffer
+     *            the data to send at the root, and the space to receive into at the other participants.
+     * @throws IOException
+     *             if the communication failed.
+     */
+    public void broadcast(int root, ByteBuffer buffer) throws IOException;
+
+    /**
+     * Waits until all participants have called barrier. Uses the dissemination algorithm, which needs log2(size) rounds of small messages and
+     * does not involve the registry.
+     *
+     * @throws IOException
+     *             if the communication failed.
+     */
+    public void barrier() throws IOException;
+
+    /**
+     * Combines the buffers of all participants element-wise using op, and stores the result in the buffer of the root. The buffers of the other
+     * participants are not changed. All participants must pass a buffer with the same number of bytes remaining, which must be a multiple of the
+     * element size of op.
+     *
+     * @param root
+     *            the rank of the participant that receives the result.
+     * @param buffer
+     *            the contribution of this participant, which is replaced by the result at the root.
+     * @param op
+     *            the operation used to combine the elements.
+     * @throws IOException
+     *             if the communication failed.
+     */
+    public void reduce(int root, ByteBuffer buffer, ReduceOperation op) throws IOException;
+
+    /**
+     * Combines the buffers of all participants element-wise using op, and stores the result in the buffers of all participants. Short buffers
+     * are combined using recursive doubling, long buffers using a ring reduce-scatter followed by a ring allgather.
+     *
+     * @param buffer
+     *            the contribution of this participant, which is replaced by the result.
+     * @param op
+     *            the operation used to combine the elements.
+     * @throws IOException
+     *             if the communication failed.
+     */
+    public void allreduce(ByteBuffer buffer, ReduceOperation op) throws IOException;
+
+    /**
+     * Collects the buffer of every participant at the root. At the root, receive[i] receives the buffer of rank i and must have exactly as many
+     * bytes remaining. The receive buffers are ignored at the other participants and may be <code>null</code>.
+     *
+     * @param root
+     *            the rank of the participant that collects the buffers.
+     * @param send
+     *            the buffer contributed by this participant.
+     * @param receive
+     *            the buffers to receive into at the root, indexed by rank.
+     * @throws IOException
+     *             if the communication failed.
+     */
+    public void gather(int root, ByteBuffer send, ByteBuffer[] receive) throws IOException;
+
+    /**
+     * Distributes the buffers of the root, so that rank i receives send[i] into its receive buffer. The send buffers are ignored at the other
+     * participants and may be <code>null</code>.
+     *
+     * @param root
+     *            the rank of the participant that distributes the buffers.
+     * @param send
+     *            the buffers to send at the root, indexed by rank.
+     * @param receive
+     *            the buffer to receive into, which must have exactly as many bytes remaining as the matching send buffer.
+     * @throws IOException
+     *             if the communication failed.
+     */
+    public void scatter(int root, ByteBuffer[] send, ByteBuffer receive) throws IOException;
+
+    /**
+     * Collects the buffer of every participant at all participants, passing the buffers along a ring. Buffers may differ in size between
+     * participants.
+     *
+     * @param send
+     *            the buffer contributed by this participant.
+     * @param receive
+     *            the buffers to receive into, indexed by rank. receive[i] must have exactly as many bytes remaining as the buffer of rank i.
+     * @throws IOException
+     *             if the communication failed.
+     */
+    public void allgather(ByteBuffer send, ByteBuffer[] receive) throws IOException;
+
+    /**
+     * Exchanges a separate, possibly differently sized, buffer between every pair of participants. send[i] is received by rank i into its
+     * receive buffer for this participant. In each of the size - 1 steps, every participant sends to one peer and receives from another, so all
+     * links are busy at the same time.
+     *
+     * @param send
+     *            the buffers to send, indexed by destination rank.
+     * @param receive
+     *            the buffers to receive into, indexed by source rank, each with exactly as many bytes remaining as the matching send buffer.
+     * @throws IOException
+     *             if the communication failed.
+     */
+    public void alltoallv(ByteBuffer[] send, ByteBuffer[] receive) throws IOException;
+
+    public default void allreduce(double[] values, ReduceOperation op) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Double.BYTES);
+        buffer.asDoubleBuffer().put(values);
+        allreduce(buffer, op);
+        buffer.asDoubleBuffer().get(values);
+    }
+
+    public default void allreduce(long[] values, ReduceOperation op) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * Long.BYTES);
+        buffer.asLongBuffer().put(values);
+        allreduce(buffer, op);
+        buffer.asLongBuffer().get(values);
+    }
+}
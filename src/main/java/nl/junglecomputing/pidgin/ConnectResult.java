@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import ibis.ipl.IbisIdentifier;
+
+/**
+ * The outcome of connecting a channel to its peers ahead of time. For each peer either the time it took to connect or the exception that
+ * prevented the connection is recorded.
+ */
+public class ConnectResult {
+
+    private final Map<IbisIdentifier, Long> connectTimes;
+
+    private final Map<IbisIdentifier, IOException> failures;
+
+    public ConnectResult(Map<IbisIdentifier, Long> connectTimes, Map<IbisIdentifier, IOException> failures) {
+        this.connectTimes = Collections.unmodifiableMap(new HashMap<>(connectTimes));
+        this.failures = Collections.unmodifiableMap(new HashMap<>(failures));
+    }
+
+    /**
+     * Returns the time in nanoseconds it took to connect to each peer. Peers that were already connected report 0.
+     *
+     * @return the connect time per peer.
+     */
+    public Map<IbisIdentifier, Long> getConnectTimes() {
+        return connectTimes;
+    }
+
+    /**
+     * Returns the time in nanoseconds it took to connect to the given peer, or -1 if it is not connected.
+     *
+     * @param peer
+     *            the peer to look up.
+     * @return the connect time, or -1.
+     */
+    public long getConnectTime(IbisIdentifier peer) {
+        Long time = connectTimes.get(peer);
+        return time == null ? -1 : time;
+    }
+
+    public Map<IbisIdentifier, IOException> getFailures() {
+        return failures;
+    }
+
+    public boolean hasFailures() {
+        return !failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectResult(connected=" + connectTimes.size() + ", failed=" + failures.size() + ")";
+    }
+}
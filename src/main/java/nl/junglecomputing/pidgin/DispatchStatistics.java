@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+/**
+ * A snapshot of the message delivery statistics of an {@link UpcallChannel}.
+ */
+public class DispatchStatistics {
+
+    private final long queued;
+
+    private final long delivered;
+
+    private final long handlerTime;
+
+    public DispatchStatistics(long queued, long delivered, long handlerTime) {
+        this.queued = queued;
+        this.delivered = delivered;
+        this.handlerTime = handlerTime;
+    }
+
+    /**
+     * Returns the number of messages that have been received, but not yet handed to the upcall.
+     *
+     * @return the number of queued messages.
+     */
+    public long getQueued() {
+        return queued;
+    }
+
+    /**
+     * Returns the number of messages for which the upcall has returned.
+     *
+     * @return the number of delivered messages.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Returns the total time in nanoseconds spent in {@link Upcall#receiveMessage}.
+     *
+     * @return the total handler time.
+     */
+    public long getHandlerTime() {
+        return handlerTime;
+    }
+
+    /**
+     * Returns the average time in nanoseconds spent in {@link Upcall#receiveMessage} per message.
+     *
+     * @return the average handler time.
+     */
+    public double getAverageHandlerTime() {
+        return delivered == 0 ? 0.0 : (double) handlerTime / delivered;
+    }
+
+    @Override
+    public String toString() {
+        return "DispatchStatistics(queued=" + queued + ", delivered=" + delivered + ", handlerTime=" + handlerTime + ")";
+    }
+}
@@ -22,13 +22,98 @@ import ibis.ipl.IbisIdentifier;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.WriteMessage;
 
+/**
+ * A channel on which the application receives messages itself, with a blocking receive or a poll.
+ *
+ * With {@link ReceiveMode#ONE_TO_ONE}, every peer has its own Ibis receive port, so each explicit channel starts one Ibis upcall thread per
+ * peer. Such a thread hands the message it read to the queue of the channel, and stays blocked until that message has been received and
+ * finished, as the port cannot read its next message before. A channel with many peers therefore holds as many threads, most of them
+ * waiting. {@link ReceiveMode#MANY_TO_ONE} uses a single port, and thread, for all peers.
+ */
 public interface ExplicitChannel extends Channel {
 
     public WriteMessage sendMessage(IbisIdentifier dest) throws IOException;
 
+    /**
+     * Starts a new message to the participant with the given rank in this channel.
+     *
+     * The local node may send to itself. Such a message is kept in memory and queued with the messages from other senders when it is finished,
+     * so a receive from the local rank or from any sender gets it, also when it is already waiting.
+     *
+     * @param rank
+     *            the rank of the destination.
+     * @return the message to write to.
+     * @throws IOException
+     *             if the channel is not active or the connection failed.
+     */
+    public WriteMessage sendMessage(int rank) throws IOException;
+
     public ReadMessage receiveMessage(IbisIdentifier source, long timeout) throws IOException;
 
     public default ReadMessage receiveMessage(IbisIdentifier source) throws IOException {
         return receiveMessage(source, 0L);
     }
+
+    public ReadMessage receiveMessage(int rank, long timeout) throws IOException;
+
+    public default ReadMessage receiveMessage(int rank) throws IOException {
+        return receiveMessage(rank, 0L);
+    }
+
+    /**
+     * Returns the next message from the given source if one has already arrived, without blocking.
+     *
+     * @param source
+     *            the participant to receive from.
+     * @return the message, or <code>null</code> if no message is waiting.
+     * @throws IOException
+     *             if source is not a participant or the receive failed.
+     */
+    public ReadMessage poll(IbisIdentifier source) throws IOException;
+
+    public ReadMessage poll(int rank) throws IOException;
+
+    /**
+     * Returns the next message from any participant, including the local one, if one has already arrived, without blocking.
+     *
+     * @return the message, or <code>null</code> if no message is waiting.
+     * @throws IOException
+     *             if the receive failed.
+     */
+    public ReadMessage pollAny() throws IOException;
+
+    /**
+     * Receives the next message from any participant, including the local one. The sender can be found using the origin of the message.
+     * Messages from all senders arrive in a single queue, so this blocks without polling, whatever the receive mode.
+     *
+     * @param timeout
+     *            the maximum time to wait in milliseconds, or 0 to wait indefinitely.
+     * @return the message.
+     * @throws IOException
+     *             if no message arrived in time, or the receive failed.
+     */
+    public ReadMessage receiveAny(long timeout) throws IOException;
+
+    public default ReadMessage receiveAny() throws IOException {
+        return receiveAny(0L);
+    }
+
+    /**
+     * Receives the next message from any of the given sources. Messages from other sources stay queued for a later receive.
+     *
+     * When the channel uses {@link ReceiveMode#MANY_TO_ONE}, the Ibis receive port shared by all senders only reads the next message once the
+     * previous one has been received and finished. A receive that waits for a source whose message is behind a message from another source
+     * therefore blocks until that message has been received by another thread. The same holds for a receive from a single source.
+     *
+     * @param sources
+     *            the participants to receive from.
+     * @param timeout
+     *            the maximum time to wait in milliseconds, or 0 to wait indefinitely.
+     * @return the message.
+     * @throws IllegalArgumentException
+     *             if sources is empty.
+     * @throws IOException
+     *             if a source is not a participant, no message arrived in time, or the receive failed.
+     */
+    public ReadMessage receiveAny(IbisIdentifier[] sources, long timeout) throws IOException;
 }
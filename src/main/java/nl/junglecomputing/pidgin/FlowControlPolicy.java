@@ -0,0 +1,35 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+/**
+ * Determines what a sender does when it has no credits left for a destination.
+ */
+public enum FlowControlPolicy {
+
+    /**
+     * The sender waits until the destination has returned enough credits. Messages queued with
+     * {@link UpcallChannel#sendAsync(int, byte, Object, java.nio.ByteBuffer...)} wait in the send queue instead of blocking the caller.
+     */
+    BLOCK,
+
+    /**
+     * The send fails immediately with a {@link NoCreditsException}. The destination is asked to return its pending credits, so a later attempt
+     * may succeed.
+     */
+    FAIL;
+}
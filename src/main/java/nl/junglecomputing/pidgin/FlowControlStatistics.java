@@ -0,0 +1,115 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+/**
+ * A snapshot of the flow control state of a channel, indexed by the rank of the peer.
+ */
+public class FlowControlStatistics {
+
+    private final long[] outstandingMessages;
+
+    private final long[] outstandingBytes;
+
+    private final long[] stalls;
+
+    private final long[] stallTime;
+
+    public FlowControlStatistics(long[] outstandingMessages, long[] outstandingBytes, long[] stalls, long[] stallTime) {
+        this.outstandingMessages = outstandingMessages;
+        this.outstandingBytes = outstandingBytes;
+        this.stalls = stalls;
+        this.stallTime = stallTime;
+    }
+
+    /**
+     * Returns the number of messages sent to the given peer for which no credits have been returned yet.
+     *
+     * @param rank
+     *            the rank of the peer.
+     * @return the number of outstanding messages.
+     */
+    public long getOutstandingMessages(int rank) {
+        return outstandingMessages[rank];
+    }
+
+    /**
+     * Returns the number of payload bytes sent to the given peer for which no credits have been returned yet.
+     *
+     * @param rank
+     *            the rank of the peer.
+     * @return the number of outstanding bytes.
+     */
+    public long getOutstandingBytes(int rank) {
+        return outstandingBytes[rank];
+    }
+
+    /**
+     * Returns how often a send to the given peer found no credits left.
+     *
+     * @param rank
+     *            the rank of the peer.
+     * @return the number of stalls.
+     */
+    public long getStalls(int rank) {
+        return stalls[rank];
+    }
+
+    /**
+     * Returns the total time in nanoseconds that senders waited for credits from the given peer.
+     *
+     * @param rank
+     *            the rank of the peer.
+     * @return the stall time.
+     */
+    public long getStallTime(int rank) {
+        return stallTime[rank];
+    }
+
+    /**
+     * Returns the total time in nanoseconds that senders waited for credits from any peer.
+     *
+     * @return the total stall time.
+     */
+    public long getStallTime() {
+
+        long result = 0;
+
+        for (long t : stallTime) {
+            result += t;
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+
+        long messages = 0;
+        long bytes = 0;
+        long count = 0;
+
+        for (int i = 0; i < stalls.length; i++) {
+            messages += outstandingMessages[i];
+            bytes += outstandingBytes[i];
+            count += stalls[i];
+        }
+
+        return "FlowControlStatistics(outstandingMessages=" + messages + ", outstandingBytes=" + bytes + ", stalls=" + count + ", stallTime="
+                + getStallTime() + ")";
+    }
+}
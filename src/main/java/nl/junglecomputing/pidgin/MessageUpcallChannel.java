@@ -24,4 +24,24 @@ import ibis.ipl.WriteMessage;
 public interface MessageUpcallChannel extends Channel {
 
     public WriteMessage sendMessage(IbisIdentifier dest) throws IOException;
+
+    /**
+     * Starts a new message to the participant with the given rank in this channel.
+     *
+     * The local node may send to itself. Such a message is kept in memory and passed to the upcall on the sending thread when it is finished.
+     *
+     * @param rank
+     *            the rank of the destination.
+     * @return the message to write to.
+     * @throws IOException
+     *             if the channel is not active or the connection failed.
+     */
+    public WriteMessage sendMessage(int rank) throws IOException;
+
+    /**
+     * Returns the current flow control state of this channel, such as the credits in flight to each peer and the time spent waiting for credits.
+     *
+     * @return a snapshot of the flow control state, or <code>null</code> if flow control is not enabled.
+     */
+    public FlowControlStatistics getFlowControlStatistics();
 }
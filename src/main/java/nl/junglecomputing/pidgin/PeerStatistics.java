@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+/**
+ * A snapshot of the traffic between a channel and one of its peers. Messages and bytes are counted per wire message, so an aggregated
+ * {@link UpcallChannel} message counts once, and flow control messages are included. Times are in nanoseconds.
+ */
+public class PeerStatistics {
+
+    private final int rank;
+
+    private final long sentMessages;
+
+    private final long sentBytes;
+
+    private final long abortedMessages;
+
+    private final long receivedMessages;
+
+    private final long receivedBytes;
+
+    private final long connectTime;
+
+    private final long handlerTime;
+
+    public PeerStatistics(int rank, long sentMessages, long sentBytes, long abortedMessages, long receivedMessages, long receivedBytes,
+            long connectTime, long handlerTime) {
+        this.rank = rank;
+        this.sentMessages = sentMessages;
+        this.sentBytes = sentBytes;
+        this.abortedMessages = abortedMessages;
+        this.receivedMessages = receivedMessages;
+        this.receivedBytes = receivedBytes;
+        this.connectTime = connectTime;
+        this.handlerTime = handlerTime;
+    }
+
+    /**
+     * Returns the rank of the peer in the channel.
+     *
+     * @return the rank of the peer.
+     */
+    public int getRank() {
+        return rank;
+    }
+
+    /**
+     * Returns the number of messages sent to the peer.
+     *
+     * @return the number of messages sent.
+     */
+    public long getSentMessages() {
+        return sentMessages;
+    }
+
+    /**
+     * Returns the number of bytes sent to the peer, as reported by the transport when the messages were finished.
+     *
+     * @return the number of bytes sent.
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Returns the number of messages to the peer that were aborted with {@link ibis.ipl.WriteMessage#finish(java.io.IOException)}. These are
+     * not included in the messages sent.
+     *
+     * @return the number of aborted messages.
+     */
+    public long getAbortedMessages() {
+        return abortedMessages;
+    }
+
+    /**
+     * Returns the number of messages received from the peer.
+     *
+     * @return the number of messages received.
+     */
+    public long getReceivedMessages() {
+        return receivedMessages;
+    }
+
+    /**
+     * Returns the number of bytes received from the peer, as reported by the transport when the messages were finished.
+     *
+     * @return the number of bytes received.
+     */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * Returns the time it took to set up the connection to the peer, or 0 if it is not connected.
+     *
+     * @return the connect time.
+     */
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    /**
+     * Returns the total time spent in the {@link Upcall} handler for messages from the peer. Only {@link UpcallChannel}s have a handler.
+     *
+     * @return the handler time.
+     */
+    public long getHandlerTime() {
+        return handlerTime;
+    }
+
+    @Override
+    public String toString() {
+        return "PeerStatistics(rank=" + rank + ", sentMessages=" + sentMessages + ", sentBytes=" + sentBytes + ", abortedMessages="
+                + abortedMessages + ", receivedMessages=" + receivedMessages + ", receivedBytes=" + receivedBytes + ", connectTime="
+                + connectTime + ", handlerTime=" + handlerTime + ")";
+    }
+}
@@ -48,24 +48,81 @@ public interface Pidgin {
 
     public IbisIdentifier elect(String electTag) throws IOException;
 
+    /**
+     * Splits the participants into disjoint groups, similar to MPI_Comm_split. All participants must call this method collectively, using the
+     * same tag and the same participants in the same order. Participants that pass the same color end up in the same group. Within a group, the
+     * participants are ordered by key, and by their position in participants when keys are equal. The result can be passed to the channel
+     * creation methods to create a channel among the members of the group.
+     *
+     * @param tag
+     *            identifies the split. A tag can be reused, as long as the participants have all taken part in the same earlier splits with
+     *            that tag.
+     * @param participants
+     *            the participants that take part in the split, which must include the local node.
+     * @param color
+     *            the group to join, or a negative value to join no group at all.
+     * @param key
+     *            determines the order of the participants in the group.
+     * @return the members of the group of the local node, or <code>null</code> if color is negative.
+     * @throws DuplicateChannelException
+     *             if the channel used for the split could not be created.
+     * @throws IOException
+     *             if the communication failed.
+     */
+    public IbisIdentifier[] split(String tag, IbisIdentifier[] participants, int color, int key) throws DuplicateChannelException, IOException;
+
+    public default IbisIdentifier[] split(String tag, int color, int key) throws DuplicateChannelException, IOException {
+        return split(tag, getAllIdentifiers(), color, key);
+    }
+
     // Create communication channels for upcall and explicit receipt.
 
-    public UpcallChannel createUpcallChannel(String name, IbisIdentifier[] participants, Upcall upcall) throws DuplicateChannelException, IOException;
+    public UpcallChannel createUpcallChannel(String name, IbisIdentifier[] participants, Upcall upcall, ChannelOptions options)
+            throws DuplicateChannelException, IOException;
+
+    public default UpcallChannel createUpcallChannel(String name, IbisIdentifier[] participants, Upcall upcall)
+            throws DuplicateChannelException, IOException {
+        return createUpcallChannel(name, participants, upcall, new ChannelOptions());
+    }
 
     public default UpcallChannel createUpcallChannel(String name, Upcall upcall) throws DuplicateChannelException, IOException {
         return createUpcallChannel(name, getAllIdentifiers(), upcall);
     }
 
-    public MessageUpcallChannel createMessageUpcallChannel(String name, IbisIdentifier[] participants, MessageUpcall upcall)
+    public MessageUpcallChannel createMessageUpcallChannel(String name, IbisIdentifier[] participants, MessageUpcall upcall, ChannelOptions options)
             throws DuplicateChannelException, IOException;
 
+    public default MessageUpcallChannel createMessageUpcallChannel(String name, IbisIdentifier[] participants, MessageUpcall upcall)
+            throws DuplicateChannelException, IOException {
+        return createMessageUpcallChannel(name, participants, upcall, new ChannelOptions());
+    }
+
     public default MessageUpcallChannel createMessageUpcallChannel(String name, MessageUpcall upcall) throws DuplicateChannelException, IOException {
         return createMessageUpcallChannel(name, getAllIdentifiers(), upcall);
     }
 
-    public ExplicitChannel createExplicitChannel(String name, IbisIdentifier[] participants) throws DuplicateChannelException, IOException;
+    public ExplicitChannel createExplicitChannel(String name, IbisIdentifier[] participants, ChannelOptions options)
+            throws DuplicateChannelException, IOException;
+
+    public default ExplicitChannel createExplicitChannel(String name, IbisIdentifier[] participants) throws DuplicateChannelException, IOException {
+        return createExplicitChannel(name, participants, new ChannelOptions());
+    }
 
     public default ExplicitChannel createExplicitChannel(String name) throws DuplicateChannelException, IOException {
         return createExplicitChannel(name, getAllIdentifiers());
     }
+
+    // Create channels for collective operations.
+
+    public CollectiveChannel createCollectiveChannel(String name, IbisIdentifier[] participants, ChannelOptions options)
+            throws DuplicateChannelException, IOException;
+
+    public default CollectiveChannel createCollectiveChannel(String name, IbisIdentifier[] participants)
+            throws DuplicateChannelException, IOException {
+        return createCollectiveChannel(name, participants, new ChannelOptions());
+    }
+
+    public default CollectiveChannel createCollectiveChannel(String name) throws DuplicateChannelException, IOException {
+        return createCollectiveChannel(name, getAllIdentifiers());
+    }
 }
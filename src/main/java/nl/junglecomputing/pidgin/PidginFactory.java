@@ -21,9 +21,29 @@ import java.util.HashMap;
 import java.util.Properties;
 
 import nl.junglecomputing.pidgin.impl.ibis.PidginImpl;
+import nl.junglecomputing.pidgin.impl.local.LocalPool;
 
 public class PidginFactory {
 
+    /**
+     * Selects the implementation used by {@link #create(String, Properties)}: {@value #IMPLEMENTATION_IBIS} (the default) or
+     * {@value #IMPLEMENTATION_LOCAL}.
+     */
+    public static final String IMPLEMENTATION_PROPERTY = "pidgin.implementation";
+
+    public static final String IMPLEMENTATION_IBIS = "ibis";
+
+    /**
+     * Runs all ranks as threads in this JVM, without Ibis or a registry server. Each call to {@link #create(String, Properties)} with the same
+     * name returns the next rank of the pool, and each call to {@link #terminate(String)} ends one rank.
+     */
+    public static final String IMPLEMENTATION_LOCAL = "local";
+
+    /**
+     * The number of ranks of a pool in this JVM.
+     */
+    public static final String LOCAL_SIZE_PROPERTY = "pidgin.local.size";
+
     private static class PidginData {
 
         PidginImpl pidgin;
@@ -52,8 +72,14 @@ public class PidginFactory {
 
     private static HashMap<String, PidginData> flock = new HashMap<>();
 
+    private static HashMap<String, LocalPool> localPools = new HashMap<>();
+
     public static Pidgin create(String name, Properties p) throws Exception {
 
+        if (IMPLEMENTATION_LOCAL.equals(p.getProperty(IMPLEMENTATION_PROPERTY, IMPLEMENTATION_IBIS))) {
+            return joinLocal(name, getLocalSize(p));
+        }
+
         PidginData tmp = null;
 
         synchronized (flock) {
@@ -78,8 +104,72 @@ public class PidginFactory {
         return pidgin;
     }
 
+    /**
+     * Creates a pool of the given size in this JVM and returns all its ranks. Each rank is meant to be used by its own threads.
+     */
+    public static Pidgin[] createLocal(String name, int size) {
+
+        Pidgin[] result = new Pidgin[size];
+
+        synchronized (localPools) {
+
+            if (localPools.containsKey(name)) {
+                throw new IllegalStateException("Local pool " + name + " already exists");
+            }
+
+            LocalPool pool = new LocalPool(name, size);
+            localPools.put(name, pool);
+
+            for (int i = 0; i < size; i++) {
+                result[i] = pool.join();
+            }
+        }
+
+        return result;
+    }
+
+    private static int getLocalSize(Properties p) {
+
+        String size = p.getProperty(LOCAL_SIZE_PROPERTY);
+
+        if (size == null) {
+            throw new IllegalArgumentException("Property " + LOCAL_SIZE_PROPERTY + " is required by implementation " + IMPLEMENTATION_LOCAL);
+        }
+
+        return Integer.parseInt(size);
+    }
+
+    private static Pidgin joinLocal(String name, int size) {
+
+        synchronized (localPools) {
+
+            LocalPool pool = localPools.get(name);
+
+            if (pool == null) {
+                pool = new LocalPool(name, size);
+                localPools.put(name, pool);
+            } else if (pool.getSize() != size) {
+                throw new IllegalArgumentException("Local pool " + name + " has " + pool.getSize() + " ranks, not " + size);
+            }
+
+            return pool.join();
+        }
+    }
+
     public static void terminate(String name) throws IOException {
 
+        synchronized (localPools) {
+
+            LocalPool pool = localPools.get(name);
+
+            if (pool != null) {
+                if (pool.leave()) {
+                    localPools.remove(name);
+                }
+                return;
+            }
+        }
+
         PidginImpl toKill = null;
 
         synchronized (flock) {
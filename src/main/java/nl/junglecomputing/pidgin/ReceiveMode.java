@@ -0,0 +1,35 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+/**
+ * Determines how the receiving side of a channel is wired up.
+ */
+public enum ReceiveMode {
+
+    /**
+     * Each node creates a separate receive port for every other participant of the channel. When upcalls are used, each of these ports will also
+     * have its own receive thread.
+     */
+    ONE_TO_ONE,
+
+    /**
+     * Each node creates a single receive port to which all other participants of the channel connect. The sender of a message is determined using
+     * its origin. The number of ports and threads per channel no longer depends on the size of the pool.
+     */
+    MANY_TO_ONE;
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An element-wise operation used by the reduce collectives of a {@link CollectiveChannel}. The operation must be associative and commutative,
+ * as the collectives combine the contributions of the participants in an order that depends on the algorithm used.
+ *
+ * See {@link ReduceOperations} for the built-in operations.
+ */
+public interface ReduceOperation {
+
+    /**
+     * Returns the size in bytes of a single element.
+     *
+     * @return the element size.
+     */
+    public int getElementSize();
+
+    /**
+     * Combines the elements of operand into target, so that target[i] = op(target[i], operand[i]). Both buffers have the same number of bytes
+     * remaining. Their positions and limits must not be changed.
+     *
+     * @param target
+     *            the buffer holding the left operands, which receives the result.
+     * @param operand
+     *            the buffer holding the right operands.
+     */
+    public void reduce(ByteBuffer target, ByteBuffer operand);
+}
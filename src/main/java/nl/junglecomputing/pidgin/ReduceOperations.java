@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.nio.ByteBuffer;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * The built-in {@link ReduceOperation}s, and factories to create operations from user-defined operators on primitives. The elements are read
+ * and written using the byte order of the buffers passed to the collectives, which should be the same on all participants.
+ */
+public final class ReduceOperations {
+
+    public static final ReduceOperation SUM_DOUBLE = ofDouble((a, b) -> a + b);
+    public static final ReduceOperation MIN_DOUBLE = ofDouble(Math::min);
+    public static final ReduceOperation MAX_DOUBLE = ofDouble(Math::max);
+
+    public static final ReduceOperation SUM_LONG = ofLong((a, b) -> a + b);
+    public static final ReduceOperation MIN_LONG = ofLong(Math::min);
+    public static final ReduceOperation MAX_LONG = ofLong(Math::max);
+
+    public static final ReduceOperation SUM_INT = ofInt((a, b) -> a + b);
+    public static final ReduceOperation MIN_INT = ofInt(Math::min);
+    public static final ReduceOperation MAX_INT = ofInt(Math::max);
+
+    private ReduceOperations() {
+        // utility class
+    }
+
+    public static ReduceOperation ofDouble(final DoubleBinaryOperator operator) {
+        return new ReduceOperation() {
+            @Override
+            public int getElementSize() {
+                return Double.BYTES;
+            }
+
+            @Override
+            public void reduce(ByteBuffer target, ByteBuffer operand) {
+                int t = target.position();
+                int o = operand.position();
+                int end = target.limit();
+
+                for (; t < end; t += Double.BYTES, o += Double.BYTES) {
+                    target.putDouble(t, operator.applyAsDouble(target.getDouble(t), operand.getDouble(o)));
+                }
+            }
+        };
+    }
+
+    public static ReduceOperation ofLong(final LongBinaryOperator operator) {
+        return new ReduceOperation() {
+            @Override
+            public int getElementSize() {
+                return Long.BYTES;
+            }
+
+            @Override
+            public void reduce(ByteBuffer target, ByteBuffer operand) {
+                int t = target.position();
+                int o = operand.position();
+                int end = target.limit();
+
+                for (; t < end; t += Long.BYTES, o += Long.BYTES) {
+                    target.putLong(t, operator.applyAsLong(target.getLong(t), operand.getLong(o)));
+                }
+            }
+        };
+    }
+
+    public static ReduceOperation ofInt(final IntBinaryOperator operator) {
+        return new ReduceOperation() {
+            @Override
+            public int getElementSize() {
+                return Integer.BYTES;
+            }
+
+            @Override
+            public void reduce(ByteBuffer target, ByteBuffer operand) {
+                int t = target.position();
+                int o = operand.position();
+                int end = target.limit();
+
+                for (; t < end; t += Integer.BYTES, o += Integer.BYTES) {
+                    target.putInt(t, operator.applyAsInt(target.getInt(t), operand.getInt(o)));
+                }
+            }
+        };
+    }
+}
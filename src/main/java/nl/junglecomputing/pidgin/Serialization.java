@@ -0,0 +1,39 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+/**
+ * The serialization used by the ports of a channel. Cheaper serializations support fewer write and read operations on messages.
+ */
+public enum Serialization {
+
+    /**
+     * Supports objects, primitives, arrays and byte buffers.
+     */
+    OBJECT,
+
+    /**
+     * Supports primitives, arrays of primitives, strings and byte buffers, but no objects. Avoids setting up an object stream.
+     */
+    DATA,
+
+    /**
+     * Only supports bytes, byte arrays and byte buffers. This has the lowest overhead, but cannot be used for channels that write other
+     * primitives, such as an {@link UpcallChannel}.
+     */
+    BYTE;
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.nio.ByteBuffer;
+
+import ibis.ipl.IbisIdentifier;
+
+/**
+ * An {@link Upcall} that receives chunked transfers piece by piece, instead of waiting until the whole payload has been reassembled. See
+ * {@link UpcallChannel#sendChunked(int, byte, Object, ByteBuffer...)}. Messages that were not chunked are still passed to
+ * {@link #receiveMessage(String, IbisIdentifier, byte, Object, ByteBuffer[])}.
+ *
+ * A channel with a StreamUpcall requires ordered dispatch on an executor, see {@link ChannelOptions#setDispatcher(java.util.concurrent.Executor,
+ * boolean)}, so the chunks of each sender arrive one at a time and in the order in which they were sent.
+ */
+public interface StreamUpcall extends Upcall {
+
+    /**
+     * Receives the next chunk of a transfer. The payload of the transfer is numbered as if all its buffers were concatenated, and the transfer
+     * is complete once offset plus the size of the chunk reaches total. A transfer without payload is delivered as a single empty chunk. If the
+     * sender aborts a transfer, no further chunks of it are delivered.
+     *
+     * The chunk is taken from the buffer pool of the channel and is recycled as soon as this method returns.
+     *
+     * @param channel
+     *            the name of the channel.
+     * @param sender
+     *            the sender of the transfer.
+     * @param opcode
+     *            the opcode of the transfer.
+     * @param data
+     *            the data object of the transfer, which is passed with every chunk.
+     * @param total
+     *            the total size of the payload in bytes.
+     * @param offset
+     *            the offset of this chunk in the payload.
+     * @param chunk
+     *            the contents of this chunk.
+     */
+    void receiveChunk(String channel, IbisIdentifier sender, byte opcode, Object data, long total, long offset, ByteBuffer chunk);
+}
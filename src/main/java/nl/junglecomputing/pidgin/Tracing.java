@@ -0,0 +1,104 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.io.File;
+import java.io.IOException;
+
+import nl.junglecomputing.pidgin.impl.trace.ChromeTraceConverter;
+import nl.junglecomputing.pidgin.impl.trace.Tracer;
+
+/**
+ * Controls the tracing of messages. While tracing is enabled, every thread records the start and end of the messages it sends and receives
+ * and of the upcalls it runs, with the channel, the peer rank, the opcode, the size and a {@link System#nanoTime()} timestamp. The events are
+ * kept in a fixed size ring buffer per thread, so only the most recent ones are retained. Recording an event does not allocate, but while
+ * tracing is enabled every wire message is wrapped in a small object to record its end. While it is disabled, messages are not wrapped and
+ * channels are not registered with the tracer.
+ *
+ * Tracing can also be configured with system properties: {@value #TRACE_PROPERTY} enables it at startup, {@value #EVENTS_PROPERTY} sets the
+ * number of events per thread, and {@value #SIGNAL_PROPERTY} names a signal, such as USR2, that dumps the events to the directory given by
+ * {@value #DIRECTORY_PROPERTY}, or the temporary directory.
+ *
+ * Dumps are in a compact binary format. {@link ChromeTraceConverter} converts one or more of them to a JSON timeline that can be opened in
+ * chrome://tracing or Perfetto:
+ *
+ * <pre>
+ * java -cp pidgin.jar nl.junglecomputing.pidgin.impl.trace.ChromeTraceConverter trace.json pidgin-trace-*.bin
+ * </pre>
+ */
+public final class Tracing {
+
+    public static final String TRACE_PROPERTY = Tracer.TRACE_PROPERTY;
+
+    public static final String EVENTS_PROPERTY = Tracer.EVENTS_PROPERTY;
+
+    public static final String SIGNAL_PROPERTY = Tracer.SIGNAL_PROPERTY;
+
+    public static final String DIRECTORY_PROPERTY = Tracer.DIRECTORY_PROPERTY;
+
+    private Tracing() {
+        // Utility class
+    }
+
+    public static void enable() {
+        Tracer.setEnabled(true);
+    }
+
+    public static void disable() {
+        Tracer.setEnabled(false);
+    }
+
+    public static boolean isEnabled() {
+        return Tracer.isEnabled();
+    }
+
+    /**
+     * Sets the number of events kept per thread, which is rounded up to a power of two. Threads that have already recorded events keep their
+     * current buffer.
+     *
+     * @param events
+     *            the number of events.
+     */
+    public static void setCapacity(int events) {
+        Tracer.setCapacity(events);
+    }
+
+    /**
+     * Writes the events recorded so far by all threads to the given file.
+     *
+     * @param file
+     *            the file to write.
+     * @throws IOException
+     *             if the file could not be written.
+     */
+    public static void dump(File file) throws IOException {
+        Tracer.dump(file);
+    }
+
+    /**
+     * Dumps the events to a new file in the given directory each time the process receives the given signal. This relies on sun.misc.Signal;
+     * on a JVM without it, a warning is logged and {@link #dump(File)} must be used instead.
+     *
+     * @param signal
+     *            the name of the signal, such as USR2.
+     * @param directory
+     *            the directory to write the dumps to.
+     */
+    public static void dumpOnSignal(String signal, File directory) {
+        Tracer.dumpOnSignal(signal, directory);
+    }
+}
@@ -22,7 +22,20 @@ import ibis.ipl.IbisIdentifier;
 
 public interface Upcall {
 
-    ByteBuffer[] allocateByteBuffers(String channel, IbisIdentifier sender, byte opcode, Object data, int[] sizes);
+    /**
+     * Returns the buffers into which the payload of a message is read. Each payload is read at the position of its buffer, which must have at
+     * least the given size remaining. The sizes array is only valid during this call. The default implementation returns <code>null</code>, in
+     * which case the buffers are taken from the {@link ByteBufferPool} of the channel. Pooled buffers, and the array that holds them, are only
+     * valid during {@link #receiveMessage(String, IbisIdentifier, byte, Object, ByteBuffer[])} and are recycled as soon as it returns, so their
+     * contents must be copied if they are needed afterwards.
+     */
+    default ByteBuffer[] allocateByteBuffers(String channel, IbisIdentifier sender, byte opcode, Object data, int[] sizes) {
+        return null;
+    }
 
+    /**
+     * Handles a message. Pooled and allocated buffers are handed over in the same state: the position of each buffer is at the start of its
+     * payload, and the limit at its end.
+     */
     void receiveMessage(String channel, IbisIdentifier sender, byte opcode, Object data, ByteBuffer[] buffers);
 }
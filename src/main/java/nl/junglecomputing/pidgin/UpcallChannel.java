@@ -18,9 +18,161 @@ package nl.junglecomputing.pidgin;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
 
 import ibis.ipl.IbisIdentifier;
 
 public interface UpcallChannel extends Channel {
     public void sendMessage(IbisIdentifier dest, byte opcode, Object data, ByteBuffer... buffers) throws IOException;
+
+    /**
+     * Sends a message to the participant with the given rank in this channel.
+     *
+     * A message to the local node is delivered to the upcall without serialization: the data object is passed by reference. If no buffers
+     * were posted or allocated for it and upcalls run on the receiving thread, the upcall gets slices of the given buffers instead of copies.
+     *
+     * @param rank
+     *            the rank of the destination.
+     * @param opcode
+     *            the opcode passed to the upcall.
+     * @param data
+     *            the data object, or null.
+     * @param buffers
+     *            the payload, sent from position to limit.
+     * @throws IOException
+     *             if the channel is not active or the message could not be sent.
+     */
+    public void sendMessage(int rank, byte opcode, Object data, ByteBuffer... buffers) throws IOException;
+
+    /**
+     * Queues a message to be sent by a background thread and returns without waiting for it to be sent. Messages to the same destination are
+     * sent in the order in which they were queued. Each destination has a bounded queue, and this method blocks while the queue of dest is full.
+     *
+     * The data object and buffers are owned by the channel until the returned future completes: they must not be modified before then. Once the
+     * future completes, the positions of the buffers have been advanced as if sendMessage had been called.
+     *
+     * @param dest
+     *            the destination.
+     * @param opcode
+     *            the opcode of the message.
+     * @param data
+     *            the data object, may be <code>null</code>.
+     * @param buffers
+     *            the buffers to send.
+     * @return a future that completes when the message has been sent, or completes exceptionally if sending failed.
+     * @throws IOException
+     *             if the channel is not active or dest is not a participant.
+     */
+    public CompletableFuture<Void> sendAsync(IbisIdentifier dest, byte opcode, Object data, ByteBuffer... buffers) throws IOException;
+
+    public CompletableFuture<Void> sendAsync(int rank, byte opcode, Object data, ByteBuffer... buffers) throws IOException;
+
+    /**
+     * Sends a message as a chunked transfer. The payload is split into wire messages of at most {@link ChannelOptions#getChunkSize()} bytes,
+     * which are sent one after another, so the receiver can handle a chunk while the next one is still being sent. The total payload may exceed
+     * 2 GB when it is spread over several buffers.
+     *
+     * If the upcall of the receiver is a {@link StreamUpcall}, each chunk is passed to it as soon as it arrives. Otherwise the chunks are read
+     * directly into the buffers returned by {@link Upcall#allocateByteBuffers}, and the message is delivered once it is complete. Chunked
+     * transfers are never matched with posted receives.
+     *
+     * @param dest
+     *            the destination.
+     * @param opcode
+     *            the opcode of the message.
+     * @param data
+     *            the data object, may be <code>null</code>.
+     * @param buffers
+     *            the buffers to send.
+     * @throws IOException
+     *             if the channel is not active, dest is not a participant, or sending failed.
+     */
+    public void sendChunked(IbisIdentifier dest, byte opcode, Object data, ByteBuffer... buffers) throws IOException;
+
+    public void sendChunked(int rank, byte opcode, Object data, ByteBuffer... buffers) throws IOException;
+
+    /**
+     * Sends size bytes read from source as a chunked transfer. Only a single chunk of the payload is held in memory at a time. The receiver sees
+     * the payload as buffers of at most 1 GB each.
+     *
+     * @param rank
+     *            the rank of the destination.
+     * @param opcode
+     *            the opcode of the message.
+     * @param data
+     *            the data object, may be <code>null</code>.
+     * @param source
+     *            the channel to read the payload from.
+     * @param size
+     *            the number of bytes to send.
+     * @throws IOException
+     *             if the channel is not active, rank is not a participant, reading source failed, or sending failed.
+     */
+    public void sendChunked(int rank, byte opcode, Object data, ReadableByteChannel source, long size) throws IOException;
+
+    /**
+     * Posts a receive for the next message with the given opcode from the given source. The payload of that message is read directly into the
+     * given buffers, and the upcall is not called for it. Posted receives for the same source and opcode are matched in the order in which they
+     * were posted.
+     *
+     * Each buffer must have at least as many bytes remaining as the corresponding buffer of the message. The payload is written at the position
+     * of each buffer, and the position is advanced past it. If the message does not fit, the returned future completes exceptionally and the
+     * message is passed to the upcall instead. A posted receive can be withdrawn by cancelling its future before a message arrives.
+     *
+     * @param source
+     *            the participant to receive from.
+     * @param opcode
+     *            the opcode of the message.
+     * @param buffers
+     *            the buffers to receive the payload in.
+     * @return a future that completes with the data object of the message, which may be <code>null</code>, once its payload has been received.
+     * @throws IOException
+     *             if source is not a participant.
+     */
+    public CompletableFuture<Object> postReceive(IbisIdentifier source, byte opcode, ByteBuffer... buffers) throws IOException;
+
+    public CompletableFuture<Object> postReceive(int rank, byte opcode, ByteBuffer... buffers) throws IOException;
+
+    /**
+     * Returns the pool used for the receive buffers of messages for which {@link Upcall#allocateByteBuffers} returns <code>null</code>.
+     *
+     * @return the buffer pool of this channel.
+     */
+    public ByteBufferPool getBufferPool();
+
+    /**
+     * Returns the current delivery statistics of this channel, such as the number of messages waiting to be handed to the upcall and the time
+     * spent in the upcall.
+     *
+     * @return a snapshot of the delivery statistics.
+     */
+    public DispatchStatistics getDispatchStatistics();
+
+    /**
+     * Returns the current flow control state of this channel, such as the credits in flight to each peer and the time spent waiting for credits.
+     *
+     * @return a snapshot of the flow control state, or <code>null</code> if flow control is not enabled.
+     */
+    public FlowControlStatistics getFlowControlStatistics();
+
+    /**
+     * Sends any aggregated messages to the given destination. Does nothing if aggregation is not enabled for this channel.
+     *
+     * @param dest
+     *            the destination to flush.
+     * @throws IOException
+     *             if sending the messages failed.
+     */
+    public void flush(IbisIdentifier dest) throws IOException;
+
+    public void flush(int rank) throws IOException;
+
+    /**
+     * Sends any aggregated messages to all destinations.
+     *
+     * @throws IOException
+     *             if sending the messages failed.
+     */
+    public void flush() throws IOException;
 }
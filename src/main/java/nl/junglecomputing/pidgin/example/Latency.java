@@ -0,0 +1,398 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.DuplicateChannelException;
+import nl.junglecomputing.pidgin.ExplicitChannel;
+import nl.junglecomputing.pidgin.MessageUpcallChannel;
+import nl.junglecomputing.pidgin.Pidgin;
+import nl.junglecomputing.pidgin.PidginFactory;
+import nl.junglecomputing.pidgin.Upcall;
+import nl.junglecomputing.pidgin.UpcallChannel;
+
+/**
+ * Measures the round-trip latency of a channel between two nodes. Node 1 sends pings to node 0, which sends every ping back. The round-trip
+ * times are recorded in a {@link LatencyHistogram}.
+ *
+ * When a rate is given, pings are started at fixed intervals instead of back to back. A ping that takes longer than the interval then delays
+ * the next ones, which a plain round-trip time hides (coordinated omission). The corrected histogram therefore measures every ping from the
+ * time it should have been sent.
+ *
+ * Usage: Latency &lt;explicit|messageupcall|upcall&gt; [size in bytes] [rate in pings/s, 0 for back to back] [pings]
+ */
+public class Latency {
+
+    private static final String CHANNEL = "lat";
+
+    private static final int DEFAULT_SIZE = 8;
+    private static final int DEFAULT_PINGS = 100000;
+
+    private static final byte OPCODE_PING = 0;
+    private static final byte OPCODE_PONG = 1;
+    private static final byte OPCODE_DONE = 2;
+
+    // Sleeping is not precise enough to start a ping on time, so the last part of an interval is spent spinning.
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * The channel specific part of the test. Node 1 calls ping for every round trip and done at the end. Node 0 calls serve, which returns once
+     * done has been received.
+     */
+    private abstract static class PingPong {
+
+        final ByteBuffer buffer;
+
+        PingPong(int size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+
+        abstract void activate() throws IOException;
+
+        abstract void deactivate() throws IOException;
+
+        abstract void ping() throws IOException;
+
+        abstract void done() throws IOException;
+
+        abstract void serve() throws IOException;
+    }
+
+    private static class ExplicitPingPong extends PingPong {
+
+        private final ExplicitChannel channel;
+
+        private final IbisIdentifier peer;
+
+        ExplicitPingPong(Pidgin pidgin, int size) throws DuplicateChannelException, IOException {
+            super(size);
+            channel = pidgin.createExplicitChannel(CHANNEL);
+            peer = pidgin.getAllIdentifiers()[1 - pidgin.getRank()];
+        }
+
+        @Override
+        void activate() throws IOException {
+            channel.activate();
+        }
+
+        @Override
+        void deactivate() throws IOException {
+            channel.deactivate();
+        }
+
+        private void send(byte opcode) throws IOException {
+            buffer.clear();
+
+            WriteMessage wm = channel.sendMessage(peer);
+            wm.writeByte(opcode);
+            wm.writeByteBuffer(buffer);
+            wm.finish();
+        }
+
+        private byte receive() throws IOException {
+            buffer.clear();
+
+            ReadMessage rm = channel.receiveMessage(peer);
+            byte opcode = rm.readByte();
+            rm.readByteBuffer(buffer);
+            rm.finish();
+            return opcode;
+        }
+
+        @Override
+        void ping() throws IOException {
+            send(OPCODE_PING);
+            receive();
+        }
+
+        @Override
+        void done() throws IOException {
+            send(OPCODE_DONE);
+        }
+
+        @Override
+        void serve() throws IOException {
+            while (receive() == OPCODE_PING) {
+                send(OPCODE_PONG);
+            }
+        }
+    }
+
+    /**
+     * Shared by the upcall based channels: the upcall hands each opcode to the waiting thread.
+     */
+    private abstract static class UpcallPingPong extends PingPong {
+
+        private byte received = -1;
+
+        UpcallPingPong(int size) {
+            super(size);
+        }
+
+        synchronized void received(byte opcode) {
+            received = opcode;
+            notifyAll();
+        }
+
+        synchronized byte waitFor() {
+
+            while (received < 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+
+            byte opcode = received;
+            received = -1;
+            return opcode;
+        }
+
+        abstract void send(byte opcode) throws IOException;
+
+        @Override
+        void ping() throws IOException {
+            send(OPCODE_PING);
+            waitFor();
+        }
+
+        @Override
+        void done() throws IOException {
+            send(OPCODE_DONE);
+        }
+
+        @Override
+        void serve() throws IOException {
+            while (waitFor() == OPCODE_PING) {
+                send(OPCODE_PONG);
+            }
+        }
+    }
+
+    private static class MessageUpcallPingPong extends UpcallPingPong implements MessageUpcall {
+
+        private final MessageUpcallChannel channel;
+
+        private final IbisIdentifier peer;
+
+        MessageUpcallPingPong(Pidgin pidgin, int size) throws DuplicateChannelException, IOException {
+            super(size);
+            channel = pidgin.createMessageUpcallChannel(CHANNEL, this);
+            peer = pidgin.getAllIdentifiers()[1 - pidgin.getRank()];
+        }
+
+        @Override
+        void activate() throws IOException {
+            channel.activate();
+        }
+
+        @Override
+        void deactivate() throws IOException {
+            channel.deactivate();
+        }
+
+        @Override
+        void send(byte opcode) throws IOException {
+            buffer.clear();
+
+            WriteMessage wm = channel.sendMessage(peer);
+            wm.writeByte(opcode);
+            wm.writeByteBuffer(buffer);
+            wm.finish();
+        }
+
+        @Override
+        public void upcall(ReadMessage rm) throws IOException, ClassNotFoundException {
+            buffer.clear();
+
+            byte opcode = rm.readByte();
+            rm.readByteBuffer(buffer);
+            rm.finish();
+            received(opcode);
+        }
+    }
+
+    private static class UpcallChannelPingPong extends UpcallPingPong implements Upcall {
+
+        private final UpcallChannel channel;
+
+        private final IbisIdentifier peer;
+
+        UpcallChannelPingPong(Pidgin pidgin, int size) throws DuplicateChannelException, IOException {
+            super(size);
+            channel = pidgin.createUpcallChannel(CHANNEL, this);
+            peer = pidgin.getAllIdentifiers()[1 - pidgin.getRank()];
+        }
+
+        @Override
+        void activate() throws IOException {
+            channel.activate();
+        }
+
+        @Override
+        void deactivate() throws IOException {
+            channel.deactivate();
+        }
+
+        @Override
+        void send(byte opcode) throws IOException {
+            buffer.clear();
+            channel.sendMessage(peer, opcode, null, buffer);
+        }
+
+        @Override
+        public ByteBuffer[] allocateByteBuffers(String channel, IbisIdentifier sender, byte opcode, Object data, int[] sizes) {
+            buffer.clear();
+            return new ByteBuffer[] { buffer };
+        }
+
+        @Override
+        public void receiveMessage(String channel, IbisIdentifier sender, byte opcode, Object data, ByteBuffer[] buffers) {
+            received(opcode);
+        }
+    }
+
+    private static PingPong create(String type, Pidgin pidgin, int size) throws DuplicateChannelException, IOException {
+        switch (type.toLowerCase()) {
+        case "explicit":
+            return new ExplicitPingPong(pidgin, size);
+        case "messageupcall":
+            return new MessageUpcallPingPong(pidgin, size);
+        case "upcall":
+            return new UpcallChannelPingPong(pidgin, size);
+        default:
+            throw new IllegalArgumentException("Unknown channel type " + type + ", expected explicit, messageupcall or upcall");
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+
+        long remaining;
+
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Runs the given number of pings, starting one every interval nanoseconds, or back to back if interval is 0. Returns the elapsed time in
+     * nanoseconds.
+     */
+    private static long run(PingPong pingPong, long pings, long interval, LatencyHistogram raw, LatencyHistogram corrected) throws IOException {
+
+        long begin = System.nanoTime();
+        long next = begin;
+
+        for (long i = 0; i < pings; i++) {
+
+            if (interval > 0) {
+                waitUntil(next);
+            }
+
+            long start = System.nanoTime();
+            pingPong.ping();
+            long end = System.nanoTime();
+
+            raw.record(end - start);
+
+            if (interval > 0) {
+                corrected.record(end - next);
+                next += interval;
+            }
+        }
+
+        return System.nanoTime() - begin;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+            System.err.println("Usage: Latency <explicit|messageupcall|upcall> [size in bytes] [rate in pings/s, 0 for back to back] [pings]");
+            System.exit(1);
+        }
+
+        String type = args[0];
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SIZE;
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        long pings = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_PINGS;
+
+        long interval = rate > 0 ? Math.round(TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+
+        Pidgin p = PidginFactory.create("LAT", new Properties());
+
+        if (p.getPoolSize() != 2) {
+            System.err.println("Need 2 nodes for this test!");
+            System.exit(1);
+        }
+
+        PingPong pingPong = create(type, p, size);
+
+        pingPong.activate();
+
+        if (p.getRank() == 0) {
+            pingPong.serve();
+        } else {
+            System.out.println("Measuring " + type + " round trips of " + size + " bytes, "
+                    + (interval > 0 ? "offered load " + rate + " pings/s" : "back to back"));
+
+            LatencyHistogram raw = new LatencyHistogram();
+            LatencyHistogram corrected = new LatencyHistogram();
+
+            // Warm up with a tenth of the pings, so the JIT compiler and the connection are settled before measuring.
+            run(pingPong, Math.max(1, pings / 10), interval, raw, corrected);
+
+            raw.reset();
+            corrected.reset();
+
+            long elapsed = run(pingPong, pings, interval, raw, corrected);
+
+            pingPong.done();
+
+            double achieved = pings / (elapsed / (double) TimeUnit.SECONDS.toNanos(1));
+
+            System.out.printf("Achieved %.1f pings/s%n", achieved);
+
+            raw.print(System.out, "Round-trip time", 1000.0, "us");
+
+            if (interval > 0) {
+                corrected.print(System.out, "Round-trip time corrected for coordinated omission", 1000.0, "us");
+
+                if (achieved < 0.99 * rate) {
+                    System.out.println("The offered load could not be sustained, so the corrected times include queueing.");
+                }
+            }
+        }
+
+        pingPong.deactivate();
+
+        PidginFactory.terminate("LAT");
+    }
+}
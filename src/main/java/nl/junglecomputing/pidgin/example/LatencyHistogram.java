@@ -0,0 +1,157 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.example;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative long values, such as latencies in nanoseconds, in the style of HdrHistogram. Values are counted in buckets whose
+ * width doubles with every power of two, and each power of two is split into {@link #SUB_BUCKETS} / 2 linear sub-buckets. This keeps the
+ * relative error of a reported value below 1% over the full range of a long, in a fixed array of about 7000 counts. Recording does not
+ * allocate. A histogram is not thread safe.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    // The largest magnitude is that of Long.MAX_VALUE, which has 63 significant bits.
+    private static final int MAX_MAGNITUDE = 63 - SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[SUB_BUCKETS + MAX_MAGNITUDE * HALF_SUB_BUCKETS];
+
+    private long count;
+
+    private long total;
+
+    private long min = Long.MAX_VALUE;
+
+    private long max;
+
+    private static int magnitude(long value) {
+        return 64 - Long.numberOfLeadingZeros(value | (SUB_BUCKETS - 1)) - SUB_BUCKET_BITS;
+    }
+
+    private static int index(long value) {
+        int magnitude = magnitude(value);
+        return magnitude * HALF_SUB_BUCKETS + (int) (value >>> magnitude);
+    }
+
+    // Returns the largest value that is counted in the bucket with the given index.
+    private static long highestValue(int index) {
+
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int magnitude = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long lowest = (long) (index - magnitude * HALF_SUB_BUCKETS) << magnitude;
+        return lowest + (1L << magnitude) - 1;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value
+     *            the value to record, must not be negative.
+     */
+    public void record(long value) {
+
+        if (value < 0) {
+            throw new IllegalArgumentException("Cannot record negative value " + value);
+        }
+
+        counts[index(value)]++;
+        count++;
+        total += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall. The result is the largest value of the bucket that holds
+     * that percentile, but never more than the maximum recorded value.
+     *
+     * @param percentile
+     *            the percentile, between 0 and 100.
+     * @return the value at the percentile, or 0 if the histogram is empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100, not " + percentile);
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Prints the count, mean, common percentiles and maximum, with values divided by the given scale (for example 1000 to print nanoseconds as
+     * microseconds).
+     */
+    public void print(PrintStream out, String title, double scale, String unit) {
+        out.println(title + " (" + count + " samples, in " + unit + ")");
+        out.printf("  mean %12.2f%n", getMean() / scale);
+        out.printf("  min  %12.2f%n", getMin() / scale);
+        out.printf("  p50  %12.2f%n", getValueAtPercentile(50) / scale);
+        out.printf("  p90  %12.2f%n", getValueAtPercentile(90) / scale);
+        out.printf("  p99  %12.2f%n", getValueAtPercentile(99) / scale);
+        out.printf("  p99.9%12.2f%n", getValueAtPercentile(99.9) / scale);
+        out.printf("  max  %12.2f%n", getMax() / scale);
+    }
+}
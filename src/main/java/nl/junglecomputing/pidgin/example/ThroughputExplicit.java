@@ -23,10 +23,12 @@ import java.util.Properties;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.ChannelOptions;
 import nl.junglecomputing.pidgin.DuplicateChannelException;
 import nl.junglecomputing.pidgin.ExplicitChannel;
 import nl.junglecomputing.pidgin.Pidgin;
 import nl.junglecomputing.pidgin.PidginFactory;
+import nl.junglecomputing.pidgin.Serialization;
 
 public class ThroughputExplicit {
 
@@ -42,9 +44,9 @@ public class ThroughputExplicit {
 
     private final ExplicitChannel channel;
 
-    public ThroughputExplicit(Pidgin pidgin) throws DuplicateChannelException, IOException {
+    public ThroughputExplicit(Pidgin pidgin, Serialization serialization) throws DuplicateChannelException, IOException {
         this.pidgin = pidgin;
-        channel = pidgin.createExplicitChannel(CHANNEL);
+        channel = pidgin.createExplicitChannel(CHANNEL, pidgin.getAllIdentifiers(), new ChannelOptions().setSerialization(serialization));
     }
 
     public void runTest() throws IOException {
@@ -102,8 +104,32 @@ public class ThroughputExplicit {
         channel.deactivate();
     }
 
+    /**
+     * Returns the serialization passed as the first argument, or OBJECT if there is none. Exits with a usage message if the argument is not a serialization.
+     */
+    private static Serialization getSerialization(String[] args) {
+
+        if (args.length == 0) {
+            return Serialization.OBJECT;
+        }
+
+        for (Serialization s : Serialization.values()) {
+            if (s.name().equalsIgnoreCase(args[0])) {
+                return s;
+            }
+        }
+
+        System.err.println("Usage: ThroughputExplicit [OBJECT|DATA|BYTE]");
+        System.exit(1);
+        return null;
+    }
+
     public static void main(String[] args) throws Exception {
 
+        Serialization serialization = getSerialization(args);
+
+        System.out.println("Using " + serialization + " serialization");
+
         Properties prop = new Properties();
 
         Pidgin p = PidginFactory.create("TP", prop);
@@ -113,7 +139,7 @@ public class ThroughputExplicit {
             System.exit(1);
         }
 
-        new ThroughputExplicit(p).runTest();
+        new ThroughputExplicit(p, serialization).runTest();
 
         PidginFactory.terminate("TP");
     }
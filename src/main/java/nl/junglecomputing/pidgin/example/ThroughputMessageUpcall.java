@@ -25,11 +25,13 @@ import ibis.ipl.MessageUpcall;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.WriteMessage;
 import nl.junglecomputing.pidgin.ChannelNotActiveException;
+import nl.junglecomputing.pidgin.ChannelOptions;
 import nl.junglecomputing.pidgin.DuplicateChannelException;
 import nl.junglecomputing.pidgin.MessageUpcallChannel;
 import nl.junglecomputing.pidgin.NoSuchChannelException;
 import nl.junglecomputing.pidgin.Pidgin;
 import nl.junglecomputing.pidgin.PidginFactory;
+import nl.junglecomputing.pidgin.Serialization;
 
 public class ThroughputMessageUpcall implements MessageUpcall {
 
@@ -52,7 +54,7 @@ public class ThroughputMessageUpcall implements MessageUpcall {
 
     private final MessageUpcallChannel channel;
 
-    public ThroughputMessageUpcall(Pidgin pidgin) throws DuplicateChannelException, IOException {
+    public ThroughputMessageUpcall(Pidgin pidgin, Serialization serialization) throws DuplicateChannelException, IOException {
         this.buffer = ByteBuffer.allocate(SIZE);
         this.buffers = new ByteBuffer[1];
         this.buffers[0] = buffer;
@@ -60,7 +62,8 @@ public class ThroughputMessageUpcall implements MessageUpcall {
         rank = pidgin.getRank();
         ids = pidgin.getAllIdentifiers();
 
-        channel = pidgin.createMessageUpcallChannel(CHANNEL, this);
+        channel = pidgin.createMessageUpcallChannel(CHANNEL, pidgin.getAllIdentifiers(), this,
+                new ChannelOptions().setSerialization(serialization));
     }
 
     @Override
@@ -154,8 +157,32 @@ public class ThroughputMessageUpcall implements MessageUpcall {
         channel.deactivate();
     }
 
+    /**
+     * Returns the serialization passed as the first argument, or OBJECT if there is none. Exits with a usage message if the argument is not a serialization.
+     */
+    private static Serialization getSerialization(String[] args) {
+
+        if (args.length == 0) {
+            return Serialization.OBJECT;
+        }
+
+        for (Serialization s : Serialization.values()) {
+            if (s.name().equalsIgnoreCase(args[0])) {
+                return s;
+            }
+        }
+
+        System.err.println("Usage: ThroughputMessageUpcall [OBJECT|DATA|BYTE]");
+        System.exit(1);
+        return null;
+    }
+
     public static void main(String[] args) throws Exception {
 
+        Serialization serialization = getSerialization(args);
+
+        System.out.println("Using " + serialization + " serialization");
+
         Properties prop = new Properties();
 
         Pidgin p = PidginFactory.create("TP", prop);
@@ -165,7 +192,7 @@ public class ThroughputMessageUpcall implements MessageUpcall {
             System.exit(1);
         }
 
-        new ThroughputMessageUpcall(p).runTest();
+        new ThroughputMessageUpcall(p, serialization).runTest();
 
         PidginFactory.terminate("TP");
     }
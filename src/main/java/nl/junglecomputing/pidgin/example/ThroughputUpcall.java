@@ -23,10 +23,12 @@ import java.util.Properties;
 
 import ibis.ipl.IbisIdentifier;
 import nl.junglecomputing.pidgin.ChannelNotActiveException;
+import nl.junglecomputing.pidgin.ChannelOptions;
 import nl.junglecomputing.pidgin.DuplicateChannelException;
 import nl.junglecomputing.pidgin.NoSuchChannelException;
 import nl.junglecomputing.pidgin.Pidgin;
 import nl.junglecomputing.pidgin.PidginFactory;
+import nl.junglecomputing.pidgin.Serialization;
 import nl.junglecomputing.pidgin.Upcall;
 import nl.junglecomputing.pidgin.UpcallChannel;
 
@@ -52,14 +54,14 @@ public class ThroughputUpcall implements Upcall {
 
     private final UpcallChannel channel;
 
-    public ThroughputUpcall(Pidgin pidgin) throws DuplicateChannelException, IOException {
+    public ThroughputUpcall(Pidgin pidgin, Serialization serialization) throws DuplicateChannelException, IOException {
         this.buffer = ByteBuffer.allocate(SIZE);
         this.buffers = new ByteBuffer[1];
         this.buffers[0] = buffer;
         rank = pidgin.getRank();
         ids = pidgin.getAllIdentifiers();
 
-        channel = pidgin.createUpcallChannel(CHANNEL, this);
+        channel = pidgin.createUpcallChannel(CHANNEL, pidgin.getAllIdentifiers(), this, new ChannelOptions().setSerialization(serialization));
     }
 
     private synchronized void waitForAck() {
@@ -153,8 +155,32 @@ public class ThroughputUpcall implements Upcall {
         }
     }
 
+    /**
+     * Returns the serialization passed as the first argument, or OBJECT if there is none. An UpcallChannel cannot use BYTE serialization.
+     */
+    private static Serialization getSerialization(String[] args) {
+
+        if (args.length == 0) {
+            return Serialization.OBJECT;
+        }
+
+        for (Serialization s : new Serialization[] { Serialization.OBJECT, Serialization.DATA }) {
+            if (s.name().equalsIgnoreCase(args[0])) {
+                return s;
+            }
+        }
+
+        System.err.println("Usage: ThroughputUpcall [OBJECT|DATA]");
+        System.exit(1);
+        return null;
+    }
+
     public static void main(String[] args) throws Exception {
 
+        Serialization serialization = getSerialization(args);
+
+        System.out.println("Using " + serialization + " serialization");
+
         Properties prop = new Properties();
 
         Pidgin p = PidginFactory.create("TP", prop);
@@ -164,7 +190,7 @@ public class ThroughputUpcall implements Upcall {
             System.exit(1);
         }
 
-        new ThroughputUpcall(p).runTest();
+        new ThroughputUpcall(p, serialization).runTest();
 
         PidginFactory.terminate("TP");
     }
@@ -0,0 +1,637 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.collective;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.ByteBufferPool;
+import nl.junglecomputing.pidgin.ChannelStatistics;
+import nl.junglecomputing.pidgin.CollectiveChannel;
+import nl.junglecomputing.pidgin.ConnectResult;
+import nl.junglecomputing.pidgin.ExplicitChannel;
+import nl.junglecomputing.pidgin.ReduceOperation;
+
+/**
+ * Implements the collective operations using point-to-point messages on an {@link ExplicitChannel}. Each message starts with a byte identifying
+ * the operation, followed by the number of bytes that follow, so a mismatch between participants is detected instead of corrupting data.
+ */
+public class CollectiveChannelImpl implements CollectiveChannel {
+
+    // Buffers up to this size are broadcast along a binomial tree, larger ones are pipelined along a chain.
+    private static final int BROADCAST_TREE_LIMIT = 64 * 1024;
+
+    // The size of the segments in which large buffers are pipelined.
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    // Buffers up to this size are reduced using recursive doubling or a binomial tree, larger ones using a ring.
+    private static final int REDUCE_SHORT_LIMIT = 64 * 1024;
+
+    // Messages up to this size are sent before receiving when exchanging data with a peer, larger ones are sent by a separate thread, so two
+    // peers sending to each other cannot block each other.
+    private static final int INLINE_SEND_LIMIT = 8 * 1024;
+
+    private static final byte OP_BROADCAST = 1;
+    private static final byte OP_REDUCE = 2;
+    private static final byte OP_ALLREDUCE = 3;
+    private static final byte OP_GATHER = 4;
+    private static final byte OP_SCATTER = 5;
+    private static final byte OP_ALLGATHER = 6;
+    private static final byte OP_ALLTOALL = 7;
+    private static final byte OP_BARRIER = 8;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ExplicitChannel channel;
+
+    // Scratch space used by the collectives.
+    private final ByteBufferPool scratch = new ByteBufferPool();
+
+    private ExecutorService sender;
+
+    public CollectiveChannelImpl(ExplicitChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void activate() throws IOException {
+        channel.activate();
+    }
+
+    @Override
+    public void deactivate() throws IOException {
+
+        synchronized (this) {
+            if (sender != null) {
+                sender.shutdownNow();
+                sender = null;
+            }
+        }
+
+        channel.deactivate();
+    }
+
+    @Override
+    public ConnectResult connect(IbisIdentifier[] peers, int parallelism) throws IOException {
+        return channel.connect(peers, parallelism);
+    }
+
+    @Override
+    public IbisIdentifier[] getParticipants() {
+        return channel.getParticipants();
+    }
+
+    @Override
+    public int getSize() {
+        return channel.getSize();
+    }
+
+    @Override
+    public int getRank() {
+        return channel.getRank();
+    }
+
+    @Override
+    public int getRank(IbisIdentifier id) {
+        return channel.getRank(id);
+    }
+
+    @Override
+    public ChannelStatistics getStatistics() {
+        return channel.getStatistics();
+    }
+
+    private void checkRank(int rank) {
+        if (rank < 0 || rank >= channel.getSize()) {
+            throw new IllegalArgumentException("Rank " + rank + " is not a participant of this channel");
+        }
+    }
+
+    /**
+     * Returns a view of length bytes of the buffer, starting offset bytes after its position.
+     */
+    static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer result = buffer.duplicate().order(buffer.order());
+        result.position(buffer.position() + offset);
+        result.limit(buffer.position() + offset + length);
+        return result;
+    }
+
+    private ByteBuffer allocateScratch(int length, ByteBuffer like) {
+        return scratch.allocate(length).order(like.order());
+    }
+
+    private ByteBuffer copyToScratch(ByteBuffer buffer) {
+        ByteBuffer result = allocateScratch(buffer.remaining(), buffer);
+        result.put(buffer.duplicate());
+        result.flip();
+        return result;
+    }
+
+    private synchronized ExecutorService getSender() {
+
+        if (sender == null) {
+            sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Pidgin collective sender");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        return sender;
+    }
+
+    /**
+     * Sends out to dest and receives in from source at the same time.
+     */
+    void exchange(final int dest, final byte op, final ByteBuffer out, int source, ByteBuffer in) throws IOException {
+
+        if (out.remaining() <= INLINE_SEND_LIMIT) {
+            send(dest, op, out);
+            receive(source, op, in);
+            return;
+        }
+
+        Future<Void> pending = getSender().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                send(dest, op, out);
+                return null;
+            }
+        });
+
+        try {
+            receive(source, op, in);
+        } catch (IOException e) {
+            pending.cancel(true);
+            throw e;
+        }
+
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending to rank " + dest);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to send to rank " + dest, e.getCause());
+        }
+    }
+
+    private void checkBuffers(ByteBuffer[] buffers) {
+        if (buffers == null || buffers.length != channel.getSize()) {
+            throw new IllegalArgumentException("Expected one buffer for each of the " + channel.getSize() + " participants");
+        }
+    }
+
+    private static void copy(ByteBuffer from, ByteBuffer to) throws IOException {
+
+        if (from.remaining() != to.remaining()) {
+            throw new IOException("Collective mismatch: cannot copy " + from.remaining() + " bytes into " + to.remaining() + " bytes");
+        }
+
+        to.duplicate().put(from.duplicate());
+    }
+
+    private int getElementCount(ByteBuffer buffer, ReduceOperation op) {
+
+        if (buffer.remaining() % op.getElementSize() != 0) {
+            throw new IllegalArgumentException("Buffer of " + buffer.remaining() + " bytes does not hold a whole number of elements of "
+                    + op.getElementSize() + " bytes");
+        }
+
+        return buffer.remaining() / op.getElementSize();
+    }
+
+    void send(int rank, byte op, ByteBuffer data) throws IOException {
+        WriteMessage wm = channel.sendMessage(rank);
+        wm.writeByte(op);
+        wm.writeInt(data.remaining());
+        wm.writeByteBuffer(data.duplicate());
+        wm.finish();
+    }
+
+    void receive(int rank, byte op, ByteBuffer data) throws IOException {
+
+        ReadMessage rm = channel.receiveMessage(rank);
+
+        try {
+            byte receivedOp = rm.readByte();
+            int length = rm.readInt();
+
+            if (receivedOp != op || length != data.remaining()) {
+                throw new IOException("Collective mismatch: expected operation " + op + " with " + data.remaining() + " bytes from rank " + rank
+                        + ", but got operation " + receivedOp + " with " + length + " bytes");
+            }
+
+            rm.readByteBuffer(data.duplicate());
+        } finally {
+            rm.finish();
+        }
+    }
+
+    @Override
+    public void barrier() throws IOException {
+
+        int size = channel.getSize();
+        int rank = channel.getRank();
+
+        // In round k, notify the participant 2^k ranks ahead, and wait for the one 2^k ranks behind. After the last round every participant has
+        // (indirectly) heard from all others.
+        for (int distance = 1; distance < size; distance <<= 1) {
+            send((rank + distance) % size, OP_BARRIER, EMPTY);
+            receive((rank - distance + size) % size, OP_BARRIER, EMPTY);
+        }
+    }
+
+    @Override
+    public void broadcast(int root, ByteBuffer buffer) throws IOException {
+
+        checkRank(root);
+
+        if (channel.getSize() == 1) {
+            return;
+        }
+
+        if (buffer.remaining() <= BROADCAST_TREE_LIMIT) {
+            broadcastTree(root, buffer);
+        } else {
+            broadcastChain(root, buffer);
+        }
+    }
+
+    private void broadcastTree(int root, ByteBuffer buffer) throws IOException {
+
+        int size = channel.getSize();
+        int vrank = (channel.getRank() - root + size) % size;
+
+        // Receive from our parent in the binomial tree, which differs from us in the lowest bit set in our virtual rank.
+        int mask = 1;
+
+        while (mask < size) {
+            if ((vrank & mask) != 0) {
+                receive((vrank - mask + root) % size, OP_BROADCAST, buffer);
+                break;
+            }
+            mask <<= 1;
+        }
+
+        // Forward to our children, largest subtree first.
+        mask >>= 1;
+
+        while (mask > 0) {
+            if (vrank + mask < size) {
+                send((vrank + mask + root) % size, OP_BROADCAST, buffer);
+            }
+            mask >>= 1;
+        }
+    }
+
+    private void broadcastChain(int root, ByteBuffer buffer) throws IOException {
+
+        int size = channel.getSize();
+        int vrank = (channel.getRank() - root + size) % size;
+
+        int previous = (vrank - 1 + root + size) % size;
+        int next = (vrank + 1 + root) % size;
+
+        int length = buffer.remaining();
+
+        // Each segment is forwarded as soon as it arrives, so all links in the chain are busy at the same time.
+        for (int offset = 0; offset < length; offset += SEGMENT_SIZE) {
+
+            ByteBuffer segment = slice(buffer, offset, Math.min(SEGMENT_SIZE, length - offset));
+
+            if (vrank > 0) {
+                receive(previous, OP_BROADCAST, segment);
+            }
+
+            if (vrank < size - 1) {
+                send(next, OP_BROADCAST, segment);
+            }
+        }
+    }
+
+    /**
+     * Divides count elements into one block per participant, and returns the offset in bytes of the given block.
+     */
+    private static int getBlockOffset(int count, int size, int block, int elementSize) {
+        return (int) ((long) count * block / size) * elementSize;
+    }
+
+    private static ByteBuffer getBlock(ByteBuffer buffer, int count, int size, int block, int elementSize) {
+        int start = getBlockOffset(count, size, block, elementSize);
+        int end = getBlockOffset(count, size, block + 1, elementSize);
+        return slice(buffer, start, end - start);
+    }
+
+    /**
+     * Performs a reduce-scatter along a ring. Afterwards, block (rank + 1) % size of buffer holds the combined result of all participants.
+     */
+    private void ringReduceScatter(ByteBuffer buffer, int count, ReduceOperation op, byte opcode) throws IOException {
+
+        int size = channel.getSize();
+        int rank = channel.getRank();
+        int es = op.getElementSize();
+
+        int left = (rank - 1 + size) % size;
+        int right = (rank + 1) % size;
+
+        ByteBuffer tmp = allocateScratch(getBlockOffset(count, size, 1, es) + es, buffer);
+
+        try {
+            for (int step = 0; step < size - 1; step++) {
+                int sendBlock = (rank - step + size) % size;
+                int receiveBlock = (rank - step - 1 + size) % size;
+
+                ByteBuffer target = getBlock(buffer, count, size, receiveBlock, es);
+                ByteBuffer in = slice(tmp, 0, target.remaining());
+
+                exchange(right, opcode, getBlock(buffer, count, size, sendBlock, es), left, in);
+
+                op.reduce(target, in);
+            }
+        } finally {
+            scratch.release(tmp);
+        }
+    }
+
+    @Override
+    public void reduce(int root, ByteBuffer buffer, ReduceOperation op) throws IOException {
+
+        checkRank(root);
+
+        int count = getElementCount(buffer, op);
+        int size = channel.getSize();
+        int rank = channel.getRank();
+
+        if (size == 1) {
+            return;
+        }
+
+        // The contribution of the other participants must not be overwritten, so they work on a copy.
+        ByteBuffer acc = rank == root ? buffer : copyToScratch(buffer);
+
+        try {
+            if (buffer.remaining() <= REDUCE_SHORT_LIMIT || count < size) {
+                reduceTree(root, acc, op);
+            } else {
+                reduceRing(root, acc, count, op);
+            }
+        } finally {
+            if (acc != buffer) {
+                scratch.release(acc);
+            }
+        }
+    }
+
+    private void reduceTree(int root, ByteBuffer acc, ReduceOperation op) throws IOException {
+
+        int size = channel.getSize();
+        int vrank = (channel.getRank() - root + size) % size;
+
+        ByteBuffer tmp = allocateScratch(acc.remaining(), acc);
+
+        try {
+            // Combine the results of our children in the binomial tree, then pass the result on to our parent.
+            for (int mask = 1; mask < size; mask <<= 1) {
+                if ((vrank & mask) != 0) {
+                    send((vrank - mask + root) % size, OP_REDUCE, acc);
+                    break;
+                }
+
+                if (vrank + mask < size) {
+                    receive((vrank + mask + root) % size, OP_REDUCE, tmp);
+                    op.reduce(acc, tmp);
+                }
+            }
+        } finally {
+            scratch.release(tmp);
+        }
+    }
+
+    private void reduceRing(int root, ByteBuffer acc, int count, ReduceOperation op) throws IOException {
+
+        int size = channel.getSize();
+        int rank = channel.getRank();
+        int es = op.getElementSize();
+
+        ringReduceScatter(acc, count, op, OP_REDUCE);
+
+        // Each participant now holds one combined block, which is gathered at the root.
+        if (rank != root) {
+            send(root, OP_REDUCE, getBlock(acc, count, size, (rank + 1) % size, es));
+            return;
+        }
+
+        for (int source = 0; source < size; source++) {
+            if (source != root) {
+                receive(source, OP_REDUCE, getBlock(acc, count, size, (source + 1) % size, es));
+            }
+        }
+    }
+
+    @Override
+    public void allreduce(ByteBuffer buffer, ReduceOperation op) throws IOException {
+
+        int count = getElementCount(buffer, op);
+        int size = channel.getSize();
+
+        if (size == 1) {
+            return;
+        }
+
+        if (buffer.remaining() <= REDUCE_SHORT_LIMIT || count < size) {
+            allreduceRecursiveDoubling(buffer, op);
+        } else {
+            allreduceRing(buffer, count, op);
+        }
+    }
+
+    private void allreduceRecursiveDoubling(ByteBuffer buffer, ReduceOperation op) throws IOException {
+
+        int size = channel.getSize();
+        int rank = channel.getRank();
+
+        // Recursive doubling needs a power of two participants. The first 2 * remainder participants are paired up, and the even one of each pair
+        // hands its contribution to the odd one and waits for the result.
+        int pof2 = Integer.highestOneBit(size);
+        int remainder = size - pof2;
+
+        ByteBuffer tmp = allocateScratch(buffer.remaining(), buffer);
+
+        try {
+            int newRank;
+
+            if (rank < 2 * remainder) {
+                if (rank % 2 == 0) {
+                    send(rank + 1, OP_ALLREDUCE, buffer);
+                    newRank = -1;
+                } else {
+                    receive(rank - 1, OP_ALLREDUCE, tmp);
+                    op.reduce(buffer, tmp);
+                    newRank = rank / 2;
+                }
+            } else {
+                newRank = rank - remainder;
+            }
+
+            if (newRank >= 0) {
+                for (int mask = 1; mask < pof2; mask <<= 1) {
+                    int newPeer = newRank ^ mask;
+                    int peer = newPeer < remainder ? newPeer * 2 + 1 : newPeer + remainder;
+
+                    exchange(peer, OP_ALLREDUCE, buffer, peer, tmp);
+                    op.reduce(buffer, tmp);
+                }
+            }
+
+            if (rank < 2 * remainder) {
+                if (rank % 2 == 0) {
+                    receive(rank + 1, OP_ALLREDUCE, buffer);
+                } else {
+                    send(rank - 1, OP_ALLREDUCE, buffer);
+                }
+            }
+        } finally {
+            scratch.release(tmp);
+        }
+    }
+
+    private void allreduceRing(ByteBuffer buffer, int count, ReduceOperation op) throws IOException {
+
+        int size = channel.getSize();
+        int rank = channel.getRank();
+        int es = op.getElementSize();
+
+        int left = (rank - 1 + size) % size;
+        int right = (rank + 1) % size;
+
+        ringReduceScatter(buffer, count, op, OP_ALLREDUCE);
+
+        // Pass the combined blocks around the ring, so every participant ends up with all of them.
+        for (int step = 0; step < size - 1; step++) {
+            int sendBlock = (rank - step + 1 + size) % size;
+            int receiveBlock = (rank - step + size) % size;
+
+            exchange(right, OP_ALLREDUCE, getBlock(buffer, count, size, sendBlock, es), left, getBlock(buffer, count, size, receiveBlock, es));
+        }
+    }
+
+    @Override
+    public void gather(int root, ByteBuffer send, ByteBuffer[] receive) throws IOException {
+
+        checkRank(root);
+
+        int rank = channel.getRank();
+
+        if (rank != root) {
+            send(root, OP_GATHER, send);
+            return;
+        }
+
+        checkBuffers(receive);
+
+        copy(send, receive[root]);
+
+        for (int source = 0; source < channel.getSize(); source++) {
+            if (source != root) {
+                receive(source, OP_GATHER, receive[source]);
+            }
+        }
+    }
+
+    @Override
+    public void scatter(int root, ByteBuffer[] send, ByteBuffer receive) throws IOException {
+
+        checkRank(root);
+
+        int rank = channel.getRank();
+
+        if (rank != root) {
+            receive(root, OP_SCATTER, receive);
+            return;
+        }
+
+        checkBuffers(send);
+
+        // Start with the next rank, so not every root sends to rank 0 first.
+        for (int i = 1; i < channel.getSize(); i++) {
+            int dest = (root + i) % channel.getSize();
+            send(dest, OP_SCATTER, send[dest]);
+        }
+
+        copy(send[root], receive);
+    }
+
+    @Override
+    public void allgather(ByteBuffer send, ByteBuffer[] receive) throws IOException {
+
+        checkBuffers(receive);
+
+        int size = channel.getSize();
+        int rank = channel.getRank();
+
+        int left = (rank - 1 + size) % size;
+        int right = (rank + 1) % size;
+
+        copy(send, receive[rank]);
+
+        // In each step, pass on the block received in the previous step.
+        for (int step = 0; step < size - 1; step++) {
+            int sendBlock = (rank - step + size) % size;
+            int receiveBlock = (rank - step - 1 + size) % size;
+
+            exchange(right, OP_ALLGATHER, receive[sendBlock], left, receive[receiveBlock]);
+        }
+    }
+
+    @Override
+    public void alltoallv(ByteBuffer[] send, ByteBuffer[] receive) throws IOException {
+
+        checkBuffers(send);
+        checkBuffers(receive);
+
+        int size = channel.getSize();
+        int rank = channel.getRank();
+
+        copy(send[rank], receive[rank]);
+
+        // Pairwise exchange: in step i we send to rank + i and receive from rank - i.
+        for (int step = 1; step < size; step++) {
+            int dest = (rank + step) % size;
+            int source = (rank - step + size) % size;
+
+            exchange(dest, OP_ALLTOALL, send[dest], source, receive[source]);
+        }
+    }
+}
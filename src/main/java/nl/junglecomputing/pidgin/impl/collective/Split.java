@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.collective;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.ChannelOptions;
+import nl.junglecomputing.pidgin.ExplicitChannel;
+import nl.junglecomputing.pidgin.ReceiveMode;
+
+/**
+ * Splits the participants of a channel into groups, similar to MPI_Comm_split.
+ */
+public final class Split {
+
+    private static final String CHANNEL_PREFIX = "__pidgin_split_";
+
+    private Split() {
+        // Utility class
+    }
+
+    /**
+     * Returns the name of the channel for the next split with the given tag. Each use of a tag gets a channel of its own, so a split never
+     * connects to a port of an earlier split that another participant has not closed yet.
+     */
+    public static String getChannelName(String tag, Map<String, Integer> uses) {
+        synchronized (uses) {
+            Integer count = uses.get(tag);
+            int next = count == null ? 0 : count;
+            uses.put(tag, next + 1);
+            return CHANNEL_PREFIX + tag + "_" + next;
+        }
+    }
+
+    /**
+     * Returns the options of a split channel. All participants only send to the first one, so it receives from a single port, and the others
+     * only need a port for its reply.
+     */
+    public static ChannelOptions getChannelOptions() {
+        return new ChannelOptions().setReceiveMode(ReceiveMode.MANY_TO_ONE).setStatistics(false);
+    }
+
+    /**
+     * Runs a split, as described by {@link nl.junglecomputing.pidgin.Pidgin#split(String, IbisIdentifier[], int, int)}, on a new channel among
+     * the participants, created with {@link #getChannelOptions()}. The channel is deactivated when the split is done.
+     */
+    public static IbisIdentifier[] split(ExplicitChannel channel, IbisIdentifier[] participants, int color, int key) throws IOException {
+
+        // The split is coordinated by the first participant, which gathers all colors and keys and sends each participant its group.
+        channel.activate();
+
+        try {
+            if (channel.getRank() != 0) {
+                WriteMessage wm = channel.sendMessage(0);
+                wm.writeInt(color);
+                wm.writeInt(key);
+                wm.finish();
+
+                ReadMessage rm = channel.receiveAny();
+                int length = rm.readInt();
+                int[] group = null;
+
+                if (length >= 0) {
+                    group = new int[length];
+                    rm.readArray(group);
+                }
+
+                rm.finish();
+                return getGroupMembers(participants, group);
+            }
+
+            int[] colors = new int[participants.length];
+            int[] keys = new int[participants.length];
+
+            colors[0] = color;
+            keys[0] = key;
+
+            for (int i = 1; i < participants.length; i++) {
+                ReadMessage rm = channel.receiveAny();
+                int rank = channel.getRank(rm.origin().ibisIdentifier());
+                colors[rank] = rm.readInt();
+                keys[rank] = rm.readInt();
+                rm.finish();
+            }
+
+            for (int i = 1; i < participants.length; i++) {
+                int[] group = getGroup(colors, keys, i);
+
+                WriteMessage wm = channel.sendMessage(i);
+
+                if (group == null) {
+                    wm.writeInt(-1);
+                } else {
+                    wm.writeInt(group.length);
+                    wm.writeArray(group);
+                }
+
+                wm.finish();
+            }
+
+            return getGroupMembers(participants, getGroup(colors, keys, 0));
+        } finally {
+            channel.deactivate();
+        }
+    }
+
+    private static int[] getGroup(final int[] colors, final int[] keys, int member) {
+
+        if (colors[member] < 0) {
+            return null;
+        }
+
+        ArrayList<Integer> group = new ArrayList<>();
+
+        for (int i = 0; i < colors.length; i++) {
+            if (colors[i] == colors[member]) {
+                group.add(i);
+            }
+        }
+
+        // Order by key first, and by original position if the keys are equal.
+        Collections.sort(group, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (keys[a] != keys[b]) {
+                    return keys[a] < keys[b] ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+
+        int[] result = new int[group.size()];
+
+        for (int i = 0; i < result.length; i++) {
+            result[i] = group.get(i);
+        }
+
+        return result;
+    }
+
+    private static IbisIdentifier[] getGroupMembers(IbisIdentifier[] participants, int[] group) {
+
+        if (group == null) {
+            return null;
+        }
+
+        IbisIdentifier[] result = new IbisIdentifier[group.length];
+
+        for (int i = 0; i < group.length; i++) {
+            result[i] = participants[group[i]];
+        }
+
+        return result;
+    }
+}
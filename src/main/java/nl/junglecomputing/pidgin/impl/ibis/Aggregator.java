@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.ibis;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import ibis.ipl.WriteMessage;
+
+/**
+ * Packs small messages to a single destination into one wire message. Each packed message consists of its opcode, the number of buffers, the
+ * size of each buffer and the contents of the buffers.
+ */
+final class Aggregator implements Flushable {
+
+    private final MessageUpcallChannelImpl channel;
+
+    private final int rank;
+
+    private final ByteBuffer buffer;
+
+    private int count = 0;
+
+    private long firstAdded;
+
+    Aggregator(MessageUpcallChannelImpl channel, int rank, int capacity) {
+        this.channel = channel;
+        this.rank = rank;
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns the number of bytes needed to pack a message with the given buffers, or -1 if it does not fit in an int.
+     */
+    static int getPackedSize(ByteBuffer[] buffers) {
+
+        long size = 1 + 4;
+
+        if (buffers != null) {
+            for (ByteBuffer b : buffers) {
+                size += 4;
+
+                if (b != null) {
+                    size += b.remaining();
+                }
+            }
+        }
+
+        return size > Integer.MAX_VALUE ? -1 : (int) size;
+    }
+
+    /**
+     * Adds a message to this aggregator, flushing the messages already added first if there is not enough space left.
+     *
+     * @return <code>false</code> if the message is too large to be aggregated.
+     */
+    synchronized boolean add(byte opcode, ByteBuffer[] buffers, int packedSize) throws IOException {
+
+        if (packedSize < 0 || packedSize > buffer.capacity()) {
+            return false;
+        }
+
+        if (packedSize > buffer.remaining()) {
+            flush();
+        }
+
+        if (count == 0) {
+            firstAdded = System.nanoTime();
+        }
+
+        buffer.put(opcode);
+
+        if (buffers == null) {
+            buffer.putInt(0);
+        } else {
+            buffer.putInt(buffers.length);
+
+            for (ByteBuffer b : buffers) {
+                buffer.putInt(b == null ? 0 : b.remaining());
+            }
+
+            for (ByteBuffer b : buffers) {
+                if (b != null) {
+                    buffer.put(b.duplicate());
+                }
+            }
+        }
+
+        count++;
+        return true;
+    }
+
+    /**
+     * Sends all messages added so far as a single wire message.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+
+        if (count == 0) {
+            return;
+        }
+
+        buffer.flip();
+
+        try {
+            // The credits of the packed messages were taken when they were added.
+            WriteMessage wm = channel.newMessage(rank);
+            wm.writeByte(UpcallChannelImpl.MESSAGE_AGGREGATE);
+            wm.writeInt(count);
+            wm.writeInt(buffer.remaining());
+            wm.writeByteBuffer(buffer);
+            channel.sent(rank, wm.finish());
+        } finally {
+            buffer.clear();
+            count = 0;
+        }
+    }
+
+    /**
+     * Flushes the messages if the oldest one was added before the deadline.
+     */
+    synchronized void flushIfOlder(long deadline) throws IOException {
+        if (count > 0 && firstAdded - deadline < 0) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.ibis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nl.junglecomputing.pidgin.ChannelNotActiveException;
+
+/**
+ * Sends messages of an {@link UpcallChannelImpl} in the background. Each destination has its own bounded queue. A queue is drained by at most
+ * one sender thread at a time, so messages to a destination are sent in order, and a slow destination occupies at most one thread. The threads
+ * are shared by all destinations, so as many slow destinations as there are threads stall the queues of all other destinations.
+ */
+final class AsyncSender {
+
+    // The maximum number of messages sent from one queue before the thread moves on to another destination.
+    private static final int BATCH = 16;
+
+    private static final class PendingSend {
+
+        final byte opcode;
+        final Object data;
+        final ByteBuffer[] buffers;
+        final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+        PendingSend(byte opcode, Object data, ByteBuffer[] buffers) {
+            this.opcode = opcode;
+            this.data = data;
+            this.buffers = buffers;
+        }
+    }
+
+    private final class SendQueue implements Runnable {
+
+        final int rank;
+        final ArrayBlockingQueue<PendingSend> queue;
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        SendQueue(int rank, int capacity) {
+            this.rank = rank;
+            this.queue = new ArrayBlockingQueue<PendingSend>(capacity);
+        }
+
+        void schedule() {
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The sender is closed, so nobody will send the queued messages.
+                    scheduled.set(false);
+                    failAll();
+                }
+            }
+        }
+
+        void failAll() {
+
+            PendingSend p;
+
+            while ((p = queue.poll()) != null) {
+                fail(p);
+            }
+        }
+
+        @Override
+        public void run() {
+
+            // When closing, the queue is drained completely, as it can no longer be rescheduled.
+            for (int i = 0; closed || i < BATCH; i++) {
+
+                PendingSend p = queue.poll();
+
+                if (p == null) {
+                    break;
+                }
+
+                try {
+                    channel.sendMessage(rank, p.opcode, p.data, p.buffers);
+                    p.future.complete(null);
+                } catch (Throwable e) {
+                    p.future.completeExceptionally(e);
+                }
+            }
+
+            scheduled.set(false);
+
+            // Messages may have been added after our last poll, or we stopped because the batch was full.
+            schedule();
+        }
+    }
+
+    private final UpcallChannelImpl channel;
+
+    private final SendQueue[] queues;
+
+    private final ExecutorService executor;
+
+    private volatile boolean closed = false;
+
+    private static void fail(PendingSend p) {
+        p.future.completeExceptionally(new ChannelNotActiveException("Channel deactivated before the message was sent"));
+    }
+
+    AsyncSender(UpcallChannelImpl channel, final String name, int size, int threads, int capacity) {
+        this.channel = channel;
+
+        queues = new SendQueue[size];
+
+        for (int i = 0; i < size; i++) {
+            queues[i] = new SendQueue(i, capacity);
+        }
+
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Pidgin sender " + name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Queues a message for the given destination, blocking while the queue of that destination is full.
+     */
+    CompletableFuture<Void> send(int rank, byte opcode, Object data, ByteBuffer[] buffers) throws IOException {
+
+        if (closed) {
+            throw new ChannelNotActiveException("Cannot send message, channel is being deactivated");
+        }
+
+        PendingSend p = new PendingSend(opcode, data, buffers);
+
+        SendQueue q = queues[rank];
+
+        try {
+            q.queue.put(p);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for space in the send queue to rank " + rank);
+        }
+
+        // The put may have completed after close() drained the queues, in which case nobody else will complete the future.
+        if (closed) {
+            if (q.queue.remove(p)) {
+                fail(p);
+            }
+            return p.future;
+        }
+
+        q.schedule();
+        return p.future;
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent to the given destination.
+     */
+    int getQueueLength(int rank) {
+        return queues[rank].queue.size();
+    }
+
+    /**
+     * Stops accepting new messages and waits until the queued messages have been sent, or the timeout expires. Messages that could not be sent
+     * in time fail.
+     */
+    void close(long timeout) {
+
+        closed = true;
+
+        executor.shutdown();
+
+        try {
+            executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        executor.shutdownNow();
+
+        for (SendQueue q : queues) {
+            q.failAll();
+        }
+    }
+}
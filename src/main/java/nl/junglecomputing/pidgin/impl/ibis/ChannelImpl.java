@@ -16,9 +16,23 @@
  */
 package nl.junglecomputing.pidgin.impl.ibis;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,11 +41,31 @@ import ibis.ipl.Ibis;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.MessageUpcall;
 import ibis.ipl.PortType;
+import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePort;
 import ibis.ipl.SendPort;
 import ibis.ipl.WriteMessage;
 import nl.junglecomputing.pidgin.Channel;
 import nl.junglecomputing.pidgin.ChannelNotActiveException;
+import nl.junglecomputing.pidgin.ChannelOptions;
+import nl.junglecomputing.pidgin.ChannelStatistics;
+import nl.junglecomputing.pidgin.ConnectResult;
+import nl.junglecomputing.pidgin.NoSuchDestinationException;
+import nl.junglecomputing.pidgin.ReceiveMode;
+import nl.junglecomputing.pidgin.impl.local.LocalEndpoint;
+import nl.junglecomputing.pidgin.impl.local.LocalInbox;
+import nl.junglecomputing.pidgin.impl.local.LocalNode;
+import nl.junglecomputing.pidgin.impl.message.BufferedReadMessage;
+import nl.junglecomputing.pidgin.impl.message.BufferedWriteMessage;
+import nl.junglecomputing.pidgin.impl.message.ForwardingReadMessage;
+import nl.junglecomputing.pidgin.impl.message.MessageOrigin;
+import nl.junglecomputing.pidgin.impl.message.MessageSource;
+import nl.junglecomputing.pidgin.impl.message.SegmentedReadMessage;
+import nl.junglecomputing.pidgin.impl.shm.HostIdentity;
+import nl.junglecomputing.pidgin.impl.shm.SharedMemoryReceiver;
+import nl.junglecomputing.pidgin.impl.shm.SharedMemoryRing;
+import nl.junglecomputing.pidgin.impl.shm.SharedMemorySender;
+import nl.junglecomputing.pidgin.impl.trace.Tracer;
 
 public abstract class ChannelImpl implements Channel {
 
@@ -39,66 +73,557 @@ public abstract class ChannelImpl implements Channel {
 
     private static final long CONNECT_TIMEOUT = 60 * 1000;
 
+    // Exactly one of ibis and node is set: the channel either communicates through Ibis or with other ranks in this JVM.
     protected final Ibis ibis;
 
+    protected final LocalNode node;
+
+    protected final IbisIdentifier identifier;
+
     protected final String name;
 
+    protected final ChannelOptions options;
+
     private boolean active = false;
 
+    private final boolean manyToOne;
+
+    private final IbisIdentifier[] participants;
+
+    private final HashMap<IbisIdentifier, Integer> ranks = new HashMap<IbisIdentifier, Integer>();
+
+    private final int rank;
+
+    /**
+     * A connection to a single peer, through an Ibis send port, through shared memory or within this JVM.
+     */
+    private interface Connection {
+
+        WriteMessage newMessage() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private static final class PortConnection implements Connection {
+
+        final SendPort port;
+
+        PortConnection(SendPort port) {
+            this.port = port;
+        }
+
+        @Override
+        public WriteMessage newMessage() throws IOException {
+            return port.newMessage();
+        }
+
+        @Override
+        public void close() throws IOException {
+            port.close();
+        }
+    }
+
+    private static final class SharedMemoryConnection implements Connection {
+
+        final SharedMemorySender sender;
+
+        SharedMemoryConnection(SharedMemorySender sender) {
+            this.sender = sender;
+        }
+
+        @Override
+        public WriteMessage newMessage() throws IOException {
+            return sender.newMessage();
+        }
+
+        @Override
+        public void close() {
+            sender.close();
+        }
+    }
+
+    /**
+     * A connection to the local node. Messages are kept in memory and handed to the upcall, or queued for an explicit receive, when they are
+     * finished.
+     */
+    private final class LoopbackConnection implements Connection {
+
+        @Override
+        public WriteMessage newMessage() throws IOException {
+            return new BufferedWriteMessage() {
+                @Override
+                protected void deliver(ArrayList<ByteBuffer> segments) throws IOException {
+                    deliverLoopback(new BufferedReadMessage(origin, segments));
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close.
+        }
+    }
+
+    /**
+     * A connection to another rank in this JVM. Messages are kept in memory, and the segments are handed over to the peer when they are
+     * finished.
+     */
+    private final class LocalConnection implements Connection {
+
+        final LocalEndpoint peer;
+
+        LocalConnection(LocalEndpoint peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public WriteMessage newMessage() throws IOException {
+            return new BufferedWriteMessage() {
+                @Override
+                protected void deliver(ArrayList<ByteBuffer> segments) throws IOException {
+                    peer.deliver(new BufferedReadMessage(origin, segments));
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close.
+        }
+    }
+
+    private final LoopbackConnection loopbackConnection = new LoopbackConnection();
+
+    // The origin of the messages sent by this channel without Ibis.
+    private final MessageOrigin origin;
+
     protected ReceivePort rports[];
 
-    private final HashMap<IbisIdentifier, SendPort> sendports = new HashMap<IbisIdentifier, SendPort>();
+    // The receivers that are not Ibis receive ports, indexed by rank: shared memory rings. Peers that have one do not get a receive port.
+    private final MessageSource[] sources;
+
+    // The upcalls for the messages of the sources, indexed by rank.
+    private final MessageUpcall[] sourceUpcalls;
+
+    // The single inbox of a channel within this JVM that uses upcalls, or null.
+    private final LocalInbox inbox;
+
+    // The messages waiting to be received by an explicit channel, from all senders, or null if the channel uses upcalls.
+    protected final ReadyQueue ready;
+
+    private final boolean sharedMemory;
+
+    // The upcall given by the subclass, or null.
+    private final MessageUpcall userUpcall;
+
+    private final MessageUpcall upcall;
+
+    // Called by the receivers of several senders: the upcall, or for an explicit channel a hand-off to the ready queue.
+    private final MessageUpcall portUpcall;
+
+    // Null if statistics are disabled.
+    private final ChannelMetrics metrics;
+
+    // If the messages passed to the upcall are wrapped to count them. Otherwise the upcall counts them itself.
+    private final boolean meterUpcall;
+
+    private final ChannelTracer tracer;
+
+    // Runs the receivers that are not Ibis receive ports, or null if they have not been started.
+    private volatile ExecutorService receivers;
+
+    // The connections, indexed by rank. An entry is set once a connection is being set up and completed once it is connected.
+    private final AtomicReferenceArray<CompletableFuture<Connection>> sendports;
 
     protected final ConcurrentHashMap<IbisIdentifier, ReceivePort> receiveports = new ConcurrentHashMap<IbisIdentifier, ReceivePort>();
 
-    private ChannelImpl(Ibis ibis, String name, IbisIdentifier[] ids, boolean hasUpcall, MessageUpcall upcall) throws IOException {
+    private ChannelImpl(Ibis ibis, LocalNode node, String name, IbisIdentifier[] ids, ChannelOptions options, boolean hasUpcall,
+            MessageUpcall upcall, boolean meterUpcall) throws IOException {
         this.ibis = ibis;
+        this.node = node;
+        this.identifier = ibis != null ? ibis.identifier() : node.identifier();
         this.name = name;
+        this.options = options;
+        this.manyToOne = options.getReceiveMode() == ReceiveMode.MANY_TO_ONE;
+        this.participants = ids.clone();
+        this.sendports = new AtomicReferenceArray<CompletableFuture<Connection>>(participants.length);
+        this.metrics = options.getStatistics() ? new ChannelMetrics(this, identifier.poolName(), participants.length) : null;
+        this.meterUpcall = meterUpcall;
+        this.sources = new MessageSource[participants.length];
+        this.sourceUpcalls = new MessageUpcall[participants.length];
+        this.sharedMemory = ibis != null && options.getSharedMemory();
 
         if (logger.isInfoEnabled()) {
             logger.info("Creating ChannelImpl " + name);
         }
 
-        rports = new ReceivePort[ids.length];
+        // The ranks map is filled once here and only read afterwards, so it needs no locking.
+        for (int i = 0; i < participants.length; i++) {
+            if (ranks.put(participants[i], i) != null) {
+                throw new IllegalArgumentException("Participant " + participants[i] + " occurs more than once in channel " + name);
+            }
+        }
+
+        Integer local = ranks.get(identifier);
+
+        if (local == null) {
+            throw new IllegalArgumentException("Local node " + identifier + " is not a participant of channel " + name);
+        }
+
+        rank = local;
+
+        this.tracer = new ChannelTracer(this);
+        this.ready = hasUpcall ? null : new ReadyQueue(name);
+        this.userUpcall = upcall;
+
+        // Messages to self are passed to the upcall directly, or to the ready queue.
+        this.upcall = upcall == null ? null : getPortUpcall(rank);
+
+        // Shared by the receivers of the messages of several senders.
+        portUpcall = getPortUpcall(-1);
+
+        origin = new MessageOrigin(name, identifier);
 
         if (logger.isInfoEnabled()) {
             logger.info("ChannelImpl " + name + " has " + ids.length + " members");
         }
 
-        for (int i = 0; i < rports.length; i++) {
-            if (!ids[i].equals(ibis.identifier())) {
-                if (hasUpcall) {
-                    rports[i] = ibis.createReceivePort(getPortType(), getReceivePortName(ids[i]), upcall);
-                } else {
-                    rports[i] = ibis.createReceivePort(getPortType(), getReceivePortName(ids[i]));
+        if (sharedMemory) {
+            for (int i = 0; i < participants.length; i++) {
+                if (isSameHost(i)) {
+                    File file = getRingFile(participants[i], identifier);
+                    SharedMemoryRing ring = SharedMemoryRing.create(file, options.getSharedMemoryCapacity());
+                    sources[i] = new SharedMemoryReceiver(ring, new MessageOrigin(name, participants[i]));
+                    sourceUpcalls[i] = getPortUpcall(i);
+                }
+            }
+        }
+
+        if (node != null) {
+            // There are no receive ports. Messages for an upcall go to an inbox, others straight to the ready queue.
+            inbox = hasUpcall ? new LocalInbox("channel " + name) : null;
+
+            rports = new ReceivePort[manyToOne ? 1 : ids.length];
+
+            node.register(name, new LocalEndpoint() {
+                @Override
+                public void deliver(ReadMessage rm) throws IOException {
+                    deliverLocal(rm);
                 }
+            });
+            return;
+        }
 
-                rports[i].enableConnections();
+        inbox = null;
 
+        if (manyToOne) {
+            // A single receive port is shared by all senders. The sender of each message is found using its origin.
+            rports = new ReceivePort[1];
+            rports[0] = createReceivePort(getManyToOneReceivePortName(), portUpcall);
+            return;
+        }
+
+        rports = new ReceivePort[ids.length];
+
+        for (int i = 0; i < rports.length; i++) {
+            if (!ids[i].equals(identifier) && sources[i] == null) {
+                rports[i] = createReceivePort(getReceivePortName(ids[i]), getPortUpcall(i));
                 receiveports.put(ids[i], rports[i]);
+            }
+        }
+    }
+
+    protected ChannelImpl(Ibis ibis, String name, IbisIdentifier[] ids, ChannelOptions options) throws IOException {
+        this(ibis, null, name, ids, options, false, null, false);
+    }
+
+    /**
+     * @param meterUpcall
+     *            if the messages passed to the upcall are counted in the statistics by wrapping them. Otherwise the upcall counts the messages it
+     *            finishes with {@link #received(IbisIdentifier, long)}.
+     */
+    protected ChannelImpl(Ibis ibis, LocalNode node, String name, IbisIdentifier[] ids, ChannelOptions options, MessageUpcall upcall,
+            boolean meterUpcall) throws IOException {
+        this(ibis, node, name, ids, options, true, upcall, meterUpcall);
+    }
+
+    protected ChannelImpl(LocalNode node, String name, IbisIdentifier[] ids, ChannelOptions options) throws IOException {
+        this(null, node, name, ids, options, false, null, false);
+    }
+
+    /**
+     * Returns <code>true</code> if the peer runs on the same host. The Ibis of each node is tagged with its {@link HostIdentity}, as the
+     * location of an Ibis can be set by the user.
+     */
+    private boolean isSameHost(int peer) {
+
+        if (peer == rank) {
+            return false;
+        }
+
+        byte[] tag = participants[peer].tag();
+
+        return tag != null && tag.length > 0 && Arrays.equals(tag, identifier.tag());
+    }
+
+    private boolean useSharedMemory(int peer) {
+        return sharedMemory && isSameHost(peer);
+    }
+
+    private File getRingFile(IbisIdentifier sender, IbisIdentifier receiver) {
+        String file = "pidgin-" + identifier.poolName() + "-" + name + "-" + sender.name() + "-" + receiver.name() + ".ring";
+        return new File(options.getSharedMemoryDirectory(), file.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+     * Starts receiving from the receivers that are not Ibis receive ports, passing their messages to the upcall, or to the ready queue of an
+     * explicit channel. Should be called by subclasses when the channel is activated.
+     */
+    protected synchronized void startReceiveThreads() {
+
+        if (receivers != null) {
+            return;
+        }
+
+        receivers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Pidgin receive " + name + " " + identifier);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] != null) {
+                startReceiver(new Receiver(sources[i], sourceUpcalls[i], "shared memory from " + participants[i]));
+            }
+        }
+
+        if (inbox != null) {
+            startReceiver(new Receiver(inbox, portUpcall, "local inbox"));
+        }
+    }
+
+    /**
+     * Lets a thread of the pool receive from the given receiver. Returns <code>false</code> if the channel is being closed.
+     */
+    private boolean startReceiver(Receiver receiver) {
+        try {
+            receivers.execute(receiver);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
 
-                if (logger.isInfoEnabled()) {
-                    logger.info("ChannelImpl created RP " + getReceivePortName(ids[i]));
+    /**
+     * Passes the messages of a receiver to the port upcall, one at a time. As with an Ibis receive port, when the upcall finishes its message,
+     * another thread takes over receiving, so the next message is delivered even if the upcall then blocks, for instance waiting for a reply
+     * from the same sender.
+     */
+    private final class Receiver implements Runnable {
+
+        final MessageSource source;
+
+        final MessageUpcall upcall;
+
+        final String description;
+
+        Receiver(MessageSource source, MessageUpcall upcall, String description) {
+            this.source = source;
+            this.upcall = upcall;
+            this.description = description;
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+
+                ReadMessage rm;
+
+                try {
+                    rm = source.receive(0);
+                } catch (ChannelNotActiveException e) {
+                    // The source was closed.
+                    return;
+                } catch (IOException e) {
+                    logger.error("ChannelImpl " + name + " failed to receive from " + description, e);
+                    return;
+                }
+
+                UpcallMessage m = new UpcallMessage(rm, this);
+
+                try {
+                    upcall.upcall(m);
+                } catch (Throwable e) {
+                    logger.error("ChannelImpl " + name + " upcall failed for message from " + rm.origin().ibisIdentifier(), e);
+                } finally {
+                    // As with Ibis, the message is finished when the upcall returns.
+                    if (!((SegmentedReadMessage) rm).isFinished()) {
+                        rm.finish(null);
+                    }
+                }
+
+                if (m.handedOff) {
+                    return;
                 }
             }
         }
     }
 
-    protected ChannelImpl(Ibis ibis, String name, IbisIdentifier[] ids, MessageUpcall upcall) throws IOException {
-        this(ibis, name, ids, true, upcall);
+    /**
+     * A message passed to the port upcall by a {@link Receiver}. Finishing it on the receiving thread hands receiving over to another thread.
+     * When it is finished by another thread, as the ready queue of an explicit channel does, the receiving thread continues once the upcall
+     * returns.
+     */
+    private final class UpcallMessage extends ForwardingReadMessage {
+
+        final Receiver receiver;
+
+        final Thread thread = Thread.currentThread();
+
+        boolean handedOff = false;
+
+        UpcallMessage(ReadMessage delegate, Receiver receiver) {
+            super(delegate);
+            this.receiver = receiver;
+        }
+
+        @Override
+        public long finish() throws IOException {
+            long bytes = delegate.finish();
+            handOff();
+            return bytes;
+        }
+
+        @Override
+        public void finish(IOException e) {
+            delegate.finish(e);
+            handOff();
+        }
+
+        private void handOff() {
+            if (Thread.currentThread() == thread && !handedOff) {
+                handedOff = startReceiver(receiver);
+            }
+        }
+    }
+
+    /**
+     * Delivers a message sent to the local node. With an upcall, the upcall is called on the thread of the sender, so messages to self are
+     * delivered in order and without a thread switch.
+     */
+    private void deliverLoopback(ReadMessage rm) throws IOException {
+
+        if (upcall == null) {
+            // Queued with the messages from other senders, so a receive that is already waiting gets it.
+            ready.add(rank, rm);
+            return;
+        }
+
+        try {
+            upcall.upcall(rm);
+        } catch (Throwable e) {
+            logger.error("ChannelImpl " + name + " upcall failed for message to self", e);
+        } finally {
+            if (!((BufferedReadMessage) rm).isFinished()) {
+                rm.finish(null);
+            }
+        }
+    }
+
+    /**
+     * Queues a message from another rank in this JVM.
+     */
+    private void deliverLocal(ReadMessage rm) throws IOException {
+
+        if (inbox != null) {
+            inbox.add(rm);
+            return;
+        }
+
+        int source = getRank(rm.origin().ibisIdentifier());
+
+        if (source < 0 || source == rank) {
+            throw new IOException("Channel " + name + " cannot receive from " + rm.origin().ibisIdentifier());
+        }
+
+        ready.add(source, rm);
+    }
+
+    /**
+     * Returns the upcall for the messages of a receiver. The source is the rank of the only sender of the receiver, or -1 if it receives from
+     * several senders, in which case the sender of each message is looked up. The upcall is traced, and counted in the statistics unless it
+     * counts its messages itself, while an explicit channel hands the message to the ready queue, where it is wrapped when it is taken.
+     */
+    private MessageUpcall getPortUpcall(final int source) {
+
+        if (ready != null) {
+            return new MessageUpcall() {
+                @Override
+                public void upcall(ReadMessage rm) throws IOException {
+                    ready.handoff(source >= 0 ? source : getRank(rm.origin().ibisIdentifier()), rm);
+                }
+            };
+        }
+
+        // Tracing wraps the upcall outermost, so its events cover the time spent in the upcall and in counting the message.
+        return tracer.wrap(metrics == null || !meterUpcall ? userUpcall : metrics.wrap(userUpcall, source), source);
     }
 
-    protected ChannelImpl(Ibis ibis, String name, IbisIdentifier[] ids) throws IOException {
-        this(ibis, name, ids, false, null);
+    private ReceivePort createReceivePort(String rpName, MessageUpcall portUpcall) throws IOException {
+
+        ReceivePort rp = ibis.createReceivePort(getPortType(), rpName, portUpcall);
+
+        rp.enableConnections();
+
+        if (logger.isInfoEnabled()) {
+            logger.info("ChannelImpl created RP " + rpName);
+        }
+
+        return rp;
     }
 
     protected final String getName() {
         return name;
     }
 
+    @Override
+    public IbisIdentifier[] getParticipants() {
+        return participants.clone();
+    }
+
+    @Override
+    public int getSize() {
+        return participants.length;
+    }
+
+    @Override
+    public int getRank() {
+        return rank;
+    }
+
+    @Override
+    public int getRank(IbisIdentifier id) {
+        Integer result = ranks.get(id);
+        return result == null ? -1 : result;
+    }
+
     protected final synchronized boolean setActive(boolean value) {
+
         boolean old = active;
         active = value;
+
+        if (metrics != null && value != old) {
+            if (value) {
+                metrics.register();
+            } else {
+                metrics.unregister();
+            }
+        }
+
         return old;
     }
 
@@ -108,15 +633,114 @@ public abstract class ChannelImpl implements Channel {
 
     public abstract void activate() throws IOException;
 
+    /**
+     * Connects to all participants if this was requested in the channel options. Should be called by subclasses when the channel is activated.
+     */
+    protected void connectOnActivate() {
+
+        if (!options.getConnectOnActivate()) {
+            return;
+        }
+
+        try {
+            ConnectResult result = connect(participants, options.getConnectParallelism());
+
+            for (Map.Entry<IbisIdentifier, IOException> e : result.getFailures().entrySet()) {
+                logger.warn("ChannelImpl " + name + " failed to connect to " + e.getKey() + " on activation", e.getValue());
+            }
+        } catch (IOException e) {
+            logger.warn("ChannelImpl " + name + " failed to connect on activation", e);
+        }
+    }
+
+    @Override
+    public ConnectResult connect(IbisIdentifier[] peers, int parallelism) throws IOException {
+
+        if (!isActive()) {
+            throw new ChannelNotActiveException("Cannot connect, channel " + name + " not active");
+        }
+
+        final ConcurrentHashMap<IbisIdentifier, Long> times = new ConcurrentHashMap<IbisIdentifier, Long>();
+        final ConcurrentHashMap<IbisIdentifier, IOException> failures = new ConcurrentHashMap<IbisIdentifier, IOException>();
+
+        ArrayList<Integer> targets = new ArrayList<Integer>();
+
+        for (IbisIdentifier id : peers) {
+            if (id.equals(identifier)) {
+                continue;
+            }
+
+            Integer rank = ranks.get(id);
+
+            if (rank == null) {
+                failures.put(id, new NoSuchDestinationException(id + " is not a participant of channel " + name));
+            } else {
+                targets.add(rank);
+            }
+        }
+
+        if (targets.isEmpty()) {
+            return new ConnectResult(times, failures);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, targets.size()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Pidgin connect " + name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        for (final int rank : targets) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    IbisIdentifier id = participants[rank];
+                    long start = System.nanoTime();
+
+                    try {
+                        boolean connected = isConnected(rank);
+                        getConnection(rank);
+                        times.put(id, connected ? 0L : System.nanoTime() - start);
+                    } catch (IOException e) {
+                        failures.put(id, e);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+
+        try {
+            while (!executor.awaitTermination(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("ChannelImpl " + name + " still waiting for connections to be set up");
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while connecting channel " + name);
+        }
+
+        return new ConnectResult(times, failures);
+    }
+
+    private boolean isConnected(int rank) {
+        CompletableFuture<Connection> future = sendports.get(rank);
+        return future != null && future.isDone() && !future.isCompletedExceptionally();
+    }
+
     private void closeSendPorts() {
 
         logger.debug("Closing sendports");
 
-        for (SendPort sp : sendports.values()) {
-            try {
-                sp.close();
-            } catch (Exception e) {
-                logger.info("Close sendport got exception", e);
+        for (int i = 0; i < sendports.length(); i++) {
+            if (isConnected(i)) {
+                try {
+                    sendports.get(i).join().close();
+                } catch (Exception e) {
+                    logger.info("Close sendport got exception", e);
+                }
             }
         }
 
@@ -139,8 +763,76 @@ public abstract class ChannelImpl implements Channel {
         closeReceivePorts();
     }
 
+    /**
+     * Returns the statistics of this channel, or <code>null</code> if they are not collected.
+     */
+    @Override
+    public ChannelStatistics getStatistics() {
+        return metrics == null ? null : metrics.getStatistics();
+    }
+
+    ChannelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Counts a message to the given rank that was finished by the channel rather than by the application.
+     */
+    final void sent(int rank, long bytes) {
+        if (metrics != null) {
+            metrics.sent(rank, bytes);
+        }
+    }
+
+    /**
+     * Counts a message from the given sender that was finished by the channel rather than by the application. The sender is only looked up if
+     * statistics are collected.
+     */
+    final void received(IbisIdentifier source, long bytes) {
+        if (metrics != null) {
+            metrics.received(getRank(source), bytes);
+        }
+    }
+
+    /**
+     * Counts a message from the given rank that was finished by the channel rather than by the application.
+     */
+    final void received(int rank, long bytes) {
+        if (metrics != null) {
+            metrics.received(rank, bytes);
+        }
+    }
+
+    /**
+     * Returns the id of this channel in trace events.
+     */
+    int getTraceId() {
+        return tracer.getId();
+    }
+
+    /**
+     * Prepares a message taken from the ready queue by an explicit receive, so it is counted in the statistics and traced when it is finished.
+     * Poll results may be <code>null</code>, which is passed on.
+     */
+    ReadMessage received(ReadyQueue.Entry e) {
+
+        if (e == null) {
+            return null;
+        }
+
+        ReadMessage rm = metrics == null ? e.message : metrics.wrap(e.message, e.rank);
+
+        return Tracer.isEnabled() ? tracer.wrap(rm, e.rank) : rm;
+    }
+
+    protected final boolean isManyToOne() {
+        return manyToOne;
+    }
+
     protected abstract String getReceivePortName(IbisIdentifier id);
 
+    protected abstract String getManyToOneReceivePortName();
+
     protected abstract PortType getPortType();
 
     protected void disableReceivePorts() {
@@ -152,6 +844,30 @@ public abstract class ChannelImpl implements Channel {
     }
 
     protected void closeReceivePorts() {
+
+        if (node != null) {
+            node.unregister(name);
+        }
+
+        // Closing the queue first releases the receive threads and upcalls that are waiting to hand off a message.
+        if (ready != null) {
+            ready.close();
+        }
+
+        for (MessageSource s : sources) {
+            if (s != null) {
+                s.close();
+            }
+        }
+
+        if (inbox != null) {
+            inbox.close();
+        }
+
+        if (receivers != null) {
+            receivers.shutdown();
+        }
+
         if (rports != null) {
             for (ReceivePort rport : rports) {
                 if (rport != null) {
@@ -168,7 +884,7 @@ public abstract class ChannelImpl implements Channel {
     private SendPort createAndConnect(IbisIdentifier id, String rpName, long timeout) throws IOException {
 
         if (logger.isInfoEnabled()) {
-            logger.info("Connecting to " + id.name() + ":" + rpName + " from " + ibis.identifier());
+            logger.info("Connecting to " + id.name() + ":" + rpName + " from " + identifier);
         }
 
         SendPort sp = null;
@@ -178,7 +894,7 @@ public abstract class ChannelImpl implements Channel {
             sp.connect(id, rpName, timeout, true);
 
             if (logger.isInfoEnabled()) {
-                logger.info("Connecting to " + id.name() + ":" + rpName + " from " + ibis.identifier());
+                logger.info("Connecting to " + id.name() + ":" + rpName + " from " + identifier);
             }
 
         } catch (IOException e) {
@@ -194,69 +910,134 @@ public abstract class ChannelImpl implements Channel {
         return sp;
     }
 
-    private SendPort getSendPort(IbisIdentifier id) throws IOException {
+    private Connection getConnection(int rank) throws IOException {
 
-        SendPort sp = null;
+        if (rank < 0 || rank >= participants.length) {
+            throw new NoSuchDestinationException("Rank " + rank + " is not a participant of channel " + name);
+        }
 
-        if (id.equals(ibis.identifier())) {
-            logger.error("Sending to myself! " + id + " " + ibis.identifier(), new Throwable());
+        if (rank == this.rank) {
+            return loopbackConnection;
         }
 
-        synchronized (sendports) {
+        // Fast path: once the connection has been set up, this is a single volatile read without any locking.
+        CompletableFuture<Connection> future = sendports.get(rank);
 
-            // First check if the sender is in the hash. If so, there may not be a connection yet.
-            if (sendports.containsKey(id)) {
+        if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
+            return future.join();
+        }
 
-                // The sender is known in the hash, so either we have a connection, or one is being set up.
-                sp = sendports.get(id);
+        IbisIdentifier id = participants[rank];
 
-                while (sp == null) {
-                    try {
-                        logger.warn("Waiting for sendport to " + id + " to be created");
-                        sendports.wait(1000L);
-                    } catch (Exception e) {
-                        // ignored
-                    }
+        while (true) {
+            future = sendports.get(rank);
 
-                    sp = sendports.get(id);
-                }
+            if (future != null) {
+                // Either we have a connection, or another thread is setting one up, so wait for it.
+                return waitForConnection(id, future);
+            }
 
-                // We have a connection already, so return it
-                return sp;
-            } else {
-                // The sender is not known yet, so we claim it.
-                sendports.put(id, null);
+            // The peer is not known yet, so try to claim it.
+            CompletableFuture<Connection> claim = new CompletableFuture<Connection>();
+
+            if (sendports.compareAndSet(rank, null, claim)) {
+                return connect(rank, id, claim);
             }
         }
+    }
 
-        String rpName = getReceivePortName(ibis.identifier());
+    private Connection connect(int rank, IbisIdentifier id, CompletableFuture<Connection> claim) throws IOException {
 
-        sp = createAndConnect(id, rpName, CONNECT_TIMEOUT);
+        String rpName = manyToOne ? getManyToOneReceivePortName() : getReceivePortName(identifier);
 
-        if (logger.isInfoEnabled()) {
-            logger.info("Succesfully connected to " + id + ":" + rpName + " from " + ibis.identifier());
+        Connection c;
+
+        long start = System.nanoTime();
+
+        try {
+            if (node != null) {
+                rpName = name;
+                c = new LocalConnection(node.lookup(name, id, CONNECT_TIMEOUT));
+            } else if (useSharedMemory(rank)) {
+                File file = getRingFile(identifier, id);
+                rpName = file.getPath();
+                c = new SharedMemoryConnection(new SharedMemorySender(SharedMemoryRing.open(file, CONNECT_TIMEOUT)));
+            } else {
+                c = new PortConnection(createAndConnect(id, rpName, CONNECT_TIMEOUT));
+            }
+        } catch (IOException e) {
+            // Release our claim, so a later attempt can retry the connection, and wake up anyone waiting for it.
+            sendports.compareAndSet(rank, claim, null);
+            claim.completeExceptionally(e);
+            throw e;
         }
 
-        // Store the new connection in the hashmap and wake up anyone interested.
-        synchronized (sendports) {
-            sendports.put(id, sp);
-            sendports.notifyAll();
+        if (metrics != null) {
+            metrics.connected(rank, System.nanoTime() - start);
         }
 
-        return sp;
+        if (logger.isInfoEnabled()) {
+            logger.info("Succesfully connected to " + id + ":" + rpName + " from " + identifier);
+        }
+
+        claim.complete(c);
+        return c;
+    }
+
+    private Connection waitForConnection(IbisIdentifier id, CompletableFuture<Connection> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for sendport to " + id);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to connect to " + id, e.getCause());
+        }
     }
 
     public WriteMessage sendMessage(IbisIdentifier destination) throws IOException {
+        return sendMessage(getDestinationRank(destination));
+    }
+
+    public WriteMessage sendMessage(int rank) throws IOException {
+        return metered(startMessage(rank), rank);
+    }
+
+    /**
+     * Returns a message to the given rank that is finished by the application, wrapped so it is counted in the statistics if they are collected.
+     */
+    protected final WriteMessage metered(WriteMessage wm, int rank) {
+        return metrics == null ? wm : metrics.wrap(wm, rank);
+    }
+
+    /**
+     * Starts a message to the given rank that is not counted in the statistics. The caller counts it with {@link #sent(int, long)} when it
+     * finishes it, or wraps it with {@link #metered(WriteMessage, int)} before handing it to the application.
+     */
+    protected final WriteMessage startMessage(int rank) throws IOException {
 
         if (!isActive()) {
             throw new ChannelNotActiveException("Cannot send message, channel " + name + " not active");
         }
 
         try {
-            return getSendPort(destination).newMessage();
+            WriteMessage wm = getConnection(rank).newMessage();
+
+            return Tracer.isEnabled() ? tracer.wrap(wm, rank) : wm;
         } catch (IOException e) {
-            logger.warn("Failed to connect to " + destination, e);
+            logger.warn("Failed to connect to rank " + rank, e);
             throw e;
         }
     }
+
+    private int getDestinationRank(IbisIdentifier destination) throws NoSuchDestinationException {
+
+        Integer result = ranks.get(destination);
+
+        if (result == null) {
+            throw new NoSuchDestinationException(destination + " is not a participant of channel " + name);
+        }
+
+        return result;
+    }
 }
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.ibis;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.ChannelMXBean;
+import nl.junglecomputing.pidgin.ChannelStatistics;
+import nl.junglecomputing.pidgin.PeerStatistics;
+import nl.junglecomputing.pidgin.impl.message.ForwardingReadMessage;
+import nl.junglecomputing.pidgin.impl.message.ForwardingWriteMessage;
+
+/**
+ * Collects the per-peer statistics of a {@link ChannelImpl}. Messages the channel finishes itself are counted where it finishes them, using
+ * the bytes reported by the transport. Only messages that are finished by the application are wrapped, as the channel does not see them being
+ * finished otherwise. All counters are {@link LongAdder}s, so concurrent senders and receivers do not contend on a lock or a shared cache line.
+ */
+final class ChannelMetrics implements ChannelMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChannelMetrics.class);
+
+    private static final class Peer {
+        final LongAdder sentMessages = new LongAdder();
+        final LongAdder sentBytes = new LongAdder();
+        final LongAdder abortedMessages = new LongAdder();
+        final LongAdder receivedMessages = new LongAdder();
+        final LongAdder receivedBytes = new LongAdder();
+        final LongAdder handlerTime = new LongAdder();
+        volatile long connectTime;
+    }
+
+    /**
+     * Counts a message the application sends when it is finished.
+     */
+    private static final class MeteredWriteMessage extends ForwardingWriteMessage {
+
+        private final Peer peer;
+
+        MeteredWriteMessage(WriteMessage delegate, Peer peer) {
+            super(delegate);
+            this.peer = peer;
+        }
+
+        @Override
+        public long finish() throws IOException {
+
+            long bytes = delegate.finish();
+
+            peer.sentMessages.increment();
+            peer.sentBytes.add(bytes);
+            return bytes;
+        }
+
+        @Override
+        public void finish(IOException e) {
+            delegate.finish(e);
+            peer.abortedMessages.increment();
+        }
+    }
+
+    /**
+     * Counts a message the application receives when it is finished.
+     */
+    private static final class MeteredReadMessage extends ForwardingReadMessage {
+
+        private final Peer peer;
+
+        private boolean finished = false;
+
+        MeteredReadMessage(ReadMessage delegate, Peer peer) {
+            super(delegate);
+            this.peer = peer;
+        }
+
+        @Override
+        public long finish() throws IOException {
+
+            long bytes = delegate.finish();
+            finished = true;
+
+            peer.receivedMessages.increment();
+            peer.receivedBytes.add(bytes);
+            return bytes;
+        }
+
+        @Override
+        public void finish(IOException e) {
+            finished = true;
+            delegate.finish(e);
+        }
+    }
+
+    private final ChannelImpl channel;
+
+    private final String poolName;
+
+    private final Peer[] peers;
+
+    private ObjectName objectName;
+
+    ChannelMetrics(ChannelImpl channel, String poolName, int size) {
+        this.channel = channel;
+        this.poolName = poolName;
+
+        peers = new Peer[size];
+
+        for (int i = 0; i < size; i++) {
+            peers[i] = new Peer();
+        }
+    }
+
+    /**
+     * Wraps a message to the given rank that is finished by the application.
+     */
+    WriteMessage wrap(WriteMessage wm, int rank) {
+        return new MeteredWriteMessage(wm, peers[rank]);
+    }
+
+    /**
+     * Wraps a message from the given rank returned by an explicit receive. Messages from unknown senders are not counted.
+     */
+    ReadMessage wrap(ReadMessage rm, int rank) {
+        return rank < 0 ? rm : new MeteredReadMessage(rm, peers[rank]);
+    }
+
+    /**
+     * Wraps an upcall that gets messages finished by the application. The source is the rank of the only sender whose messages the upcall gets,
+     * or -1 if it gets the messages of several senders, in which case the sender of each message is looked up. A message that is not finished by
+     * the upcall is finished when it returns, as Ibis would do.
+     */
+    MessageUpcall wrap(final MessageUpcall upcall, final int source) {
+        return new MessageUpcall() {
+            @Override
+            public void upcall(ReadMessage rm) throws IOException, ClassNotFoundException {
+
+                int rank = source >= 0 ? source : channel.getRank(rm.origin().ibisIdentifier());
+
+                if (rank < 0) {
+                    upcall.upcall(rm);
+                    return;
+                }
+
+                MeteredReadMessage m = new MeteredReadMessage(rm, peers[rank]);
+
+                upcall.upcall(m);
+
+                if (!m.finished) {
+                    m.finish();
+                }
+            }
+        };
+    }
+
+    /**
+     * Counts a message to the given rank that the channel finished itself.
+     */
+    void sent(int rank, long bytes) {
+        Peer peer = peers[rank];
+        peer.sentMessages.increment();
+        peer.sentBytes.add(bytes);
+    }
+
+    /**
+     * Counts a message from the given rank that the channel finished itself. Messages from unknown senders are not counted.
+     */
+    void received(int rank, long bytes) {
+        if (rank >= 0 && rank < peers.length) {
+            Peer peer = peers[rank];
+            peer.receivedMessages.increment();
+            peer.receivedBytes.add(bytes);
+        }
+    }
+
+    void connected(int rank, long time) {
+        peers[rank].connectTime = time;
+    }
+
+    void handled(int rank, long time) {
+        if (rank >= 0 && rank < peers.length) {
+            peers[rank].handlerTime.add(time);
+        }
+    }
+
+    /**
+     * Registers this channel with the platform MBean server. Failures are logged, as they should not prevent the channel from being used.
+     */
+    synchronized void register() {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("nl.junglecomputing.pidgin:type=Channel,pool=" + ObjectName.quote(poolName) + ",name="
+                    + ObjectName.quote(channel.getName()) + ",rank=" + channel.getRank());
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            logger.warn("Failed to register MXBean of channel " + channel.getName(), e);
+            objectName = null;
+        }
+    }
+
+    synchronized void unregister() {
+
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            logger.warn("Failed to unregister MXBean of channel " + channel.getName(), e);
+        }
+
+        objectName = null;
+    }
+
+    @Override
+    public String getName() {
+        return channel.getName();
+    }
+
+    @Override
+    public int getRank() {
+        return channel.getRank();
+    }
+
+    @Override
+    public int getSize() {
+        return peers.length;
+    }
+
+    @Override
+    public long getSentMessages() {
+
+        long result = 0;
+
+        for (Peer p : peers) {
+            result += p.sentMessages.sum();
+        }
+
+        return result;
+    }
+
+    @Override
+    public long getSentBytes() {
+
+        long result = 0;
+
+        for (Peer p : peers) {
+            result += p.sentBytes.sum();
+        }
+
+        return result;
+    }
+
+    @Override
+    public long getAbortedMessages() {
+
+        long result = 0;
+
+        for (Peer p : peers) {
+            result += p.abortedMessages.sum();
+        }
+
+        return result;
+    }
+
+    @Override
+    public long getReceivedMessages() {
+
+        long result = 0;
+
+        for (Peer p : peers) {
+            result += p.receivedMessages.sum();
+        }
+
+        return result;
+    }
+
+    @Override
+    public long getReceivedBytes() {
+
+        long result = 0;
+
+        for (Peer p : peers) {
+            result += p.receivedBytes.sum();
+        }
+
+        return result;
+    }
+
+    @Override
+    public long getConnectTime() {
+
+        long result = 0;
+
+        for (Peer p : peers) {
+            result += p.connectTime;
+        }
+
+        return result;
+    }
+
+    @Override
+    public long getHandlerTime() {
+
+        long result = 0;
+
+        for (Peer p : peers) {
+            result += p.handlerTime.sum();
+        }
+
+        return result;
+    }
+
+    @Override
+    public PeerStatistics[] getPeers() {
+
+        PeerStatistics[] result = new PeerStatistics[peers.length];
+
+        for (int i = 0; i < peers.length; i++) {
+            Peer p = peers[i];
+            result[i] = new PeerStatistics(i, p.sentMessages.sum(), p.sentBytes.sum(), p.abortedMessages.sum(), p.receivedMessages.sum(),
+                    p.receivedBytes.sum(), p.connectTime, p.handlerTime.sum());
+        }
+
+        return result;
+    }
+
+    ChannelStatistics getStatistics() {
+        return new ChannelStatistics(channel.getName(), getPeers());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.ibis;
+
+import java.io.IOException;
+
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.impl.message.ForwardingReadMessage;
+import nl.junglecomputing.pidgin.impl.message.ForwardingWriteMessage;
+import nl.junglecomputing.pidgin.impl.trace.Tracer;
+
+/**
+ * Records the wire messages of a {@link ChannelImpl} with the {@link Tracer}. The channel only wraps a message while tracing is enabled, so the
+ * event at its end is recorded when it is finished. Otherwise messages are passed through unchanged. The channel is registered with the
+ * tracer when it records its first event.
+ */
+final class ChannelTracer {
+
+    private static final byte NO_OPCODE = -1;
+
+    private final class TracedWriteMessage extends ForwardingWriteMessage {
+
+        private final int rank;
+
+        TracedWriteMessage(WriteMessage delegate, int rank) {
+            super(delegate);
+            this.rank = rank;
+        }
+
+        @Override
+        public long finish() throws IOException {
+
+            long bytes = 0;
+
+            try {
+                bytes = delegate.finish();
+                return bytes;
+            } finally {
+                Tracer.record(Tracer.SEND_END, getId(), rank, NO_OPCODE, bytes);
+            }
+        }
+
+        @Override
+        public void finish(IOException e) {
+            delegate.finish(e);
+            Tracer.record(Tracer.SEND_END, getId(), rank, NO_OPCODE, 0);
+        }
+    }
+
+    private final class TracedReadMessage extends ForwardingReadMessage {
+
+        private final int rank;
+
+        private boolean finished = false;
+
+        TracedReadMessage(ReadMessage delegate, int rank) {
+            super(delegate);
+            this.rank = rank;
+        }
+
+        @Override
+        public long finish() throws IOException {
+
+            long bytes = 0;
+
+            try {
+                bytes = delegate.finish();
+                return bytes;
+            } finally {
+                finished = true;
+                Tracer.record(Tracer.RECEIVE_END, getId(), rank, NO_OPCODE, bytes);
+            }
+        }
+
+        @Override
+        public void finish(IOException e) {
+            finished = true;
+            delegate.finish(e);
+            Tracer.record(Tracer.RECEIVE_END, getId(), rank, NO_OPCODE, 0);
+        }
+    }
+
+    private final ChannelImpl channel;
+
+    // Registering is idempotent, so threads that race to set the id all set the same value.
+    private int id = -1;
+
+    ChannelTracer(ChannelImpl channel) {
+        this.channel = channel;
+    }
+
+    int getId() {
+
+        int result = id;
+
+        if (result < 0) {
+            result = Tracer.register(channel.getName() + " rank " + channel.getRank());
+            id = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Wraps a message to the given rank. Only called while tracing is enabled.
+     */
+    WriteMessage wrap(WriteMessage wm, int rank) {
+        Tracer.record(Tracer.SEND_START, getId(), rank, NO_OPCODE, 0);
+        return new TracedWriteMessage(wm, rank);
+    }
+
+    private TracedReadMessage start(ReadMessage rm, int rank) {
+        Tracer.record(Tracer.RECEIVE_START, getId(), rank, NO_OPCODE, 0);
+        return new TracedReadMessage(rm, rank);
+    }
+
+    /**
+     * Wraps a message from the given rank returned by an explicit receive. Only called while tracing is enabled.
+     */
+    ReadMessage wrap(ReadMessage rm, int rank) {
+        return start(rm, rank);
+    }
+
+    /**
+     * Wraps an upcall, so each message it gets is recorded from the start of the upcall until it is finished. The source is the rank of the
+     * only sender whose messages the upcall gets, or -1 if the sender of each message must be looked up. A message that is not finished by the
+     * upcall is finished when it returns, as Ibis would do. If the upcall throws, the end of the message is recorded all the same.
+     */
+    MessageUpcall wrap(final MessageUpcall upcall, final int source) {
+        return new MessageUpcall() {
+            @Override
+            public void upcall(ReadMessage rm) throws IOException, ClassNotFoundException {
+
+                if (!Tracer.isEnabled()) {
+                    upcall.upcall(rm);
+                    return;
+                }
+
+                TracedReadMessage m = start(rm, source >= 0 ? source : channel.getRank(rm.origin().ibisIdentifier()));
+
+                try {
+                    upcall.upcall(m);
+                } catch (Throwable e) {
+                    // The message is left to Ibis, which finishes it when the upcall throws.
+                    if (!m.finished) {
+                        Tracer.record(Tracer.RECEIVE_END, getId(), m.rank, NO_OPCODE, 0);
+                    }
+                    throw e;
+                }
+
+                if (!m.finished) {
+                    m.finish();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.ibis;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.junglecomputing.pidgin.DispatchStatistics;
+
+/**
+ * Hands received messages to the upcall of an {@link UpcallChannelImpl}. Without an executor, messages are delivered on the receive thread.
+ * With an executor, delivery is done by the executor, optionally keeping the messages of each sender in FIFO order.
+ */
+final class Dispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(Dispatcher.class);
+
+    /**
+     * Runs the deliveries of a single sender one at a time, in order, on the executor.
+     */
+    private final class SerialQueue implements Runnable {
+
+        final int sender;
+        final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        SerialQueue(int sender) {
+            this.sender = sender;
+        }
+
+        void add(Runnable delivery) {
+            queue.add(delivery);
+            schedule();
+        }
+
+        void schedule() {
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The queue is still marked as scheduled, so no other thread delivers from it while this one does.
+                    rejected(e);
+                    run();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+
+            Runnable delivery;
+
+            while ((delivery = queue.poll()) != null) {
+                deliver(sender, delivery);
+            }
+
+            scheduled.set(false);
+
+            // A delivery may have been added after our last poll.
+            schedule();
+        }
+    }
+
+    private final Executor executor;
+
+    private final SerialQueue[] queues;
+
+    private final AtomicLong queued = new AtomicLong();
+
+    private final LongAdder delivered = new LongAdder();
+
+    private final LongAdder handlerTime = new LongAdder();
+
+    // Records the handler time per sender, or null if statistics are disabled.
+    private final ChannelMetrics metrics;
+
+    Dispatcher(Executor executor, boolean ordered, int senders, ChannelMetrics metrics) {
+        this.executor = executor;
+        this.metrics = metrics;
+
+        if (executor != null && ordered) {
+            queues = new SerialQueue[senders];
+
+            for (int i = 0; i < senders; i++) {
+                queues[i] = new SerialQueue(i);
+            }
+        } else {
+            queues = null;
+        }
+    }
+
+    /**
+     * Delivers a message from the sender with the given rank.
+     */
+    void dispatch(final int sender, final Runnable delivery) {
+
+        if (executor == null) {
+            deliver(sender, delivery);
+            return;
+        }
+
+        queued.incrementAndGet();
+
+        if (queues != null && sender >= 0 && sender < queues.length) {
+            queues[sender].add(delivery);
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(sender, delivery);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected(e);
+            deliver(sender, delivery);
+        }
+    }
+
+    /**
+     * Called when the executor rejects a delivery, for instance because it has been shut down. The delivery then runs on the receive thread,
+     * so the message is not lost and its buffers and credits are released.
+     */
+    private void rejected(RejectedExecutionException e) {
+        logger.warn("Executor rejected a delivery, delivering on the receive thread instead", e);
+    }
+
+    /**
+     * Returns <code>true</code> if deliveries run on the thread that dispatches them.
+     */
+    boolean isInline() {
+        return executor == null;
+    }
+
+    private void deliver(int sender, Runnable delivery) {
+
+        if (executor != null) {
+            queued.decrementAndGet();
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            delivery.run();
+        } catch (RuntimeException | Error e) {
+            if (executor == null) {
+                // On the receive thread the exception is passed on to Ibis, as before.
+                throw e;
+            }
+            logger.error("Upcall failed", e);
+        } finally {
+            long time = System.nanoTime() - start;
+
+            handlerTime.add(time);
+            delivered.increment();
+
+            if (metrics != null) {
+                metrics.handled(sender, time);
+            }
+        }
+    }
+
+    DispatchStatistics getStatistics() {
+        return new DispatchStatistics(queued.get(), delivered.sum(), handlerTime.sum());
+    }
+}
@@ -23,18 +23,43 @@ import ibis.ipl.IbisIdentifier;
 import ibis.ipl.PortType;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.ReceivePort;
+import nl.junglecomputing.pidgin.ChannelOptions;
 import nl.junglecomputing.pidgin.ExplicitChannel;
 import nl.junglecomputing.pidgin.NoSuchSourceException;
+import nl.junglecomputing.pidgin.impl.local.LocalNode;
 
+/**
+ * An {@link ExplicitChannel}. The receive ports and other receivers hand every message to a single {@link ReadyQueue}, on which all receives
+ * block, whatever the receive mode and the sources they accept.
+ */
 public class ExplicitChannelImpl extends ChannelImpl implements ExplicitChannel {
 
-    public ExplicitChannelImpl(Ibis ibis, String name, IbisIdentifier[] ids) throws IOException {
-        super(ibis, name, ids);
+    public ExplicitChannelImpl(Ibis ibis, String name, IbisIdentifier[] ids, ChannelOptions options) throws IOException {
+        super(ibis, name, ids, options);
+    }
+
+    public ExplicitChannelImpl(LocalNode node, String name, IbisIdentifier[] ids, ChannelOptions options) throws IOException {
+        super(node, name, ids, options);
     }
 
     @Override
     public void activate() throws IOException {
-        setActive(true);
+
+        boolean wasActive = setActive(true);
+
+        if (wasActive) {
+            return;
+        }
+
+        for (ReceivePort rport : rports) {
+            if (rport != null) {
+                rport.enableMessageUpcalls();
+            }
+        }
+
+        startReceiveThreads();
+
+        connectOnActivate();
     }
 
     @Override
@@ -42,20 +67,86 @@ public class ExplicitChannelImpl extends ChannelImpl implements ExplicitChannel
         return name + "_EX_" + id.name();
     }
 
+    @Override
+    protected String getManyToOneReceivePortName() {
+        return name + "_EX";
+    }
+
     @Override
     protected PortType getPortType() {
-        return PidginImpl.portTypeOneToOneExplicit;
+        return PidginImpl.getUpcallPortType(options.getSerialization(), isManyToOne());
+    }
+
+    private int getSourceRank(IbisIdentifier source) throws NoSuchSourceException {
+
+        int rank = getRank(source);
+
+        if (rank < 0) {
+            throw new NoSuchSourceException("No such source: " + source);
+        }
+
+        return rank;
+    }
+
+    private void checkSource(int rank) throws NoSuchSourceException {
+        if (rank < 0 || rank >= getSize()) {
+            throw new NoSuchSourceException("No such source: rank " + rank);
+        }
     }
 
     @Override
     public ReadMessage receiveMessage(IbisIdentifier source, long timeout) throws IOException {
+        return received(ready.receive(getSourceRank(source), null, timeout));
+    }
+
+    @Override
+    public ReadMessage receiveMessage(int rank, long timeout) throws IOException {
 
-        ReceivePort rp = receiveports.get(source);
+        checkSource(rank);
 
-        if (rp == null) {
-            throw new NoSuchSourceException("No such source: " + source);
+        return received(ready.receive(rank, null, timeout));
+    }
+
+    @Override
+    public ReadMessage receiveAny(long timeout) throws IOException {
+        return received(ready.receive(-1, null, timeout));
+    }
+
+    @Override
+    public ReadMessage receiveAny(IbisIdentifier[] sources, long timeout) throws IOException {
+
+        if (sources.length == 0) {
+            throw new IllegalArgumentException("Channel " + name + " cannot receive from an empty set of sources");
+        }
+
+        if (sources.length == 1) {
+            return receiveMessage(sources[0], timeout);
         }
 
-        return rp.receive(timeout);
+        boolean[] mask = new boolean[getSize()];
+
+        for (IbisIdentifier source : sources) {
+            mask[getSourceRank(source)] = true;
+        }
+
+        return received(ready.receive(-1, mask, timeout));
+    }
+
+    @Override
+    public ReadMessage poll(IbisIdentifier source) throws IOException {
+        return received(ready.poll(getSourceRank(source), null));
+    }
+
+    @Override
+    public ReadMessage poll(int rank) throws IOException {
+
+        checkSource(rank);
+
+        return received(ready.poll(rank, null));
+    }
+
+    @Override
+    public ReadMessage pollAny() throws IOException {
+        return received(ready.poll(-1, null));
     }
 }
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.ibis;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.ChannelNotActiveException;
+import nl.junglecomputing.pidgin.ChannelOptions;
+import nl.junglecomputing.pidgin.FlowControlPolicy;
+import nl.junglecomputing.pidgin.FlowControlStatistics;
+import nl.junglecomputing.pidgin.NoCreditsException;
+import nl.junglecomputing.pidgin.Serialization;
+import nl.junglecomputing.pidgin.impl.message.ForwardingReadMessage;
+
+/**
+ * Credit-based flow control for a {@link MessageUpcallChannelImpl}. Every wire message starts with a header containing its kind and the
+ * credits the sender returns to the receiver. Credits are returned by the receiver once a message has been handled, either piggybacked on the
+ * next message to the sender, or in a separate credit message once half the window has been used. A sender that runs out of credits asks the
+ * receiver to return its pending credits immediately.
+ */
+final class FlowControl {
+
+    private static final Logger logger = LoggerFactory.getLogger(FlowControl.class);
+
+    private static final byte KIND_DATA = 0;
+    private static final byte KIND_CREDIT = 1;
+    private static final byte KIND_REQUEST = 2;
+
+    /**
+     * Remembers whether the upcall finished the message, and its size, so it can be counted in the statistics.
+     */
+    private static final class HandledReadMessage extends ForwardingReadMessage {
+
+        boolean finished = false;
+
+        long bytes = -1;
+
+        HandledReadMessage(ReadMessage delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public long finish() throws IOException {
+            bytes = delegate.finish();
+            finished = true;
+            return bytes;
+        }
+
+        @Override
+        public void finish(IOException e) {
+            finished = true;
+            delegate.finish(e);
+        }
+    }
+
+    private static final class Peer {
+
+        // Sender side, guarded by this. The number of credit grants received is used to detect that waiting is worthwhile again.
+        long outMessages;
+        long outBytes;
+        long grants;
+
+        final LongAdder stalls = new LongAdder();
+        final LongAdder stallTime = new LongAdder();
+
+        // Receiver side: the credits that have been freed, but not yet returned to the sender.
+        final AtomicLong returnMessages = new AtomicLong();
+        final AtomicLong returnBytes = new AtomicLong();
+        volatile boolean requested;
+    }
+
+    private final String name;
+
+    private final int maxMessages;
+
+    private final long maxBytes;
+
+    private final long messageThreshold;
+
+    private final long byteThreshold;
+
+    private final FlowControlPolicy policy;
+
+    private final Peer[] peers;
+
+    private MessageUpcallChannelImpl channel;
+
+    private volatile boolean closed = false;
+
+    FlowControl(String name, ChannelOptions options, int size) {
+
+        if (options.getSerialization() == Serialization.BYTE) {
+            throw new IllegalArgumentException("Flow control of channel " + name + " requires " + Serialization.OBJECT + " or "
+                    + Serialization.DATA + " serialization, as its header holds longs");
+        }
+
+        this.name = name;
+        this.maxMessages = options.getCreditMessages();
+        this.maxBytes = options.getCreditBytes();
+        this.policy = options.getFlowControlPolicy();
+
+        // Zero means the window is not limited, so those credits never trigger a credit message.
+        this.messageThreshold = maxMessages > 0 ? Math.max(1, maxMessages / 2) : Long.MAX_VALUE;
+        this.byteThreshold = maxBytes > 0 ? Math.max(1, maxBytes / 2) : Long.MAX_VALUE;
+
+        peers = new Peer[size];
+
+        for (int i = 0; i < size; i++) {
+            peers[i] = new Peer();
+        }
+    }
+
+    void setChannel(MessageUpcallChannelImpl channel) {
+        this.channel = channel;
+    }
+
+    void open() {
+        closed = false;
+    }
+
+    /**
+     * Wakes up all senders waiting for credits. They will fail with a {@link ChannelNotActiveException}.
+     */
+    void close() {
+
+        closed = true;
+
+        for (Peer p : peers) {
+            synchronized (p) {
+                p.notifyAll();
+            }
+        }
+    }
+
+    private boolean tryTake(Peer p, long bytes) {
+
+        if (maxMessages > 0 && p.outMessages >= maxMessages) {
+            return false;
+        }
+
+        // A message larger than the window is let through when nothing else is in flight.
+        if (maxBytes > 0 && p.outBytes > 0 && p.outBytes + bytes > maxBytes) {
+            return false;
+        }
+
+        p.outMessages++;
+        p.outBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Takes the credits for one message of the given size to the given rank. When no credits are left, beforeStall is run first, to send any
+     * messages for which credits have already been taken.
+     */
+    void acquire(int rank, long bytes, Flushable beforeStall) throws IOException {
+
+        // Messages to self never leave this node, so they are not flow controlled.
+        if (rank == channel.getRank()) {
+            return;
+        }
+
+        Peer p = peers[rank];
+
+        synchronized (p) {
+            if (tryTake(p, bytes)) {
+                return;
+            }
+        }
+
+        p.stalls.increment();
+
+        if (beforeStall != null) {
+            beforeStall.flush();
+        }
+
+        if (policy == FlowControlPolicy.FAIL) {
+            sendRequest(rank);
+            throw new NoCreditsException("No credits left to send " + bytes + " bytes to rank " + rank + " of channel " + name);
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            while (true) {
+
+                long grants;
+
+                synchronized (p) {
+                    if (tryTake(p, bytes)) {
+                        return;
+                    }
+
+                    grants = p.grants;
+                }
+
+                sendRequest(rank);
+
+                synchronized (p) {
+                    while (p.grants == grants && !closed) {
+                        p.wait();
+                    }
+                }
+
+                if (closed) {
+                    throw new ChannelNotActiveException("Channel " + name + " deactivated while waiting for credits from rank " + rank);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for credits from rank " + rank + " of channel " + name);
+        } finally {
+            p.stallTime.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Gives back the credits taken by {@link #acquire(int, long, Flushable)} for a message that was not sent.
+     */
+    void cancel(int rank, long bytes) {
+
+        if (rank == channel.getRank()) {
+            return;
+        }
+
+        grant(rank, 1, bytes);
+    }
+
+    /**
+     * Writes the header of a data message, returning any pending credits to the destination.
+     */
+    void writeHeader(WriteMessage wm, int rank) throws IOException {
+        Peer p = peers[rank];
+        writeHeader(wm, KIND_DATA, p.returnMessages.getAndSet(0), p.returnBytes.getAndSet(0));
+    }
+
+    private static void writeHeader(WriteMessage wm, byte kind, long messages, long bytes) throws IOException {
+        wm.writeByte(kind);
+        wm.writeLong(messages);
+        wm.writeLong(bytes);
+    }
+
+    /**
+     * Frees the credits of a message received from the given rank, once it has been handled.
+     */
+    void release(int rank, long bytes) {
+
+        if (rank == channel.getRank()) {
+            return;
+        }
+
+        Peer p = peers[rank];
+
+        long messages = p.returnMessages.incrementAndGet();
+        long total = p.returnBytes.addAndGet(bytes);
+
+        if (p.requested || messages >= messageThreshold || total >= byteThreshold) {
+            sendCredits(rank);
+        }
+    }
+
+    private void sendCredits(int rank) {
+
+        Peer p = peers[rank];
+
+        p.requested = false;
+
+        long messages = p.returnMessages.getAndSet(0);
+        long bytes = p.returnBytes.getAndSet(0);
+
+        if (messages == 0 && bytes == 0) {
+            return;
+        }
+
+        try {
+            WriteMessage wm = channel.newControlMessage(rank);
+            writeHeader(wm, KIND_CREDIT, messages, bytes);
+            channel.sent(rank, wm.finish());
+        } catch (IOException e) {
+            // Keep the credits, so they can be returned with a later message.
+            p.returnMessages.addAndGet(messages);
+            p.returnBytes.addAndGet(bytes);
+            logger.warn("Channel " + name + " failed to return credits to rank " + rank, e);
+        }
+    }
+
+    private void sendRequest(int rank) {
+        try {
+            WriteMessage wm = channel.newControlMessage(rank);
+            writeHeader(wm, KIND_REQUEST, 0, 0);
+            channel.sent(rank, wm.finish());
+        } catch (IOException e) {
+            logger.warn("Channel " + name + " failed to request credits from rank " + rank, e);
+        }
+    }
+
+    private void grant(int rank, long messages, long bytes) {
+
+        Peer p = peers[rank];
+
+        synchronized (p) {
+            p.outMessages -= messages;
+            p.outBytes -= bytes;
+            p.grants++;
+            p.notifyAll();
+        }
+    }
+
+    /**
+     * Reads the header of a message. Returns <code>true</code> if the message carries data for the upcall. Otherwise the message has been
+     * handled and finished.
+     */
+    boolean readHeader(ReadMessage rm, int rank) throws IOException {
+
+        byte kind = rm.readByte();
+        long messages = rm.readLong();
+        long bytes = rm.readLong();
+
+        if (rank < 0) {
+            throw new IOException("Channel " + name + " received a message from unknown sender " + rm.origin().ibisIdentifier());
+        }
+
+        if (messages != 0 || bytes != 0) {
+            grant(rank, messages, bytes);
+        }
+
+        switch (kind) {
+        case KIND_DATA:
+            return true;
+        case KIND_CREDIT:
+            channel.received(rank, rm.finish());
+            return false;
+        case KIND_REQUEST:
+            channel.received(rank, rm.finish());
+
+            Peer p = peers[rank];
+            p.requested = true;
+
+            // A release may have missed the request, so return what is pending now.
+            if (p.returnMessages.get() > 0 || p.returnBytes.get() > 0) {
+                sendCredits(rank);
+            }
+            return false;
+        default:
+            throw new IOException("Channel " + name + " received unknown flow control header " + kind + " from rank " + rank);
+        }
+    }
+
+    /**
+     * Wraps the upcall of a {@link MessageUpcallChannelImpl}, so the credits of a message are freed, and the message is counted in the
+     * statistics, when the upcall returns.
+     *
+     * Returning the credits may send a message, which can block until the peer reads the messages sent to it. A message the upcall did not
+     * finish is therefore finished first, as Ibis would do when the upcall returns, so the receive port can read the next message meanwhile.
+     */
+    MessageUpcall wrap(final MessageUpcall upcall, final boolean release) {
+        return new MessageUpcall() {
+            @Override
+            public void upcall(ReadMessage rm) throws IOException, ClassNotFoundException {
+
+                IbisIdentifier source = rm.origin().ibisIdentifier();
+                int rank = channel.getRank(source);
+
+                if (!readHeader(rm, rank)) {
+                    return;
+                }
+
+                if (!release) {
+                    upcall.upcall(rm);
+                    return;
+                }
+
+                HandledReadMessage m = new HandledReadMessage(rm);
+
+                try {
+                    upcall.upcall(m);
+                } catch (Throwable e) {
+                    if (!m.finished) {
+                        m.finish(e instanceof IOException ? (IOException) e : new IOException("Upcall of channel " + name + " failed", e));
+                    }
+
+                    release(rank, 0);
+                    throw e;
+                }
+
+                try {
+                    if (!m.finished) {
+                        m.finish();
+                    }
+
+                    if (m.bytes >= 0) {
+                        channel.received(rank, m.bytes);
+                    }
+                } finally {
+                    release(rank, 0);
+                }
+            }
+        };
+    }
+
+    FlowControlStatistics getStatistics() {
+
+        long[] messages = new long[peers.length];
+        long[] bytes = new long[peers.length];
+        long[] stalls = new long[peers.length];
+        long[] stallTime = new long[peers.length];
+
+        for (int i = 0; i < peers.length; i++) {
+            Peer p = peers[i];
+
+            synchronized (p) {
+                messages[i] = p.outMessages;
+                bytes[i] = p.outBytes;
+            }
+
+            stalls[i] = p.stalls.sum();
+            stallTime[i] = p.stallTime.sum();
+        }
+
+        return new FlowControlStatistics(messages, bytes, stalls, stallTime);
+    }
+}
@@ -16,18 +16,54 @@
  */
 package nl.junglecomputing.pidgin.impl.ibis;
 
+import java.io.Flushable;
 import java.io.IOException;
 
 import ibis.ipl.Ibis;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.MessageUpcall;
 import ibis.ipl.PortType;
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.ChannelNotActiveException;
+import nl.junglecomputing.pidgin.ChannelOptions;
+import nl.junglecomputing.pidgin.FlowControlStatistics;
 import nl.junglecomputing.pidgin.MessageUpcallChannel;
+import nl.junglecomputing.pidgin.NoSuchDestinationException;
+import nl.junglecomputing.pidgin.impl.local.LocalNode;
 
 public class MessageUpcallChannelImpl extends ChannelImpl implements MessageUpcallChannel {
 
-    public MessageUpcallChannelImpl(Ibis ibis, String name, MessageUpcall upcall, IbisIdentifier[] ids) throws IOException {
-        super(ibis, name, ids, upcall);
+    // Null if flow control is disabled.
+    private final FlowControl flow;
+
+    public MessageUpcallChannelImpl(Ibis ibis, String name, MessageUpcall upcall, IbisIdentifier[] ids, ChannelOptions options) throws IOException {
+        this(ibis, null, name, upcall, ids, options, true);
+    }
+
+    public MessageUpcallChannelImpl(LocalNode node, String name, MessageUpcall upcall, IbisIdentifier[] ids, ChannelOptions options)
+            throws IOException {
+        this(null, node, name, upcall, ids, options, true);
+    }
+
+    /**
+     * @param release
+     *            if the credits of a message are freed and the message is counted in the statistics when the upcall returns. Otherwise the owner
+     *            of the upcall must call {@link #releaseCredits(int, long)} and count the messages it finishes.
+     */
+    MessageUpcallChannelImpl(Ibis ibis, LocalNode node, String name, MessageUpcall upcall, IbisIdentifier[] ids, ChannelOptions options,
+            boolean release) throws IOException {
+        this(ibis, node, name, upcall, ids, options, options.hasFlowControl() ? new FlowControl(name, options, ids.length) : null, release);
+    }
+
+    private MessageUpcallChannelImpl(Ibis ibis, LocalNode node, String name, MessageUpcall upcall, IbisIdentifier[] ids, ChannelOptions options,
+            FlowControl flow, boolean release) throws IOException {
+        // With flow control, the messages are finished and counted by the flow control upcall, which already tracks them.
+        super(ibis, node, name, ids, options, flow == null ? upcall : flow.wrap(upcall, release), flow == null && release);
+        this.flow = flow;
+
+        if (flow != null) {
+            flow.setChannel(this);
+        }
     }
 
     @Override
@@ -39,11 +75,108 @@ public class MessageUpcallChannelImpl extends ChannelImpl implements MessageUpca
             return;
         }
 
+        if (flow != null) {
+            flow.open();
+        }
+
         for (int i = 0; i < rports.length; i++) {
             if (rports[i] != null) {
                 rports[i].enableMessageUpcalls();
             }
         }
+
+        startReceiveThreads();
+
+        connectOnActivate();
+    }
+
+    @Override
+    public void deactivate() throws IOException {
+
+        if (flow != null) {
+            flow.close();
+        }
+
+        super.deactivate();
+    }
+
+    @Override
+    public WriteMessage sendMessage(int rank) throws IOException {
+
+        acquireCredits(rank, 0, null);
+
+        try {
+            return metered(newMessage(rank), rank);
+        } catch (IOException | RuntimeException e) {
+            cancelCredits(rank, 0);
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the credits for a message to the given rank with the given payload size. If there are no credits left, beforeStall is flushed before
+     * waiting, as it may hold messages whose credits were already taken.
+     */
+    void acquireCredits(int rank, long bytes, Flushable beforeStall) throws IOException {
+
+        if (flow == null) {
+            return;
+        }
+
+        if (!isActive()) {
+            throw new ChannelNotActiveException("Cannot send message, channel " + name + " not active");
+        }
+
+        if (rank < 0 || rank >= getSize()) {
+            throw new NoSuchDestinationException("Rank " + rank + " is not a participant of channel " + name);
+        }
+
+        flow.acquire(rank, bytes, beforeStall);
+    }
+
+    /**
+     * Gives back the credits taken for a message to the given rank that could not be sent.
+     */
+    void cancelCredits(int rank, long bytes) {
+        if (flow != null && rank >= 0 && rank < getSize()) {
+            flow.cancel(rank, bytes);
+        }
+    }
+
+    /**
+     * Starts a new message to the given rank without taking any credits. It is not counted in the statistics until it is passed to
+     * {@link #sent(int, long)}.
+     */
+    WriteMessage newMessage(int rank) throws IOException {
+
+        WriteMessage wm = startMessage(rank);
+
+        if (flow != null) {
+            flow.writeHeader(wm, rank);
+        }
+
+        return wm;
+    }
+
+    /**
+     * Starts a flow control message to the given rank. Unlike {@link #newMessage(int)}, no header is written, as the caller writes its own.
+     */
+    WriteMessage newControlMessage(int rank) throws IOException {
+        return startMessage(rank);
+    }
+
+    /**
+     * Frees the credits of a message from the given rank once it has been handled.
+     */
+    void releaseCredits(int rank, long bytes) {
+        if (flow != null && rank >= 0) {
+            flow.release(rank, bytes);
+        }
+    }
+
+    @Override
+    public FlowControlStatistics getFlowControlStatistics() {
+        return flow == null ? null : flow.getStatistics();
     }
 
     @Override
@@ -51,8 +184,13 @@ public class MessageUpcallChannelImpl extends ChannelImpl implements MessageUpca
         return name + "_MUC_" + id.name();
     }
 
+    @Override
+    protected String getManyToOneReceivePortName() {
+        return name + "_MUC";
+    }
+
     @Override
     protected PortType getPortType() {
-        return PidginImpl.portTypeOneToOneUpcall;
+        return PidginImpl.getUpcallPortType(options.getSerialization(), isManyToOne());
     }
 }
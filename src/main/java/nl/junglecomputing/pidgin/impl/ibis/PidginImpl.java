@@ -17,6 +17,9 @@
 package nl.junglecomputing.pidgin.impl.ibis;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Properties;
 
@@ -29,25 +32,29 @@ import ibis.ipl.IbisFactory;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.MessageUpcall;
 import ibis.ipl.PortType;
+import nl.junglecomputing.pidgin.ChannelOptions;
+import nl.junglecomputing.pidgin.CollectiveChannel;
 import nl.junglecomputing.pidgin.DuplicateChannelException;
 import nl.junglecomputing.pidgin.ExplicitChannel;
 import nl.junglecomputing.pidgin.MessageUpcallChannel;
 import nl.junglecomputing.pidgin.Pidgin;
+import nl.junglecomputing.pidgin.ReceiveMode;
+import nl.junglecomputing.pidgin.Serialization;
 import nl.junglecomputing.pidgin.Upcall;
 import nl.junglecomputing.pidgin.UpcallChannel;
+import nl.junglecomputing.pidgin.impl.collective.CollectiveChannelImpl;
+import nl.junglecomputing.pidgin.impl.collective.Split;
+import nl.junglecomputing.pidgin.impl.shm.HostIdentity;
 
 public class PidginImpl implements Pidgin {
 
     private static final Logger logger = LoggerFactory.getLogger(PidginImpl.class);
 
-    protected static final PortType portTypeManyToOneUpcall = new PortType(PortType.COMMUNICATION_FIFO, PortType.COMMUNICATION_RELIABLE,
-            PortType.SERIALIZATION_OBJECT, PortType.RECEIVE_AUTO_UPCALLS, PortType.RECEIVE_TIMEOUT, PortType.CONNECTION_MANY_TO_ONE);
+    // The port types are indexed by the ordinal of the Serialization they use. Explicit channels also receive through upcalls, which hand the
+    // messages over to a single queue.
+    private static final PortType[] portTypeManyToOneUpcall = createPortTypes(PortType.CONNECTION_MANY_TO_ONE, PortType.RECEIVE_AUTO_UPCALLS);
 
-    protected static final PortType portTypeOneToOneUpcall = new PortType(PortType.COMMUNICATION_FIFO, PortType.COMMUNICATION_RELIABLE,
-            PortType.SERIALIZATION_OBJECT, PortType.RECEIVE_AUTO_UPCALLS, PortType.RECEIVE_TIMEOUT, PortType.CONNECTION_ONE_TO_ONE);
-
-    protected static final PortType portTypeOneToOneExplicit = new PortType(PortType.COMMUNICATION_FIFO, PortType.COMMUNICATION_RELIABLE,
-            PortType.SERIALIZATION_OBJECT, PortType.RECEIVE_EXPLICIT, PortType.RECEIVE_TIMEOUT, PortType.RECEIVE_TIMEOUT, PortType.CONNECTION_ONE_TO_ONE);
+    private static final PortType[] portTypeOneToOneUpcall = createPortTypes(PortType.CONNECTION_ONE_TO_ONE, PortType.RECEIVE_AUTO_UPCALLS);
 
     private static final IbisCapabilities closedIbisCapabilities = new IbisCapabilities(IbisCapabilities.CLOSED_WORLD, IbisCapabilities.TERMINATION,
             IbisCapabilities.ELECTIONS_STRICT, IbisCapabilities.MEMBERSHIP_TOTALLY_ORDERED);
@@ -60,6 +67,9 @@ public class PidginImpl implements Pidgin {
 
     private final HashSet<String> channels = new HashSet<>();
 
+    // The number of splits done per tag.
+    private final HashMap<String, Integer> splits = new HashMap<>();
+
     private int rank = -1;
 
     private final boolean isMaster;
@@ -68,8 +78,8 @@ public class PidginImpl implements Pidgin {
 
     public PidginImpl(final Properties properties) throws Exception {
 
-        ibis = IbisFactory.createIbis(closedIbisCapabilities, properties, true, null, portTypeManyToOneUpcall, portTypeOneToOneUpcall,
-                portTypeOneToOneExplicit);
+        // The tag identifies the host, so channels can tell which peers they may reach through shared memory.
+        ibis = IbisFactory.createIbis(closedIbisCapabilities, properties, true, null, null, HostIdentity.get(), getAllPortTypes());
 
         ibis.registry().waitUntilPoolClosed();
         ids = ibis.registry().joinedIbises();
@@ -89,6 +99,53 @@ public class PidginImpl implements Pidgin {
         }
     }
 
+    private static PortType[] createPortTypes(String connection, String... receive) {
+
+        Serialization[] serializations = Serialization.values();
+
+        PortType[] result = new PortType[serializations.length];
+
+        for (Serialization s : serializations) {
+
+            ArrayList<String> capabilities = new ArrayList<>();
+            capabilities.add(PortType.COMMUNICATION_FIFO);
+            capabilities.add(PortType.COMMUNICATION_RELIABLE);
+            capabilities.add(getSerializationCapability(s));
+            capabilities.addAll(Arrays.asList(receive));
+            capabilities.add(PortType.RECEIVE_TIMEOUT);
+            capabilities.add(connection);
+
+            result[s.ordinal()] = new PortType(capabilities.toArray(new String[capabilities.size()]));
+        }
+
+        return result;
+    }
+
+    private static String getSerializationCapability(Serialization serialization) {
+        switch (serialization) {
+        case DATA:
+            return PortType.SERIALIZATION_DATA;
+        case BYTE:
+            return PortType.SERIALIZATION_BYTE;
+        default:
+            return PortType.SERIALIZATION_OBJECT;
+        }
+    }
+
+    private static PortType[] getAllPortTypes() {
+
+        ArrayList<PortType> result = new ArrayList<>();
+
+        result.addAll(Arrays.asList(portTypeManyToOneUpcall));
+        result.addAll(Arrays.asList(portTypeOneToOneUpcall));
+
+        return result.toArray(new PortType[result.size()]);
+    }
+
+    protected static PortType getUpcallPortType(Serialization serialization, boolean manyToOne) {
+        return manyToOne ? portTypeManyToOneUpcall[serialization.ordinal()] : portTypeOneToOneUpcall[serialization.ordinal()];
+    }
+
     @Override
     public Ibis getIbis() {
         return ibis;
@@ -166,35 +223,92 @@ public class PidginImpl implements Pidgin {
         }
     }
 
+    private final void releaseChannelName(String name) {
+        synchronized (channels) {
+            channels.remove(name);
+        }
+    }
+
     @Override
-    public UpcallChannel createUpcallChannel(String name, IbisIdentifier[] participants, Upcall upcall) throws DuplicateChannelException, IOException {
+    public UpcallChannel createUpcallChannel(String name, IbisIdentifier[] participants, Upcall upcall, ChannelOptions options)
+            throws DuplicateChannelException, IOException {
 
         logger.info("Creating UpcallChannel " + name);
 
         checkChannelName(name);
 
-        return new UpcallChannelImpl(ibis, name, upcall, ids);
+        try {
+            return new UpcallChannelImpl(ibis, name, upcall, participants, options);
+        } catch (IOException | RuntimeException e) {
+            releaseChannelName(name);
+            throw e;
+        }
     }
 
     @Override
-    public MessageUpcallChannel createMessageUpcallChannel(String name, IbisIdentifier[] praticipants, MessageUpcall upcall)
+    public MessageUpcallChannel createMessageUpcallChannel(String name, IbisIdentifier[] participants, MessageUpcall upcall, ChannelOptions options)
             throws DuplicateChannelException, IOException {
 
         logger.info("Creating MessageUpcallChannel " + name);
 
         checkChannelName(name);
 
-        return new MessageUpcallChannelImpl(ibis, name, upcall, ids);
+        try {
+            return new MessageUpcallChannelImpl(ibis, name, upcall, participants, options);
+        } catch (IOException | RuntimeException e) {
+            releaseChannelName(name);
+            throw e;
+        }
     }
 
     @Override
-    public ExplicitChannel createExplicitChannel(String name, IbisIdentifier[] praticipants) throws DuplicateChannelException, IOException {
+    public ExplicitChannel createExplicitChannel(String name, IbisIdentifier[] participants, ChannelOptions options)
+            throws DuplicateChannelException, IOException {
 
         logger.info("Creating ExplicitChannel " + name);
 
         checkChannelName(name);
 
-        return new ExplicitChannelImpl(ibis, name, ids);
+        try {
+            return new ExplicitChannelImpl(ibis, name, participants, options);
+        } catch (IOException | RuntimeException e) {
+            releaseChannelName(name);
+            throw e;
+        }
+    }
+
+    @Override
+    public CollectiveChannel createCollectiveChannel(String name, IbisIdentifier[] participants, ChannelOptions options)
+            throws DuplicateChannelException, IOException {
+
+        logger.info("Creating CollectiveChannel " + name);
+
+        if (options.getSerialization() == Serialization.BYTE) {
+            throw new IllegalArgumentException("CollectiveChannel " + name + " requires " + Serialization.OBJECT + " or " + Serialization.DATA
+                    + " serialization");
+        }
+
+        // The collectives receive from specific peers, which requires a port per sender.
+        if (options.getReceiveMode() != ReceiveMode.ONE_TO_ONE) {
+            throw new IllegalArgumentException("CollectiveChannel " + name + " only supports receive mode " + ReceiveMode.ONE_TO_ONE);
+        }
+
+        return new CollectiveChannelImpl(createExplicitChannel(name, participants, options));
+    }
+
+    @Override
+    public IbisIdentifier[] split(String tag, IbisIdentifier[] participants, int color, int key) throws DuplicateChannelException, IOException {
+
+        String name = Split.getChannelName(tag, splits);
+
+        // If creating the channel fails, its name has already been released, and it may not be ours if it already existed.
+        ExplicitChannel channel = createExplicitChannel(name, participants, Split.getChannelOptions());
+
+        try {
+            return Split.split(channel, participants, color, key);
+        } finally {
+            releaseChannelName(name);
+        }
     }
 
     // @Override
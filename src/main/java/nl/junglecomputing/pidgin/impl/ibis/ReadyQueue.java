@@ -0,0 +1,219 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.ibis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceiveTimedOutException;
+import nl.junglecomputing.pidgin.ChannelNotActiveException;
+import nl.junglecomputing.pidgin.impl.message.ForwardingReadMessage;
+
+/**
+ * The messages that have arrived for an {@link ExplicitChannelImpl}, from all its receive ports and other receivers, in the order in which they
+ * arrived. A receive blocks on this queue, whatever the number of senders, and takes the first message from a sender it accepts.
+ *
+ * A message that is read in place, such as one from an Ibis receive port or a shared memory ring, is handed off: the thread that received it
+ * waits until it has been finished, as the next message from that receiver cannot be read before. Messages kept in memory are just added.
+ */
+final class ReadyQueue {
+
+    /**
+     * A waiting message and the rank of its sender.
+     */
+    static final class Entry {
+
+        final int rank;
+        final ReadMessage message;
+
+        Entry(int rank, ReadMessage message) {
+            this.rank = rank;
+            this.message = message;
+        }
+    }
+
+    /**
+     * A message that wakes up the thread that handed it off once it is finished, or once it is dropped because the queue was closed.
+     */
+    private static final class Handoff extends ForwardingReadMessage {
+
+        private boolean done = false;
+
+        Handoff(ReadMessage delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public long finish() throws IOException {
+            try {
+                return delegate.finish();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void finish(IOException e) {
+            try {
+                delegate.finish(e);
+            } finally {
+                release();
+            }
+        }
+
+        synchronized void release() {
+            done = true;
+            notifyAll();
+        }
+
+        synchronized void await() throws InterruptedIOException {
+            try {
+                while (!done) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a message to be received");
+            }
+        }
+    }
+
+    private final String name;
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+
+    private boolean closed = false;
+
+    ReadyQueue(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds a message from the given rank that is kept in memory.
+     */
+    synchronized void add(int rank, ReadMessage rm) throws ChannelNotActiveException {
+
+        if (closed) {
+            throw new ChannelNotActiveException("Cannot deliver message, channel " + name + " is closed");
+        }
+
+        entries.add(new Entry(rank, rm));
+        notifyAll();
+    }
+
+    /**
+     * Adds a message from the given rank that is read in place, and waits until it has been finished or dropped.
+     */
+    void handoff(int rank, ReadMessage rm) throws IOException {
+        Handoff h = new Handoff(rm);
+        add(rank, h);
+        h.await();
+    }
+
+    private Entry take(int rank, boolean[] sources) {
+
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+
+            Entry e = it.next();
+
+            if ((rank < 0 || e.rank == rank) && (sources == null || (e.rank >= 0 && e.rank < sources.length && sources[e.rank]))) {
+                it.remove();
+                return e;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the first message from an accepted sender, or <code>null</code> if there is none. A sender is accepted if its rank equals rank,
+     * or rank is negative, and it is in sources, or sources is <code>null</code>.
+     */
+    synchronized Entry poll(int rank, boolean[] sources) throws ChannelNotActiveException {
+
+        if (closed) {
+            throw new ChannelNotActiveException("Cannot receive message, channel " + name + " is closed");
+        }
+
+        return take(rank, sources);
+    }
+
+    /**
+     * Waits for the first message from an accepted sender, as in {@link #poll(int, boolean[])}, at most timeout milliseconds, or indefinitely if
+     * timeout is 0.
+     */
+    synchronized Entry receive(int rank, boolean[] sources, long timeout) throws IOException {
+
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+
+        try {
+            while (true) {
+
+                if (closed) {
+                    throw new ChannelNotActiveException("Cannot receive message, channel " + name + " is closed");
+                }
+
+                Entry e = take(rank, sources);
+
+                if (e != null) {
+                    return e;
+                }
+
+                if (deadline == 0) {
+                    wait();
+                } else {
+                    long left = deadline - System.nanoTime();
+
+                    if (left <= 0) {
+                        throw new ReceiveTimedOutException("Channel " + name + " received no message within " + timeout + " ms");
+                    }
+
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a message for channel " + name);
+        }
+    }
+
+    /**
+     * Drops all waiting messages and wakes up all receivers, which fail. The threads that handed off a waiting message continue.
+     */
+    void close() {
+
+        ArrayList<Entry> dropped;
+
+        synchronized (this) {
+            closed = true;
+            dropped = new ArrayList<Entry>(entries);
+            entries.clear();
+            notifyAll();
+        }
+
+        for (Entry e : dropped) {
+            if (e.message instanceof Handoff) {
+                ((Handoff) e.message).release();
+            }
+        }
+    }
+}
@@ -16,50 +16,952 @@
  */
 package nl.junglecomputing.pidgin.impl.ibis;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ibis.ipl.Ibis;
 import ibis.ipl.IbisIdentifier;
 import ibis.ipl.MessageUpcall;
 import ibis.ipl.ReadMessage;
 import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.ByteBufferPool;
+import nl.junglecomputing.pidgin.ChannelOptions;
+import nl.junglecomputing.pidgin.ChannelNotActiveException;
+import nl.junglecomputing.pidgin.ChannelStatistics;
+import nl.junglecomputing.pidgin.CodecRegistry;
+import nl.junglecomputing.pidgin.ConnectResult;
+import nl.junglecomputing.pidgin.DispatchStatistics;
+import nl.junglecomputing.pidgin.FlowControlStatistics;
+import nl.junglecomputing.pidgin.NoSuchDestinationException;
+import nl.junglecomputing.pidgin.NoSuchSourceException;
+import nl.junglecomputing.pidgin.Serialization;
+import nl.junglecomputing.pidgin.StreamUpcall;
 import nl.junglecomputing.pidgin.Upcall;
 import nl.junglecomputing.pidgin.UpcallChannel;
+import nl.junglecomputing.pidgin.impl.local.LocalNode;
+import nl.junglecomputing.pidgin.impl.trace.Tracer;
+
+public class UpcallChannelImpl implements UpcallChannel, MessageUpcall {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpcallChannelImpl.class);
+
+    // The first byte of each wire message tells how the rest of the message should be read.
+    static final byte MESSAGE_SINGLE = 0;
+    static final byte MESSAGE_AGGREGATE = 1;
+    static final byte MESSAGE_CHUNK_START = 2;
+    static final byte MESSAGE_CHUNK = 3;
+
+    // Tells the receiver that a chunked transfer was abandoned by the sender.
+    private static final int CHUNK_ABORT = -1;
+
+    // The largest buffer into which the payload of a chunked transfer from a ReadableByteChannel is split.
+    private static final int MAX_SEGMENT = 1 << 30;
+
+    // Tells how the data object of a single message is encoded.
+    private static final byte DATA_NONE = 0;
+    private static final byte DATA_OBJECT = 1;
+    private static final byte DATA_CODEC = 2;
+
+    private static final long ASYNC_CLOSE_TIMEOUT = 10000;
+
+    // The largest number of buffers per message for which a thread keeps scratch arrays.
+    private static final int MAX_SCRATCH_BUFFERS = 16;
+
+    private final MessageUpcallChannelImpl impl;
+    private final Upcall upcall;
+    private final boolean objects;
+    private final ByteBufferPool pool;
+    private final CodecRegistry codecs;
+    private final Dispatcher dispatcher;
+
+    private final Aggregator[] aggregators;
+    private final long aggregationDelay;
+    private ScheduledExecutorService flusher;
+
+    private final ChannelOptions options;
+    private AsyncSender asyncSender;
+
+    private static final class PostedReceive {
+
+        final byte opcode;
+        final ByteBuffer[] buffers;
+        final CompletableFuture<Object> future = new CompletableFuture<Object>();
+
+        PostedReceive(byte opcode, ByteBuffer[] buffers) {
+            this.opcode = opcode;
+            this.buffers = buffers == null ? new ByteBuffer[0] : buffers;
+        }
+
+        boolean fits(int[] sizes) {
+
+            if (sizes.length > buffers.length) {
+                return false;
+            }
+
+            for (int i = 0; i < sizes.length; i++) {
+                if (sizes[i] > 0 && (buffers[i] == null || buffers[i].remaining() < sizes[i])) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    // The posted receives of each source, in the order in which they were posted.
+    private final ConcurrentLinkedQueue<PostedReceive>[] posted;
+
+    private static final class Transfer {
+
+        final byte opcode;
+        final Object data;
+        final int[] sizes;
+        final long total;
+
+        // The offset of each buffer in the payload.
+        final long[] offsets;
+
+        // The buffers being reassembled and their initial positions, or null when streaming.
+        ByteBuffer[] buffers;
+        int[] bases;
+        boolean pooled;
+
+        // The chunks of a transfer may be read by several receive threads at once.
+        final AtomicLong received = new AtomicLong();
+
+        Transfer(byte opcode, Object data, int[] sizes) {
+            this.opcode = opcode;
+            this.data = data;
+            this.sizes = sizes;
+
+            offsets = new long[sizes.length];
+
+            long size = 0;
+
+            for (int i = 0; i < sizes.length; i++) {
+                offsets[i] = size;
+                size += sizes[i];
+            }
+
+            total = size;
+        }
+    }
+
+    // The chunked transfers being received, keyed by the rank of the sender and the id of the transfer.
+    private final ConcurrentHashMap<Long, Transfer> transfers = new ConcurrentHashMap<Long, Transfer>();
+
+    private final AtomicInteger nextTransfer = new AtomicInteger();
+
+    /**
+     * Hands a received message to the upcall.
+     */
+    private final class Delivery implements Runnable {
+
+        IbisIdentifier source;
+        int rank;
+        byte opcode;
+        Object data;
+        ByteBuffer[] buffers;
+        boolean pooled;
+        long bytes;
+
+        Delivery set(IbisIdentifier source, byte opcode, Object data, ByteBuffer[] buffers, boolean pooled, long bytes) {
+            this.source = source;
+            this.rank = impl.getRank(source);
+            this.opcode = opcode;
+            this.data = data;
+            this.buffers = buffers;
+            this.pooled = pooled;
+            this.bytes = bytes;
+            return this;
+        }
+
+        @Override
+        public void run() {
+
+            boolean traced = Tracer.isEnabled();
+
+            if (traced) {
+                Tracer.record(Tracer.UPCALL_START, impl.getTraceId(), rank, opcode, bytes);
+            }
+
+            try {
+                upcall.receiveMessage(impl.getName(), source, opcode, data, buffers);
+            } finally {
+                if (traced) {
+                    Tracer.record(Tracer.UPCALL_END, impl.getTraceId(), rank, opcode, bytes);
+                }
+
+                if (pooled) {
+                    pool.release(buffers);
+                }
+
+                impl.releaseCredits(rank, bytes);
+            }
+        }
+    }
+
+    /**
+     * The arrays used by a receiving thread, so receiving a small message into pooled buffers does not allocate. The buffer array and the
+     * delivery are only reused when upcalls run on the receiving thread, as they are otherwise still in use after the next message is received.
+     * A nested receive on the same thread, such as that of a message to self sent by an upcall, does not use them.
+     */
+    private final class Scratch {
+
+        boolean inUse;
+
+        final int[][] sizes = new int[MAX_SCRATCH_BUFFERS + 1][];
+        final ByteBuffer[][] buffers = new ByteBuffer[MAX_SCRATCH_BUFFERS + 1][];
+        final Delivery delivery = new Delivery();
+
+        int[] getSizes(int count) {
+
+            if (count > MAX_SCRATCH_BUFFERS) {
+                return new int[count];
+            }
+
+            if (sizes[count] == null) {
+                sizes[count] = new int[count];
+            }
+
+            return sizes[count];
+        }
+
+        ByteBuffer[] getBuffers(int count) {
+
+            if (count > MAX_SCRATCH_BUFFERS || !dispatcher.isInline()) {
+                return new ByteBuffer[count];
+            }
+
+            if (buffers[count] == null) {
+                buffers[count] = new ByteBuffer[count];
+            }
+
+            return buffers[count];
+        }
+
+        Delivery getDelivery() {
+            return dispatcher.isInline() ? delivery : new Delivery();
+        }
+    }
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    public UpcallChannelImpl(Ibis ibis, String name, Upcall upcall, IbisIdentifier[] ids, ChannelOptions options) throws IOException {
+        this(ibis, null, name, upcall, ids, options);
+    }
+
+    public UpcallChannelImpl(LocalNode node, String name, Upcall upcall, IbisIdentifier[] ids, ChannelOptions options) throws IOException {
+        this(null, node, name, upcall, ids, options);
+    }
+
+    private UpcallChannelImpl(Ibis ibis, LocalNode node, String name, Upcall upcall, IbisIdentifier[] ids, ChannelOptions options)
+            throws IOException {
+
+        if (options.getSerialization() == Serialization.BYTE) {
+            throw new IllegalArgumentException("UpcallChannel " + name + " requires " + Serialization.OBJECT + " or " + Serialization.DATA
+                    + " serialization");
+        }
+
+        // Only an ordered executor delivers the messages of an aggregate, or the chunks of a transfer, before the next wire message from the
+        // same sender.
+        boolean ordered = options.getDispatcher() != null && options.getOrderedDispatch();
+
+        if (options.getAggregationSize() > 0 && !ordered) {
+            throw new IllegalArgumentException("UpcallChannel " + name + " requires ordered dispatch on an executor for aggregation");
+        }
+
+        if (upcall instanceof StreamUpcall && !ordered) {
+            throw new IllegalArgumentException("UpcallChannel " + name + " requires ordered dispatch on an executor for a StreamUpcall");
+        }
+
+        this.upcall = upcall;
+        this.options = options;
+        this.objects = options.getSerialization() == Serialization.OBJECT;
+        this.pool = options.getBufferPool() == null ? new ByteBufferPool() : options.getBufferPool();
+        this.codecs = options.getCodecRegistry() == null ? new CodecRegistry() : options.getCodecRegistry();
+        // The credits of a message are freed once it has been delivered, which may be after the upcall from Ibis returns.
+        impl = new MessageUpcallChannelImpl(ibis, node, name, this, ids, options, false);
+        this.dispatcher = new Dispatcher(options.getDispatcher(), options.getOrderedDispatch(), ids.length, impl.getMetrics());
+
+        posted = createPostedQueues(ids.length);
+
+        aggregationDelay = options.getAggregationDelay();
+
+        if (options.getAggregationSize() > 0) {
+            aggregators = new Aggregator[ids.length];
+
+            for (int i = 0; i < ids.length; i++) {
+                aggregators[i] = new Aggregator(impl, i, options.getAggregationSize());
+            }
+        } else {
+            aggregators = null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<PostedReceive>[] createPostedQueues(int size) {
+
+        ConcurrentLinkedQueue<PostedReceive>[] result = new ConcurrentLinkedQueue[size];
+
+        for (int i = 0; i < size; i++) {
+            result[i] = new ConcurrentLinkedQueue<PostedReceive>();
+        }
+
+        return result;
+    }
+
+    @Override
+    public void activate() throws IOException {
+
+        impl.activate();
+
+        synchronized (this) {
+            if (aggregators != null && aggregationDelay > 0 && flusher == null) {
+                flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Pidgin flusher " + impl.getName());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+                // Check twice per delay period, so no message waits much longer than the delay.
+                long period = Math.max(1, aggregationDelay / 2);
+
+                flusher.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushExpired();
+                    }
+                }, period, period, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void deactivate() throws IOException {
+
+        synchronized (this) {
+            if (asyncSender != null) {
+                asyncSender.close(ASYNC_CLOSE_TIMEOUT);
+                asyncSender = null;
+            }
+
+            if (flusher != null) {
+                flusher.shutdownNow();
+                flusher = null;
+            }
+        }
+
+        if (aggregators != null && impl.isActive()) {
+            try {
+                flush();
+            } catch (IOException e) {
+                logger.warn("UpcallChannel " + impl.getName() + " failed to flush on deactivation", e);
+            }
+        }
+
+        impl.deactivate();
+    }
+
+    @Override
+    public ConnectResult connect(IbisIdentifier[] peers, int parallelism) throws IOException {
+        return impl.connect(peers, parallelism);
+    }
+
+    @Override
+    public IbisIdentifier[] getParticipants() {
+        return impl.getParticipants();
+    }
+
+    @Override
+    public int getSize() {
+        return impl.getSize();
+    }
+
+    @Override
+    public int getRank() {
+        return impl.getRank();
+    }
+
+    @Override
+    public int getRank(IbisIdentifier id) {
+        return impl.getRank(id);
+    }
+
+    @Override
+    public ByteBufferPool getBufferPool() {
+        return pool;
+    }
+
+    private int getDestinationRank(IbisIdentifier dest) throws NoSuchDestinationException {
+
+        int rank = impl.getRank(dest);
+
+        if (rank < 0) {
+            throw new NoSuchDestinationException(dest + " is not a participant of channel " + impl.getName());
+        }
+
+        return rank;
+    }
+
+    @Override
+    public DispatchStatistics getDispatchStatistics() {
+        return dispatcher.getStatistics();
+    }
+
+    @Override
+    public FlowControlStatistics getFlowControlStatistics() {
+        return impl.getFlowControlStatistics();
+    }
+
+    @Override
+    public ChannelStatistics getStatistics() {
+        return impl.getStatistics();
+    }
+
+    @Override
+    public void sendMessage(IbisIdentifier dest, byte opcode, Object data, ByteBuffer... buffers) throws IOException {
+        sendMessage(getDestinationRank(dest), opcode, data, buffers);
+    }
+
+    @Override
+    public void sendMessage(int rank, byte opcode, Object data, ByteBuffer... buffers) throws IOException {
+
+        if (!Tracer.isEnabled()) {
+            send(rank, opcode, data, buffers);
+            return;
+        }
+
+        long size = getPayloadSize(buffers);
+
+        Tracer.record(Tracer.MESSAGE_SEND_START, impl.getTraceId(), rank, opcode, size);
+
+        try {
+            send(rank, opcode, data, buffers);
+        } finally {
+            Tracer.record(Tracer.MESSAGE_SEND_END, impl.getTraceId(), rank, opcode, size);
+        }
+    }
+
+    private void send(int rank, byte opcode, Object data, ByteBuffer[] buffers) throws IOException {
+
+        checkData(data);
+
+        long chunkThreshold = options.getChunkThreshold();
+
+        if (chunkThreshold > 0 && getPayloadSize(buffers) > chunkThreshold) {
+            sendChunked(rank, opcode, data, buffers);
+            return;
+        }
+
+        if (rank == impl.getRank()) {
+            sendLoopback(opcode, data, buffers);
+            return;
+        }
+
+        if (!impl.isActive()) {
+            throw new ChannelNotActiveException("Cannot send message, channel " + impl.getName() + " not active");
+        }
+
+        Aggregator a = aggregators != null && rank >= 0 && rank < aggregators.length ? aggregators[rank] : null;
+
+        long size = getPayloadSize(buffers);
+
+        impl.acquireCredits(rank, size, a);
+
+        try {
+            if (a != null) {
+
+                if (data == null && a.add(opcode, buffers, Aggregator.getPackedSize(buffers))) {
+                    return;
+                }
+
+                // This message cannot be aggregated. Send the pending messages first to preserve the order.
+                a.flush();
+            }
+
+            writeMessage(rank, opcode, data, buffers);
+        } catch (IOException | RuntimeException e) {
+            // The message was not sent, so its credits are given back.
+            impl.cancelCredits(rank, size);
+            throw e;
+        }
+    }
+
+    /**
+     * Delivers a message to self without serializing it. The data object is passed by reference. The payload is copied only once, into posted
+     * or application allocated buffers if there are any. Otherwise, when upcalls run on the sending thread, the upcall gets slices of the buffers
+     * of the sender, which is safe as the sender cannot reuse them before the upcall has returned.
+     */
+    private void sendLoopback(byte opcode, Object data, ByteBuffer[] buffers) throws IOException {
+
+        if (!impl.isActive()) {
+            throw new ChannelNotActiveException("Cannot send message, channel " + impl.getName() + " not active");
+        }
+
+        int rank = impl.getRank();
+        IbisIdentifier self = impl.getParticipants()[rank];
+
+        int[] sizes = new int[buffers == null ? 0 : buffers.length];
+
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = buffers[i] == null ? 0 : buffers[i].remaining();
+        }
+
+        PostedReceive p = takePosted(rank, opcode, sizes);
+
+        if (p != null) {
+            for (int i = 0; i < sizes.length; i++) {
+                if (sizes[i] > 0) {
+                    p.buffers[i].put(buffers[i].duplicate());
+                }
+            }
+
+            complete(rank, p, data, 0);
+            return;
+        }
+
+        ByteBuffer[] received = null;
+        boolean pooled = false;
+
+        if (sizes.length > 0) {
+            received = upcall.allocateByteBuffers(impl.getName(), self, opcode, data, sizes);
+
+            if (received != null) {
+                for (int i = 0; i < sizes.length; i++) {
+                    checkFits(received[i], sizes[i], opcode, self);
+
+                    if (received[i] != null) {
+                        int start = received[i].position();
+
+                        if (sizes[i] > 0) {
+                            received[i].put(buffers[i].duplicate());
+                        }
+
+                        ready(received[i], start, sizes[i]);
+                    }
+                }
+            } else if (dispatcher.isInline()) {
+                received = new ByteBuffer[sizes.length];
+
+                for (int i = 0; i < sizes.length; i++) {
+                    received[i] = sizes[i] == 0 ? ByteBuffer.allocate(0) : buffers[i].slice();
+                }
+            } else {
+                received = allocateFromPool(sizes);
+                pooled = true;
+
+                for (int i = 0; i < sizes.length; i++) {
+                    if (sizes[i] > 0) {
+                        received[i].put(buffers[i].duplicate());
+                    }
+                    received[i].flip();
+                }
+            }
+        }
+
+        deliver(self, opcode, data, received, pooled, 0);
+    }
+
+    @Override
+    public void sendChunked(IbisIdentifier dest, byte opcode, Object data, ByteBuffer... buffers) throws IOException {
+        sendChunked(getDestinationRank(dest), opcode, data, buffers);
+    }
+
+    @Override
+    public void sendChunked(int rank, byte opcode, Object data, ByteBuffer... buffers) throws IOException {
+
+        int[] sizes = new int[buffers == null ? 0 : buffers.length];
+
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = buffers[i] == null ? 0 : buffers[i].remaining();
+        }
+
+        int id = startTransfer(rank, opcode, data, sizes);
+
+        int chunkSize = options.getChunkSize();
+
+        try {
+            for (int i = 0; i < sizes.length; i++) {
+                for (int offset = 0; offset < sizes[i]; offset += chunkSize) {
+
+                    int length = Math.min(chunkSize, sizes[i] - offset);
+
+                    ByteBuffer chunk = buffers[i].duplicate();
+                    chunk.limit(chunk.position() + length);
+
+                    writeChunk(rank, id, i, offset, chunk);
+
+                    buffers[i].position(chunk.limit());
+                }
+            }
+        } catch (IOException e) {
+            // Otherwise the receiver would keep the partial transfer forever.
+            abortTransfer(rank, id);
+            throw e;
+        }
+    }
+
+    @Override
+    public void sendChunked(int rank, byte opcode, Object data, ReadableByteChannel source, long size) throws IOException {
+
+        if (size < 0) {
+            throw new IllegalArgumentException("Size may not be negative");
+        }
+
+        int[] sizes = new int[(int) ((size + MAX_SEGMENT - 1) / MAX_SEGMENT)];
+
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = (int) Math.min(MAX_SEGMENT, size - (long) i * MAX_SEGMENT);
+        }
+
+        int id = startTransfer(rank, opcode, data, sizes);
+
+        int chunkSize = options.getChunkSize();
+
+        ByteBuffer chunk = pool.allocate(chunkSize);
+
+        try {
+            for (int i = 0; i < sizes.length; i++) {
+                for (int offset = 0; offset < sizes[i]; offset += chunkSize) {
+
+                    chunk.clear();
+                    chunk.limit(Math.min(chunkSize, sizes[i] - offset));
+
+                    while (chunk.hasRemaining()) {
+                        if (source.read(chunk) < 0) {
+                            throw new EOFException("Source ended before " + size + " bytes were read");
+                        }
+                    }
+
+                    chunk.flip();
+                    writeChunk(rank, id, i, offset, chunk);
+                }
+            }
+        } catch (IOException e) {
+            // Both a failing source and a failing chunk message leave a partial transfer at the receiver.
+            abortTransfer(rank, id);
+            throw e;
+        } finally {
+            pool.release(chunk);
+        }
+    }
+
+    /**
+     * Sends the first message of a chunked transfer, containing everything except the payload, and returns the id of the transfer.
+     */
+    private int startTransfer(int rank, byte opcode, Object data, int[] sizes) throws IOException {
+
+        checkData(data);
+
+        if (rank < 0 || rank >= impl.getSize()) {
+            throw new NoSuchDestinationException("Rank " + rank + " is not a participant of channel " + impl.getName());
+        }
+
+        // Send any aggregated messages first to preserve the order.
+        Aggregator a = aggregators == null ? null : aggregators[rank];
+
+        if (a != null) {
+            a.flush();
+        }
+
+        int id = nextTransfer.incrementAndGet();
+
+        impl.acquireCredits(rank, 0, a);
+
+        try {
+            WriteMessage wm = impl.newMessage(rank);
+            wm.writeByte(MESSAGE_CHUNK_START);
+            wm.writeInt(id);
+            wm.writeByte(opcode);
+            writeData(wm, data);
+            wm.writeInt(sizes.length);
+
+            for (int size : sizes) {
+                wm.writeInt(size);
+            }
+
+            impl.sent(rank, wm.finish());
+        } catch (IOException | RuntimeException e) {
+            impl.cancelCredits(rank, 0);
+            throw e;
+        }
+
+        return id;
+    }
+
+    private void writeChunk(int rank, int id, int index, int offset, ByteBuffer chunk) throws IOException {
+
+        int length = chunk.remaining();
+
+        impl.acquireCredits(rank, length, null);
+
+        try {
+            WriteMessage wm = impl.newMessage(rank);
+            wm.writeByte(MESSAGE_CHUNK);
+            wm.writeInt(id);
+            wm.writeInt(index);
+            wm.writeInt(offset);
+            wm.writeInt(length);
+            wm.writeByteBuffer(chunk);
+            impl.sent(rank, wm.finish());
+        } catch (IOException | RuntimeException e) {
+            impl.cancelCredits(rank, length);
+            throw e;
+        }
+    }
+
+    private void abortTransfer(int rank, int id) {
+        try {
+            impl.acquireCredits(rank, 0, null);
+
+            try {
+                WriteMessage wm = impl.newMessage(rank);
+                wm.writeByte(MESSAGE_CHUNK);
+                wm.writeInt(id);
+                wm.writeInt(0);
+                wm.writeInt(0);
+                wm.writeInt(CHUNK_ABORT);
+                impl.sent(rank, wm.finish());
+            } catch (IOException | RuntimeException e) {
+                impl.cancelCredits(rank, 0);
+                throw e;
+            }
+        } catch (IOException e) {
+            logger.warn("UpcallChannel " + impl.getName() + " failed to abort chunked transfer " + id + " to rank " + rank, e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(IbisIdentifier dest, byte opcode, Object data, ByteBuffer... buffers) throws IOException {
+        return sendAsync(getDestinationRank(dest), opcode, data, buffers);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(int rank, byte opcode, Object data, ByteBuffer... buffers) throws IOException {
+
+        checkData(data);
+
+        if (rank < 0 || rank >= impl.getSize()) {
+            throw new NoSuchDestinationException("Rank " + rank + " is not a participant of channel " + impl.getName());
+        }
+
+        return getAsyncSender().send(rank, opcode, data, buffers);
+    }
+
+    @Override
+    public CompletableFuture<Object> postReceive(IbisIdentifier source, byte opcode, ByteBuffer... buffers) throws IOException {
+
+        int rank = impl.getRank(source);
+
+        if (rank < 0) {
+            throw new NoSuchSourceException(source + " is not a participant of channel " + impl.getName());
+        }
+
+        return postReceive(rank, opcode, buffers);
+    }
+
+    @Override
+    public CompletableFuture<Object> postReceive(int rank, byte opcode, ByteBuffer... buffers) throws IOException {
+
+        if (rank < 0 || rank >= posted.length) {
+            throw new NoSuchSourceException("Rank " + rank + " is not a participant of channel " + impl.getName());
+        }
+
+        PostedReceive p = new PostedReceive(opcode, buffers);
+        posted[rank].add(p);
+        return p.future;
+    }
+
+    private PostedReceive takePosted(int rank, byte opcode, int[] sizes) {
+
+        if (rank < 0) {
+            return null;
+        }
+
+        ConcurrentLinkedQueue<PostedReceive> queue = posted[rank];
+
+        if (queue.isEmpty()) {
+            return null;
+        }
+
+        for (PostedReceive p : queue) {
+
+            if (p.future.isDone()) {
+                // Cancelled by the application.
+                queue.remove(p);
+                continue;
+            }
+
+            if (p.opcode == opcode && queue.remove(p)) {
+
+                if (p.fits(sizes)) {
+                    return p;
+                }
+
+                p.future.completeExceptionally(new IOException("Message with opcode " + opcode + " from rank " + rank + " of channel "
+                        + impl.getName() + " does not fit in the posted buffers"));
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    private void complete(final int rank, final PostedReceive p, final Object data, final long bytes) {
+        dispatcher.dispatch(rank, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    p.future.complete(data);
+                } finally {
+                    impl.releaseCredits(rank, bytes);
+                }
+            }
+        });
+    }
+
+    private static void readInto(ReadMessage rm, ByteBuffer b, int size) throws IOException {
+
+        if (size == 0) {
+            return;
+        }
 
-public class UpcallChannelImpl implements UpcallChannel, MessageUpcall {
+        int limit = b.limit();
+        b.limit(b.position() + size);
+        rm.readByteBuffer(b);
+        b.limit(limit);
+    }
 
-    private final MessageUpcallChannelImpl impl;
-    private final Upcall upcall;
+    private synchronized AsyncSender getAsyncSender() throws ChannelNotActiveException {
 
-    public UpcallChannelImpl(Ibis ibis, String name, Upcall upcall, IbisIdentifier[] ids) throws IOException {
-        this.upcall = upcall;
-        impl = new MessageUpcallChannelImpl(ibis, name, this, ids);
+        if (!impl.isActive()) {
+            throw new ChannelNotActiveException("Cannot send message, channel " + impl.getName() + " not active");
+        }
+
+        if (asyncSender == null) {
+            asyncSender = new AsyncSender(this, impl.getName(), impl.getSize(), options.getAsyncSendThreads(), options.getAsyncQueueCapacity());
+        }
+
+        return asyncSender;
     }
 
     @Override
-    public void activate() throws IOException {
-        impl.activate();
+    public void flush(IbisIdentifier dest) throws IOException {
+        flush(getDestinationRank(dest));
     }
 
     @Override
-    public void deactivate() throws IOException {
-        impl.deactivate();
+    public void flush(int rank) throws IOException {
+
+        if (aggregators == null) {
+            return;
+        }
+
+        if (rank < 0 || rank >= aggregators.length) {
+            throw new NoSuchDestinationException("Rank " + rank + " is not a participant of channel " + impl.getName());
+        }
+
+        aggregators[rank].flush();
     }
 
     @Override
-    public void sendMessage(IbisIdentifier dest, byte opcode, Object data, ByteBuffer... buffers) throws IOException {
+    public void flush() throws IOException {
 
-        WriteMessage wm = impl.sendMessage(dest);
+        if (aggregators == null) {
+            return;
+        }
 
-        wm.writeByte(opcode);
+        IOException failure = null;
 
-        if (data == null) {
-            wm.writeBoolean(false);
-        } else {
-            wm.writeBoolean(true);
-            wm.writeObject(data);
+        for (Aggregator a : aggregators) {
+            try {
+                a.flush();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void flushExpired() {
+
+        long deadline = System.nanoTime() - aggregationDelay;
+
+        for (Aggregator a : aggregators) {
+            try {
+                a.flushIfOlder(deadline);
+            } catch (IOException e) {
+                logger.warn("UpcallChannel " + impl.getName() + " failed to flush aggregated messages", e);
+            }
+        }
+    }
+
+    private static long getPayloadSize(ByteBuffer[] buffers) {
+
+        long size = 0;
+
+        if (buffers != null) {
+            for (ByteBuffer b : buffers) {
+                if (b != null) {
+                    size += b.remaining();
+                }
+            }
+        }
+
+        return size;
+    }
+
+    private static long getPayloadSize(int[] sizes) {
+
+        long size = 0;
+
+        for (int s : sizes) {
+            size += s;
+        }
+
+        return size;
+    }
+
+    private void checkData(Object data) {
+        if (data != null && !objects && !codecs.hasCodec(data)) {
+            throw new IllegalArgumentException("UpcallChannel " + impl.getName() + " cannot send " + data.getClass().getName()
+                    + " without object serialization or a registered codec");
         }
+    }
+
+    private void writeMessage(int rank, byte opcode, Object data, ByteBuffer... buffers) throws IOException {
+
+        WriteMessage wm = impl.newMessage(rank);
+        wm.writeByte(MESSAGE_SINGLE);
+        wm.writeByte(opcode);
+
+        writeData(wm, data);
 
         if (buffers == null || buffers.length == 0) {
             wm.writeInt(0);
@@ -81,7 +983,85 @@ public class UpcallChannelImpl implements UpcallChannel, MessageUpcall {
             }
         }
 
-        wm.finish();
+        impl.sent(rank, wm.finish());
+    }
+
+    private void writeData(WriteMessage wm, Object data) throws IOException {
+        if (data == null) {
+            wm.writeByte(DATA_NONE);
+        } else if (codecs.hasCodec(data)) {
+            wm.writeByte(DATA_CODEC);
+            codecs.encode(data, wm);
+        } else {
+            wm.writeByte(DATA_OBJECT);
+            wm.writeObject(data);
+        }
+    }
+
+    private Object readData(ReadMessage rm, IbisIdentifier source) throws IOException, ClassNotFoundException {
+
+        byte dataKind = rm.readByte();
+
+        switch (dataKind) {
+        case DATA_NONE:
+            return null;
+        case DATA_OBJECT:
+            return rm.readObject();
+        case DATA_CODEC:
+            return codecs.decode(rm);
+        default:
+            throw new IOException("UpcallChannel " + impl.getName() + " received unknown data encoding " + dataKind + " from " + source);
+        }
+    }
+
+    private ByteBuffer[] allocateFromPool(int[] sizes) {
+        return allocateFromPool(sizes, new ByteBuffer[sizes.length]);
+    }
+
+    private ByteBuffer[] allocateFromPool(int[] sizes, ByteBuffer[] buffers) {
+
+        for (int i = 0; i < sizes.length; i++) {
+            buffers[i] = pool.allocate(sizes[i]);
+        }
+
+        return buffers;
+    }
+
+    /**
+     * Leaves a buffer holding the given number of bytes from the given position, which is how all buffers are handed to the upcall.
+     */
+    private static void ready(ByteBuffer b, int start, int size) {
+        if (b != null) {
+            b.limit(start + size);
+            b.position(start);
+        }
+    }
+
+    private Scratch acquireScratch() {
+
+        Scratch s = scratch.get();
+
+        if (s.inUse) {
+            return null;
+        }
+
+        s.inUse = true;
+        return s;
+    }
+
+    private static void releaseScratch(Scratch s) {
+        if (s != null) {
+            s.inUse = false;
+        }
+    }
+
+    private void deliver(IbisIdentifier source, byte opcode, Object data, ByteBuffer[] buffers, boolean pooled, long bytes) {
+        deliver(new Delivery(), source, opcode, data, buffers, pooled, bytes);
+    }
+
+    private void deliver(Delivery d, IbisIdentifier source, byte opcode, Object data, ByteBuffer[] buffers, boolean pooled, long bytes) {
+        d.set(source, opcode, data, buffers, pooled, bytes);
+        dispatcher.dispatch(d.rank, d);
     }
 
     @Override
@@ -89,36 +1069,432 @@ public class UpcallChannelImpl implements UpcallChannel, MessageUpcall {
 
         IbisIdentifier source = rm.origin().ibisIdentifier();
 
-        byte opcode = rm.readByte();
-        boolean hasObject = rm.readBoolean();
-
-        Object data = null;
+        byte kind = rm.readByte();
 
-        if (hasObject) {
-            data = rm.readObject();
+        switch (kind) {
+        case MESSAGE_SINGLE:
+            receiveSingle(rm, source);
+            break;
+        case MESSAGE_AGGREGATE:
+            receiveAggregate(rm, source);
+            break;
+        case MESSAGE_CHUNK_START:
+            receiveChunkStart(rm, source);
+            break;
+        case MESSAGE_CHUNK:
+            receiveChunk(rm, source);
+            break;
+        default:
+            throw new IOException("UpcallChannel " + impl.getName() + " received unknown message kind " + kind + " from " + source);
         }
+    }
+
+    /**
+     * Returns whether a received message is finished only after it has been dispatched. Finishing a message lets the next message be received
+     * by another thread, so an executor only sees the messages in the order they were sent if each is dispatched first. An inline upcall runs
+     * when it is dispatched, so there the message is finished first, to not hold up receiving while the upcall runs.
+     */
+    private boolean dispatchesEarly() {
+        return !dispatcher.isInline();
+    }
+
+    private void receiveSingle(ReadMessage rm, IbisIdentifier source) throws IOException, ClassNotFoundException {
+
+        byte opcode = rm.readByte();
+        Object data = readData(rm, source);
 
         int bufferCount = rm.readInt();
 
-        ByteBuffer[] buffers = null;
+        Scratch s = acquireScratch();
 
-        if (bufferCount > 0) {
-            int[] sizes = new int[bufferCount];
+        try {
+            int[] sizes = s == null ? new int[bufferCount] : s.getSizes(bufferCount);
 
             for (int i = 0; i < bufferCount; i++) {
                 sizes[i] = rm.readInt();
             }
 
-            buffers = upcall.allocateByteBuffers(impl.getName(), source, opcode, data, sizes);
+            int rank = impl.getRank(source);
 
-            for (int i = 0; i < bufferCount; i++) {
-                // TODO: We should check if the buffers[i] is actually valid and has the reading space?
-                rm.readByteBuffer(buffers[i]);
+            PostedReceive p = takePosted(rank, opcode, sizes);
+
+            if (p != null) {
+                for (int i = 0; i < bufferCount; i++) {
+                    readInto(rm, p.buffers[i], sizes[i]);
+                }
+
+                finish(rm, source);
+
+                complete(rank, p, data, getPayloadSize(sizes));
+                return;
+            }
+
+            ByteBuffer[] buffers = null;
+            boolean pooled = false;
+
+            if (bufferCount > 0) {
+                buffers = upcall.allocateByteBuffers(impl.getName(), source, opcode, data, sizes);
+
+                if (buffers == null) {
+                    buffers = allocateFromPool(sizes, s == null ? new ByteBuffer[bufferCount] : s.getBuffers(bufferCount));
+                    pooled = true;
+                }
+
+                for (int i = 0; i < bufferCount; i++) {
+                    checkFits(buffers[i], sizes[i], opcode, source);
+
+                    int start = buffers[i] == null ? 0 : buffers[i].position();
+                    readInto(rm, buffers[i], sizes[i]);
+                    ready(buffers[i], start, sizes[i]);
+                }
+            }
+
+            boolean early = dispatchesEarly();
+
+            if (!early) {
+                finish(rm, source);
+            }
+
+            deliver(s == null ? new Delivery() : s.getDelivery(), source, opcode, data, buffers, pooled, getPayloadSize(sizes));
+
+            if (early) {
+                finish(rm, source);
+            }
+        } finally {
+            releaseScratch(s);
+        }
+    }
+
+    /**
+     * Finishes a received message and counts it in the statistics.
+     */
+    private void finish(ReadMessage rm, IbisIdentifier source) throws IOException {
+        impl.received(source, rm.finish());
+    }
+
+    private void checkFits(ByteBuffer b, int size, byte opcode, IbisIdentifier source) throws IOException {
+        if (size > 0 && (b == null || b.remaining() < size)) {
+            throw new IOException("Message with opcode " + opcode + " from " + source + " of channel " + impl.getName()
+                    + " does not fit in the allocated buffers");
+        }
+    }
+
+    private void receiveAggregate(ReadMessage rm, IbisIdentifier source) throws IOException {
+
+        int rank = impl.getRank(source);
+
+        int count = rm.readInt();
+        int length = rm.readInt();
+
+        ByteBuffer packed = pool.allocate(length);
+
+        Scratch s = acquireScratch();
+
+        boolean early = dispatchesEarly();
+
+        try {
+            rm.readByteBuffer(packed);
+
+            if (!early) {
+                finish(rm, source);
+            }
+
+            packed.flip();
+
+            for (int m = 0; m < count; m++) {
+
+                byte opcode = packed.get();
+                int bufferCount = packed.getInt();
+
+                int[] sizes = s == null ? new int[bufferCount] : s.getSizes(bufferCount);
+
+                for (int i = 0; i < bufferCount; i++) {
+                    sizes[i] = packed.getInt();
+                }
+
+                PostedReceive p = takePosted(rank, opcode, sizes);
+
+                if (p != null) {
+                    for (int i = 0; i < bufferCount; i++) {
+                        if (sizes[i] > 0) {
+                            int limit = packed.limit();
+
+                            packed.limit(packed.position() + sizes[i]);
+                            p.buffers[i].put(packed);
+                            packed.limit(limit);
+                        }
+                    }
+
+                    complete(rank, p, null, getPayloadSize(sizes));
+                    continue;
+                }
+
+                ByteBuffer[] buffers = null;
+                boolean pooled = false;
+
+                if (bufferCount > 0) {
+                    buffers = upcall.allocateByteBuffers(impl.getName(), source, opcode, null, sizes);
+
+                    if (buffers == null) {
+                        buffers = allocateFromPool(sizes, s == null ? new ByteBuffer[bufferCount] : s.getBuffers(bufferCount));
+                        pooled = true;
+                    }
+
+                    for (int i = 0; i < bufferCount; i++) {
+                        checkFits(buffers[i], sizes[i], opcode, source);
+
+                        if (sizes[i] == 0) {
+                            ready(buffers[i], buffers[i] == null ? 0 : buffers[i].position(), 0);
+                            continue;
+                        }
+
+                        int start = buffers[i].position();
+                        int limit = packed.limit();
+
+                        packed.limit(packed.position() + sizes[i]);
+                        buffers[i].put(packed);
+                        packed.limit(limit);
+
+                        ready(buffers[i], start, sizes[i]);
+                    }
+                }
+
+                deliver(s == null ? new Delivery() : s.getDelivery(), source, opcode, null, buffers, pooled, getPayloadSize(sizes));
+            }
+
+            if (early) {
+                finish(rm, source);
+            }
+        } finally {
+            releaseScratch(s);
+            pool.release(packed);
+        }
+    }
+
+    private static long getTransferKey(int rank, int id) {
+        return ((long) rank << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    private void receiveChunkStart(ReadMessage rm, IbisIdentifier source) throws IOException, ClassNotFoundException {
+
+        int id = rm.readInt();
+        byte opcode = rm.readByte();
+        Object data = readData(rm, source);
+
+        int bufferCount = rm.readInt();
+
+        int[] sizes = new int[bufferCount];
+
+        for (int i = 0; i < bufferCount; i++) {
+            sizes[i] = rm.readInt();
+        }
+
+        int rank = impl.getRank(source);
+
+        Transfer t = new Transfer(opcode, data, sizes);
+
+        if (!(upcall instanceof StreamUpcall)) {
+            allocateTransfer(t, source);
+        }
+
+        if (t.total == 0) {
+            boolean early = dispatchesEarly();
+
+            if (!early) {
+                finish(rm, source);
+            }
+
+            completeTransfer(rank, source, t);
+
+            if (early) {
+                finish(rm, source);
+            }
+            return;
+        }
+
+        // Once this message is finished, its chunks may be received by another thread, so the transfer must be known by then.
+        transfers.put(getTransferKey(rank, id), t);
+
+        finish(rm, source);
+
+        if (upcall instanceof StreamUpcall) {
+            // The credits of the first message are not tied to any chunk.
+            impl.releaseCredits(rank, 0);
+        }
+    }
+
+    private void allocateTransfer(Transfer t, IbisIdentifier source) throws IOException {
+
+        if (t.sizes.length == 0) {
+            return;
+        }
+
+        t.buffers = upcall.allocateByteBuffers(impl.getName(), source, t.opcode, t.data, t.sizes);
+
+        if (t.buffers == null) {
+            t.buffers = allocateFromPool(t.sizes);
+            t.pooled = true;
+        }
+
+        t.bases = new int[t.sizes.length];
+
+        for (int i = 0; i < t.sizes.length; i++) {
+
+            if (t.sizes[i] > 0 && (t.buffers[i] == null || t.buffers[i].remaining() < t.sizes[i])) {
+                if (t.pooled) {
+                    pool.release(t.buffers);
+                }
+                throw new IOException("Chunked transfer with opcode " + t.opcode + " from " + source + " does not fit in the allocated buffers");
+            }
+
+            t.bases[i] = t.buffers[i] == null ? 0 : t.buffers[i].position();
+        }
+    }
+
+    private void receiveChunk(ReadMessage rm, IbisIdentifier source) throws IOException {
+
+        int id = rm.readInt();
+        int index = rm.readInt();
+        int offset = rm.readInt();
+        int length = rm.readInt();
+
+        int rank = impl.getRank(source);
+        long key = getTransferKey(rank, id);
+
+        Transfer t = transfers.get(key);
+
+        if (t == null) {
+            throw new IOException("UpcallChannel " + impl.getName() + " received a chunk of unknown transfer " + id + " from " + source);
+        }
+
+        if (length == CHUNK_ABORT) {
+            finish(rm, source);
+            transfers.remove(key);
+
+            if (t.pooled) {
+                pool.release(t.buffers);
+            }
+
+            // Return the credits of the abort itself, and those of the first message unless they were returned when streaming started.
+            impl.releaseCredits(rank, 0);
+
+            if (!(upcall instanceof StreamUpcall)) {
+                impl.releaseCredits(rank, 0);
+            }
+
+            logger.warn("UpcallChannel " + impl.getName() + " chunked transfer " + id + " from " + source + " was aborted by the sender");
+            return;
+        }
+
+        if (t.buffers == null) {
+            streamChunk(rm, rank, source, t, t.offsets[index] + offset, length);
+
+            if (t.received.addAndGet(length) == t.total) {
+                transfers.remove(key);
+            }
+            return;
+        }
+
+        // The chunk is read straight into its place in the buffers of the application.
+        ByteBuffer target = t.buffers[index].duplicate();
+        target.limit(t.bases[index] + offset + length);
+        target.position(t.bases[index] + offset);
+
+        rm.readByteBuffer(target);
+
+        boolean early = dispatchesEarly();
+
+        if (!early) {
+            finish(rm, source);
+        }
+
+        // Only counted once read, so the transfer is not completed while another thread is still reading an earlier chunk.
+        if (t.received.addAndGet(length) == t.total) {
+            transfers.remove(key);
+            completeTransfer(rank, source, t);
+        }
+
+        if (early) {
+            finish(rm, source);
+        }
+
+        impl.releaseCredits(rank, length);
+    }
+
+    private void streamChunk(ReadMessage rm, final int rank, final IbisIdentifier source, final Transfer t, final long offset, final int length)
+            throws IOException {
+
+        final ByteBuffer chunk = pool.allocate(length);
+
+        boolean early = dispatchesEarly();
+
+        try {
+            rm.readByteBuffer(chunk);
+
+            if (!early) {
+                finish(rm, source);
+            }
+        } catch (IOException e) {
+            pool.release(chunk);
+            throw e;
+        }
+
+        chunk.flip();
+
+        dispatcher.dispatch(rank, new Runnable() {
+            @Override
+            public void run() {
+                boolean traced = Tracer.isEnabled();
+
+                if (traced) {
+                    Tracer.record(Tracer.UPCALL_START, impl.getTraceId(), rank, t.opcode, length);
+                }
+
+                try {
+                    ((StreamUpcall) upcall).receiveChunk(impl.getName(), source, t.opcode, t.data, t.total, offset, chunk);
+                } finally {
+                    if (traced) {
+                        Tracer.record(Tracer.UPCALL_END, impl.getTraceId(), rank, t.opcode, length);
+                    }
+
+                    pool.release(chunk);
+                    impl.releaseCredits(rank, length);
+                }
+            }
+        });
+
+        if (early) {
+            finish(rm, source);
+        }
+    }
+
+    private void completeTransfer(int rank, IbisIdentifier source, Transfer t) {
+
+        if (upcall instanceof StreamUpcall) {
+            streamEmpty(rank, source, t);
+            return;
+        }
+
+        if (t.buffers != null) {
+            for (int i = 0; i < t.sizes.length; i++) {
+                ready(t.buffers[i], t.bases[i], t.sizes[i]);
             }
         }
 
-        rm.finish();
+        // The credits of the chunks were returned as they were read, so this only returns those of the first message.
+        deliver(source, t.opcode, t.data, t.buffers, t.pooled, 0);
+    }
 
-        upcall.receiveMessage(impl.getName(), source, opcode, data, buffers);
+    private void streamEmpty(final int rank, final IbisIdentifier source, final Transfer t) {
+        dispatcher.dispatch(rank, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ((StreamUpcall) upcall).receiveChunk(impl.getName(), source, t.opcode, t.data, 0, 0, ByteBuffer.allocate(0));
+                } finally {
+                    impl.releaseCredits(rank, 0);
+                }
+            }
+        });
     }
 }
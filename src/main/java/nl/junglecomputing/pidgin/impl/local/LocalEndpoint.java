@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.local;
+
+import java.io.IOException;
+
+import ibis.ipl.ReadMessage;
+
+/**
+ * The receiving side of a channel on one rank of a {@link LocalPool}.
+ */
+public interface LocalEndpoint {
+
+    /**
+     * Hands over a message from another rank. The message is owned by the endpoint from now on.
+     */
+    void deliver(ReadMessage rm) throws IOException;
+}
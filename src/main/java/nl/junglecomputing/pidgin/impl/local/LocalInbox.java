@@ -0,0 +1,150 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.local;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceiveTimedOutException;
+import nl.junglecomputing.pidgin.ChannelNotActiveException;
+import nl.junglecomputing.pidgin.impl.message.MessageSource;
+
+/**
+ * A queue of messages handed over by other threads. Adding and taking messages never locks: receivers that find the queue empty register
+ * themselves and park until a sender wakes them up.
+ */
+public final class LocalInbox implements MessageSource {
+
+    // The number of times a receiver polls an empty queue before it parks, as waking up a parked thread is far more expensive than a handoff.
+    // Spinning only helps if the sender can run at the same time.
+    private static final int SPIN_LIMIT = Runtime.getRuntime().availableProcessors() > 1 ? 1000 : 0;
+
+    private final String name;
+
+    private final ConcurrentLinkedQueue<ReadMessage> messages = new ConcurrentLinkedQueue<ReadMessage>();
+
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+
+    private volatile boolean closed = false;
+
+    public LocalInbox(String name) {
+        this.name = name;
+    }
+
+    public void add(ReadMessage rm) throws ChannelNotActiveException {
+
+        if (closed) {
+            throw new ChannelNotActiveException("Cannot deliver message, " + name + " is closed");
+        }
+
+        messages.add(rm);
+        wakeOne();
+    }
+
+    private void wakeOne() {
+
+        Thread t = waiters.peek();
+
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    @Override
+    public ReadMessage poll() {
+        return messages.poll();
+    }
+
+    @Override
+    public ReadMessage receive(long timeout) throws IOException {
+
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+
+        Thread current = Thread.currentThread();
+
+        for (int i = 0; i < SPIN_LIMIT; i++) {
+
+            ReadMessage rm = messages.poll();
+
+            if (rm != null) {
+                return rm;
+            }
+
+            Thread.onSpinWait();
+        }
+
+        while (true) {
+
+            ReadMessage rm = messages.poll();
+
+            if (rm != null) {
+                return rm;
+            }
+
+            if (closed) {
+                throw new ChannelNotActiveException("Cannot receive message, " + name + " is closed");
+            }
+
+            waiters.add(current);
+
+            try {
+                // A message added before we registered did not wake us up, so check again before parking.
+                if (!messages.isEmpty() || closed) {
+                    continue;
+                }
+
+                if (deadline == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long left = deadline - System.nanoTime();
+
+                    if (left <= 0) {
+                        throw new ReceiveTimedOutException("No message for " + name + " within " + timeout + " ms");
+                    }
+
+                    LockSupport.parkNanos(this, left);
+                }
+
+                if (Thread.interrupted()) {
+                    current.interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a message for " + name);
+                }
+            } finally {
+                waiters.remove(current);
+
+                // We may have been woken up for a message we are not going to take, so pass the wake up on.
+                if (!messages.isEmpty()) {
+                    wakeOne();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+
+        closed = true;
+
+        for (Thread t : waiters) {
+            LockSupport.unpark(t);
+        }
+    }
+}
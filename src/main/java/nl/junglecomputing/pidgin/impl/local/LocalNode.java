@@ -0,0 +1,73 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.local;
+
+import java.io.IOException;
+
+import ibis.ipl.IbisIdentifier;
+
+/**
+ * One rank of a {@link LocalPool}. Channels use it instead of an Ibis to publish their receiving side and to find those of their peers.
+ */
+public final class LocalNode {
+
+    private final LocalPool pool;
+
+    private final int rank;
+
+    private final IbisIdentifier identifier;
+
+    LocalNode(LocalPool pool, int rank, IbisIdentifier identifier) {
+        this.pool = pool;
+        this.rank = rank;
+        this.identifier = identifier;
+    }
+
+    public LocalPool getPool() {
+        return pool;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public IbisIdentifier identifier() {
+        return identifier;
+    }
+
+    public void register(String channel, LocalEndpoint endpoint) {
+        pool.register(channel, rank, endpoint);
+    }
+
+    public void unregister(String channel) {
+        pool.unregister(channel, rank);
+    }
+
+    /**
+     * Returns the receiving side of the given channel on the given peer, waiting at most timeout milliseconds for the peer to create it.
+     */
+    public LocalEndpoint lookup(String channel, IbisIdentifier peer, long timeout) throws IOException {
+
+        int peerRank = pool.getRank(peer);
+
+        if (peerRank < 0) {
+            throw new IOException(peer + " is not a member of local pool " + pool.getName());
+        }
+
+        return pool.lookup(channel, peerRank, timeout);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.local;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ibis.ipl.Ibis;
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.MessageUpcall;
+import nl.junglecomputing.pidgin.ChannelOptions;
+import nl.junglecomputing.pidgin.CollectiveChannel;
+import nl.junglecomputing.pidgin.DuplicateChannelException;
+import nl.junglecomputing.pidgin.ExplicitChannel;
+import nl.junglecomputing.pidgin.MessageUpcallChannel;
+import nl.junglecomputing.pidgin.Pidgin;
+import nl.junglecomputing.pidgin.ReceiveMode;
+import nl.junglecomputing.pidgin.Serialization;
+import nl.junglecomputing.pidgin.Upcall;
+import nl.junglecomputing.pidgin.UpcallChannel;
+import nl.junglecomputing.pidgin.impl.collective.CollectiveChannelImpl;
+import nl.junglecomputing.pidgin.impl.collective.Split;
+import nl.junglecomputing.pidgin.impl.ibis.ExplicitChannelImpl;
+import nl.junglecomputing.pidgin.impl.ibis.MessageUpcallChannelImpl;
+import nl.junglecomputing.pidgin.impl.ibis.UpcallChannelImpl;
+
+/**
+ * A {@link Pidgin} for one rank of a {@link LocalPool}, whose ranks all run in this JVM. The channels are the same as those of the Ibis
+ * implementation, but their messages are handed over in memory instead of being sent through Ibis. There is no Ibis, so {@link #getIbis()}
+ * returns <code>null</code>.
+ */
+public class LocalPidgin implements Pidgin {
+
+    private static final Logger logger = LoggerFactory.getLogger(LocalPidgin.class);
+
+    private final LocalNode node;
+
+    private final IbisIdentifier[] ids;
+
+    private final HashSet<String> channels = new HashSet<>();
+
+    // The number of splits done per tag.
+    private final HashMap<String, Integer> splits = new HashMap<>();
+
+    LocalPidgin(LocalNode node) {
+        this.node = node;
+        this.ids = node.getPool().getIdentifiers();
+    }
+
+    @Override
+    public Ibis getIbis() {
+        return null;
+    }
+
+    @Override
+    public int getRank() {
+        return node.getRank();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return ids.length;
+    }
+
+    @Override
+    public boolean isMaster() {
+        return node.getRank() == 0;
+    }
+
+    @Override
+    public IbisIdentifier[] getAllIdentifiers() {
+        return ids;
+    }
+
+    @Override
+    public IbisIdentifier getMyIdentifier() {
+        return node.identifier();
+    }
+
+    @Override
+    public IbisIdentifier getMaster() {
+        return ids[0];
+    }
+
+    @Override
+    public IbisIdentifier getElectionResult(String electTag, long timeout) throws IOException {
+        return node.getPool().getElectionResult(electTag, timeout);
+    }
+
+    @Override
+    public IbisIdentifier elect(String electTag) throws IOException {
+        return node.getPool().elect(electTag, node.identifier());
+    }
+
+    private final void checkChannelName(String name) throws DuplicateChannelException {
+        synchronized (channels) {
+            if (channels.contains(name)) {
+                throw new DuplicateChannelException("Channel already exists " + name);
+            }
+
+            channels.add(name);
+        }
+    }
+
+    private final void releaseChannelName(String name) {
+        synchronized (channels) {
+            channels.remove(name);
+        }
+    }
+
+    @Override
+    public IbisIdentifier[] split(String tag, IbisIdentifier[] participants, int color, int key) throws DuplicateChannelException, IOException {
+
+        String name = Split.getChannelName(tag, splits);
+
+        // If creating the channel fails, its name has already been released, and it may not be ours if it already existed.
+        ExplicitChannel channel = createExplicitChannel(name, participants, Split.getChannelOptions());
+
+        try {
+            return Split.split(channel, participants, color, key);
+        } finally {
+            releaseChannelName(name);
+        }
+    }
+
+    @Override
+    public UpcallChannel createUpcallChannel(String name, IbisIdentifier[] participants, Upcall upcall, ChannelOptions options)
+            throws DuplicateChannelException, IOException {
+
+        logger.info("Creating local UpcallChannel " + name);
+
+        checkChannelName(name);
+
+        try {
+            return new UpcallChannelImpl(node, name, upcall, participants, options);
+        } catch (IOException | RuntimeException e) {
+            releaseChannelName(name);
+            throw e;
+        }
+    }
+
+    @Override
+    public MessageUpcallChannel createMessageUpcallChannel(String name, IbisIdentifier[] participants, MessageUpcall upcall, ChannelOptions options)
+            throws DuplicateChannelException, IOException {
+
+        logger.info("Creating local MessageUpcallChannel " + name);
+
+        checkChannelName(name);
+
+        try {
+            return new MessageUpcallChannelImpl(node, name, upcall, participants, options);
+        } catch (IOException | RuntimeException e) {
+            releaseChannelName(name);
+            throw e;
+        }
+    }
+
+    @Override
+    public ExplicitChannel createExplicitChannel(String name, IbisIdentifier[] participants, ChannelOptions options)
+            throws DuplicateChannelException, IOException {
+
+        logger.info("Creating local ExplicitChannel " + name);
+
+        checkChannelName(name);
+
+        try {
+            return new ExplicitChannelImpl(node, name, participants, options);
+        } catch (IOException | RuntimeException e) {
+            releaseChannelName(name);
+            throw e;
+        }
+    }
+
+    @Override
+    public CollectiveChannel createCollectiveChannel(String name, IbisIdentifier[] participants, ChannelOptions options)
+            throws DuplicateChannelException, IOException {
+
+        logger.info("Creating local CollectiveChannel " + name);
+
+        if (options.getSerialization() == Serialization.BYTE) {
+            throw new IllegalArgumentException("CollectiveChannel " + name + " requires " + Serialization.OBJECT + " or " + Serialization.DATA
+                    + " serialization");
+        }
+
+        if (options.getReceiveMode() != ReceiveMode.ONE_TO_ONE) {
+            throw new IllegalArgumentException("CollectiveChannel " + name + " only supports receive mode " + ReceiveMode.ONE_TO_ONE);
+        }
+
+        return new CollectiveChannelImpl(createExplicitChannel(name, participants, options));
+    }
+}
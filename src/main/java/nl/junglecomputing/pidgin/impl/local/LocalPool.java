@@ -0,0 +1,198 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.local;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.impl.Location;
+
+/**
+ * A closed pool of ranks that run as threads in a single JVM. It plays the part of the Ibis registry: it hands out the identifiers, runs
+ * elections and lets the channels of different ranks find each other.
+ */
+public final class LocalPool {
+
+    private final String name;
+
+    private final IbisIdentifier[] ids;
+
+    private final HashMap<IbisIdentifier, Integer> ranks = new HashMap<IbisIdentifier, Integer>();
+
+    // The receiving side of each channel, keyed by channel name and rank.
+    private final HashMap<String, LocalEndpoint> endpoints = new HashMap<String, LocalEndpoint>();
+
+    private final HashMap<String, IbisIdentifier> elections = new HashMap<String, IbisIdentifier>();
+
+    private int joined = 0;
+
+    private int left = 0;
+
+    public LocalPool(String name, int size) {
+
+        if (size <= 0) {
+            throw new IllegalArgumentException("Local pool " + name + " needs at least one rank");
+        }
+
+        this.name = name;
+        this.ids = new IbisIdentifier[size];
+
+        Location location = new Location(new String[] { "localhost" });
+
+        for (int i = 0; i < size; i++) {
+            ids[i] = new ibis.ipl.impl.IbisIdentifier(Integer.toString(i), null, null, location, name, null);
+            ranks.put(ids[i], i);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSize() {
+        return ids.length;
+    }
+
+    public IbisIdentifier[] getIdentifiers() {
+        return ids.clone();
+    }
+
+    /**
+     * Returns the next rank of this pool that has not been handed out yet.
+     *
+     * @throws IllegalStateException
+     *             if all ranks have joined.
+     */
+    public synchronized LocalPidgin join() {
+
+        if (joined == ids.length) {
+            throw new IllegalStateException("All " + ids.length + " ranks of local pool " + name + " have already joined");
+        }
+
+        int rank = joined++;
+
+        return new LocalPidgin(new LocalNode(this, rank, ids[rank]));
+    }
+
+    /**
+     * Records that a rank has terminated. Returns <code>true</code> once all ranks have terminated.
+     */
+    public synchronized boolean leave() {
+        left++;
+        return left == ids.length;
+    }
+
+    int getRank(IbisIdentifier id) {
+        Integer result = ranks.get(id);
+        return result == null ? -1 : result;
+    }
+
+    private static String getKey(String channel, int rank) {
+        return channel + "@" + rank;
+    }
+
+    synchronized void register(String channel, int rank, LocalEndpoint endpoint) {
+        endpoints.put(getKey(channel, rank), endpoint);
+        notifyAll();
+    }
+
+    synchronized void unregister(String channel, int rank) {
+        endpoints.remove(getKey(channel, rank));
+    }
+
+    /**
+     * Returns the receiving side of the given channel on the given rank, waiting at most timeout milliseconds for that rank to create it.
+     */
+    synchronized LocalEndpoint lookup(String channel, int rank, long timeout) throws IOException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        String key = getKey(channel, rank);
+
+        LocalEndpoint result = endpoints.get(key);
+
+        try {
+            while (result == null) {
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    throw new IOException("Rank " + rank + " of local pool " + name + " did not create channel " + channel + " within " + timeout
+                            + " ms");
+                }
+
+                wait(remaining);
+                result = endpoints.get(key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for channel " + channel + " on rank " + rank);
+        }
+
+        return result;
+    }
+
+    synchronized IbisIdentifier elect(String tag, IbisIdentifier candidate) {
+
+        IbisIdentifier winner = elections.get(tag);
+
+        if (winner == null) {
+            winner = candidate;
+            elections.put(tag, winner);
+            notifyAll();
+        }
+
+        return winner;
+    }
+
+    /**
+     * Returns the winner of the given election, waiting at most timeout milliseconds, or indefinitely if timeout is 0. Returns
+     * <code>null</code> if there is no winner in time.
+     */
+    synchronized IbisIdentifier getElectionResult(String tag, long timeout) throws IOException {
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        IbisIdentifier winner = elections.get(tag);
+
+        try {
+            while (winner == null) {
+
+                if (timeout == 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+
+                    if (remaining <= 0) {
+                        return null;
+                    }
+
+                    wait(remaining);
+                }
+
+                winner = elections.get(tag);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for election " + tag);
+        }
+
+        return winner;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import ibis.ipl.SendPortIdentifier;
+
+/**
+ * A {@link SegmentedReadMessage} that reads the segments collected by a {@link BufferedWriteMessage}.
+ */
+public class BufferedReadMessage extends SegmentedReadMessage {
+
+    private final List<ByteBuffer> segments;
+
+    private int next = 1;
+
+    public BufferedReadMessage(SendPortIdentifier origin, List<ByteBuffer> segments) {
+        super(origin, segments.get(0));
+        this.segments = segments;
+    }
+
+    @Override
+    protected ByteBuffer nextSegment() throws IOException {
+        return next < segments.size() ? segments.get(next++) : null;
+    }
+
+    @Override
+    protected void finished() {
+        // Nothing to release, the segments are garbage collected.
+    }
+}
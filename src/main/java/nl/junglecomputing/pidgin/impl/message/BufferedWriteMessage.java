@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A {@link SegmentedWriteMessage} that collects its segments in memory and hands them over as a whole when it is finished.
+ */
+public abstract class BufferedWriteMessage extends SegmentedWriteMessage {
+
+    private static final int MIN_SEGMENT = 256;
+
+    private static final int MAX_SEGMENT = 1024 * 1024;
+
+    private final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+    private int nextSize = MIN_SEGMENT;
+
+    /**
+     * Receives the segments of a finished message, flipped so they can be read.
+     */
+    protected abstract void deliver(ArrayList<ByteBuffer> segments) throws IOException;
+
+    @Override
+    protected ByteBuffer nextSegment(ByteBuffer full, int min) throws IOException {
+
+        if (full != null) {
+            full.flip();
+            segments.add(full);
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(Math.max(min, nextSize));
+        nextSize = Math.min(MAX_SEGMENT, nextSize * 2);
+        return result;
+    }
+
+    @Override
+    protected void lastSegment(ByteBuffer last, boolean aborted) throws IOException {
+
+        if (aborted) {
+            segments.clear();
+            return;
+        }
+
+        if (last == null) {
+            last = ByteBuffer.allocate(0);
+        }
+
+        last.flip();
+        segments.add(last);
+        deliver(segments);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.SendPortIdentifier;
+
+/**
+ * A {@link ReadMessage} that forwards all calls to another one. Subclasses override the calls they want to observe.
+ */
+public abstract class ForwardingReadMessage implements ReadMessage {
+
+    protected final ReadMessage delegate;
+
+    protected ForwardingReadMessage(ReadMessage delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int remaining() throws IOException {
+        return delegate.remaining();
+    }
+
+    @Override
+    public int size() throws IOException {
+        return delegate.size();
+    }
+
+    @Override
+    public long bytesRead() throws IOException {
+        return delegate.bytesRead();
+    }
+
+    @Override
+    public long finish() throws IOException {
+        return delegate.finish();
+    }
+
+    @Override
+    public void finish(IOException e) {
+        delegate.finish(e);
+    }
+
+    @Override
+    public ReceivePort localPort() {
+        return delegate.localPort();
+    }
+
+    @Override
+    public SendPortIdentifier origin() {
+        return delegate.origin();
+    }
+
+    @Override
+    public long sequenceNumber() {
+        return delegate.sequenceNumber();
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return delegate.readBoolean();
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return delegate.readByte();
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return delegate.readChar();
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return delegate.readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return delegate.readInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return delegate.readLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return delegate.readFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return delegate.readDouble();
+    }
+
+    @Override
+    public String readString() throws IOException {
+        return delegate.readString();
+    }
+
+    @Override
+    public Object readObject() throws IOException, ClassNotFoundException {
+        return delegate.readObject();
+    }
+
+    @Override
+    public void readArray(boolean[] value) throws IOException {
+        delegate.readArray(value);
+    }
+
+    @Override
+    public void readArray(byte[] value) throws IOException {
+        delegate.readArray(value);
+    }
+
+    @Override
+    public void readArray(char[] value) throws IOException {
+        delegate.readArray(value);
+    }
+
+    @Override
+    public void readArray(short[] value) throws IOException {
+        delegate.readArray(value);
+    }
+
+    @Override
+    public void readArray(int[] value) throws IOException {
+        delegate.readArray(value);
+    }
+
+    @Override
+    public void readArray(long[] value) throws IOException {
+        delegate.readArray(value);
+    }
+
+    @Override
+    public void readArray(float[] value) throws IOException {
+        delegate.readArray(value);
+    }
+
+    @Override
+    public void readArray(double[] value) throws IOException {
+        delegate.readArray(value);
+    }
+
+    @Override
+    public void readArray(Object[] value) throws IOException, ClassNotFoundException {
+        delegate.readArray(value);
+    }
+
+    @Override
+    public void readArray(boolean[] value, int offset, int length) throws IOException {
+        delegate.readArray(value, offset, length);
+    }
+
+    @Override
+    public void readArray(byte[] value, int offset, int length) throws IOException {
+        delegate.readArray(value, offset, length);
+    }
+
+    @Override
+    public void readArray(char[] value, int offset, int length) throws IOException {
+        delegate.readArray(value, offset, length);
+    }
+
+    @Override
+    public void readArray(short[] value, int offset, int length) throws IOException {
+        delegate.readArray(value, offset, length);
+    }
+
+    @Override
+    public void readArray(int[] value, int offset, int length) throws IOException {
+        delegate.readArray(value, offset, length);
+    }
+
+    @Override
+    public void readArray(long[] value, int offset, int length) throws IOException {
+        delegate.readArray(value, offset, length);
+    }
+
+    @Override
+    public void readArray(float[] value, int offset, int length) throws IOException {
+        delegate.readArray(value, offset, length);
+    }
+
+    @Override
+    public void readArray(double[] value, int offset, int length) throws IOException {
+        delegate.readArray(value, offset, length);
+    }
+
+    @Override
+    public void readArray(Object[] value, int offset, int length) throws IOException, ClassNotFoundException {
+        delegate.readArray(value, offset, length);
+    }
+
+    @Override
+    public void readByteBuffer(ByteBuffer value) throws IOException {
+        delegate.readByteBuffer(value);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+/**
+ * A {@link WriteMessage} that forwards all calls to another one. Subclasses override the calls they want to observe.
+ */
+public abstract class ForwardingWriteMessage implements WriteMessage {
+
+    protected final WriteMessage delegate;
+
+    protected ForwardingWriteMessage(WriteMessage delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int send() throws IOException {
+        return delegate.send();
+    }
+
+    @Override
+    public void sync(int ticket) throws IOException {
+        delegate.sync(ticket);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        delegate.reset();
+    }
+
+    @Override
+    public long finish() throws IOException {
+        return delegate.finish();
+    }
+
+    @Override
+    public void finish(IOException e) {
+        delegate.finish(e);
+    }
+
+    @Override
+    public long bytesWritten() throws IOException {
+        return delegate.bytesWritten();
+    }
+
+    @Override
+    public int capacity() throws IOException {
+        return delegate.capacity();
+    }
+
+    @Override
+    public int remaining() throws IOException {
+        return delegate.remaining();
+    }
+
+    @Override
+    public SendPort localPort() {
+        return delegate.localPort();
+    }
+
+    @Override
+    public void writeBoolean(boolean value) throws IOException {
+        delegate.writeBoolean(value);
+    }
+
+    @Override
+    public void writeByte(byte value) throws IOException {
+        delegate.writeByte(value);
+    }
+
+    @Override
+    public void writeChar(char value) throws IOException {
+        delegate.writeChar(value);
+    }
+
+    @Override
+    public void writeShort(short value) throws IOException {
+        delegate.writeShort(value);
+    }
+
+    @Override
+    public void writeInt(int value) throws IOException {
+        delegate.writeInt(value);
+    }
+
+    @Override
+    public void writeLong(long value) throws IOException {
+        delegate.writeLong(value);
+    }
+
+    @Override
+    public void writeFloat(float value) throws IOException {
+        delegate.writeFloat(value);
+    }
+
+    @Override
+    public void writeDouble(double value) throws IOException {
+        delegate.writeDouble(value);
+    }
+
+    @Override
+    public void writeString(String value) throws IOException {
+        delegate.writeString(value);
+    }
+
+    @Override
+    public void writeObject(Object value) throws IOException {
+        delegate.writeObject(value);
+    }
+
+    @Override
+    public void writeArray(boolean[] value) throws IOException {
+        delegate.writeArray(value);
+    }
+
+    @Override
+    public void writeArray(byte[] value) throws IOException {
+        delegate.writeArray(value);
+    }
+
+    @Override
+    public void writeArray(char[] value) throws IOException {
+        delegate.writeArray(value);
+    }
+
+    @Override
+    public void writeArray(short[] value) throws IOException {
+        delegate.writeArray(value);
+    }
+
+    @Override
+    public void writeArray(int[] value) throws IOException {
+        delegate.writeArray(value);
+    }
+
+    @Override
+    public void writeArray(long[] value) throws IOException {
+        delegate.writeArray(value);
+    }
+
+    @Override
+    public void writeArray(float[] value) throws IOException {
+        delegate.writeArray(value);
+    }
+
+    @Override
+    public void writeArray(double[] value) throws IOException {
+        delegate.writeArray(value);
+    }
+
+    @Override
+    public void writeArray(Object[] value) throws IOException {
+        delegate.writeArray(value);
+    }
+
+    @Override
+    public void writeArray(boolean[] value, int offset, int length) throws IOException {
+        delegate.writeArray(value, offset, length);
+    }
+
+    @Override
+    public void writeArray(byte[] value, int offset, int length) throws IOException {
+        delegate.writeArray(value, offset, length);
+    }
+
+    @Override
+    public void writeArray(char[] value, int offset, int length) throws IOException {
+        delegate.writeArray(value, offset, length);
+    }
+
+    @Override
+    public void writeArray(short[] value, int offset, int length) throws IOException {
+        delegate.writeArray(value, offset, length);
+    }
+
+    @Override
+    public void writeArray(int[] value, int offset, int length) throws IOException {
+        delegate.writeArray(value, offset, length);
+    }
+
+    @Override
+    public void writeArray(long[] value, int offset, int length) throws IOException {
+        delegate.writeArray(value, offset, length);
+    }
+
+    @Override
+    public void writeArray(float[] value, int offset, int length) throws IOException {
+        delegate.writeArray(value, offset, length);
+    }
+
+    @Override
+    public void writeArray(double[] value, int offset, int length) throws IOException {
+        delegate.writeArray(value, offset, length);
+    }
+
+    @Override
+    public void writeArray(Object[] value, int offset, int length) throws IOException {
+        delegate.writeArray(value, offset, length);
+    }
+
+    @Override
+    public void writeByteBuffer(ByteBuffer value) throws IOException {
+        delegate.writeByteBuffer(value);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.message;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.SendPortIdentifier;
+
+/**
+ * Identifies the sender of a message that did not arrive through an Ibis receive port.
+ */
+public final class MessageOrigin implements SendPortIdentifier {
+
+    private static final long serialVersionUID = 3180584427914823719L;
+
+    private final String name;
+
+    private final IbisIdentifier ibis;
+
+    public MessageOrigin(String name, IbisIdentifier ibis) {
+        this.name = name;
+        this.ibis = ibis;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public IbisIdentifier ibisIdentifier() {
+        return ibis;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+
+        if (!(other instanceof MessageOrigin)) {
+            return false;
+        }
+
+        MessageOrigin o = (MessageOrigin) other;
+        return name.equals(o.name) && ibis.equals(o.ibis);
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode() * 31 + ibis.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "(" + name + ", " + ibis + ")";
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.message;
+
+import java.io.IOException;
+
+import ibis.ipl.ReadMessage;
+
+/**
+ * Delivers messages to a channel that does not receive through an Ibis receive port.
+ */
+public interface MessageSource {
+
+    /**
+     * Receives the next message, waiting at most timeout milliseconds, or indefinitely if timeout is 0.
+     *
+     * @throws ibis.ipl.ReceiveTimedOutException
+     *             if no message arrived in time.
+     * @throws nl.junglecomputing.pidgin.ChannelNotActiveException
+     *             if the source has been closed.
+     */
+    ReadMessage receive(long timeout) throws IOException;
+
+    /**
+     * Returns the next message if one is waiting, or <code>null</code> otherwise.
+     */
+    ReadMessage poll() throws IOException;
+
+    void close();
+}
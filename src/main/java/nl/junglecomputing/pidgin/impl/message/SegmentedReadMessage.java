@@ -0,0 +1,383 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceivePort;
+import ibis.ipl.SendPortIdentifier;
+
+/**
+ * A {@link ReadMessage} that reads the segments written by a {@link SegmentedWriteMessage}, which are supplied by a subclass.
+ */
+public abstract class SegmentedReadMessage implements ReadMessage {
+
+    private final SendPortIdentifier origin;
+
+    private ByteBuffer segment;
+
+    private long bytesRead = 0;
+
+    private boolean finished = false;
+
+    protected SegmentedReadMessage(SendPortIdentifier origin, ByteBuffer first) {
+        this.origin = origin;
+        this.segment = first;
+    }
+
+    /**
+     * Returns the next segment of this message, or <code>null</code> if the current segment was the last one.
+     */
+    protected abstract ByteBuffer nextSegment() throws IOException;
+
+    /**
+     * Called once when the message is finished, after all its segments have been consumed.
+     */
+    protected abstract void finished();
+
+    public final boolean isFinished() {
+        return finished;
+    }
+
+    private ByteBuffer next() throws IOException {
+
+        ByteBuffer result = nextSegment();
+
+        if (result == null) {
+            throw new EOFException("Read beyond the end of the message");
+        }
+
+        return result;
+    }
+
+    private ByteBuffer ensure(int bytes) throws IOException {
+        ByteBuffer b = space(bytes);
+        bytesRead += bytes;
+        return b;
+    }
+
+    // Returns a segment with at least one element of the given size remaining.
+    private ByteBuffer space(int elementSize) throws IOException {
+
+        if (finished) {
+            throw new IOException("Message already finished");
+        }
+
+        while (segment.remaining() < elementSize) {
+
+            if (segment.hasRemaining()) {
+                throw new IOException("Corrupt message: value split over two segments");
+            }
+
+            segment = next();
+        }
+
+        return segment;
+    }
+
+    private void advance(ByteBuffer b, int bytes) {
+        b.position(b.position() + bytes);
+        bytesRead += bytes;
+    }
+
+    @Override
+    public int remaining() throws IOException {
+        return -1;
+    }
+
+    @Override
+    public int size() throws IOException {
+        return -1;
+    }
+
+    @Override
+    public long bytesRead() throws IOException {
+        return bytesRead;
+    }
+
+    @Override
+    public long finish() throws IOException {
+
+        if (finished) {
+            throw new IOException("Message already finished");
+        }
+
+        // Skip anything that was not read.
+        while (segment != null) {
+            segment = nextSegment();
+        }
+
+        finished = true;
+        finished();
+        return bytesRead;
+    }
+
+    @Override
+    public void finish(IOException e) {
+
+        if (finished) {
+            return;
+        }
+
+        try {
+            finish();
+        } catch (IOException ignored) {
+            // The message is dropped anyway.
+        }
+    }
+
+    @Override
+    public ReceivePort localPort() {
+        return null;
+    }
+
+    @Override
+    public SendPortIdentifier origin() {
+        return origin;
+    }
+
+    @Override
+    public long sequenceNumber() {
+        return -1;
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return ensure(1).get() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return ensure(1).get();
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return ensure(2).getChar();
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        return ensure(2).getShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return ensure(4).getInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return ensure(8).getLong();
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return ensure(4).getFloat();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return ensure(8).getDouble();
+    }
+
+    @Override
+    public String readString() throws IOException {
+
+        int length = readInt();
+
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        readArray(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Object readObject() throws IOException, ClassNotFoundException {
+
+        byte[] bytes = new byte[readInt()];
+        readArray(bytes);
+
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    @Override
+    public void readArray(boolean[] value) throws IOException {
+        readArray(value, 0, value.length);
+    }
+
+    @Override
+    public void readArray(byte[] value) throws IOException {
+        readArray(value, 0, value.length);
+    }
+
+    @Override
+    public void readArray(char[] value) throws IOException {
+        readArray(value, 0, value.length);
+    }
+
+    @Override
+    public void readArray(short[] value) throws IOException {
+        readArray(value, 0, value.length);
+    }
+
+    @Override
+    public void readArray(int[] value) throws IOException {
+        readArray(value, 0, value.length);
+    }
+
+    @Override
+    public void readArray(long[] value) throws IOException {
+        readArray(value, 0, value.length);
+    }
+
+    @Override
+    public void readArray(float[] value) throws IOException {
+        readArray(value, 0, value.length);
+    }
+
+    @Override
+    public void readArray(double[] value) throws IOException {
+        readArray(value, 0, value.length);
+    }
+
+    @Override
+    public void readArray(Object[] value) throws IOException, ClassNotFoundException {
+        readArray(value, 0, value.length);
+    }
+
+    @Override
+    public void readArray(boolean[] value, int offset, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            value[offset + i] = readBoolean();
+        }
+    }
+
+    @Override
+    public void readArray(byte[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(1);
+            int n = Math.min(length, b.remaining());
+            b.get(value, offset, n);
+            bytesRead += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void readArray(char[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(2);
+            int n = Math.min(length, b.remaining() / 2);
+            b.asCharBuffer().get(value, offset, n);
+            advance(b, 2 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void readArray(short[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(2);
+            int n = Math.min(length, b.remaining() / 2);
+            b.asShortBuffer().get(value, offset, n);
+            advance(b, 2 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void readArray(int[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(4);
+            int n = Math.min(length, b.remaining() / 4);
+            b.asIntBuffer().get(value, offset, n);
+            advance(b, 4 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void readArray(long[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(8);
+            int n = Math.min(length, b.remaining() / 8);
+            b.asLongBuffer().get(value, offset, n);
+            advance(b, 8 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void readArray(float[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(4);
+            int n = Math.min(length, b.remaining() / 4);
+            b.asFloatBuffer().get(value, offset, n);
+            advance(b, 4 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void readArray(double[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(8);
+            int n = Math.min(length, b.remaining() / 8);
+            b.asDoubleBuffer().get(value, offset, n);
+            advance(b, 8 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void readArray(Object[] value, int offset, int length) throws IOException, ClassNotFoundException {
+        for (int i = 0; i < length; i++) {
+            value[offset + i] = readObject();
+        }
+    }
+
+    @Override
+    public void readByteBuffer(ByteBuffer value) throws IOException {
+        while (value.hasRemaining()) {
+            ByteBuffer b = space(1);
+            int n = Math.min(value.remaining(), b.remaining());
+            ByteBuffer part = b.duplicate();
+            part.limit(part.position() + n);
+            value.put(part);
+            advance(b, n);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import ibis.ipl.SendPort;
+import ibis.ipl.WriteMessage;
+
+/**
+ * A {@link WriteMessage} that writes into a series of segments supplied by a subclass, for transports that do not go through an Ibis send port.
+ * A primitive value is never split over two segments, but arrays and buffers may be. Strings and objects are written as a length followed by
+ * their UTF-8 or Java serialized form, so object identity is not preserved between separate writeObject calls.
+ */
+public abstract class SegmentedWriteMessage implements WriteMessage {
+
+    private ByteBuffer segment;
+
+    private long bytesWritten = 0;
+
+    private boolean finished = false;
+
+    /**
+     * Hands over a full segment, whose position is the number of bytes written to it, and returns a new segment with at least min bytes
+     * remaining. The full segment is <code>null</code> for the first call.
+     */
+    protected abstract ByteBuffer nextSegment(ByteBuffer full, int min) throws IOException;
+
+    /**
+     * Hands over the last segment of the message, which may be <code>null</code> if nothing was written. If aborted is set, the message was
+     * finished with an exception and should not be delivered.
+     */
+    protected abstract void lastSegment(ByteBuffer last, boolean aborted) throws IOException;
+
+    private ByteBuffer ensure(int bytes) throws IOException {
+        ByteBuffer b = space(bytes);
+        bytesWritten += bytes;
+        return b;
+    }
+
+    // Returns a segment with at least one element of the given size remaining.
+    private ByteBuffer space(int elementSize) throws IOException {
+
+        if (finished) {
+            throw new IOException("Message already finished");
+        }
+
+        if (segment == null || segment.remaining() < elementSize) {
+            segment = nextSegment(segment, elementSize);
+        }
+
+        return segment;
+    }
+
+    private void advance(ByteBuffer b, int bytes) {
+        b.position(b.position() + bytes);
+        bytesWritten += bytes;
+    }
+
+    @Override
+    public int send() throws IOException {
+        return 0;
+    }
+
+    @Override
+    public void sync(int ticket) throws IOException {
+        // Data is handed over when a segment is full or the message is finished.
+    }
+
+    @Override
+    public void reset() throws IOException {
+        // Objects are serialized separately, so there is no object table to reset.
+    }
+
+    @Override
+    public long finish() throws IOException {
+
+        if (finished) {
+            throw new IOException("Message already finished");
+        }
+
+        finished = true;
+        lastSegment(segment, false);
+        segment = null;
+        return bytesWritten;
+    }
+
+    @Override
+    public void finish(IOException e) {
+
+        if (finished) {
+            return;
+        }
+
+        finished = true;
+
+        try {
+            lastSegment(segment, true);
+        } catch (IOException ignored) {
+            // The message is lost anyway.
+        }
+
+        segment = null;
+    }
+
+    @Override
+    public long bytesWritten() throws IOException {
+        return bytesWritten;
+    }
+
+    @Override
+    public int capacity() throws IOException {
+        return -1;
+    }
+
+    @Override
+    public int remaining() throws IOException {
+        return -1;
+    }
+
+    @Override
+    public SendPort localPort() {
+        return null;
+    }
+
+    @Override
+    public void writeBoolean(boolean value) throws IOException {
+        ensure(1).put((byte) (value ? 1 : 0));
+    }
+
+    @Override
+    public void writeByte(byte value) throws IOException {
+        ensure(1).put(value);
+    }
+
+    @Override
+    public void writeChar(char value) throws IOException {
+        ensure(2).putChar(value);
+    }
+
+    @Override
+    public void writeShort(short value) throws IOException {
+        ensure(2).putShort(value);
+    }
+
+    @Override
+    public void writeInt(int value) throws IOException {
+        ensure(4).putInt(value);
+    }
+
+    @Override
+    public void writeLong(long value) throws IOException {
+        ensure(8).putLong(value);
+    }
+
+    @Override
+    public void writeFloat(float value) throws IOException {
+        ensure(4).putFloat(value);
+    }
+
+    @Override
+    public void writeDouble(double value) throws IOException {
+        ensure(8).putDouble(value);
+    }
+
+    @Override
+    public void writeString(String value) throws IOException {
+
+        if (value == null) {
+            writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInt(bytes.length);
+        writeArray(bytes);
+    }
+
+    @Override
+    public void writeObject(Object value) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+
+        writeInt(bytes.size());
+        writeArray(bytes.toByteArray());
+    }
+
+    @Override
+    public void writeArray(boolean[] value) throws IOException {
+        writeArray(value, 0, value.length);
+    }
+
+    @Override
+    public void writeArray(byte[] value) throws IOException {
+        writeArray(value, 0, value.length);
+    }
+
+    @Override
+    public void writeArray(char[] value) throws IOException {
+        writeArray(value, 0, value.length);
+    }
+
+    @Override
+    public void writeArray(short[] value) throws IOException {
+        writeArray(value, 0, value.length);
+    }
+
+    @Override
+    public void writeArray(int[] value) throws IOException {
+        writeArray(value, 0, value.length);
+    }
+
+    @Override
+    public void writeArray(long[] value) throws IOException {
+        writeArray(value, 0, value.length);
+    }
+
+    @Override
+    public void writeArray(float[] value) throws IOException {
+        writeArray(value, 0, value.length);
+    }
+
+    @Override
+    public void writeArray(double[] value) throws IOException {
+        writeArray(value, 0, value.length);
+    }
+
+    @Override
+    public void writeArray(Object[] value) throws IOException {
+        writeArray(value, 0, value.length);
+    }
+
+    @Override
+    public void writeArray(boolean[] value, int offset, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeBoolean(value[offset + i]);
+        }
+    }
+
+    @Override
+    public void writeArray(byte[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(1);
+            int n = Math.min(length, b.remaining());
+            b.put(value, offset, n);
+            bytesWritten += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void writeArray(char[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(2);
+            int n = Math.min(length, b.remaining() / 2);
+            b.asCharBuffer().put(value, offset, n);
+            advance(b, 2 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void writeArray(short[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(2);
+            int n = Math.min(length, b.remaining() / 2);
+            b.asShortBuffer().put(value, offset, n);
+            advance(b, 2 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void writeArray(int[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(4);
+            int n = Math.min(length, b.remaining() / 4);
+            b.asIntBuffer().put(value, offset, n);
+            advance(b, 4 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void writeArray(long[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(8);
+            int n = Math.min(length, b.remaining() / 8);
+            b.asLongBuffer().put(value, offset, n);
+            advance(b, 8 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void writeArray(float[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(4);
+            int n = Math.min(length, b.remaining() / 4);
+            b.asFloatBuffer().put(value, offset, n);
+            advance(b, 4 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void writeArray(double[] value, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer b = space(8);
+            int n = Math.min(length, b.remaining() / 8);
+            b.asDoubleBuffer().put(value, offset, n);
+            advance(b, 8 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    @Override
+    public void writeArray(Object[] value, int offset, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeObject(value[offset + i]);
+        }
+    }
+
+    @Override
+    public void writeByteBuffer(ByteBuffer value) throws IOException {
+        while (value.hasRemaining()) {
+            ByteBuffer b = space(1);
+            int n = Math.min(value.remaining(), b.remaining());
+            ByteBuffer part = value.duplicate();
+            part.limit(part.position() + n);
+            b.put(part);
+            value.position(value.position() + n);
+            bytesWritten += n;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.shm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Identifies the host, and the instance of the operating system, a process runs on. Two processes may share a {@link SharedMemoryRing} only if
+ * their identities are equal. Unlike the location of an Ibis, which can be set by the user, the identity consists of the boot id of the
+ * kernel and the host name. A container usually has a host name of its own, so processes in different containers do not use shared memory.
+ */
+public final class HostIdentity {
+
+    private static final Logger logger = LoggerFactory.getLogger(HostIdentity.class);
+
+    private static final Path BOOT_ID = Paths.get("/proc/sys/kernel/random/boot_id");
+
+    private static final byte[] identity = create();
+
+    private HostIdentity() {
+        // utility class
+    }
+
+    private static byte[] create() {
+
+        String host;
+
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            logger.info("Cannot determine the host name, shared memory is disabled", e);
+            return null;
+        }
+
+        String boot = "";
+
+        try {
+            boot = new String(Files.readAllBytes(BOOT_ID), StandardCharsets.US_ASCII).trim();
+        } catch (IOException e) {
+            // Not on Linux, so the host name has to do.
+        }
+
+        return (boot + "/" + host).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the identity of this host, or <code>null</code> if it could not be determined.
+     */
+    public static byte[] get() {
+        return identity == null ? null : identity.clone();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.shm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceiveTimedOutException;
+import ibis.ipl.SendPortIdentifier;
+import nl.junglecomputing.pidgin.impl.message.MessageSource;
+import nl.junglecomputing.pidgin.impl.message.SegmentedReadMessage;
+
+/**
+ * The receiving side of a {@link SharedMemoryRing}. Like an Ibis receive port, it hands out one message at a time: a new message can only be
+ * received once the previous one has been finished.
+ */
+public final class SharedMemoryReceiver implements MessageSource {
+
+    private final SharedMemoryRing ring;
+
+    private final SendPortIdentifier origin;
+
+    private final Semaphore reader = new Semaphore(1);
+
+    private final class RingReadMessage extends SegmentedReadMessage {
+
+        RingReadMessage(ByteBuffer first) {
+            super(origin, first);
+        }
+
+        @Override
+        protected ByteBuffer nextSegment() throws IOException {
+
+            if ((ring.getFlags() & SharedMemoryRing.FLAG_MORE) == 0) {
+                return null;
+            }
+
+            ring.release();
+
+            // The writer is in the middle of this message, so the next segment will follow, unless the writer leaves.
+            ByteBuffer result = ring.takeSegment();
+
+            if ((ring.getFlags() & SharedMemoryRing.FLAG_ABORT) != 0) {
+                throw new IOException("Message from " + origin + " was aborted by the sender");
+            }
+
+            return result;
+        }
+
+        @Override
+        protected void finished() {
+            ring.release();
+            reader.release();
+        }
+    }
+
+    public SharedMemoryReceiver(SharedMemoryRing ring, SendPortIdentifier origin) {
+        this.ring = ring;
+        this.origin = origin;
+    }
+
+    @Override
+    public ReadMessage receive(long timeout) throws IOException {
+
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+
+        try {
+            if (timeout > 0) {
+                if (!reader.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new ReceiveTimedOutException("No message from " + origin + " within " + timeout + " ms");
+                }
+            } else {
+                reader.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the previous message from " + origin + " to finish");
+        }
+
+        try {
+            while (true) {
+                ByteBuffer first = ring.take(deadline);
+
+                if (first == null) {
+                    throw new ReceiveTimedOutException("No message from " + origin + " within " + timeout + " ms");
+                }
+
+                if (!skipAborted()) {
+                    return new RingReadMessage(first);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            reader.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public ReadMessage poll() throws IOException {
+
+        if (!reader.tryAcquire()) {
+            return null;
+        }
+
+        while (true) {
+            ByteBuffer first = ring.poll();
+
+            if (first == null) {
+                reader.release();
+                return null;
+            }
+
+            if (!skipAborted()) {
+                return new RingReadMessage(first);
+            }
+        }
+    }
+
+    // Drops a message that consists of nothing but an aborted record.
+    private boolean skipAborted() {
+
+        if ((ring.getFlags() & SharedMemoryRing.FLAG_ABORT) != 0) {
+            ring.release();
+            return true;
+        }
+
+        return false;
+    }
+
+    public SendPortIdentifier getOrigin() {
+        return origin;
+    }
+
+    @Override
+    public void close() {
+        ring.close(true);
+    }
+}
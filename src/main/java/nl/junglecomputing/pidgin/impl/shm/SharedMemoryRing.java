@@ -0,0 +1,441 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.shm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import nl.junglecomputing.pidgin.ChannelNotActiveException;
+
+/**
+ * A single-producer, single-consumer ring buffer in a memory-mapped file, used to pass messages between processes on the same host. The file
+ * starts with a header holding the read and write positions on separate cache lines, followed by the data area. The data area contains records
+ * of an 8 byte header (length and flags) followed by the payload, padded to a multiple of 8 bytes. A record never wraps around the end of the
+ * ring: the remaining space is skipped using a padding record instead.
+ *
+ * The header also holds the process id of the writer and whether it has closed the ring, so a reader waiting for the rest of a message can
+ * tell that it will never arrive.
+ */
+public final class SharedMemoryRing {
+
+    static final int FLAG_MORE = 1;
+    static final int FLAG_PAD = 2;
+    static final int FLAG_ABORT = 4;
+
+    private static final long MAGIC = 0x50494447494e5231L;
+
+    private static final int HEAD = 0;
+    private static final int TAIL = 64;
+    private static final int MAGIC_OFFSET = 128;
+    private static final int CAPACITY_OFFSET = 136;
+    private static final int CLOSED_OFFSET = 144;
+    private static final int WRITER_OFFSET = 152;
+    private static final int WRITER_CLOSED_OFFSET = 160;
+    private static final int DATA = 192;
+
+    private static final int RECORD_HEADER = 8;
+
+    public static final int MIN_CAPACITY = 4096;
+
+    // Waiting starts by spinning, then parks for increasingly long periods.
+    private static final int SPINS = 128;
+    private static final long MIN_PARK = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // How often a reader waiting for the next segment of a message checks that the writer is still there.
+    private static final long WRITER_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final File file;
+
+    private final ByteBuffer mapping;
+
+    private final ByteBuffer data;
+
+    private final int capacity;
+
+    private final int mask;
+
+    // The largest segment handed to a writer, so a large message is passed on in pieces the reader can consume while the next is written.
+    private final int maxSegment;
+
+    // Producer state.
+    private long tail;
+    private long cachedHead;
+
+    // Consumer state.
+    private long head;
+    private int recordLength;
+    private int recordFlags;
+    private ProcessHandle writer;
+
+    private volatile boolean stopped = false;
+
+    private SharedMemoryRing(File file, ByteBuffer mapping, int capacity) {
+        this.file = file;
+        this.mapping = mapping;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.maxSegment = Math.max(MIN_CAPACITY / 2, capacity / 4);
+
+        ByteBuffer tmp = mapping.duplicate();
+        tmp.position(DATA);
+        tmp.limit(DATA + capacity);
+        this.data = tmp.slice();
+
+        this.tail = (long) LONGS.getAcquire(mapping, TAIL);
+        this.head = (long) LONGS.getAcquire(mapping, HEAD);
+        this.cachedHead = head;
+    }
+
+    private static ByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Creates a new, empty ring in the given file, replacing any file left behind by an earlier run. Called by the receiving side. The file only
+     * appears under its final name once it has been initialized.
+     */
+    public static SharedMemoryRing create(File file, int capacity) throws IOException {
+
+        if (capacity < MIN_CAPACITY || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring capacity must be a power of two of at least " + MIN_CAPACITY);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+
+        Files.deleteIfExists(tmp.toPath());
+
+        ByteBuffer mapping = map(tmp, DATA + capacity);
+        mapping.putLong(CAPACITY_OFFSET, capacity);
+        LONGS.setRelease(mapping, MAGIC_OFFSET, MAGIC);
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        tmp.deleteOnExit();
+        file.deleteOnExit();
+
+        return new SharedMemoryRing(file, mapping, capacity);
+    }
+
+    /**
+     * Opens a ring created by the receiving side, waiting at most timeout milliseconds for it to appear.
+     */
+    public static SharedMemoryRing open(File file, long timeout) throws IOException {
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        for (int round = 0; !file.exists(); round++) {
+            if (System.nanoTime() - deadline >= 0) {
+                throw new IOException("Shared memory ring " + file + " did not appear within " + timeout + " ms");
+            }
+            pause(round);
+        }
+
+        ByteBuffer mapping = map(file, DATA);
+
+        if ((long) LONGS.getAcquire(mapping, MAGIC_OFFSET) != MAGIC) {
+            throw new IOException("File " + file + " is not a shared memory ring");
+        }
+
+        int capacity = (int) mapping.getLong(CAPACITY_OFFSET);
+
+        mapping = map(file, DATA + capacity);
+
+        LONGS.setRelease(mapping, WRITER_CLOSED_OFFSET, 0L);
+        LONGS.setRelease(mapping, WRITER_OFFSET, ProcessHandle.current().pid());
+
+        return new SharedMemoryRing(file, mapping, capacity);
+    }
+
+    static void pause(int round) {
+        if (round < SPINS) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK, MIN_PARK << Math.min(20, (round - SPINS) / 16)));
+        }
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private boolean isClosed() {
+        return stopped || (long) LONGS.getAcquire(mapping, CLOSED_OFFSET) != 0;
+    }
+
+    private long awaitFree(int bytes) throws IOException {
+
+        for (int round = 0;; round++) {
+
+            long free = capacity - (tail - cachedHead);
+
+            if (free >= bytes) {
+                return free;
+            }
+
+            cachedHead = (long) LONGS.getAcquire(mapping, HEAD);
+
+            if (capacity - (tail - cachedHead) >= bytes) {
+                continue;
+            }
+
+            if (isClosed()) {
+                throw new ChannelNotActiveException("Receiver closed shared memory ring " + file);
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for space in shared memory ring " + file);
+            }
+
+            pause(round);
+        }
+    }
+
+    /**
+     * Returns a segment of the data area with at least min bytes remaining, waiting until the reader has made enough room.
+     */
+    ByteBuffer claim(int min) throws IOException {
+
+        int need = RECORD_HEADER + align(min);
+
+        if (need > capacity / 2) {
+            throw new IOException("Value of " + min + " bytes does not fit in shared memory ring " + file);
+        }
+
+        int pos = (int) (tail & mask);
+        int toEnd = capacity - pos;
+
+        if (toEnd < need) {
+            // Skip the rest of the ring, so the record does not wrap around.
+            awaitFree(toEnd);
+            data.putInt(pos, toEnd - RECORD_HEADER);
+            data.putInt(pos + 4, FLAG_PAD);
+            tail += toEnd;
+            LONGS.setRelease(mapping, TAIL, tail);
+            pos = 0;
+            toEnd = capacity;
+        }
+
+        long free = awaitFree(need);
+
+        int claimed = (int) Math.min(Math.min(toEnd, free) - RECORD_HEADER, maxSegment);
+
+        ByteBuffer result = data.duplicate();
+        result.limit(pos + RECORD_HEADER + claimed);
+        result.position(pos + RECORD_HEADER);
+        return result.slice();
+    }
+
+    /**
+     * Makes the claimed segment visible to the reader. The position of the segment is the number of bytes written into it.
+     */
+    void publish(ByteBuffer segment, int flags) {
+
+        int length = segment.position();
+        int pos = (int) (tail & mask);
+
+        data.putInt(pos, length);
+        data.putInt(pos + 4, flags);
+
+        tail += RECORD_HEADER + align(length);
+        LONGS.setRelease(mapping, TAIL, tail);
+    }
+
+    /**
+     * Returns the next record, or <code>null</code> if the writer has not published one yet. The record stays valid until {@link #release()}.
+     */
+    ByteBuffer poll() {
+
+        while (true) {
+
+            long t = (long) LONGS.getAcquire(mapping, TAIL);
+
+            if (t == head) {
+                return null;
+            }
+
+            int pos = (int) (head & mask);
+            int length = data.getInt(pos);
+            int flags = data.getInt(pos + 4);
+
+            if ((flags & FLAG_PAD) != 0) {
+                head += RECORD_HEADER + length;
+                LONGS.setRelease(mapping, HEAD, head);
+                continue;
+            }
+
+            recordLength = length;
+            recordFlags = flags;
+
+            ByteBuffer result = data.duplicate();
+            result.limit(pos + RECORD_HEADER + length);
+            result.position(pos + RECORD_HEADER);
+            return result.slice();
+        }
+    }
+
+    /**
+     * Waits for the next record until the deadline (in terms of {@link System#nanoTime()}), or forever if deadline is 0. Returns
+     * <code>null</code> if the deadline passed.
+     */
+    ByteBuffer take(long deadline) throws IOException {
+
+        for (int round = 0;; round++) {
+
+            ByteBuffer result = poll();
+
+            if (result != null) {
+                return result;
+            }
+
+            if (stopped) {
+                throw new ChannelNotActiveException("Shared memory ring " + file + " closed");
+            }
+
+            if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for a message in shared memory ring " + file);
+            }
+
+            pause(round);
+        }
+    }
+
+    /**
+     * Waits for the next segment of a message the writer is in the middle of. Unlike {@link #take(long)}, this fails if the writer closes the
+     * ring or its process ends before publishing it.
+     */
+    ByteBuffer takeSegment() throws IOException {
+
+        long nextCheck = System.nanoTime() + WRITER_CHECK_INTERVAL;
+
+        for (int round = 0;; round++) {
+
+            ByteBuffer result = poll();
+
+            if (result != null) {
+                return result;
+            }
+
+            if (stopped) {
+                throw new ChannelNotActiveException("Shared memory ring " + file + " closed");
+            }
+
+            if (System.nanoTime() - nextCheck >= 0) {
+
+                if (isWriterGone()) {
+                    // The writer may have published the segment just before it left.
+                    result = poll();
+
+                    if (result == null) {
+                        throw new IOException("Writer of shared memory ring " + file + " left in the middle of a message");
+                    }
+
+                    return result;
+                }
+
+                nextCheck = System.nanoTime() + WRITER_CHECK_INTERVAL;
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for a message in shared memory ring " + file);
+            }
+
+            pause(round);
+        }
+    }
+
+    private boolean isWriterGone() {
+
+        if ((long) LONGS.getAcquire(mapping, WRITER_CLOSED_OFFSET) != 0) {
+            return true;
+        }
+
+        long pid = (long) LONGS.getAcquire(mapping, WRITER_OFFSET);
+
+        if (pid == 0) {
+            return false;
+        }
+
+        // The handle is kept, as it also tells a new process that reuses the id apart from the writer.
+        if (writer == null || writer.pid() != pid) {
+            writer = ProcessHandle.of(pid).orElse(null);
+
+            if (writer == null) {
+                return true;
+            }
+        }
+
+        return !writer.isAlive();
+    }
+
+    int getFlags() {
+        return recordFlags;
+    }
+
+    /**
+     * Frees the space of the current record.
+     */
+    void release() {
+        head += RECORD_HEADER + align(recordLength);
+        LONGS.setRelease(mapping, HEAD, head);
+    }
+
+    /**
+     * Closes the ring. On the receiving side, this also tells the writer to stop and removes the file. On the writing side, this tells a reader
+     * waiting for the rest of a message that it will not arrive.
+     */
+    public void close(boolean receiver) {
+
+        stopped = true;
+
+        if (receiver) {
+            LONGS.setRelease(mapping, CLOSED_OFFSET, 1L);
+
+            if (!file.delete() && file.exists()) {
+                file.deleteOnExit();
+            }
+        } else {
+            LONGS.setRelease(mapping, WRITER_CLOSED_OFFSET, 1L);
+        }
+    }
+}
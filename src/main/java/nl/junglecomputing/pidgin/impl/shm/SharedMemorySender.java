@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.shm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.impl.message.SegmentedWriteMessage;
+
+/**
+ * The sending side of a {@link SharedMemoryRing}. Like an Ibis send port, it allows one message at a time: a new message waits until the
+ * previous one has been finished.
+ */
+public final class SharedMemorySender {
+
+    private final SharedMemoryRing ring;
+
+    private final Semaphore writer = new Semaphore(1);
+
+    private final class RingWriteMessage extends SegmentedWriteMessage {
+
+        @Override
+        protected ByteBuffer nextSegment(ByteBuffer full, int min) throws IOException {
+
+            if (full != null) {
+                ring.publish(full, SharedMemoryRing.FLAG_MORE);
+            }
+
+            return ring.claim(min);
+        }
+
+        @Override
+        protected void lastSegment(ByteBuffer last, boolean aborted) throws IOException {
+            try {
+                if (last == null) {
+                    last = ring.claim(0);
+                }
+
+                ring.publish(last, aborted ? SharedMemoryRing.FLAG_ABORT : 0);
+            } finally {
+                writer.release();
+            }
+        }
+    }
+
+    public SharedMemorySender(SharedMemoryRing ring) {
+        this.ring = ring;
+    }
+
+    public WriteMessage newMessage() throws IOException {
+
+        try {
+            writer.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the previous message to " + ring.getFile() + " to finish");
+        }
+
+        return new RingWriteMessage();
+    }
+
+    public void close() {
+        ring.close(false);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.trace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Converts trace dumps written by {@link Tracer} to the JSON trace event format, which can be opened in chrome://tracing or Perfetto. Each dump
+ * becomes a process in the timeline, with a track per thread. Dumps of several nodes can be combined: their events are placed on a common time
+ * axis using the wall clock time recorded in each dump, so they line up as well as the clocks of the nodes do.
+ *
+ * Usage: ChromeTraceConverter &lt;output.json&gt; &lt;trace.bin&gt;...
+ */
+public final class ChromeTraceConverter {
+
+    private static final class Dump {
+        String process;
+        long wallMillis;
+        long nanos;
+        String[] channels;
+        final ArrayList<Track> tracks = new ArrayList<Track>();
+
+        // Converts a System.nanoTime() of this process to wall clock nanoseconds.
+        long toWall(long time) {
+            return wallMillis * 1000000L + (time - nanos);
+        }
+    }
+
+    private static final class Track {
+        long threadId;
+        String threadName;
+        long[] events;
+    }
+
+    private ChromeTraceConverter() {
+        // Utility class
+    }
+
+    private static Dump read(File file) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+
+            if (in.readInt() != Tracer.MAGIC) {
+                throw new IOException(file + " is not a Pidgin trace");
+            }
+
+            int version = in.readInt();
+
+            if (version != Tracer.VERSION) {
+                throw new IOException(file + " has unsupported trace version " + version);
+            }
+
+            Dump d = new Dump();
+            d.process = in.readUTF();
+            d.wallMillis = in.readLong();
+            d.nanos = in.readLong();
+            d.channels = new String[in.readInt()];
+
+            for (int i = 0; i < d.channels.length; i++) {
+                d.channels[i] = in.readUTF();
+            }
+
+            int threads = in.readInt();
+
+            for (int t = 0; t < threads; t++) {
+                Track track = new Track();
+                track.threadId = in.readLong();
+                track.threadName = in.readUTF();
+                track.events = new long[in.readInt() * TraceBuffer.EVENT_LONGS];
+
+                for (int i = 0; i < track.events.length; i++) {
+                    track.events[i] = in.readLong();
+                }
+
+                d.tracks.add(track);
+            }
+
+            return d;
+        }
+    }
+
+    private static String quote(String s) {
+
+        StringBuilder b = new StringBuilder(s.length() + 2).append('"');
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format("\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+
+        return b.append('"').toString();
+    }
+
+    private static String getName(int type, int opcode) {
+        switch (type) {
+        case Tracer.SEND_START:
+        case Tracer.SEND_END:
+            return "send";
+        case Tracer.RECEIVE_START:
+        case Tracer.RECEIVE_END:
+            return "receive";
+        case Tracer.UPCALL_START:
+        case Tracer.UPCALL_END:
+            return "upcall " + opcode;
+        case Tracer.MESSAGE_SEND_START:
+        case Tracer.MESSAGE_SEND_END:
+            return "send " + opcode;
+        default:
+            return "unknown " + type;
+        }
+    }
+
+    private static boolean isStart(int type) {
+        return type == Tracer.SEND_START || type == Tracer.RECEIVE_START || type == Tracer.UPCALL_START || type == Tracer.MESSAGE_SEND_START;
+    }
+
+    /**
+     * Writes the events of the given dumps as a JSON trace.
+     */
+    public static void convert(File[] inputs, Writer out) throws IOException {
+
+        ArrayList<Dump> dumps = new ArrayList<Dump>();
+
+        long base = Long.MAX_VALUE;
+
+        for (File f : inputs) {
+            Dump d = read(f);
+            dumps.add(d);
+
+            for (Track t : d.tracks) {
+                if (t.events.length > 0) {
+                    base = Math.min(base, d.toWall(t.events[0]));
+                }
+            }
+        }
+
+        out.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n");
+
+        String separator = "";
+
+        for (int p = 0; p < dumps.size(); p++) {
+
+            Dump d = dumps.get(p);
+            int pid = p + 1;
+
+            out.write(separator + "{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":0,\"args\":{\"name\":" + quote(d.process)
+                    + "}}");
+            separator = ",\n";
+
+            for (Track t : d.tracks) {
+
+                out.write(separator + "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid + ",\"tid\":" + t.threadId + ",\"args\":{\"name\":"
+                        + quote(t.threadName) + "}}");
+
+                // The start of an event may have been overwritten in the ring, so ends without a start are dropped.
+                int depth = 0;
+
+                for (int i = 0; i < t.events.length; i += TraceBuffer.EVENT_LONGS) {
+
+                    long meta = t.events[i + 1];
+                    long size = t.events[i + 2];
+
+                    int type = Tracer.getType(meta);
+                    int opcode = Tracer.getOpcode(meta);
+                    int channel = Tracer.getChannel(meta);
+                    int rank = Tracer.getRank(meta);
+
+                    boolean start = isStart(type);
+
+                    if (!start) {
+                        if (depth == 0) {
+                            continue;
+                        }
+                        depth--;
+                    } else {
+                        depth++;
+                    }
+
+                    double ts = (d.toWall(t.events[i]) - base) / 1000.0;
+
+                    String channelName = channel < d.channels.length ? d.channels[channel] : Integer.toString(channel);
+
+                    // The viewer merges the arguments of the begin and end of an event. The size is known at the end.
+                    String args = start ? "\"channel\":" + quote(channelName) + ",\"peer\":" + rank : "\"size\":" + size;
+
+                    out.write(separator + "{\"name\":" + quote(getName(type, opcode)) + ",\"cat\":" + quote(channelName) + ",\"ph\":\""
+                            + (start ? "B" : "E") + "\",\"ts\":" + String.format(Locale.ROOT, "%.3f", ts) + ",\"pid\":" + pid + ",\"tid\":"
+                            + t.threadId + ",\"args\":{" + args + "}}");
+                }
+            }
+        }
+
+        out.write("\n]}\n");
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 2) {
+            System.err.println("Usage: ChromeTraceConverter <output.json> <trace.bin>...");
+            System.exit(1);
+        }
+
+        File[] inputs = new File[args.length - 1];
+
+        for (int i = 1; i < args.length; i++) {
+            inputs[i - 1] = new File(args[i]);
+        }
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(new File(args[0]).toPath()), StandardCharsets.UTF_8))) {
+            convert(inputs, out);
+        }
+    }
+}
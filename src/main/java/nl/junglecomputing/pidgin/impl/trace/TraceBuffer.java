@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.trace;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ring of trace events written by a single thread. Each event takes three longs: the time, the packed type, opcode, channel and rank, and
+ * the size. The array is allocated up front, so recording an event does not allocate. When the ring is full the oldest events are overwritten.
+ */
+final class TraceBuffer {
+
+    static final int EVENT_LONGS = 3;
+
+    private final WeakReference<Thread> thread;
+
+    private final long threadId;
+
+    private final String threadName;
+
+    private final long[] events;
+
+    private final int mask;
+
+    // Only written by the owning thread.
+    private long next = 0;
+
+    // The number of events written, published after each event so a concurrent dump sees complete events.
+    private final AtomicLong published = new AtomicLong();
+
+    TraceBuffer(Thread thread, int capacity) {
+        this.thread = new WeakReference<Thread>(thread);
+        this.threadId = thread.getId();
+        this.threadName = thread.getName();
+        this.events = new long[capacity * EVENT_LONGS];
+        this.mask = capacity - 1;
+    }
+
+    void record(long time, long meta, long size) {
+        int index = (int) (next & mask) * EVENT_LONGS;
+        events[index] = time;
+        events[index + 1] = meta;
+        events[index + 2] = size;
+        published.lazySet(++next);
+    }
+
+    boolean isAlive() {
+        Thread t = thread.get();
+        return t != null && t.isAlive();
+    }
+
+    /**
+     * Writes the events that are in the ring. The owner may continue recording while this runs, so the events are copied first, and those
+     * that were overwritten during the copy are skipped.
+     */
+    void write(DataOutputStream out) throws IOException {
+
+        int capacity = mask + 1;
+
+        long end = published.get();
+        long start = Math.max(0, end - capacity);
+
+        long[] copy = new long[(int) (end - start) * EVENT_LONGS];
+
+        for (long i = start; i < end; i++) {
+            System.arraycopy(events, (int) (i & mask) * EVENT_LONGS, copy, (int) (i - start) * EVENT_LONGS, EVENT_LONGS);
+        }
+
+        // The owner may be writing the event after the last published one, whose slot is that of the oldest event in the ring.
+        long valid = Math.max(start, published.get() - capacity + 1);
+
+        out.writeLong(threadId);
+        out.writeUTF(threadName);
+        out.writeInt((int) (end - valid));
+
+        for (int i = (int) (valid - start) * EVENT_LONGS; i < copy.length; i++) {
+            out.writeLong(copy[i]);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.impl.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records message events in a ring buffer per thread. Tracing is off by default. While it is off, instrumented code only reads a volatile flag.
+ * A dump contains, per thread, the most recent events of that thread, and can be converted to a timeline with {@link ChromeTraceConverter}.
+ *
+ * The dump format is a sequence of big-endian values: the magic number and version, the name of the process, the wall clock time in
+ * milliseconds and the {@link System#nanoTime()} at the dump, the channel names, and per thread its id, name and events. Each event packs its
+ * type and opcode in a byte each, the channel id in 24 bits and the rank in 24 bits.
+ */
+public final class Tracer {
+
+    private static final Logger logger = LoggerFactory.getLogger(Tracer.class);
+
+    public static final String TRACE_PROPERTY = "pidgin.trace";
+    public static final String EVENTS_PROPERTY = "pidgin.trace.events";
+    public static final String SIGNAL_PROPERTY = "pidgin.trace.signal";
+    public static final String DIRECTORY_PROPERTY = "pidgin.trace.directory";
+
+    public static final int DEFAULT_EVENTS = 64 * 1024;
+
+    // Keeps the ring of a thread within a single array.
+    public static final int MAX_EVENTS = 1 << 26;
+
+    static final int MAGIC = 0x50475452; // "PGTR"
+    static final int VERSION = 2;
+
+    // The number of channel ids that fit in an event. Channels registered beyond that share the last id.
+    static final int MAX_CHANNELS = 1 << 24;
+
+    static final String OTHER_CHANNELS = "(other channels)";
+
+    // A wire message sent or received by a channel.
+    public static final byte SEND_START = 1;
+    public static final byte SEND_END = 2;
+    public static final byte RECEIVE_START = 3;
+    public static final byte RECEIVE_END = 4;
+
+    // A message handed to the upcall of an UpcallChannel, and a message sent by one. These carry an opcode.
+    public static final byte UPCALL_START = 5;
+    public static final byte UPCALL_END = 6;
+    public static final byte MESSAGE_SEND_START = 7;
+    public static final byte MESSAGE_SEND_END = 8;
+
+    private static volatile boolean enabled = false;
+
+    private static volatile int capacity = DEFAULT_EVENTS;
+
+    private static final ThreadLocal<TraceBuffer> buffer = new ThreadLocal<TraceBuffer>();
+
+    private static final CopyOnWriteArrayList<TraceBuffer> buffers = new CopyOnWriteArrayList<TraceBuffer>();
+
+    private static final ConcurrentHashMap<String, Integer> channelIds = new ConcurrentHashMap<String, Integer>();
+
+    private static final ArrayList<String> channels = new ArrayList<String>();
+
+    private static final AtomicInteger dumps = new AtomicInteger();
+
+    static {
+        String events = System.getProperty(EVENTS_PROPERTY);
+
+        if (events != null) {
+            setCapacity(Integer.parseInt(events));
+        }
+
+        if (Boolean.getBoolean(TRACE_PROPERTY)) {
+            enabled = true;
+        }
+
+        String signal = System.getProperty(SIGNAL_PROPERTY);
+
+        if (signal != null) {
+            dumpOnSignal(signal, new File(System.getProperty(DIRECTORY_PROPERTY, System.getProperty("java.io.tmpdir"))));
+        }
+    }
+
+    private Tracer() {
+        // Utility class
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * Sets the number of events kept per thread, which is rounded up to a power of two. Only applies to threads that start tracing afterwards.
+     */
+    public static void setCapacity(int events) {
+
+        if (events <= 0 || events > MAX_EVENTS) {
+            throw new IllegalArgumentException("Number of trace events must be between 1 and " + MAX_EVENTS);
+        }
+
+        int rounded = Integer.highestOneBit(events);
+        capacity = rounded < events ? rounded << 1 : rounded;
+    }
+
+    /**
+     * Returns the id used in trace events for the given channel, assigning a new one if needed. A channel created again with the same name gets
+     * the same id. Once all ids are taken, new channels get the id of {@value #OTHER_CHANNELS}.
+     */
+    public static int register(String channel) {
+
+        Integer id = channelIds.get(channel);
+
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (channels) {
+            id = channelIds.get(channel);
+
+            if (id != null) {
+                return id;
+            }
+
+            if (channels.size() == MAX_CHANNELS - 1) {
+                logger.warn("Out of trace channel ids, tracing further channels as " + OTHER_CHANNELS);
+                channels.add(OTHER_CHANNELS);
+            }
+
+            if (channels.size() == MAX_CHANNELS) {
+                return MAX_CHANNELS - 1;
+            }
+
+            id = channels.size();
+            channels.add(channel);
+            channelIds.put(channel, id);
+            return id;
+        }
+    }
+
+    private static TraceBuffer getBuffer() {
+
+        TraceBuffer b = buffer.get();
+
+        if (b == null) {
+            b = new TraceBuffer(Thread.currentThread(), capacity);
+            buffer.set(b);
+
+            // Drop the buffers of threads that have exited, so short-lived threads do not accumulate.
+            for (Iterator<TraceBuffer> it = buffers.iterator(); it.hasNext();) {
+                TraceBuffer old = it.next();
+
+                if (!old.isAlive()) {
+                    buffers.remove(old);
+                }
+            }
+
+            buffers.add(b);
+        }
+
+        return b;
+    }
+
+    static long pack(byte type, byte opcode, int channel, int rank) {
+        return (type & 0xFFL) << 56 | (opcode & 0xFFL) << 48 | (channel & 0xFFFFFFL) << 24 | (rank & 0xFFFFFFL);
+    }
+
+    static int getType(long meta) {
+        return (int) (meta >>> 56);
+    }
+
+    static byte getOpcode(long meta) {
+        return (byte) (meta >>> 48);
+    }
+
+    static int getChannel(long meta) {
+        return (int) ((meta >>> 24) & 0xFFFFFF);
+    }
+
+    // Sign extended, so an unknown sender is still -1.
+    static int getRank(long meta) {
+        return (int) (meta << 40 >> 40);
+    }
+
+    /**
+     * Records an event of the current thread. Callers should check {@link #isEnabled()} first.
+     */
+    public static void record(byte type, int channel, int rank, byte opcode, long size) {
+        getBuffer().record(System.nanoTime(), pack(type, opcode, channel, rank), size);
+    }
+
+    /**
+     * Writes the events recorded so far to the given file. Recording continues while the dump is written.
+     */
+    public static void dump(File file) throws IOException {
+
+        String[] names;
+
+        synchronized (channels) {
+            names = channels.toArray(new String[channels.size()]);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(ManagementFactory.getRuntimeMXBean().getName());
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(System.nanoTime());
+
+            out.writeInt(names.length);
+
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+
+            TraceBuffer[] tmp = buffers.toArray(new TraceBuffer[0]);
+
+            out.writeInt(tmp.length);
+
+            for (TraceBuffer b : tmp) {
+                b.write(out);
+            }
+        }
+    }
+
+    /**
+     * Dumps the events to a new file in the given directory, logging the result.
+     */
+    private static void dumpTo(File directory) {
+
+        File file = new File(directory, "pidgin-trace-" + ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9._-]", "_") + "-"
+                + dumps.incrementAndGet() + ".bin");
+
+        try {
+            dump(file);
+            logger.info("Wrote trace to " + file);
+        } catch (IOException e) {
+            logger.warn("Failed to write trace to " + file, e);
+        }
+    }
+
+    /**
+     * Dumps the events to a new file in the given directory whenever the process receives the given signal, such as "USR2".
+     *
+     * Signals are handled with sun.misc.Signal, which is not part of the Java API. It is therefore used reflectively, so Pidgin compiles without
+     * it and only this method fails, with a warning, on a JVM that does not have it.
+     */
+    public static void dumpOnSignal(String signal, final File directory) {
+        try {
+            Class<?> signalClass = Class.forName("sun.misc.Signal");
+            Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+
+            Object handler = Proxy.newProxyInstance(Tracer.class.getClassLoader(), new Class<?>[] { handlerClass }, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                    case "handle":
+                        dumpTo(directory);
+                        return null;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Pidgin trace dump on signal " + signal;
+                    }
+                }
+            });
+
+            signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signalClass.getConstructor(String.class).newInstance(signal),
+                    handler);
+        } catch (InvocationTargetException e) {
+            logger.warn("Cannot dump traces on signal " + signal, e.getCause());
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            logger.warn("Signals are not supported by this JVM, cannot dump traces on signal " + signal, e);
+        }
+    }
+}
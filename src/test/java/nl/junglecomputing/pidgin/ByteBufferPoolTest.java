@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests the size classes and recycling of a {@link ByteBufferPool}.
+ */
+public class ByteBufferPoolTest {
+
+    @Test
+    public void allocateRoundsUpToTheSizeClass() {
+
+        ByteBufferPool pool = new ByteBufferPool(64, 1024, 4);
+
+        ByteBuffer small = pool.allocate(10);
+        ByteBuffer b = pool.allocate(100);
+
+        assertTrue(b.isDirect());
+        assertEquals(64, small.capacity());
+        assertEquals(128, b.capacity());
+        assertEquals(0, b.position());
+        assertEquals(100, b.limit());
+        assertEquals(64 + 128, pool.getBytesOutstanding());
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+
+        ByteBufferPool pool = new ByteBufferPool(64, 1024, 4);
+
+        ByteBuffer first = pool.allocate(200);
+        first.put((byte) 1);
+        pool.release(first);
+
+        assertEquals(256, pool.getBytesPooled());
+        assertEquals(0, pool.getBytesOutstanding());
+
+        ByteBuffer second = pool.allocate(130);
+
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(130, second.limit());
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void buffersLargerThanTheLargestClassAreNotPooled() {
+
+        ByteBufferPool pool = new ByteBufferPool(64, 1024, 4);
+
+        ByteBuffer large = pool.allocate(5000);
+
+        assertEquals(5000, large.capacity());
+
+        pool.release(large);
+
+        assertEquals(0, pool.getBytesPooled());
+        assertNotSame(large, pool.allocate(5000));
+    }
+
+    @Test
+    public void sizeClassKeepsAtMostBuffersPerClass() {
+
+        ByteBufferPool pool = new ByteBufferPool(64, 1024, 2);
+
+        ByteBuffer[] buffers = { pool.allocate(64), pool.allocate(64), pool.allocate(64) };
+
+        pool.release(buffers);
+
+        assertEquals(2 * 64, pool.getBytesPooled());
+    }
+
+    @Test
+    public void foreignBuffersAreNotPooled() {
+
+        ByteBufferPool pool = new ByteBufferPool(64, 1024, 4);
+
+        pool.release(ByteBuffer.allocate(128));
+        pool.release(ByteBuffer.allocateDirect(100));
+        pool.release((ByteBuffer) null);
+
+        assertEquals(0, pool.getBytesPooled());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptySizeRange() {
+        new ByteBufferPool(1024, 64, 4);
+    }
+}
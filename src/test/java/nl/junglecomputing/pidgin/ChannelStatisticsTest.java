@@ -0,0 +1,273 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Tests the per-peer statistics of channels, where rank 1 sends to rank 0.
+ */
+public class ChannelStatisticsTest {
+
+    private static final int MESSAGES = 3;
+
+    private static final int SIZE = 100;
+
+    private static ChannelOptions options() {
+        return new ChannelOptions().setStatistics(true);
+    }
+
+    @Test(timeout = 60000)
+    public void explicitChannelCountsMessagesAndBytesPerPeer() throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("statistics", p.getAllIdentifiers(), options());
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            int rank = p.getRank();
+
+            for (int i = 0; i < MESSAGES; i++) {
+                if (rank == 1) {
+                    WriteMessage wm = channel.sendMessage(0);
+                    wm.writeArray(new byte[SIZE]);
+                    wm.finish();
+                } else {
+                    ReadMessage rm = channel.receiveMessage(1, TIMEOUT);
+                    rm.readArray(new byte[SIZE]);
+                    rm.finish();
+                }
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            ChannelStatistics statistics = channel.getStatistics();
+            PeerStatistics peer = statistics.getPeer(1 - rank);
+
+            if (rank == 1) {
+                assertEquals(MESSAGES, peer.getSentMessages());
+                assertTrue(peer.getSentBytes() >= MESSAGES * SIZE);
+                assertEquals(0, peer.getReceivedMessages());
+            } else {
+                assertEquals(MESSAGES, peer.getReceivedMessages());
+                assertTrue(peer.getReceivedBytes() >= MESSAGES * SIZE);
+                assertEquals(0, peer.getSentMessages());
+            }
+
+            assertEquals(peer.getSentMessages() + peer.getReceivedMessages(), statistics.getSentMessages() + statistics.getReceivedMessages());
+
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    /**
+     * Rank 1 sends MESSAGES messages to rank 0 on an upcall channel, and both check the counts of their peer.
+     */
+    private static void upcall(final ChannelOptions options) throws Exception {
+
+        final CountDownLatch received = new CountDownLatch(MESSAGES);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            UpcallChannel channel = p.createUpcallChannel("statistics", p.getAllIdentifiers(),
+                    (c, sender, opcode, data, buffers) -> received.countDown(), options);
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                for (int i = 0; i < MESSAGES; i++) {
+                    channel.sendMessage(0, (byte) 0, null, ByteBuffer.allocate(SIZE));
+                }
+            } else {
+                assertTrue(received.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            PeerStatistics peer = channel.getStatistics().getPeer(1 - p.getRank());
+
+            if (p.getRank() == 1) {
+                assertEquals(MESSAGES, peer.getSentMessages());
+                assertTrue(peer.getSentBytes() >= MESSAGES * SIZE);
+            } else {
+                assertEquals(MESSAGES, peer.getReceivedMessages());
+                assertTrue(peer.getReceivedBytes() >= MESSAGES * SIZE);
+            }
+
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void upcallChannelCountsDeliveredMessages() throws Exception {
+        upcall(options());
+    }
+
+    @Test(timeout = 60000)
+    public void upcallChannelWithFlowControlCountsDeliveredMessages() throws Exception {
+        // The window is large enough that no credits are returned while the messages are sent.
+        upcall(options().setFlowControl(4 * MESSAGES, 0, FlowControlPolicy.BLOCK));
+    }
+
+    @Test(timeout = 60000)
+    public void messageUpcallChannelWithFlowControlCountsMessagesFinishedByTheUpcall() throws Exception {
+
+        final CountDownLatch received = new CountDownLatch(MESSAGES);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            MessageUpcallChannel channel = p.createMessageUpcallChannel("statistics", p.getAllIdentifiers(), rm -> {
+                rm.readArray(new byte[SIZE]);
+                rm.finish();
+                received.countDown();
+            }, options().setFlowControl(4 * MESSAGES, 0, FlowControlPolicy.BLOCK));
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                for (int i = 0; i < MESSAGES; i++) {
+                    WriteMessage wm = channel.sendMessage(0);
+                    wm.writeArray(new byte[SIZE]);
+                    wm.finish();
+                }
+            } else {
+                assertTrue(received.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            PeerStatistics peer = channel.getStatistics().getPeer(1 - p.getRank());
+
+            if (p.getRank() == 1) {
+                assertEquals(MESSAGES, peer.getSentMessages());
+                assertTrue(peer.getSentBytes() >= MESSAGES * SIZE);
+            } else {
+                assertEquals(MESSAGES, peer.getReceivedMessages());
+                assertTrue(peer.getReceivedBytes() >= MESSAGES * SIZE);
+            }
+
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void activeChannelIsRegisteredAsMXBean() throws Exception {
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName pattern = new ObjectName("nl.junglecomputing.pidgin:type=Channel,name=" + ObjectName.quote("mxbean") + ",*");
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("mxbean", p.getAllIdentifiers(), options());
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            assertEquals(2, server.queryNames(pattern, null).size());
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+
+        assertEquals(0, server.queryNames(pattern, null).size());
+    }
+
+    @Test(timeout = 60000)
+    public void statisticsAreOffByDefault() throws Exception {
+        LocalPoolRunner.run(1, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("default", p.getAllIdentifiers(), new ChannelOptions());
+
+            channel.activate();
+            assertNull(channel.getStatistics());
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void statisticsCanBeTurnedOff() throws Exception {
+        LocalPoolRunner.run(1, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("off", p.getAllIdentifiers(), new ChannelOptions().setStatistics(false));
+
+            channel.activate();
+            assertNull(channel.getStatistics());
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void abortedMessagesAreNotCountedAsSent() throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("aborted", p.getAllIdentifiers(), options());
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                WriteMessage wm = channel.sendMessage(0);
+                wm.writeArray(new byte[SIZE]);
+                wm.finish(new IOException("Aborted on purpose"));
+
+                PeerStatistics peer = channel.getStatistics().getPeer(0);
+
+                assertEquals(1, peer.getAbortedMessages());
+                assertEquals(0, peer.getSentMessages());
+                assertEquals(1, channel.getStatistics().getAbortedMessages());
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Tests the registration rules of a {@link CodecRegistry}. Encoding is covered by {@link SerializationTest}.
+ */
+public class CodecRegistryTest {
+
+    private static final Codec<StringBuilder> CODEC = new Codec<StringBuilder>() {
+
+        @Override
+        public void encode(StringBuilder value, WriteMessage wm) throws IOException {
+            wm.writeString(value.toString());
+        }
+
+        @Override
+        public StringBuilder decode(ReadMessage rm) throws IOException {
+            return new StringBuilder(rm.readString());
+        }
+    };
+
+    @Test
+    public void builtInCodecsCoverPrimitivesAndStrings() {
+
+        CodecRegistry registry = new CodecRegistry();
+
+        assertTrue(registry.hasCodec(42));
+        assertTrue(registry.hasCodec(4.2));
+        assertTrue(registry.hasCodec("42"));
+        assertTrue(registry.hasCodec(new long[] { 42 }));
+
+        assertFalse(registry.hasCodec(null));
+        assertFalse(registry.hasCodec(new ArrayList<Object>()));
+    }
+
+    @Test
+    public void registeredClassHasACodec() {
+
+        CodecRegistry registry = new CodecRegistry();
+        registry.register(CodecRegistry.FIRST_USER_ID, StringBuilder.class, CODEC);
+
+        assertTrue(registry.hasCodec(new StringBuilder()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void builtInIdsAreReserved() {
+        new CodecRegistry().register(CodecRegistry.FIRST_USER_ID - 1, StringBuilder.class, CODEC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idsAboveTheMaximumAreRejected() {
+        new CodecRegistry().register(CodecRegistry.MAX_ID + 1, StringBuilder.class, CODEC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idCannotBeRegisteredTwice() {
+
+        CodecRegistry registry = new CodecRegistry();
+        registry.register(CodecRegistry.FIRST_USER_ID, StringBuilder.class, CODEC);
+        registry.register(CodecRegistry.FIRST_USER_ID, StringBuffer.class, new Codec<StringBuffer>() {
+
+            @Override
+            public void encode(StringBuffer value, WriteMessage wm) throws IOException {
+                wm.writeString(value.toString());
+            }
+
+            @Override
+            public StringBuffer decode(ReadMessage rm) throws IOException {
+                return new StringBuffer(rm.readString());
+            }
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void classCannotBeRegisteredTwice() {
+
+        CodecRegistry registry = new CodecRegistry();
+        registry.register(CodecRegistry.FIRST_USER_ID, StringBuilder.class, CODEC);
+        registry.register(CodecRegistry.FIRST_USER_ID + 1, StringBuilder.class, CODEC);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the collectives of a {@link CollectiveChannel} on pools of several sizes, including sizes that are not a power of two.
+ */
+public class CollectiveChannelTest {
+
+    private static final int[] SIZES = { 1, 2, 3, 5, 6, 8 };
+
+    private interface Collective {
+        void run(int rank, int size, CollectiveChannel channel) throws Exception;
+    }
+
+    /**
+     * Runs the collective on every rank of a pool of every size in {@link #SIZES}. All ranks are done before any deactivates its channel.
+     */
+    private static void run(final Collective collective) throws Exception {
+
+        for (final int size : SIZES) {
+
+            final CyclicBarrier done = new CyclicBarrier(size);
+
+            LocalPoolRunner.run(size, p -> {
+
+                CollectiveChannel channel = p.createCollectiveChannel("collective");
+
+                channel.activate();
+                collective.run(p.getRank(), size, channel);
+
+                done.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                channel.deactivate();
+                return null;
+            });
+        }
+    }
+
+    private static byte[] fill(int length, int seed) {
+
+        byte[] result = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            result[i] = (byte) (seed * 31 + i);
+        }
+
+        return result;
+    }
+
+    private static ByteBuffer[] allocate(int size, int[] lengths) {
+
+        ByteBuffer[] result = new ByteBuffer[size];
+
+        for (int i = 0; i < size; i++) {
+            result[i] = ByteBuffer.allocate(lengths[i]);
+        }
+
+        return result;
+    }
+
+    private static void broadcast(final int length) throws Exception {
+        run((rank, size, channel) -> {
+
+            int root = size - 1;
+
+            ByteBuffer buffer = ByteBuffer.wrap(rank == root ? fill(length, root) : new byte[length]);
+            channel.broadcast(root, buffer);
+
+            assertArrayEquals(fill(length, root), buffer.array());
+        });
+    }
+
+    @Test(timeout = 120000)
+    public void broadcastShort() throws Exception {
+        broadcast(1000);
+    }
+
+    @Test(timeout = 120000)
+    public void broadcastLong() throws Exception {
+        // Larger than the tree limit, and more than two pipeline segments.
+        broadcast(5 * 512 * 1024);
+    }
+
+    @Test(timeout = 120000)
+    public void barrierWaitsForAllRanks() throws Exception {
+
+        final int rounds = 10;
+
+        for (final int size : SIZES) {
+
+            final AtomicInteger arrived = new AtomicInteger();
+
+            LocalPoolRunner.run(size, p -> {
+
+                CollectiveChannel channel = p.createCollectiveChannel("barrier");
+                channel.activate();
+
+                for (int r = 0; r < rounds; r++) {
+                    arrived.incrementAndGet();
+                    channel.barrier();
+
+                    // Everyone has arrived in this round, and nobody can be more than one round ahead.
+                    int count = arrived.get();
+                    assertTrue("Passed barrier " + r + " after " + count + " arrivals", count >= size * (r + 1));
+                    assertTrue("Passed barrier " + r + " after " + count + " arrivals", count <= size * (r + 2));
+                }
+
+                channel.barrier();
+                channel.deactivate();
+                return null;
+            });
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void reduceToRoot() throws Exception {
+        run((rank, size, channel) -> {
+
+            int root = size / 2;
+
+            long[] values = { rank, 1, -2L * rank };
+
+            ByteBuffer buffer = ByteBuffer.allocate(values.length * Long.BYTES);
+            buffer.asLongBuffer().put(values);
+
+            channel.reduce(root, buffer, ReduceOperations.SUM_LONG);
+
+            long[] result = new long[values.length];
+            buffer.asLongBuffer().get(result);
+
+            if (rank == root) {
+                long sum = size * (size - 1L) / 2;
+                assertArrayEquals(new long[] { sum, size, -2 * sum }, result);
+            } else {
+                assertArrayEquals(values, result);
+            }
+        });
+    }
+
+    @Test(timeout = 120000)
+    public void allreduceShort() throws Exception {
+        run((rank, size, channel) -> {
+
+            long[] sum = { rank, 1, rank * rank };
+            channel.allreduce(sum, ReduceOperations.SUM_LONG);
+
+            long expected = size * (size - 1L) / 2;
+            assertArrayEquals(new long[] { expected, size, (size - 1L) * size * (2 * size - 1) / 6 }, sum);
+
+            long[] max = { rank, -rank };
+            channel.allreduce(max, ReduceOperations.MAX_LONG);
+
+            assertArrayEquals(new long[] { size - 1, 0 }, max);
+        });
+    }
+
+    @Test(timeout = 120000)
+    public void allreduceLong() throws Exception {
+        run((rank, size, channel) -> {
+
+            // Longer than the limit for recursive doubling, and not a multiple of any pool size but 1.
+            int length = 20001;
+
+            long[] values = new long[length];
+
+            for (int i = 0; i < length; i++) {
+                values[i] = rank + i;
+            }
+
+            channel.allreduce(values, ReduceOperations.SUM_LONG);
+
+            for (int i = 0; i < length; i++) {
+                assertEquals("Element " + i, (long) size * i + size * (size - 1L) / 2, values[i]);
+            }
+        });
+    }
+
+    @Test(timeout = 120000)
+    public void gatherBuffersOfDifferentSizes() throws Exception {
+        run((rank, size, channel) -> {
+
+            int root = size - 1;
+
+            int[] lengths = new int[size];
+
+            for (int i = 0; i < size; i++) {
+                lengths[i] = i + 1;
+            }
+
+            ByteBuffer[] receive = rank == root ? allocate(size, lengths) : null;
+
+            channel.gather(root, ByteBuffer.wrap(fill(rank + 1, rank)), receive);
+
+            if (rank == root) {
+                for (int i = 0; i < size; i++) {
+                    assertArrayEquals(fill(i + 1, i), receive[i].array());
+                }
+            }
+        });
+    }
+
+    @Test(timeout = 120000)
+    public void scatterBuffersOfDifferentSizes() throws Exception {
+        run((rank, size, channel) -> {
+
+            ByteBuffer[] send = null;
+
+            if (rank == 0) {
+                send = new ByteBuffer[size];
+
+                for (int i = 0; i < size; i++) {
+                    send[i] = ByteBuffer.wrap(fill(2 * i + 1, i));
+                }
+            }
+
+            ByteBuffer receive = ByteBuffer.allocate(2 * rank + 1);
+            channel.scatter(0, send, receive);
+
+            assertArrayEquals(fill(2 * rank + 1, rank), receive.array());
+        });
+    }
+
+    @Test(timeout = 120000)
+    public void allgatherBuffersOfDifferentSizes() throws Exception {
+        run((rank, size, channel) -> {
+
+            int[] lengths = new int[size];
+
+            for (int i = 0; i < size; i++) {
+                lengths[i] = i + 1;
+            }
+
+            ByteBuffer[] receive = allocate(size, lengths);
+
+            channel.allgather(ByteBuffer.wrap(fill(rank + 1, rank)), receive);
+
+            for (int i = 0; i < size; i++) {
+                assertArrayEquals(fill(i + 1, i), receive[i].array());
+            }
+        });
+    }
+
+    @Test(timeout = 120000)
+    public void alltoallvExchangesAllPairs() throws Exception {
+        run((rank, size, channel) -> {
+
+            ByteBuffer[] send = new ByteBuffer[size];
+            int[] lengths = new int[size];
+
+            for (int j = 0; j < size; j++) {
+                send[j] = ByteBuffer.wrap(fill((rank + j) % 3 + 1, rank * 16 + j));
+                lengths[j] = (j + rank) % 3 + 1;
+            }
+
+            ByteBuffer[] receive = allocate(size, lengths);
+
+            channel.alltoallv(send, receive);
+
+            for (int j = 0; j < size; j++) {
+                assertArrayEquals("From rank " + j, fill((j + rank) % 3 + 1, j * 16 + rank), receive[j].array());
+            }
+        });
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Tests setting up the connections of a channel before the first message is sent.
+ */
+public class ConnectTest {
+
+    /**
+     * Every rank sends its rank to every other rank, and checks what it receives.
+     */
+    private static void exchange(Pidgin p, ExplicitChannel channel) throws IOException {
+
+        IbisIdentifier[] ids = channel.getParticipants();
+
+        for (int i = 0; i < ids.length; i++) {
+            if (i != channel.getRank()) {
+                WriteMessage wm = channel.sendMessage(ids[i]);
+                wm.writeInt(channel.getRank());
+                wm.finish();
+            }
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            if (i != channel.getRank()) {
+                ReadMessage rm = channel.receiveMessage(ids[i], TIMEOUT);
+                assertEquals(i, rm.readInt());
+                rm.finish();
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void connectAllConnectsToEveryOtherParticipant() throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(4);
+
+        LocalPoolRunner.run(4, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("connect");
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            ConnectResult result = channel.connectAll();
+
+            assertFalse(result.toString(), result.hasFailures());
+            assertEquals(3, result.getConnectTimes().size());
+            assertEquals(-1, result.getConnectTime(p.getMyIdentifier()));
+
+            // Connecting again finds the connections already there.
+            for (long time : channel.connectAll().getConnectTimes().values()) {
+                assertEquals(0, time);
+            }
+
+            exchange(p, channel);
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void connectReportsNodesThatDoNotParticipate() throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(3, p -> {
+
+            IbisIdentifier[] ids = p.getAllIdentifiers();
+
+            if (p.getRank() == 2) {
+                return null;
+            }
+
+            ExplicitChannel channel = p.createExplicitChannel("partial", new IbisIdentifier[] { ids[0], ids[1] });
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            ConnectResult result = channel.connect(ids, 2);
+
+            assertEquals(1, result.getFailures().size());
+            assertTrue(result.getFailures().get(ids[2]) instanceof NoSuchDestinationException);
+            assertTrue(result.getConnectTime(ids[1 - p.getRank()]) >= 0);
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void channelConnectedOnActivateDeliversMessages() throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(4);
+
+        LocalPoolRunner.run(4, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("eager", p.getAllIdentifiers(),
+                    new ChannelOptions().setConnectOnActivate(true).setConnectParallelism(2));
+
+            channel.activate();
+            exchange(p, channel);
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+}
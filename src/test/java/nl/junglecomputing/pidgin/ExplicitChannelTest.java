@@ -0,0 +1,339 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.ReceiveTimedOutException;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Tests an {@link ExplicitChannel}.
+ */
+public class ExplicitChannelTest {
+
+    private static final int MESSAGES = 3;
+
+    private static void send(ExplicitChannel channel, int rank, int value) throws IOException {
+        WriteMessage wm = channel.sendMessage(rank);
+        wm.writeInt(value);
+        wm.finish();
+    }
+
+    private static int read(ReadMessage rm) throws IOException {
+        int value = rm.readInt();
+        rm.finish();
+        return value;
+    }
+
+    private static ExplicitChannel activate(Pidgin p, ReceiveMode mode, CyclicBarrier barrier) throws Exception {
+        ExplicitChannel channel = p.createExplicitChannel("explicit", p.getAllIdentifiers(), new ChannelOptions().setReceiveMode(mode));
+        channel.activate();
+        barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        return channel;
+    }
+
+    @Test(timeout = 60000)
+    public void sendAndReceiveByRank() throws Exception {
+
+        final int size = 3;
+        final CyclicBarrier barrier = new CyclicBarrier(size);
+
+        LocalPoolRunner.run(size, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("ring");
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            int rank = channel.getRank();
+            int next = (rank + 1) % size;
+            int previous = (rank + size - 1) % size;
+
+            // Around the ring by rank, and back by identifier.
+            send(channel, next, rank);
+            assertEquals(previous, read(channel.receiveMessage(previous, TIMEOUT)));
+
+            WriteMessage wm = channel.sendMessage(channel.getParticipants()[previous]);
+            wm.writeInt(rank);
+            wm.finish();
+
+            assertEquals(next, read(channel.receiveMessage(channel.getParticipants()[next], TIMEOUT)));
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void sendToUnknownRankFails() throws Exception {
+        LocalPoolRunner.run(2, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("unknown");
+            channel.activate();
+
+            for (int rank : new int[] { -1, 2 }) {
+                try {
+                    channel.sendMessage(rank);
+                    fail("Sent to rank " + rank);
+                } catch (NoSuchDestinationException e) {
+                    // expected
+                }
+            }
+
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void receiveAnyFromNoSourcesFails() throws Exception {
+        LocalPoolRunner.run(2, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("nosources");
+            channel.activate();
+
+            try {
+                channel.receiveAny(new IbisIdentifier[0], TIMEOUT);
+                fail("Received from an empty set of sources");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    private void receiveAny(final ReceiveMode mode) throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(4);
+
+        LocalPoolRunner.run(4, p -> {
+
+            ExplicitChannel channel = activate(p, mode, barrier);
+
+            if (p.getRank() != 0) {
+                send(channel, 0, p.getRank());
+            } else {
+                int[] counts = new int[p.getPoolSize()];
+
+                for (int i = 1; i < counts.length; i++) {
+                    ReadMessage rm = channel.receiveAny(TIMEOUT);
+                    assertNotNull(rm.origin());
+                    counts[read(rm)]++;
+                }
+
+                assertArrayEquals(new int[] { 0, 1, 1, 1 }, counts);
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void receiveAnyReturnsAllSendersOneToOne() throws Exception {
+        receiveAny(ReceiveMode.ONE_TO_ONE);
+    }
+
+    @Test(timeout = 60000)
+    public void receiveAnyReturnsAllSendersManyToOne() throws Exception {
+        receiveAny(ReceiveMode.MANY_TO_ONE);
+    }
+
+    /**
+     * Ranks 1 to 3 each send their rank a few times to rank 0, which receives them from one source or a set of sources at a time. The
+     * messages of the other sources stay queued meanwhile.
+     */
+    private void receiveFromSomeSources(final ReceiveMode mode) throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(4);
+
+        LocalPoolRunner.run(4, p -> {
+
+            ExplicitChannel channel = activate(p, mode, barrier);
+
+            if (p.getRank() != 0) {
+                for (int i = 0; i < MESSAGES; i++) {
+                    send(channel, 0, p.getRank());
+                }
+            } else {
+                IbisIdentifier[] ids = p.getAllIdentifiers();
+
+                for (int i = 0; i < MESSAGES; i++) {
+                    assertEquals(2, read(channel.receiveAny(new IbisIdentifier[] { ids[2] }, TIMEOUT)));
+                }
+
+                for (int i = 0; i < MESSAGES; i++) {
+                    assertEquals(3, read(channel.receiveMessage(ids[3], TIMEOUT)));
+                }
+
+                for (int i = 0; i < MESSAGES; i++) {
+                    assertEquals(1, read(channel.receiveAny(new IbisIdentifier[] { ids[1], ids[2] }, TIMEOUT)));
+                }
+
+                try {
+                    channel.receiveAny(100);
+                    fail("Receive did not time out");
+                } catch (ReceiveTimedOutException e) {
+                    // expected
+                }
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void receiveFromSomeSourcesOneToOne() throws Exception {
+        receiveFromSomeSources(ReceiveMode.ONE_TO_ONE);
+    }
+
+    @Test(timeout = 60000)
+    public void receiveFromSomeSourcesManyToOne() throws Exception {
+        receiveFromSomeSources(ReceiveMode.MANY_TO_ONE);
+    }
+
+    @Test(timeout = 60000)
+    public void pollReturnsWaitingMessagesWithoutBlocking() throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            ExplicitChannel channel = activate(p, ReceiveMode.ONE_TO_ONE, barrier);
+
+            if (p.getRank() == 0) {
+                assertNull(channel.pollAny());
+                assertNull(channel.poll(1));
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                for (int i = 0; i < MESSAGES; i++) {
+                    send(channel, 0, i);
+                }
+            } else {
+                for (int i = 0; i < MESSAGES; i++) {
+
+                    long deadline = System.currentTimeMillis() + TIMEOUT;
+
+                    ReadMessage rm;
+
+                    while ((rm = i % 2 == 0 ? channel.poll(1) : channel.pollAny()) == null) {
+                        if (System.currentTimeMillis() > deadline) {
+                            fail("No message from rank 1");
+                        }
+                        Thread.sleep(1);
+                    }
+
+                    assertEquals(i, read(rm));
+                }
+
+                assertNull(channel.pollAny());
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void messageToSelfIsReceivedFromTheLocalRank() throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            ExplicitChannel channel = activate(p, ReceiveMode.ONE_TO_ONE, barrier);
+
+            int rank = p.getRank();
+
+            send(channel, rank, 42);
+            send(channel, 1 - rank, 1);
+            send(channel, rank, 2);
+
+            assertEquals(42, read(channel.receiveMessage(rank, TIMEOUT)));
+            assertEquals(2, read(channel.receiveMessage(rank, TIMEOUT)));
+            assertEquals(1, read(channel.receiveMessage(1 - rank, TIMEOUT)));
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    private void messageToSelfWakesReceiveAny(final ReceiveMode mode) throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            final ExplicitChannel channel = activate(p, mode, barrier);
+
+            final int rank = p.getRank();
+
+            CompletableFuture<Integer> received = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return read(channel.receiveAny(TIMEOUT));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            // Give the receive time to block before the message is sent.
+            Thread.sleep(100);
+            send(channel, rank, rank + 10);
+
+            assertEquals(rank + 10, (int) received.get(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void messageToSelfWakesReceiveAnyOneToOne() throws Exception {
+        messageToSelfWakesReceiveAny(ReceiveMode.ONE_TO_ONE);
+    }
+
+    @Test(timeout = 60000)
+    public void messageToSelfWakesReceiveAnyManyToOne() throws Exception {
+        messageToSelfWakesReceiveAny(ReceiveMode.MANY_TO_ONE);
+    }
+}
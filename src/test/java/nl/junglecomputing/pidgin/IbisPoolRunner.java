@@ -0,0 +1,110 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ibis.ipl.IbisProperties;
+import ibis.ipl.server.Server;
+import ibis.ipl.server.ServerProperties;
+
+/**
+ * Runs a test on all ranks of an Ibis pool in this JVM, for tests of the Ibis transports that a pool created with
+ * {@link PidginFactory#createLocal(String, int)} does not use. A registry server is started for the pool, and each rank runs on its own thread.
+ * The first failure of any rank is rethrown, and all ranks are terminated afterwards.
+ */
+final class IbisPoolRunner {
+
+    private static final AtomicInteger pools = new AtomicInteger();
+
+    private IbisPoolRunner() {
+        // Utility class
+    }
+
+    /**
+     * Runs the task on every rank and returns the results, indexed by rank.
+     */
+    static <T> List<T> run(final int size, final LocalPoolRunner.RankTask<T> task) throws Exception {
+
+        final String pool = "ibis-test-" + pools.incrementAndGet();
+
+        Properties serverProperties = new Properties();
+        serverProperties.setProperty(ServerProperties.PORT, "0");
+
+        final Server server = new Server(serverProperties);
+
+        final Object[] result = new Object[size];
+
+        ExecutorService executor = Executors.newFixedThreadPool(size);
+
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+
+            for (int i = 0; i < size; i++) {
+
+                final String name = pool + "-" + i;
+
+                futures.add(executor.submit(() -> {
+
+                    Properties p = new Properties();
+                    p.setProperty(IbisProperties.SERVER_ADDRESS, server.getAddress());
+                    p.setProperty(IbisProperties.POOL_NAME, pool);
+                    p.setProperty(IbisProperties.POOL_SIZE, Integer.toString(size));
+
+                    Pidgin pidgin = PidginFactory.create(name, p);
+
+                    try {
+                        result[pidgin.getRank()] = task.run(pidgin);
+                    } finally {
+                        PidginFactory.terminate(name);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : futures) {
+                try {
+                    f.get(LocalPoolRunner.TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+
+                    throw (Error) cause;
+                }
+            }
+
+            @SuppressWarnings("unchecked")
+            List<T> list = (List<T>) Arrays.asList(result);
+            return list;
+        } finally {
+            executor.shutdownNow();
+            server.end(-1);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import ibis.ipl.IbisIdentifier;
+
+/**
+ * Tests creating and terminating pools whose ranks all run in this JVM.
+ */
+public class LocalPidginTest {
+
+    private static void terminate(String name, int ranks) throws Exception {
+        for (int i = 0; i < ranks; i++) {
+            PidginFactory.terminate(name);
+        }
+    }
+
+    @Test
+    public void createLocalReturnsAllRanks() throws Exception {
+
+        Pidgin[] ranks = PidginFactory.createLocal("local-ranks", 3);
+
+        try {
+            IbisIdentifier[] ids = ranks[0].getAllIdentifiers();
+
+            assertEquals(3, ids.length);
+
+            for (int i = 0; i < ranks.length; i++) {
+                assertEquals(i, ranks[i].getRank());
+                assertEquals(3, ranks[i].getPoolSize());
+                assertEquals(ids[i], ranks[i].getMyIdentifier());
+                assertArrayEquals(ids, ranks[i].getAllIdentifiers());
+            }
+
+            assertNotEquals(ids[0], ids[1]);
+        } finally {
+            terminate("local-ranks", 3);
+        }
+    }
+
+    @Test
+    public void poolCanBeCreatedAgainOnceAllRanksTerminated() throws Exception {
+
+        PidginFactory.createLocal("local-again", 2);
+        terminate("local-again", 2);
+
+        PidginFactory.createLocal("local-again", 2);
+        terminate("local-again", 2);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void createLocalRejectsAnExistingPool() throws Exception {
+
+        PidginFactory.createLocal("local-twice", 1);
+
+        try {
+            PidginFactory.createLocal("local-twice", 1);
+        } finally {
+            terminate("local-twice", 1);
+        }
+    }
+
+    @Test
+    public void propertiesSelectTheLocalImplementation() throws Exception {
+
+        Properties p = new Properties();
+        p.setProperty(PidginFactory.IMPLEMENTATION_PROPERTY, PidginFactory.IMPLEMENTATION_LOCAL);
+        p.setProperty(PidginFactory.LOCAL_SIZE_PROPERTY, "2");
+
+        try {
+            // Each create joins the next rank of the same pool.
+            assertEquals(0, PidginFactory.create("local-properties", p).getRank());
+            assertEquals(1, PidginFactory.create("local-properties", p).getRank());
+        } finally {
+            terminate("local-properties", 2);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void localImplementationNeedsASize() throws Exception {
+
+        Properties p = new Properties();
+        p.setProperty(PidginFactory.IMPLEMENTATION_PROPERTY, PidginFactory.IMPLEMENTATION_LOCAL);
+
+        PidginFactory.create("local-without-size", p);
+    }
+}
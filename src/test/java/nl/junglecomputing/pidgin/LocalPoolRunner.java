@@ -0,0 +1,94 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a test on all ranks of a pool in this JVM, created with {@link PidginFactory#createLocal(String, int)}. Each rank runs on its own thread.
+ * The first failure of any rank is rethrown, and all ranks are terminated afterwards.
+ */
+final class LocalPoolRunner {
+
+    static final long TIMEOUT = 30000;
+
+    interface RankTask<T> {
+        T run(Pidgin pidgin) throws Exception;
+    }
+
+    private static final AtomicInteger pools = new AtomicInteger();
+
+    private LocalPoolRunner() {
+        // Utility class
+    }
+
+    /**
+     * Runs the task on every rank and returns the results, indexed by rank.
+     */
+    static <T> List<T> run(int size, final RankTask<T> task) throws Exception {
+
+        String name = "test-" + pools.incrementAndGet();
+
+        Pidgin[] ranks = PidginFactory.createLocal(name, size);
+
+        ExecutorService executor = Executors.newFixedThreadPool(size);
+
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>();
+
+            for (final Pidgin p : ranks) {
+                futures.add(executor.submit(() -> task.run(p)));
+            }
+
+            List<T> result = new ArrayList<T>();
+
+            for (Future<T> f : futures) {
+                try {
+                    result.add(f.get(TIMEOUT, TimeUnit.MILLISECONDS));
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof Exception) {
+                        throw (Exception) cause;
+                    }
+
+                    throw (Error) cause;
+                }
+            }
+
+            return result;
+        } finally {
+            executor.shutdownNow();
+
+            for (int i = 0; i < size; i++) {
+                try {
+                    PidginFactory.terminate(name);
+                } catch (IOException e) {
+                    // Ignore, the test result is what counts.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ibis.ipl.MessageUpcall;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Tests the credit-based flow control of a {@link MessageUpcallChannel}. Rank 1 sends to rank 0, whose upcall can be held up to keep the
+ * credits of its messages.
+ */
+public class MessageUpcallChannelTest {
+
+    private interface Sender {
+        void run(MessageUpcallChannel channel) throws Exception;
+    }
+
+    /**
+     * An upcall that counts the messages it gets, and waits until it is opened before returning. It leaves finishing the message to the channel.
+     */
+    private static class GatedUpcall implements MessageUpcall {
+
+        final CountDownLatch open = new CountDownLatch(1);
+
+        final CountDownLatch received;
+
+        GatedUpcall(int messages) {
+            received = new CountDownLatch(messages);
+        }
+
+        @Override
+        public void upcall(ReadMessage rm) throws IOException {
+            rm.readInt();
+            received.countDown();
+            await(open);
+        }
+    }
+
+    private static void send(MessageUpcallChannel channel, int value) throws IOException {
+        WriteMessage wm = channel.sendMessage(0);
+        wm.writeInt(value);
+        wm.finish();
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            if (!latch.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Runs the sender on rank 1 once both ranks have activated a channel with the given upcall and window. Rank 0 waits until the upcall has
+     * received all messages.
+     */
+    private static void run(final int window, final FlowControlPolicy policy, final MessageUpcall upcall, final CountDownLatch received,
+            final Sender sender) throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            MessageUpcallChannel channel = p.createMessageUpcallChannel("credits", p.getAllIdentifiers(), upcall,
+                    new ChannelOptions().setFlowControl(window, 0, policy));
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 0) {
+                await(received);
+            } else {
+                sender.run(channel);
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void senderStallsUntilCreditsAreReturned() throws Exception {
+
+        final GatedUpcall upcall = new GatedUpcall(3);
+
+        run(2, FlowControlPolicy.BLOCK, upcall, upcall.received, channel -> {
+
+            send(channel, 1);
+            send(channel, 2);
+
+            // The upcall holds on to the first message, so the credits of both messages are still out.
+            CompletableFuture<Void> third = CompletableFuture.runAsync(() -> {
+                try {
+                    send(channel, 3);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            Thread.sleep(200);
+            assertFalse("Sent without credits", third.isDone());
+            assertEquals(2, channel.getFlowControlStatistics().getOutstandingMessages(0));
+
+            upcall.open.countDown();
+
+            third.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(channel.getFlowControlStatistics().getStalls(0) > 0);
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void sendFailsWithoutCredits() throws Exception {
+
+        final GatedUpcall upcall = new GatedUpcall(2);
+
+        run(1, FlowControlPolicy.FAIL, upcall, upcall.received, channel -> {
+
+            send(channel, 1);
+
+            try {
+                send(channel, 2);
+                fail("Sent without credits");
+            } catch (NoCreditsException e) {
+                // expected
+            }
+
+            upcall.open.countDown();
+
+            // The credits come back once the upcall returns.
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+
+            while (true) {
+                try {
+                    send(channel, 2);
+                    return;
+                } catch (NoCreditsException e) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(1);
+                }
+            }
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void creditsAreReturnedWhenTheUpcallFails() throws Exception {
+
+        final int messages = 5;
+        final CountDownLatch received = new CountDownLatch(messages);
+
+        MessageUpcall upcall = rm -> {
+            received.countDown();
+            throw new IOException("Upcall failed on purpose");
+        };
+
+        run(1, FlowControlPolicy.BLOCK, upcall, received, channel -> {
+            for (int i = 0; i < messages; i++) {
+                send(channel, i);
+            }
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void messagesToSelfAreNotFlowControlled() throws Exception {
+
+        final CountDownLatch received = new CountDownLatch(3);
+
+        LocalPoolRunner.run(1, p -> {
+
+            MessageUpcallChannel channel = p.createMessageUpcallChannel("self", p.getAllIdentifiers(), rm -> {
+                rm.readInt();
+                received.countDown();
+            }, new ChannelOptions().setFlowControl(1, 0, FlowControlPolicy.FAIL));
+
+            channel.activate();
+
+            for (int i = 0; i < 3; i++) {
+                send(channel, i);
+            }
+
+            await(received);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000, expected = IllegalArgumentException.class)
+    public void flowControlRejectsByteSerialization() throws Exception {
+        LocalPoolRunner.run(1, p -> {
+            p.createMessageUpcallChannel("byte", p.getAllIdentifiers(), rm -> rm.finish(),
+                    new ChannelOptions().setFlowControl(1, 0, FlowControlPolicy.BLOCK).setSerialization(Serialization.BYTE));
+            return null;
+        });
+    }
+}
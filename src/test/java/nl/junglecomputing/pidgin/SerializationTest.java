@@ -0,0 +1,251 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Tests the serializations a channel can be created with.
+ */
+public class SerializationTest {
+
+    private static final byte[] BYTES = { 1, 2, 3, 4, 5 };
+
+    /**
+     * Keeps the first buffer of the message it gets.
+     */
+    private static class BufferUpcall implements Upcall {
+
+        final CountDownLatch received = new CountDownLatch(1);
+
+        byte[] payload;
+
+        Object data;
+
+        @Override
+        public ByteBuffer[] allocateByteBuffers(String channel, IbisIdentifier sender, byte opcode, Object data, int[] sizes) {
+            return new ByteBuffer[] { ByteBuffer.allocate(sizes[0]) };
+        }
+
+        @Override
+        public void receiveMessage(String channel, IbisIdentifier sender, byte opcode, Object data, ByteBuffer[] buffers) {
+            payload = buffers[0].array();
+            this.data = data;
+            received.countDown();
+        }
+    }
+
+    /**
+     * A class without a built-in codec.
+     */
+    private static class Point {
+
+        final int x;
+
+        final int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Point && ((Point) other).x == x && ((Point) other).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+    }
+
+    /**
+     * Rank 1 sends rank 0 a message using what the serialization supports.
+     */
+    private static void explicit(final Serialization serialization) throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("explicit", p.getAllIdentifiers(),
+                    new ChannelOptions().setSerialization(serialization));
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                WriteMessage wm = channel.sendMessage(0);
+                wm.writeByte((byte) 42);
+                wm.writeArray(BYTES);
+
+                if (serialization != Serialization.BYTE) {
+                    wm.writeInt(7);
+                    wm.writeString("seven");
+                }
+
+                if (serialization == Serialization.OBJECT) {
+                    wm.writeObject(new int[] { 7, 8 });
+                }
+
+                wm.finish();
+            } else {
+                ReadMessage rm = channel.receiveMessage(1, TIMEOUT);
+                assertEquals(42, rm.readByte());
+
+                byte[] bytes = new byte[BYTES.length];
+                rm.readArray(bytes);
+                assertArrayEquals(BYTES, bytes);
+
+                if (serialization != Serialization.BYTE) {
+                    assertEquals(7, rm.readInt());
+                    assertEquals("seven", rm.readString());
+                }
+
+                if (serialization == Serialization.OBJECT) {
+                    assertArrayEquals(new int[] { 7, 8 }, (int[]) rm.readObject());
+                }
+
+                rm.finish();
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void explicitChannelWithObjectSerialization() throws Exception {
+        explicit(Serialization.OBJECT);
+    }
+
+    @Test(timeout = 60000)
+    public void explicitChannelWithDataSerialization() throws Exception {
+        explicit(Serialization.DATA);
+    }
+
+    @Test(timeout = 60000)
+    public void explicitChannelWithByteSerialization() throws Exception {
+        explicit(Serialization.BYTE);
+    }
+
+    @Test(timeout = 60000, expected = IllegalArgumentException.class)
+    public void upcallChannelRejectsByteSerialization() throws Exception {
+        LocalPoolRunner.run(1, p -> {
+            p.createUpcallChannel("byte", p.getAllIdentifiers(), new BufferUpcall(), new ChannelOptions().setSerialization(Serialization.BYTE));
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void upcallChannelWithDataSerializationOnlySendsBuffers() throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final BufferUpcall upcall = new BufferUpcall();
+
+        LocalPoolRunner.run(2, p -> {
+
+            UpcallChannel channel = p.createUpcallChannel("data", p.getAllIdentifiers(), upcall,
+                    new ChannelOptions().setSerialization(Serialization.DATA));
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                try {
+                    channel.sendMessage(0, (byte) 0, new ArrayList<String>(), ByteBuffer.wrap(BYTES));
+                    fail("Sent a data object without object serialization");
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+
+                channel.sendMessage(0, (byte) 0, null, ByteBuffer.wrap(BYTES));
+            } else if (!upcall.received.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                fail("No message received");
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+
+        assertArrayEquals(BYTES, upcall.payload);
+    }
+
+    @Test(timeout = 60000)
+    public void upcallChannelWithDataSerializationSendsObjectsWithACodec() throws Exception {
+
+        final CodecRegistry codecs = new CodecRegistry();
+
+        codecs.register(CodecRegistry.FIRST_USER_ID, Point.class, new Codec<Point>() {
+
+            @Override
+            public void encode(Point value, WriteMessage wm) throws IOException {
+                wm.writeInt(value.x);
+                wm.writeInt(value.y);
+            }
+
+            @Override
+            public Point decode(ReadMessage rm) throws IOException {
+                return new Point(rm.readInt(), rm.readInt());
+            }
+        });
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        final BufferUpcall upcall = new BufferUpcall();
+
+        LocalPoolRunner.run(2, p -> {
+
+            UpcallChannel channel = p.createUpcallChannel("codec", p.getAllIdentifiers(), upcall,
+                    new ChannelOptions().setSerialization(Serialization.DATA).setCodecRegistry(codecs));
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                channel.sendMessage(0, (byte) 0, new Point(3, -4), ByteBuffer.wrap(BYTES));
+            } else if (!upcall.received.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                fail("No message received");
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+
+        assertEquals(new Point(3, -4), upcall.data);
+        assertArrayEquals(BYTES, upcall.payload);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Tests channels between ranks that exchange messages through shared memory rings. The ranks of the Ibis pool all run in this JVM, so they
+ * are on the same host. The rings are kept small, so most messages do not fit in a ring at once.
+ */
+public class SharedMemoryTest {
+
+    private static final int CAPACITY = 4096;
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("pidgin-shm").toFile();
+    }
+
+    @After
+    public void removeDirectory() {
+
+        File[] files = directory.listFiles();
+
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+
+        directory.delete();
+    }
+
+    private ChannelOptions options() {
+        return new ChannelOptions().setSharedMemory(true, CAPACITY).setSharedMemoryDirectory(directory);
+    }
+
+    private static byte[] payload(int size, int seed) {
+
+        byte[] result = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) (seed + i);
+        }
+
+        return result;
+    }
+
+    @Test(timeout = 60000)
+    public void upcallChannelReceivesMessagesLargerThanTheRing() throws Exception {
+
+        final int size = 3;
+        final int messages = 5;
+        final int length = 3 * CAPACITY + 17;
+
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        final List<Object> data = Collections.synchronizedList(new ArrayList<Object>());
+        final CountDownLatch done = new CountDownLatch((size - 1) * messages);
+
+        final CyclicBarrier barrier = new CyclicBarrier(size);
+
+        IbisPoolRunner.run(size, p -> {
+
+            UpcallChannel channel = p.createUpcallChannel("shm", p.getAllIdentifiers(), (c, sender, opcode, d, buffers) -> {
+
+                byte[] bytes = new byte[buffers[0].remaining()];
+                buffers[0].get(bytes);
+
+                received.add(bytes);
+                data.add(d);
+                done.countDown();
+            }, options());
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 0) {
+                if (!done.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    fail("Not all messages arrived");
+                }
+            } else {
+                for (int i = 0; i < messages; i++) {
+                    channel.sendMessage(0, (byte) 0, p.getRank() * messages + i, ByteBuffer.wrap(payload(length, p.getRank() * messages + i)));
+                }
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+
+        assertEquals((size - 1) * messages, received.size());
+
+        for (int i = 0; i < received.size(); i++) {
+            assertArrayEquals(payload(length, (Integer) data.get(i)), received.get(i));
+        }
+
+        // The rings are removed when the channel is deactivated.
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test(timeout = 60000)
+    public void explicitChannelReceivesFromTheRing() throws Exception {
+
+        final byte[] bytes = payload(5 * CAPACITY, 1);
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        IbisPoolRunner.run(2, p -> {
+
+            ExplicitChannel channel = p.createExplicitChannel("shm", p.getAllIdentifiers(), options());
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                for (int i = 0; i < 3; i++) {
+                    WriteMessage wm = channel.sendMessage(0);
+                    wm.writeInt(i);
+                    wm.writeString("message " + i);
+                    wm.writeArray(bytes);
+                    wm.finish();
+                }
+            } else {
+                for (int i = 0; i < 3; i++) {
+                    ReadMessage rm = i == 1 ? channel.receiveAny(TIMEOUT) : channel.receiveMessage(1, TIMEOUT);
+
+                    assertEquals(i, rm.readInt());
+                    assertEquals("message " + i, rm.readString());
+
+                    byte[] result = new byte[bytes.length];
+                    rm.readArray(result);
+                    assertArrayEquals(bytes, result);
+
+                    rm.finish();
+                }
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new ChannelOptions().setSharedMemory(true, 3 * CAPACITY);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import ibis.ipl.IbisIdentifier;
+import ibis.ipl.ReadMessage;
+import ibis.ipl.WriteMessage;
+
+/**
+ * Tests channels among some of the nodes of a pool, and {@link Pidgin#split(String, IbisIdentifier[], int, int)}.
+ */
+public class SubGroupTest {
+
+    private static void send(ExplicitChannel channel, IbisIdentifier dest, int value) throws IOException {
+        WriteMessage wm = channel.sendMessage(dest);
+        wm.writeInt(value);
+        wm.finish();
+    }
+
+    private static int receive(ExplicitChannel channel, IbisIdentifier source) throws IOException {
+        ReadMessage rm = channel.receiveMessage(source, TIMEOUT);
+        int value = rm.readInt();
+        rm.finish();
+        return value;
+    }
+
+    private static int[] getPoolRanks(Pidgin p, IbisIdentifier[] group) {
+
+        IbisIdentifier[] ids = p.getAllIdentifiers();
+
+        int[] result = new int[group.length];
+
+        for (int i = 0; i < group.length; i++) {
+            result[i] = -1;
+
+            for (int j = 0; j < ids.length; j++) {
+                if (ids[j].equals(group[i])) {
+                    result[i] = j;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    @Test(timeout = 60000)
+    public void channelRanksItsParticipantsDensely() throws Exception {
+        LocalPoolRunner.run(4, p -> {
+
+            IbisIdentifier[] ids = p.getAllIdentifiers();
+
+            if (p.getRank() == 0 || p.getRank() == 2) {
+                return null;
+            }
+
+            IbisIdentifier[] participants = { ids[3], ids[1] };
+
+            ExplicitChannel channel = p.createExplicitChannel("group", participants);
+
+            assertEquals(2, channel.getSize());
+            assertArrayEquals(participants, channel.getParticipants());
+            assertEquals(p.getRank() == 3 ? 0 : 1, channel.getRank());
+            assertEquals(1, channel.getRank(ids[1]));
+            assertEquals(-1, channel.getRank(ids[0]));
+
+            channel.activate();
+
+            try {
+                channel.sendMessage(ids[0]);
+                fail("Sent to a node that does not participate");
+            } catch (NoSuchDestinationException e) {
+                // expected
+            }
+
+            IbisIdentifier peer = participants[1 - channel.getRank()];
+
+            send(channel, peer, p.getRank());
+            assertEquals(4 - p.getRank(), receive(channel, peer));
+
+            // Both have received, so neither deactivates while the other still receives.
+            send(channel, peer, 0);
+            assertEquals(0, receive(channel, peer));
+
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void splitGroupsByColorAndOrdersByKey() throws Exception {
+        LocalPoolRunner.run(6, p -> {
+
+            int rank = p.getRank();
+
+            // Rank 5 joins no group, the others are grouped by parity, in reverse order.
+            IbisIdentifier[] group = p.split("parity", rank == 5 ? -1 : rank % 2, -rank);
+
+            if (rank == 5) {
+                assertNull(group);
+                return null;
+            }
+
+            int[] expected = rank % 2 == 0 ? new int[] { 4, 2, 0 } : new int[] { 3, 1 };
+
+            assertArrayEquals(expected, getPoolRanks(p, group));
+
+            // The group can be used to create a channel among its members, in which the first member collects the ranks of the others.
+            ExplicitChannel channel = p.createExplicitChannel("parity-" + (rank % 2), group);
+            channel.activate();
+
+            if (channel.getRank() == 0) {
+
+                for (int i = 1; i < group.length; i++) {
+                    assertEquals(expected[i], receive(channel, group[i]));
+                }
+
+                for (int i = 1; i < group.length; i++) {
+                    send(channel, group[i], 0);
+                }
+            } else {
+                send(channel, group[0], rank);
+                assertEquals(0, receive(channel, group[0]));
+            }
+
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void splitTagCanBeReused() throws Exception {
+        LocalPoolRunner.run(4, p -> {
+
+            int rank = p.getRank();
+
+            // Back to back, so a rank may start the next split while the others are still finishing the previous one.
+            for (int i = 0; i < 5; i++) {
+                IbisIdentifier[] group = p.split("again", (rank + i) % 2, rank);
+                assertArrayEquals((rank + i) % 2 == 0 ? new int[] { i % 2, i % 2 + 2 } : new int[] { 1 - i % 2, 3 - i % 2 },
+                        getPoolRanks(p, group));
+            }
+
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void nameOfAChannelThatCouldNotBeCreatedCanBeReused() throws Exception {
+        LocalPoolRunner.run(2, p -> {
+
+            IbisIdentifier[] other = { p.getAllIdentifiers()[1 - p.getRank()] };
+
+            try {
+                p.createExplicitChannel("retry", other, new ChannelOptions());
+                fail("Created a channel without the local node");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            ExplicitChannel channel = p.createExplicitChannel("retry", p.getAllIdentifiers(), new ChannelOptions());
+            assertEquals(p.getRank(), channel.getRank());
+            return null;
+        });
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ibis.ipl.WriteMessage;
+import nl.junglecomputing.pidgin.impl.trace.ChromeTraceConverter;
+
+/**
+ * Tests that the messages of an {@link UpcallChannel} are traced while tracing is enabled, and that a dump converts to a timeline.
+ */
+public class TracingTest {
+
+    private static final byte OPCODE = 7;
+
+    @After
+    public void disableTracing() {
+        Tracing.disable();
+    }
+
+    /**
+     * Rank 1 sends a few messages to rank 0 on a channel with the given name, and returns the converted dump of all events recorded so far.
+     */
+    private static String trace(final String name) throws Exception {
+
+        final int messages = 3;
+
+        final CountDownLatch received = new CountDownLatch(messages);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        LocalPoolRunner.run(2, p -> {
+
+            UpcallChannel channel = p.createUpcallChannel(name, p.getAllIdentifiers(), (c, sender, opcode, data, buffers) -> received.countDown());
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                for (int i = 0; i < messages; i++) {
+                    channel.sendMessage(0, OPCODE, null, ByteBuffer.allocate(16));
+                }
+            } else {
+                assertTrue(received.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+
+        return dump();
+    }
+
+    /**
+     * Returns the converted dump of all events recorded so far.
+     */
+    private static String dump() throws Exception {
+
+        File dump = File.createTempFile("pidgin-trace", ".bin");
+
+        try {
+            Tracing.dump(dump);
+
+            StringWriter json = new StringWriter();
+            ChromeTraceConverter.convert(new File[] { dump }, json);
+            return json.toString();
+        } finally {
+            dump.delete();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void enabledTracingRecordsSendsAndUpcalls() throws Exception {
+
+        Tracing.enable();
+
+        String json = trace("traced");
+
+        // Events are labelled with the channel name and the rank of the node that recorded them.
+        assertTrue(json.contains("\"cat\":\"traced rank 0\""));
+        assertTrue(json.contains("\"cat\":\"traced rank 1\""));
+        assertTrue(json.contains("\"send " + OPCODE + "\""));
+        assertTrue(json.contains("\"upcall " + OPCODE + "\""));
+    }
+
+    @Test(timeout = 60000)
+    public void disabledTracingRecordsNothing() throws Exception {
+
+        Tracing.disable();
+
+        assertFalse(trace("untraced").contains("\"cat\":\"untraced"));
+    }
+
+    private static int count(String json, String event) {
+
+        int result = 0;
+
+        for (int i = json.indexOf(event); i >= 0; i = json.indexOf(event, i + 1)) {
+            result++;
+        }
+
+        return result;
+    }
+
+    @Test(timeout = 60000)
+    public void failedUpcallsEndTheirMessage() throws Exception {
+
+        final int messages = 3;
+
+        final CountDownLatch received = new CountDownLatch(messages);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        Tracing.enable();
+
+        LocalPoolRunner.run(2, p -> {
+
+            MessageUpcallChannel channel = p.createMessageUpcallChannel("failing", p.getAllIdentifiers(), rm -> {
+                received.countDown();
+                throw new IOException("Upcall failed on purpose");
+            });
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                for (int i = 0; i < messages; i++) {
+                    WriteMessage wm = channel.sendMessage(0);
+                    wm.writeInt(i);
+                    wm.finish();
+                }
+            } else {
+                assertTrue(received.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+
+        String receive = "{\"name\":\"receive\",\"cat\":\"failing rank 0\",\"ph\":";
+
+        // The end of the last message may be recorded just after the upcall counted it.
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        String json = dump();
+
+        while (count(json, receive + "\"E\"") < messages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            json = dump();
+        }
+
+        assertEquals(messages, count(json, receive + "\"B\""));
+        assertEquals(messages, count(json, receive + "\"E\""));
+    }
+}
@@ -0,0 +1,974 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin;
+
+import static nl.junglecomputing.pidgin.LocalPoolRunner.TIMEOUT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ibis.ipl.IbisIdentifier;
+
+/**
+ * Tests an {@link UpcallChannel}, where rank 0 receives the messages sent by the other ranks.
+ */
+public class UpcallChannelTest {
+
+    private static final byte OPCODE = 3;
+
+    private interface Sender {
+        void run(UpcallChannel channel, int rank, IbisIdentifier receiver) throws Exception;
+    }
+
+    /**
+     * Records the payloads of the messages it gets, copied into a single array each, and their data objects. The payload is received in buffers
+     * allocated by the upcall, or in buffers from the pool of the channel.
+     */
+    private static class RecordingUpcall implements Upcall {
+
+        final List<byte[]> messages = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        final List<Object> data = Collections.synchronizedList(new ArrayList<Object>());
+
+        final CountDownLatch received;
+
+        final boolean pooled;
+
+        volatile boolean direct = true;
+
+        RecordingUpcall(int messages) {
+            this(messages, false);
+        }
+
+        RecordingUpcall(int messages, boolean pooled) {
+            this.received = new CountDownLatch(messages);
+            this.pooled = pooled;
+        }
+
+        @Override
+        public ByteBuffer[] allocateByteBuffers(String channel, IbisIdentifier sender, byte opcode, Object data, int[] sizes) {
+
+            if (pooled) {
+                return null;
+            }
+
+            ByteBuffer[] result = new ByteBuffer[sizes.length];
+
+            for (int i = 0; i < sizes.length; i++) {
+                result[i] = ByteBuffer.allocate(sizes[i]);
+            }
+
+            return result;
+        }
+
+        @Override
+        public void receiveMessage(String channel, IbisIdentifier sender, byte opcode, Object data, ByteBuffer[] buffers) {
+
+            if (pooled) {
+                receivePooled(data, buffers);
+                return;
+            }
+
+            int size = 0;
+
+            for (ByteBuffer b : buffers) {
+                size += b.capacity();
+            }
+
+            ByteBuffer all = ByteBuffer.allocate(size);
+
+            // The buffers were allocated with the exact size of the payload.
+            for (ByteBuffer b : buffers) {
+                all.put(b.array());
+            }
+
+            record(all.array(), data);
+        }
+
+        /**
+         * Adds a message and its data at the same index, as upcalls may run concurrently.
+         */
+        private synchronized void record(byte[] message, Object data) {
+            messages.add(message);
+            this.data.add(data);
+            received.countDown();
+        }
+
+        private void receivePooled(Object data, ByteBuffer[] buffers) {
+
+            int size = 0;
+
+            for (ByteBuffer b : buffers) {
+                size += b.remaining();
+                direct &= b.isDirect();
+            }
+
+            ByteBuffer all = ByteBuffer.allocate(size);
+
+            for (ByteBuffer b : buffers) {
+                all.put(b);
+            }
+
+            record(all.array(), data);
+        }
+    }
+
+    /**
+     * Records the threads that deliver messages, how many messages of the same sender are delivered at the same time, and the order in which the
+     * data objects of each sender arrive.
+     */
+    private static class DispatchUpcall implements Upcall {
+
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+        final Map<IbisIdentifier, AtomicInteger> active = new ConcurrentHashMap<>();
+
+        final AtomicInteger maxActive = new AtomicInteger();
+
+        final Map<IbisIdentifier, List<Object>> order = new ConcurrentHashMap<>();
+
+        final CountDownLatch received;
+
+        DispatchUpcall(int messages) {
+            received = new CountDownLatch(messages);
+        }
+
+        @Override
+        public void receiveMessage(String channel, IbisIdentifier sender, byte opcode, Object data, ByteBuffer[] buffers) {
+
+            threads.add(Thread.currentThread().getName());
+
+            AtomicInteger count = active.computeIfAbsent(sender, id -> new AtomicInteger());
+            maxActive.accumulateAndGet(count.incrementAndGet(), Math::max);
+
+            order.computeIfAbsent(sender, id -> Collections.synchronizedList(new ArrayList<Object>())).add(data);
+
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            count.decrementAndGet();
+            received.countDown();
+        }
+    }
+
+    /**
+     * Reassembles the chunks of transfers, which are told apart by their total size. Messages that were not chunked are recorded as they are.
+     */
+    private static class ChunkUpcall implements StreamUpcall {
+
+        final List<byte[]> messages = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        final List<Long> offsets = Collections.synchronizedList(new ArrayList<Long>());
+
+        final CountDownLatch received;
+
+        private final Map<Long, byte[]> transfers = new HashMap<>();
+
+        private final Map<Long, Long> filled = new HashMap<>();
+
+        ChunkUpcall(int messages) {
+            received = new CountDownLatch(messages);
+        }
+
+        @Override
+        public void receiveMessage(String channel, IbisIdentifier sender, byte opcode, Object data, ByteBuffer[] buffers) {
+
+            int size = 0;
+
+            for (ByteBuffer b : buffers) {
+                size += b.remaining();
+            }
+
+            ByteBuffer all = ByteBuffer.allocate(size);
+
+            for (ByteBuffer b : buffers) {
+                all.put(b);
+            }
+
+            messages.add(all.array());
+            received.countDown();
+        }
+
+        @Override
+        public synchronized void receiveChunk(String channel, IbisIdentifier sender, byte opcode, Object data, long total, long offset,
+                ByteBuffer chunk) {
+
+            byte[] transfer = transfers.computeIfAbsent(total, t -> new byte[(int) total]);
+
+            offsets.add(offset);
+
+            int length = chunk.remaining();
+            chunk.get(transfer, (int) offset, length);
+
+            long done = filled.merge(total, (long) length, Long::sum);
+
+            if (done == total) {
+                messages.add(transfer);
+                received.countDown();
+            }
+        }
+
+        byte[] get(int length) {
+
+            synchronized (messages) {
+                for (byte[] m : messages) {
+                    if (m.length == length) {
+                        return m;
+                    }
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private static byte[] payload(int size, int seed) {
+
+        byte[] result = new byte[size];
+
+        for (int i = 0; i < size; i++) {
+            result[i] = (byte) (seed + i);
+        }
+
+        return result;
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            if (!latch.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out");
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Runs the sender on all ranks but rank 0 once all ranks have activated a channel with the given upcall and options. Rank 0 waits until the
+     * upcall has received all messages.
+     */
+    private static void run(final int size, final ChannelOptions options, final Upcall upcall, final CountDownLatch received,
+            final Sender sender) throws Exception {
+
+        final CyclicBarrier barrier = new CyclicBarrier(size);
+
+        LocalPoolRunner.run(size, p -> {
+
+            UpcallChannel channel = p.createUpcallChannel("upcall", p.getAllIdentifiers(), upcall, options);
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 0) {
+                await(received);
+            } else {
+                sender.run(channel, p.getRank(), p.getAllIdentifiers()[0]);
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    private void receiveFromAll(ReceiveMode mode) throws Exception {
+
+        final int size = 4;
+        final int messages = 5;
+
+        final RecordingUpcall upcall = new RecordingUpcall((size - 1) * messages);
+
+        run(size, new ChannelOptions().setReceiveMode(mode), upcall, upcall.received, (channel, rank, receiver) -> {
+            for (int i = 0; i < messages; i++) {
+                channel.sendMessage(receiver, OPCODE, rank, ByteBuffer.wrap(payload(8, rank)), ByteBuffer.wrap(payload(3, rank + 8)));
+            }
+        });
+
+        int[] counts = new int[size];
+
+        for (int i = 0; i < upcall.messages.size(); i++) {
+            int rank = (Integer) upcall.data.get(i);
+            assertArrayEquals(payload(11, rank), upcall.messages.get(i));
+            counts[rank]++;
+        }
+
+        assertArrayEquals(new int[] { 0, messages, messages, messages }, counts);
+    }
+
+    @Test(timeout = 60000)
+    public void oneToOneReceivesFromAllSenders() throws Exception {
+        receiveFromAll(ReceiveMode.ONE_TO_ONE);
+    }
+
+    @Test(timeout = 60000)
+    public void manyToOneReceivesFromAllSenders() throws Exception {
+        receiveFromAll(ReceiveMode.MANY_TO_ONE);
+    }
+
+    @Test(timeout = 60000)
+    public void upcallWithoutBuffersReceivesIntoThePool() throws Exception {
+
+        final int messages = 10;
+
+        final ByteBufferPool pool = new ByteBufferPool();
+        final RecordingUpcall upcall = new RecordingUpcall(messages, true);
+
+        run(2, new ChannelOptions().setBufferPool(pool), upcall, upcall.received, (channel, rank, receiver) -> {
+            for (int i = 0; i < messages; i++) {
+                channel.sendMessage(receiver, OPCODE, i, ByteBuffer.wrap(payload(100, i)), ByteBuffer.wrap(payload(1000, i + 100)));
+            }
+        });
+
+        assertTrue("Received into heap buffers", upcall.direct);
+
+        for (int i = 0; i < messages; i++) {
+            int seed = (Integer) upcall.data.get(i);
+
+            byte[] expected = new byte[1100];
+            System.arraycopy(payload(100, seed), 0, expected, 0, 100);
+            System.arraycopy(payload(1000, seed + 100), 0, expected, 100, 1000);
+
+            assertArrayEquals(expected, upcall.messages.get(i));
+        }
+
+        // The buffers are recycled once the upcall returns, which may be just after the last message was counted.
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (pool.getBytesOutstanding() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(0, pool.getBytesOutstanding());
+        assertTrue(pool.getHits() > 0);
+    }
+
+    /**
+     * Runs a two node pool with aggregation, delivering the messages in order on an executor.
+     */
+    private static void aggregated(int maxBytes, long maxDelay, RecordingUpcall upcall, Sender sender) throws Exception {
+
+        ExecutorService executor = dispatchers(2);
+
+        try {
+            run(2, new ChannelOptions().setAggregation(maxBytes, maxDelay, TimeUnit.MILLISECONDS).setDispatcher(executor, true), upcall,
+                    upcall.received, sender);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks that the messages sent with {@link #payload(int, int)} arrived in the order in which they were sent.
+     */
+    private static void assertReceivedInOrder(RecordingUpcall upcall, int messages, int size) {
+
+        assertEquals(messages, upcall.messages.size());
+
+        for (int i = 0; i < messages; i++) {
+            assertArrayEquals(payload(size, i), upcall.messages.get(i));
+        }
+    }
+
+    @Test(timeout = 60000, expected = IllegalArgumentException.class)
+    public void aggregationRequiresOrderedDispatch() throws Exception {
+        LocalPoolRunner.run(1, p -> {
+            p.createUpcallChannel("aggregated", p.getAllIdentifiers(), new RecordingUpcall(0),
+                    new ChannelOptions().setAggregation(4096, 0, TimeUnit.MILLISECONDS));
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void aggregatedMessagesWaitForFlush() throws Exception {
+
+        final int messages = 10;
+        final RecordingUpcall upcall = new RecordingUpcall(messages);
+
+        aggregated(4096, 0, upcall, (channel, rank, receiver) -> {
+
+            for (int i = 0; i < messages; i++) {
+                channel.sendMessage(receiver, OPCODE, null, ByteBuffer.wrap(payload(4, i)));
+            }
+
+            Thread.sleep(200);
+            assertEquals("Delivered before flush", messages, upcall.received.getCount());
+
+            channel.flush(receiver);
+        });
+
+        assertReceivedInOrder(upcall, messages, 4);
+    }
+
+    @Test(timeout = 60000)
+    public void aggregatedMessagesAreSentWhenTheBufferIsFull() throws Exception {
+
+        final int messages = 100;
+        final RecordingUpcall upcall = new RecordingUpcall(messages);
+
+        aggregated(256, 0, upcall, (channel, rank, receiver) -> {
+
+            for (int i = 0; i < messages; i++) {
+                channel.sendMessage(receiver, OPCODE, null, ByteBuffer.wrap(payload(16, i)));
+            }
+
+            // Only the last, partly filled buffer needs a flush.
+            assertTrue("Nothing delivered before flush", waitForDelivery(upcall, messages));
+
+            channel.flush();
+        });
+
+        // The messages span several wire messages.
+        assertReceivedInOrder(upcall, messages, 16);
+    }
+
+    @Test(timeout = 60000)
+    public void aggregatedMessagesAreSentAfterTheDelay() throws Exception {
+
+        final int messages = 5;
+        final RecordingUpcall upcall = new RecordingUpcall(messages);
+
+        aggregated(4096, 20, upcall, (channel, rank, receiver) -> {
+            for (int i = 0; i < messages; i++) {
+                channel.sendMessage(receiver, OPCODE, null, ByteBuffer.wrap(payload(8, i)));
+            }
+        });
+
+        assertReceivedInOrder(upcall, messages, 8);
+    }
+
+    /**
+     * Waits until the upcall has received at least one of the given number of messages. Returns <code>false</code> if none arrived in time.
+     */
+    private static boolean waitForDelivery(RecordingUpcall upcall, int messages) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (upcall.received.getCount() == messages) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+
+        return true;
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentSendsByRank() throws Exception {
+
+        final int threads = 4;
+        final int messages = 50;
+
+        final RecordingUpcall upcall = new RecordingUpcall(threads * messages);
+
+        run(2, new ChannelOptions(), upcall, upcall.received, (channel, rank, receiver) -> {
+
+            Thread[] senders = new Thread[threads];
+            final IOException[] failure = new IOException[1];
+
+            for (int t = 0; t < threads; t++) {
+
+                final int thread = t;
+
+                senders[t] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < messages; i++) {
+                            channel.sendMessage(0, OPCODE, thread, ByteBuffer.wrap(payload(16, thread)));
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                });
+
+                senders[t].start();
+            }
+
+            for (Thread t : senders) {
+                t.join();
+            }
+
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        });
+
+        int[] counts = new int[threads];
+
+        for (int i = 0; i < upcall.messages.size(); i++) {
+            int thread = (Integer) upcall.data.get(i);
+            assertArrayEquals(payload(16, thread), upcall.messages.get(i));
+            counts[thread]++;
+        }
+
+        assertArrayEquals(new int[] { messages, messages, messages, messages }, counts);
+    }
+
+    @Test(timeout = 60000)
+    public void asyncSendsCompleteTheirFutures() throws Exception {
+
+        final int messages = 20;
+
+        final RecordingUpcall upcall = new RecordingUpcall(messages);
+        final List<CompletableFuture<Void>> futures = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+
+        run(2, new ChannelOptions().setAsyncSend(1, 4), upcall, upcall.received, (channel, rank, receiver) -> {
+            for (int i = 0; i < messages; i++) {
+                futures.add(channel.sendAsync(receiver, OPCODE, i, ByteBuffer.wrap(payload(8, i))));
+            }
+        });
+
+        assertEquals(messages, futures.size());
+
+        for (CompletableFuture<Void> f : futures) {
+            assertTrue(f.isDone());
+            assertFalse(f.isCompletedExceptionally());
+        }
+
+        boolean[] seen = new boolean[messages];
+
+        for (int i = 0; i < messages; i++) {
+            int index = (Integer) upcall.data.get(i);
+            assertArrayEquals(payload(8, index), upcall.messages.get(i));
+            assertFalse(seen[index]);
+            seen[index] = true;
+        }
+    }
+
+    private static ExecutorService dispatchers(int threads) {
+        return Executors.newFixedThreadPool(threads, r -> new Thread(r, "dispatcher"));
+    }
+
+    private static void sendToRankZero(UpcallChannel channel, int messages) throws IOException {
+        for (int i = 0; i < messages; i++) {
+            channel.sendMessage(0, OPCODE, i, ByteBuffer.wrap(payload(8, i)));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void dispatchedUpcallsRunOnTheExecutor() throws Exception {
+
+        final int messages = 20;
+
+        ExecutorService executor = dispatchers(2);
+
+        try {
+            DispatchUpcall upcall = new DispatchUpcall(2 * messages);
+
+            run(3, new ChannelOptions().setDispatcher(executor, false), upcall, upcall.received,
+                    (channel, rank, receiver) -> sendToRankZero(channel, messages));
+
+            assertEquals(2 * messages, upcall.threads.size());
+
+            for (String name : upcall.threads) {
+                assertEquals("dispatcher", name);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void orderedDispatchDeliversOneMessagePerSenderAtATime() throws Exception {
+
+        final int messages = 20;
+
+        ExecutorService executor = dispatchers(4);
+
+        try {
+            DispatchUpcall upcall = new DispatchUpcall(3 * messages);
+
+            run(4, new ChannelOptions().setDispatcher(executor, true), upcall, upcall.received,
+                    (channel, rank, receiver) -> sendToRankZero(channel, messages));
+
+            assertEquals(3, upcall.active.size());
+            assertEquals(1, upcall.maxActive.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void postedReceivesTakeMatchingMessages() throws Exception {
+
+        final RecordingUpcall upcall = new RecordingUpcall(2);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        final ByteBuffer fits = ByteBuffer.allocate(8);
+        final List<CompletableFuture<Object>> posted = new ArrayList<>();
+
+        LocalPoolRunner.run(2, p -> {
+
+            UpcallChannel channel = p.createUpcallChannel("posted", p.getAllIdentifiers(), upcall, new ChannelOptions());
+            channel.activate();
+
+            if (p.getRank() == 0) {
+                posted.add(channel.postReceive(1, OPCODE, fits));
+                posted.add(channel.postReceive(1, OPCODE, ByteBuffer.allocate(4)));
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                // Another opcode, then one that fits the first posted receive, and one that is too large for the second.
+                channel.sendMessage(0, (byte) (OPCODE + 1), 0, ByteBuffer.wrap(payload(8, 0)));
+                channel.sendMessage(0, OPCODE, 1, ByteBuffer.wrap(payload(8, 1)));
+                channel.sendMessage(0, OPCODE, 2, ByteBuffer.wrap(payload(8, 2)));
+            } else {
+                await(upcall.received);
+                assertEquals(1, posted.get(0).get(TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+
+        assertArrayEquals(payload(8, 1), fits.array());
+        assertEquals(8, fits.position());
+        assertTrue(posted.get(1).isCompletedExceptionally());
+
+        assertEquals(2, upcall.data.size());
+        assertTrue(upcall.data.contains(0));
+        assertTrue(upcall.data.contains(2));
+    }
+
+    @Test(timeout = 60000)
+    public void chunkedTransferIsReassembled() throws Exception {
+
+        final RecordingUpcall upcall = new RecordingUpcall(2);
+
+        final byte[] first = payload(100, 0);
+        final byte[] second = payload(33, 7);
+
+        run(2, new ChannelOptions().setChunkedTransfer(0, 16), upcall, upcall.received, (channel, rank, receiver) -> {
+            channel.sendChunked(receiver, OPCODE, 1, ByteBuffer.wrap(first, 0, 60), ByteBuffer.wrap(first, 60, 40));
+            channel.sendChunked(receiver, OPCODE, 2, ByteBuffer.wrap(second));
+        });
+
+        assertEquals(2, upcall.messages.size());
+        assertArrayEquals(first, upcall.messages.get(upcall.data.indexOf(1)));
+        assertArrayEquals(second, upcall.messages.get(upcall.data.indexOf(2)));
+    }
+
+    /**
+     * Runs a two node pool that streams chunked transfers of the given size to the upcall, in order on an executor.
+     */
+    private static void streamed(long threshold, int chunkSize, ChunkUpcall upcall, Sender sender) throws Exception {
+
+        ExecutorService executor = dispatchers(4);
+
+        try {
+            run(2, new ChannelOptions().setDispatcher(executor, true).setChunkedTransfer(threshold, chunkSize), upcall, upcall.received,
+                    sender);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60000, expected = IllegalArgumentException.class)
+    public void streamUpcallRequiresOrderedDispatch() throws Exception {
+        LocalPoolRunner.run(1, p -> {
+            p.createUpcallChannel("streamed", p.getAllIdentifiers(), new ChunkUpcall(0), new ChannelOptions().setChunkedTransfer(0, 16));
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void chunkedTransferIsStreamedInOrder() throws Exception {
+
+        final ChunkUpcall upcall = new ChunkUpcall(2);
+
+        final byte[] first = payload(100, 0);
+        final byte[] second = payload(33, 7);
+
+        streamed(0, 16, upcall, (channel, rank, receiver) -> {
+            channel.sendChunked(0, OPCODE, null, ByteBuffer.wrap(first, 0, 60), ByteBuffer.wrap(first, 60, 40));
+            channel.sendChunked(0, OPCODE, null, ByteBuffer.wrap(second));
+        });
+
+        assertArrayEquals(first, upcall.messages.get(0));
+        assertArrayEquals(second, upcall.messages.get(1));
+
+        // Chunks do not span buffers: 60 bytes in chunks of 16, then 40 bytes, then 33 bytes.
+        assertEquals(Arrays.asList(0L, 16L, 32L, 48L, 60L, 76L, 92L, 0L, 16L, 32L), upcall.offsets);
+    }
+
+    @Test(timeout = 60000)
+    public void chunkedTransferReadsFromAChannel() throws Exception {
+
+        final ChunkUpcall upcall = new ChunkUpcall(1);
+
+        final byte[] data = payload(1000, 3);
+
+        streamed(0, 128, upcall, (channel, rank, receiver) -> {
+            channel.sendChunked(0, OPCODE, null, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        });
+
+        assertArrayEquals(data, upcall.get(1000));
+        assertEquals(8, upcall.offsets.size());
+    }
+
+    @Test(timeout = 60000)
+    public void largeMessagesAreChunkedAutomatically() throws Exception {
+
+        final ChunkUpcall upcall = new ChunkUpcall(2);
+
+        final byte[] small = payload(10, 1);
+        final byte[] large = payload(1000, 2);
+
+        streamed(64, 128, upcall, (channel, rank, receiver) -> {
+            channel.sendMessage(0, OPCODE, null, ByteBuffer.wrap(small));
+            channel.sendMessage(0, OPCODE, null, ByteBuffer.wrap(large));
+        });
+
+        assertArrayEquals(small, upcall.get(10));
+        assertArrayEquals(large, upcall.get(1000));
+
+        // Only the large message arrives in chunks.
+        assertEquals(8, upcall.offsets.size());
+    }
+
+    @Test(timeout = 60000)
+    public void failedChunkedTransferGivesBackItsCredits() throws Exception {
+
+        final RecordingUpcall upcall = new RecordingUpcall(1);
+
+        // With a window of one message, a credit that is not given back makes the next send fail.
+        ChannelOptions options = new ChannelOptions().setChunkedTransfer(0, 16).setFlowControl(1, 0, FlowControlPolicy.FAIL);
+
+        run(2, options, upcall, upcall.received, (channel, rank, receiver) -> {
+            try {
+                channel.sendChunked(receiver, OPCODE, new Object(), ByteBuffer.wrap(payload(40, 0)));
+                fail("Sent a data object that cannot be serialized");
+            } catch (NotSerializableException e) {
+                // expected
+            }
+
+            channel.sendMessage(receiver, OPCODE, rank, ByteBuffer.wrap(payload(8, 1)));
+        });
+
+        assertArrayEquals(payload(8, 1), upcall.messages.get(0));
+    }
+
+    @Test(timeout = 60000)
+    public void failedChunkAbortsTheTransfer() throws Exception {
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        final CountDownLatch allocated = new CountDownLatch(1);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        final ByteBufferPool pool = new ByteBufferPool() {
+            @Override
+            public ByteBuffer allocate(int size) {
+                ByteBuffer result = super.allocate(size);
+                allocated.countDown();
+                return result;
+            }
+        };
+
+        // The receiver only starts the transfer once the sender has failed, so no byte credits come back after the first chunk.
+        final Upcall upcall = new Upcall() {
+            @Override
+            public ByteBuffer[] allocateByteBuffers(String channel, IbisIdentifier sender, byte opcode, Object data, int[] sizes) {
+                try {
+                    failed.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+
+            @Override
+            public void receiveMessage(String channel, IbisIdentifier sender, byte opcode, Object data, ByteBuffer[] buffers) {
+                fail("Delivered an aborted transfer");
+            }
+        };
+
+        final ChannelOptions options = new ChannelOptions().setBufferPool(pool).setChunkedTransfer(0, 16).setFlowControl(0, 16,
+                FlowControlPolicy.FAIL);
+
+        LocalPoolRunner.run(2, p -> {
+
+            UpcallChannel channel = p.createUpcallChannel("abort", p.getAllIdentifiers(), upcall, options);
+
+            channel.activate();
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            if (p.getRank() == 1) {
+                try {
+                    channel.sendChunked(0, OPCODE, null, ByteBuffer.wrap(payload(40, 0)));
+                    fail("Sent a second chunk without credits");
+                } catch (NoCreditsException e) {
+                    failed.countDown();
+                }
+            } else {
+                await(failed);
+                await(allocated);
+
+                // The abort returns the buffer of the transfer to the pool.
+                long deadline = System.currentTimeMillis() + TIMEOUT;
+
+                while (pool.getBytesOutstanding() != 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+
+                assertEquals(0, pool.getBytesOutstanding());
+            }
+
+            barrier.await(TIMEOUT, TimeUnit.MILLISECONDS);
+            channel.deactivate();
+            return null;
+        });
+    }
+
+    @Test(timeout = 60000)
+    public void messageToSelfPassesDataByReference() throws Exception {
+
+        final Object data = new ArrayList<String>();
+        final Object[] received = new Object[1];
+        final byte[] bytes = payload(16, 5);
+        final byte[][] payloads = new byte[1][];
+
+        LocalPoolRunner.run(1, p -> {
+
+            UpcallChannel channel = p.createUpcallChannel("self", p.getAllIdentifiers(), (c, s, opcode, d, buffers) -> {
+                received[0] = d;
+                payloads[0] = new byte[buffers[0].remaining()];
+                buffers[0].get(payloads[0]);
+            });
+
+            channel.activate();
+            channel.sendMessage(0, OPCODE, data, ByteBuffer.wrap(bytes));
+            channel.deactivate();
+            return null;
+        });
+
+        assertSame(data, received[0]);
+        assertArrayEquals(bytes, payloads[0]);
+    }
+
+    @Test(timeout = 60000)
+    public void allocatedBuffersAreHandedOverReadyToRead() throws Exception {
+
+        final int messages = 5;
+        final List<ByteBuffer> received = Collections.synchronizedList(new ArrayList<ByteBuffer>());
+        final CountDownLatch done = new CountDownLatch(messages);
+
+        Upcall upcall = new Upcall() {
+
+            @Override
+            public ByteBuffer[] allocateByteBuffers(String channel, IbisIdentifier sender, byte opcode, Object data, int[] sizes) {
+                // Larger than needed, so the payload must not be read past its end.
+                return new ByteBuffer[] { ByteBuffer.allocate(sizes[0] + 8) };
+            }
+
+            @Override
+            public void receiveMessage(String channel, IbisIdentifier sender, byte opcode, Object data, ByteBuffer[] buffers) {
+                received.add(buffers[0]);
+                done.countDown();
+            }
+        };
+
+        run(2, new ChannelOptions(), upcall, done, (channel, rank, receiver) -> {
+            for (int i = 0; i < messages; i++) {
+                channel.sendMessage(receiver, OPCODE, null, ByteBuffer.wrap(payload(16, i)));
+            }
+        });
+
+        for (ByteBuffer b : received) {
+            assertEquals(0, b.position());
+            assertEquals(16, b.remaining());
+
+            byte[] bytes = new byte[16];
+            b.get(bytes);
+            assertArrayEquals(payload(16, bytes[0]), bytes);
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void rejectedDispatchRunsOnTheReceiveThread() throws Exception {
+
+        final int messages = 10;
+
+        ExecutorService executor = dispatchers(1);
+        executor.shutdown();
+
+        DispatchUpcall upcall = new DispatchUpcall(2 * messages);
+
+        run(3, new ChannelOptions().setDispatcher(executor, true), upcall, upcall.received,
+                (channel, rank, receiver) -> sendToRankZero(channel, messages));
+
+        assertEquals(2 * messages, upcall.threads.size());
+        assertFalse(upcall.threads.contains("dispatcher"));
+    }
+
+    @Test(timeout = 60000)
+    public void orderedDispatchKeepsTheSendOrderOfEachSender() throws Exception {
+
+        final int messages = 50;
+
+        ExecutorService executor = dispatchers(4);
+
+        try {
+            DispatchUpcall upcall = new DispatchUpcall(3 * messages);
+
+            run(4, new ChannelOptions().setDispatcher(executor, true), upcall, upcall.received,
+                    (channel, rank, receiver) -> sendToRankZero(channel, messages));
+
+            assertEquals(3, upcall.order.size());
+
+            for (List<Object> received : upcall.order.values()) {
+                assertEquals(messages, received.size());
+
+                for (int i = 0; i < messages; i++) {
+                    assertEquals(i, received.get(i));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 Netherlands eScience Center
+ *                Vrije Universiteit Amsterdam
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.junglecomputing.pidgin.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the percentiles and error bound of a {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+
+        LatencyHistogram h = new LatencyHistogram();
+
+        for (long v = 1; v <= 100; v++) {
+            h.record(v);
+        }
+
+        assertEquals(100, h.getCount());
+        assertEquals(1, h.getMin());
+        assertEquals(100, h.getMax());
+        assertEquals(50.5, h.getMean(), 1e-9);
+        assertEquals(50, h.getValueAtPercentile(50));
+        assertEquals(99, h.getValueAtPercentile(99));
+        assertEquals(100, h.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void largeValuesStayWithinOnePercent() {
+
+        for (long v = 1000; v > 0 && v < Long.MAX_VALUE / 3; v = v * 3 + 7) {
+
+            LatencyHistogram h = new LatencyHistogram();
+            h.record(v);
+            h.record(Long.MAX_VALUE);
+
+            long reported = h.getValueAtPercentile(50);
+
+            assertTrue("Value " + v + " reported as " + reported, reported >= v);
+            assertTrue("Value " + v + " reported as " + reported, reported - v <= v / 100);
+        }
+    }
+
+    @Test
+    public void percentileNeverExceedsTheMaximum() {
+
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(1_000_001);
+
+        assertEquals(1_000_001, h.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void resetEmptiesTheHistogram() {
+
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(42);
+        h.reset();
+
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMin());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getValueAtPercentile(99));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeValuesAreRejected() {
+        new LatencyHistogram().record(-1);
+    }
+}